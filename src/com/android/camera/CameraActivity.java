@@ -125,6 +125,7 @@ import com.bumptech.glide.load.engine.executor.FifoPriorityThreadPoolExecutor;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import static com.android.camera.CameraManager.CameraOpenErrorCallback;
 
@@ -352,10 +353,24 @@ public class CameraActivity extends Activity
         @Override
         public void onReceive(Context context, Intent intent) {
             Log.d(TAG, "SDcard status changed, update storage space");
+            StorageBudget.instance().invalidate();
             updateStorageSpaceAndHint();
         }
     };
 
+    // Refresh the storage hint when queued saves push free space across a threshold.
+    private StorageBudget.Listener mStorageLevelListener = new StorageBudget.Listener() {
+        @Override
+        public void onStorageLevelChanged(int level, long availableBytes) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mPaused) updateStorageSpaceAndHint();
+                }
+            });
+        }
+    };
+
     private void registerSDcardMountedReceiver() {
         // filter for SDcard status
         IntentFilter filter = new IntentFilter(Intent.ACTION_MEDIA_MOUNTED);
@@ -883,14 +898,12 @@ public class CameraActivity extends Activity
             if (mCheckOrientation) {
                 if (mOrientation != -1) {
                     orientation = mOrientation;
+                } else if (mJpegData != null) {
+                    orientation = Exif.getOrientation(mJpegData);
                 } else {
                     ExifInterface exif = new ExifInterface();
                     try {
-                        if (mJpegData != null) {
-                            exif.readExif(mJpegData);
-                        } else {
-                            exif.readExif(path);
-                        }
+                        exif.readExif(path);
                         orientation = Exif.getOrientation(exif);
                     } catch (IOException e) {
                         // ignore
@@ -898,7 +911,26 @@ public class CameraActivity extends Activity
                 }
             }
 
+            final int target = getResources().getDimensionPixelSize(R.dimen.capture_size);
             final BitmapFactory.Options opt = new BitmapFactory.Options();
+            // Captured pictures carry a small thumbnail in their EXIF header, which is
+            // enough for the thumbnail button and much cheaper than the full picture.
+            // Only its frame header is read until it is known to be large enough.
+            ByteBuffer thumb = mJpegData == null ? null
+                    : ExifInterface.getThumbnail(ByteBuffer.wrap(mJpegData));
+            if (thumb != null) {
+                int offset = thumb.arrayOffset() + thumb.position();
+                opt.inJustDecodeBounds = true;
+                BitmapFactory.decodeByteArray(mJpegData, offset, thumb.remaining(), opt);
+                if (Math.min(opt.outWidth, opt.outHeight) >= target) {
+                    Bitmap thumbnail = BitmapFactory.decodeByteArray(mJpegData, offset,
+                            thumb.remaining());
+                    if (thumbnail != null) {
+                        return rotate(thumbnail, orientation);
+                    }
+                }
+            }
+
             opt.inJustDecodeBounds = true;
             if (mJpegData != null) {
                 BitmapFactory.decodeByteArray(mJpegData, 0, mJpegData.length, opt);
@@ -910,7 +942,6 @@ public class CameraActivity extends Activity
             int h = opt.outHeight;
             int d = w > h ? h : w;
 
-            final int target = getResources().getDimensionPixelSize(R.dimen.capture_size);
             int sample = 1;
             if (d > target) {
                 while (d / sample / 2 > target) {
@@ -932,7 +963,10 @@ public class CameraActivity extends Activity
             } catch (IOException e) {
                 return null;
             }
-            Bitmap bitmap = decoder.decodeRegion(rect, opt);
+            return rotate(decoder.decodeRegion(rect, opt), orientation);
+        }
+
+        private Bitmap rotate(Bitmap bitmap, int orientation) {
             if (orientation != 0) {
                 Matrix matrix = new Matrix();
                 matrix.setRotate(orientation);
@@ -1762,6 +1796,7 @@ public class CameraActivity extends Activity
         mCurrentModule.onPauseAfterSuper();
 
         mPaused = true;
+        StorageBudget.instance().removeListener(mStorageLevelListener);
         mLocalImagesObserver.setActivityPaused(true);
         mLocalVideosObserver.setActivityPaused(true);
     }
@@ -1870,6 +1905,7 @@ public class CameraActivity extends Activity
         mCurrentModule.onResumeBeforeSuper();
         super.onResume();
         mPaused = false;
+        StorageBudget.instance().addListener(mStorageLevelListener);
         mCurrentModule.onResumeAfterSuper();
 
         setSwipingEnabled(true);
@@ -107,11 +107,13 @@ import com.android.camera.deepportrait.CamGLRenderObserver;
 import com.android.camera.deepportrait.CamGLRenderer;
 import com.android.camera.deepportrait.DPImage;
 import com.android.camera.deepportrait.GLCameraPreview;
+import com.android.camera.exif.DngWriter;
 import com.android.camera.exif.ExifInterface;
 import com.android.camera.imageprocessor.filter.BlurbusterFilter;
 import com.android.camera.imageprocessor.filter.ChromaflashFilter;
 import com.android.camera.imageprocessor.filter.DeepPortraitFilter;
 import com.android.camera.imageprocessor.filter.ImageFilter;
+import com.android.camera.imageprocessor.CaptureResultRegistry;
 import com.android.camera.imageprocessor.PostProcessor;
 import com.android.camera.imageprocessor.FrameProcessor;
 import com.android.camera.PhotoModule.NamedImages;
@@ -126,6 +128,7 @@ import com.android.camera.ui.RotateTextToast;
 import com.android.camera.ui.TrackingFocusRenderer;
 import com.android.camera.util.ApiHelper;
 import com.android.camera.util.CameraUtil;
+import com.android.camera.util.DngUtil;
 import com.android.camera.util.PersistUtil;
 import com.android.camera.util.SettingTranslation;
 import com.android.camera.util.AccessibilityUtils;
@@ -232,6 +235,11 @@ public class CaptureModule implements CameraModule, PhotoController,
 
     private static final int SCREEN_DELAY = 2 * 60 * 1000;
 
+    // Still captures with a RAW target whose results are kept for their frames.
+    private static final int RAW_CAPTURE_RESULT_CAPACITY = 8;
+    // How long a RAW frame waits for its capture result before it is saved without it.
+    private static final long RAW_CAPTURE_RESULT_TIMEOUT_MS = 500;
+
     private static final int mShotNum = PersistUtil.getLongshotShotLimit();
     private boolean mLongshoting = false;
     private AtomicInteger mNumFramesArrived = new AtomicInteger(0);
@@ -523,6 +531,10 @@ public class CaptureModule implements CameraModule, PhotoController,
      */
     private ImageReader[] mImageReader = new ImageReader[MAX_NUM_CAM];
     private ImageReader[] mRawImageReader = new ImageReader[MAX_NUM_CAM];
+    // Results of the still captures with a RAW target by sensor timestamp, to tag the
+    // DNGs with. The frame may arrive before or after its result.
+    private final CaptureResultRegistry mRawCaptureResults =
+            new CaptureResultRegistry(RAW_CAPTURE_RESULT_CAPACITY);
     private HeifWriter mInitHeifWriter;
     private OutputConfiguration mHeifOutput;
     private HeifImage mHeifImage;
@@ -2483,6 +2495,9 @@ public class CaptureModule implements CameraModule, PhotoController,
                                                CaptureRequest request,
                                                TotalCaptureResult result) {
                     Log.d(TAG, "captureStillPictureForCommon onCaptureCompleted: " + id);
+                    if (mSaveRaw) {
+                        mRawCaptureResults.onResult(result);
+                    }
                 }
 
                 @Override
@@ -2789,8 +2804,9 @@ public class CaptureModule implements CameraModule, PhotoController,
                                     byte[] bytes = getJpegData(image);
 
                                     if (image.getFormat() == ImageFormat.RAW10) {
-                                        mActivity.getMediaSaveService().addRawImage(bytes, title,
-                                                "raw");
+                                        saveRawImage(image, bytes, title, date, mCamId,
+                                                mRawCaptureResults.await(image.getTimestamp(),
+                                                        RAW_CAPTURE_RESULT_TIMEOUT_MS));
                                         image.close();
                                     } else {
                                         ExifInterface exif = Exif.getExif(bytes);
@@ -2804,9 +2820,15 @@ public class CaptureModule implements CameraModule, PhotoController,
                                                 onCaptureDone();
                                             }
                                         } else {
+                                            // Hold the capture back rather than lose the image
+                                            // when the save queue is full.
+                                            mActivity.getMediaSaveService().waitForQueue(
+                                                    MediaSaveService.QUEUE_WAIT_TIMEOUT_MS);
                                             mActivity.getMediaSaveService().addImage(bytes, title, date,
                                                     null, image.getWidth(), image.getHeight(), orientation, exif,
-                                                    mOnMediaSavedListener, mContentResolver, "jpeg");
+                                                    mOnMediaSavedListener, mContentResolver, "jpeg",
+                                                    mLongshotActive ? SaveScheduler.Priority.BURST
+                                                            : SaveScheduler.Priority.USER);
 
                                             if (mLongshotActive) {
                                                 mLastJpegData = bytes;
@@ -3826,8 +3848,7 @@ public class CaptureModule implements CameraModule, PhotoController,
                     CameraUtil.closeSilently(outputStream);
                 }
             } else {
-                ExifInterface exif = Exif.getExif(data);
-                int orientation = Exif.getOrientation(exif);
+                int orientation = Exif.getOrientation(data);
                 Bitmap bitmap = CameraUtil.makeBitmap(data, 50 * 1024);
                 bitmap = CameraUtil.rotate(bitmap, orientation);
                 mActivity.setResultEx(Activity.RESULT_OK,
@@ -7176,14 +7197,23 @@ public class CaptureModule implements CameraModule, PhotoController,
             int width = bayerImage.getWidth();
             int height = bayerImage.getHeight();
             byte[] bayerBytes = getJpegData(bayerImage);
-            byte[] monoBytes = getJpegData(monoImage);
+            // The mono image goes to a file right away, so that it is not kept on
+            // the heap next to the bayer one until the save runs.
+            File monoFile = spoolJpegData(monoImage);
 
-            ExifInterface exif = Exif.getExif(bayerBytes);
-            int orientation = Exif.getOrientation(exif);
+            int orientation = Exif.getOrientation(bayerBytes);
 
-            mActivity.getMediaSaveService().addMpoImage(
-                    null, bayerBytes, monoBytes, width, height, title,
-                    date, null, orientation, mOnMediaSavedListener, mContentResolver, "jpeg");
+            if (monoFile != null) {
+                mActivity.getMediaSaveService().addMpoImage(
+                        bayerBytes, new File[] {monoFile}, width, height, title,
+                        date, null, orientation, mOnMediaSavedListener, mContentResolver,
+                        "jpeg");
+            } else {
+                mActivity.getMediaSaveService().addMpoImage(
+                        null, bayerBytes, getJpegData(monoImage), width, height, title,
+                        date, null, orientation, mOnMediaSavedListener, mContentResolver,
+                        "jpeg");
+            }
 
             mActivity.updateThumbnail(bayerBytes);
 
@@ -7291,6 +7321,27 @@ public class CaptureModule implements CameraModule, PhotoController,
         }
     }
 
+    /**
+     * Saves a RAW10 frame, as a DNG tagged with the capture result of the frame, or
+     * as a plain dump if DNG output is turned off. result may be null if it did not
+     * arrive in time.
+     */
+    public void saveRawImage(Image image, byte[] data, String title, long date, int id,
+                             TotalCaptureResult result) {
+        int format = PersistUtil.getRawFormat();
+        if (format == PersistUtil.RAW_FORMAT_DUMP) {
+            mActivity.getMediaSaveService().addRawImage(data, title, "raw");
+            return;
+        }
+        DngWriter writer = DngUtil.createWriter(image.getWidth(), image.getHeight(),
+                mSettingsManager.getCharacteristics(id), result,
+                date == -1 ? System.currentTimeMillis() : date,
+                CameraUtil.getJpegRotation(id, mOrientation));
+        writer.setUnpacked(format == PersistUtil.RAW_FORMAT_DNG_16BIT);
+        mActivity.getMediaSaveService().addDngImage(data, image.getPlanes()[0].getRowStride(),
+                writer, title);
+    }
+
     private byte[] getJpegData(Image image) {
         ByteBuffer buffer = image.getPlanes()[0].getBuffer();
         byte[] bytes = new byte[buffer.remaining()];
@@ -7298,6 +7349,24 @@ public class CaptureModule implements CameraModule, PhotoController,
         return bytes;
     }
 
+    // Writes the jpeg of the image to a file in the cache straight from its buffer.
+    // Returns null if it could not.
+    private File spoolJpegData(Image image) {
+        File file = null;
+        try {
+            file = File.createTempFile("mpo", ".jpg", mActivity.getCacheDir());
+            ImageFileWriter.write(file.getPath(), ImageFileWriter.Durability.NONE,
+                    image.getPlanes()[0].getBuffer().duplicate());
+            return file;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not spool image to " + file, e);
+            if (file != null) {
+                file.delete();
+            }
+            return null;
+        }
+    }
+
     private void updateSaveStorageState() {
         Storage.setSaveSDCard(mSettingsManager.getValue(SettingsManager
                 .KEY_CAMERA_SAVEPATH).equals("1"));
@@ -21,6 +21,7 @@ import android.util.Log;
 import com.android.camera.exif.ExifInterface;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class Exif {
     private static final String TAG = "CameraExif";
@@ -48,7 +49,6 @@ public class Exif {
     public static int getOrientation(byte[] jpegData) {
         if (jpegData == null) return 0;
 
-        ExifInterface exif = getExif(jpegData);
-        return getOrientation(exif);
+        return ExifInterface.getRotation(ByteBuffer.wrap(jpegData));
     }
 }
@@ -0,0 +1,119 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes an image file from several buffers, such as the headers, the Exif segment
+ * and the compressed data, with gathering writes on a FileChannel, so the parts never
+ * have to be copied into one array first.
+ */
+public class ImageFileWriter {
+    public enum Durability {
+        /** Leave it to the kernel to write the file back. */
+        NONE,
+        /** Wait until the file contents are on storage. */
+        DATA,
+        /** Wait until the file contents and metadata are on storage. */
+        FULL;
+
+        /**
+         * The policy for the given persisted value: 0 for NONE, 1 for DATA, 2 for FULL.
+         */
+        public static Durability fromValue(int value) {
+            Durability[] values = values();
+            return values[Math.max(0, Math.min(value, values.length - 1))];
+        }
+    }
+
+    /**
+     * Content that writes itself to the channel, for files too large to be held in
+     * buffers at once.
+     */
+    public interface Content {
+        /** @return the number of bytes written. */
+        public long writeTo(FileChannel channel) throws IOException;
+    }
+
+    private ImageFileWriter() {
+    }
+
+    /**
+     * Writes buffers, from their positions to their limits and one after another, to the
+     * file at path, replacing what was there.
+     *
+     * @return the number of bytes written, which is the size of the file.
+     */
+    public static long write(String path, Durability durability, ByteBuffer... buffers)
+            throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        FileOutputStream out = new FileOutputStream(path);
+        try {
+            FileChannel channel = out.getChannel();
+            long written = 0;
+            while (written < remaining) {
+                written += channel.write(buffers);
+            }
+            if (durability != Durability.NONE) {
+                channel.force(durability == Durability.FULL);
+            }
+            return written;
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes the content to the file at path, replacing what was there.
+     *
+     * @return the number of bytes written, which is the size of the file.
+     */
+    public static long write(String path, Durability durability, Content content)
+            throws IOException {
+        FileOutputStream out = new FileOutputStream(path);
+        try {
+            FileChannel channel = out.getChannel();
+            long written = content.writeTo(channel);
+            if (durability != Durability.NONE) {
+                channel.force(durability == Durability.FULL);
+            }
+            return written;
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -20,7 +20,11 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 import android.app.Service;
 import android.content.ContentResolver;
@@ -34,15 +38,19 @@ import android.location.Location;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.provider.MediaStore.Images.ImageColumns;
 import android.provider.MediaStore.Video;
 import android.util.Log;
 import android.widget.Toast;
 
+import com.android.camera.SaveScheduler.Priority;
+import com.android.camera.exif.DngWriter;
 import com.android.camera.exif.ExifInterface;
 import com.android.camera.mpo.MpoData;
 import com.android.camera.mpo.MpoImageData;
-import com.android.camera.mpo.MpoInterface;
 import com.android.camera.util.PersistUtil;
 import com.android.camera.util.XmpUtil;
 
@@ -67,11 +75,23 @@ public class MediaSaveService extends Service {
 
     private static final int SAVE_TASK_MEMORY_LIMIT = SAVE_TASK_MEMORY_LIMIT_IN_MB * 1024 * 1024;
     private static final String TAG = "CAM_" + MediaSaveService.class.getSimpleName();
+    // How long capture threads wait for room in the queue before they give up on an image.
+    public static final long QUEUE_WAIT_TIMEOUT_MS = 3000;
+    // Burst images are added to the MediaStore this many at a time, or after this delay.
+    private static final int MEDIA_STORE_BATCH_SIZE = 10;
+    private static final long MEDIA_STORE_BATCH_DELAY_MS = 300;
+    // SOI and EOI, what the journaled EXIF header is written in front of.
+    private static final byte[] EMPTY_JPEG = {(byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xd9};
 
     private final IBinder mBinder = new LocalBinder();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
     private Listener mListener;
-    // Memory used by the total queued save request, in bytes.
-    private long mMemoryUse;
+    // Runs the save requests and keeps track of the memory they hold.
+    private SaveScheduler mScheduler;
+    // Journal of the images not saved yet, null if it could not be opened.
+    private SaveSpool mSpool;
+    // Adds saved images to the MediaStore in capture order, in batches.
+    private MediaStoreBatcher mBatcher;
 
     public interface Listener {
         public void onQueueStatus(boolean full);
@@ -99,15 +119,149 @@ public class MediaSaveService extends Service {
 
     @Override
     public void onDestroy() {
+        Log.d(TAG, "onDestroy " + mScheduler);
+        mScheduler.setListener(null);
+        // Saves still running fill their batcher slots, so the batcher stops after them.
+        final MediaStoreBatcher batcher = mBatcher;
+        mScheduler.shutdown(new Runnable() {
+            @Override
+            public void run() {
+                batcher.quit();
+            }
+        });
     }
 
     @Override
     public void onCreate() {
-        mMemoryUse = 0;
+        mScheduler = new SaveScheduler(PersistUtil.getSaveThreadCount(), SAVE_TASK_MEMORY_LIMIT);
+        mBatcher = new MediaStoreBatcher(getContentResolver(), MEDIA_STORE_BATCH_SIZE,
+                MEDIA_STORE_BATCH_DELAY_MS);
+        mScheduler.setListener(new SaveScheduler.Listener() {
+            @Override
+            public void onQueueStatus(final boolean full) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mListener != null) mListener.onQueueStatus(full);
+                    }
+                });
+            }
+        });
+        int spoolSize = PersistUtil.getSaveSpoolSizeInMb() * 1024 * 1024;
+        if (spoolSize > 0) {
+            mSpool = SaveSpool.open(new File(getFilesDir(), "save_spool"), spoolSize);
+        }
+        if (mSpool != null) {
+            replaySpool();
+        }
+    }
+
+    // Saves the images a previous process queued but did not get to finish.
+    private void replaySpool() {
+        for (SaveSpool.Entry entry : mSpool.getPendingEntries()) {
+            Log.d(TAG, "Saving " + entry + " left over from a previous run");
+            ExifInterface exif = null;
+            byte[] header = mSpool.readExif(entry);
+            if (header != null) {
+                exif = new ExifInterface();
+                try {
+                    exif.readExif(header);
+                } catch (IOException e) {
+                    Log.w(TAG, "Cannot read the EXIF journaled for " + entry, e);
+                    exif = null;
+                }
+            }
+            ImageSaveTask t = new ImageSaveTask(null, entry.title, entry.date, entry.location,
+                    entry.width, entry.height, entry.orientation, exif, getContentResolver(),
+                    null, entry.pictureFormat);
+            t.spoolEntry = entry;
+            t.slot = mBatcher.reserve();
+            t.urgent = true;
+            t.lane = lane(Priority.USER, fileKey(entry.title, entry.pictureFormat),
+                    entry.length);
+            t.executeOnExecutor(t.lane);
+        }
+    }
+
+    // The EXIF header as a JPEG with no image data, for the journal.
+    private static byte[] getExifHeader(ExifInterface exif) {
+        if (exif == null) {
+            return null;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            exif.writeExif(EMPTY_JPEG, out);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot journal EXIF", e);
+            return null;
+        }
+        return out.toByteArray();
     }
 
     public boolean isQueueFull() {
-        return (mMemoryUse >= SAVE_TASK_MEMORY_LIMIT);
+        return mScheduler.isFull();
+    }
+
+    /**
+     * Waits up to timeoutMs for the queue to have room again, so that a capture thread
+     * can hold off instead of having its image dropped. Must not be called on the main
+     * thread.
+     *
+     * @return whether there is room now.
+     */
+    public boolean waitForQueue(long timeoutMs) {
+        return mScheduler.awaitCapacity(timeoutMs);
+    }
+
+    public SaveScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    private static String fileKey(String title, String pictureFormat) {
+        return title == null ? null : title + "." + pictureFormat;
+    }
+
+    private SaveLane lane(Priority priority, String key, long bytes) {
+        return new SaveLane(mScheduler.lane(priority, key, bytes), bytes);
+    }
+
+    // A scheduler lane that also holds the save's bytes against the storage budget until
+    // the task has run, so free space queries account for the queue. The task reports
+    // the size of what it wrote with setWritten(), a save that reports nothing counts as
+    // failed and leaves no bytes behind.
+    private static class SaveLane implements Executor {
+        private final Executor mLane;
+        private final long mBytes;
+        private volatile long mWritten;
+
+        SaveLane(Executor lane, long bytes) {
+            mLane = lane;
+            mBytes = bytes;
+        }
+
+        void setWritten(long bytes) {
+            mWritten = bytes;
+        }
+
+        @Override
+        public void execute(final Runnable task) {
+            if (mBytes <= 0) {
+                mLane.execute(task);
+                return;
+            }
+            final StorageBudget budget = StorageBudget.instance();
+            budget.reserve(mBytes);
+            mLane.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        budget.release(mBytes, mWritten);
+                    }
+                }
+            });
+        }
     }
 
     public void addMpoImage(final byte[] csImage,
@@ -121,23 +275,95 @@ public class MediaSaveService extends Service {
             return;
         }
 
-        MpoSaveTask t = new MpoSaveTask(csImage, bayerImg, monoImg,
+        ArrayList<MpoImageData> auxiliary = new ArrayList<MpoImageData>(2);
+        byte[] primary;
+        if (csImage == null) {
+            primary = bayerImg;
+        } else {
+            primary = csImage;
+            auxiliary.add(new MpoImageData(bayerImg, ByteOrder.BIG_ENDIAN));
+        }
+        auxiliary.add(new MpoImageData(monoImg, ByteOrder.BIG_ENDIAN));
+        MpoSaveTask t = new MpoSaveTask(primary, auxiliary, null,
                 width, height, title, date, loc, orientation, l,
                 resolver, pictureFormat);
 
         long size = (csImage == null ? 0
                 : csImage.length)
                 + bayerImg.length + monoImg.length;
-        mMemoryUse += size;
+        t.lane = lane(Priority.USER, fileKey(title, pictureFormat), size);
+        t.executeOnExecutor(t.lane);
+    }
+
+    /**
+     * Same as {@link #addMpoImage(byte[], byte[], byte[], int, int, String, long,
+     * Location, int, OnMediaSavedListener, ContentResolver, String)} with the
+     * auxiliary images in jpeg files, e.g. written straight from the camera's
+     * buffers, so that only the primary image is on the heap while the save is
+     * queued. The files are mapped when the save is queued and deleted once it is
+     * done.
+     */
+    public void addMpoImage(final byte[] primaryImg, final File[] auxiliaryImgs,
+            int width, int height,
+            String title, long date, Location loc, int orientation,
+            OnMediaSavedListener l, ContentResolver resolver,
+            String pictureFormat) {
         if (isQueueFull()) {
-            onQueueFull();
+            Log.e(TAG, "Cannot add image when the queue is full");
+            deleteFiles(auxiliaryImgs);
+            return;
+        }
+
+        ArrayList<MpoImageData> auxiliary = new ArrayList<MpoImageData>(auxiliaryImgs.length);
+        long size = primaryImg.length;
+        try {
+            for (File file : auxiliaryImgs) {
+                auxiliary.add(MpoImageData.fromFile(file, ByteOrder.BIG_ENDIAN));
+                size += file.length();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read auxiliary mpo image", e);
+            deleteFiles(auxiliaryImgs);
+            return;
+        }
+        MpoSaveTask t = new MpoSaveTask(primaryImg, auxiliary, auxiliaryImgs,
+                width, height, title, date, loc, orientation, l,
+                resolver, pictureFormat);
+        t.lane = lane(Priority.USER, fileKey(title, pictureFormat), size);
+        t.executeOnExecutor(t.lane);
+    }
+
+    private static void deleteFiles(File[] files) {
+        for (File file : files) {
+            if (!file.delete()) {
+                Log.w(TAG, "Could not delete " + file);
+            }
         }
-        t.execute();
     }
 
     public void addImage(final byte[] data, String title, long date, Location loc,
             int width, int height, int orientation, ExifInterface exif,
             OnMediaSavedListener l, ContentResolver resolver, String pictureFormat) {
+        addImage(data, title, date, loc, width, height, orientation, exif, l, resolver,
+                pictureFormat, Priority.USER);
+    }
+
+    public void addImage(final byte[] data, String title, long date, Location loc,
+            int width, int height, int orientation, ExifInterface exif,
+            OnMediaSavedListener l, ContentResolver resolver, String pictureFormat,
+            Priority priority) {
+        addImage(data, data.length, title, date, loc, width, height, orientation, exif, l,
+                resolver, pictureFormat, priority);
+    }
+
+    /**
+     * Saves the image in the first length bytes of data, e.g. the buffer an encoder
+     * wrote into, without copying it to an array of its own.
+     */
+    public void addImage(final byte[] data, int length, String title, long date,
+            Location loc, int width, int height, int orientation, ExifInterface exif,
+            OnMediaSavedListener l, ContentResolver resolver, String pictureFormat,
+            Priority priority) {
         if (isQueueFull()) {
             Log.e(TAG, "Cannot add image when the queue is full");
             return;
@@ -145,12 +371,26 @@ public class MediaSaveService extends Service {
         ImageSaveTask t = new ImageSaveTask(data, title, date,
                 (loc == null) ? null : new Location(loc),
                 width, height, orientation, exif, resolver, l, pictureFormat);
-
-        mMemoryUse += data.length;
-        if (isQueueFull()) {
-            onQueueFull();
-        }
-        t.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        t.length = length;
+        if (mSpool != null && title != null && priority != Priority.DEBUG) {
+            // A jpeg with its own APP1 is journaled in one write as it is, and replayed
+            // with that header; only a bare image needs exif serialized next to it.
+            byte[] header = ExifInterface.hasExif(ByteBuffer.wrap(data, 0, length)) ? null
+                    : getExifHeader(exif);
+            t.spoolEntry = mSpool.append(title, pictureFormat, date, orientation, width, height,
+                    loc, header, data, length);
+        }
+        // Only burst frames are batched, in capture order among themselves. Single shots
+        // are written ahead of a burst backlog and insert their row directly, so they
+        // may get it before earlier burst frames; the gallery sorts by date taken anyway.
+        // Debug dumps stay out of the batcher too, the rows behind them would wait for
+        // the lowest priority saves.
+        if (priority == Priority.BURST && resolver == getContentResolver()) {
+            t.slot = mBatcher.reserve();
+        }
+
+        t.lane = lane(priority, fileKey(title, pictureFormat), length);
+        t.executeOnExecutor(t.lane);
     }
 
     public void addRawImage(final byte[] data, String title, String pictureFormat) {
@@ -160,11 +400,22 @@ public class MediaSaveService extends Service {
         }
         RawImageSaveTask t = new RawImageSaveTask(data, title, pictureFormat);
 
-        mMemoryUse += data.length;
+        t.lane = lane(Priority.USER, fileKey(title, pictureFormat), data.length);
+        t.executeOnExecutor(t.lane);
+    }
+
+    /**
+     * Saves a RAW10 frame as a DNG, with rows rowStride bytes apart in data.
+     */
+    public void addDngImage(final byte[] data, int rowStride, DngWriter writer, String title) {
         if (isQueueFull()) {
-            onQueueFull();
+            Log.e(TAG, "Cannot add image when the queue is full");
+            return;
         }
-        t.execute();
+        DngSaveTask t = new DngSaveTask(data, rowStride, writer, title);
+
+        t.lane = lane(Priority.USER, fileKey(title, "dng"), data.length);
+        t.executeOnExecutor(t.lane);
     }
 
     public void addHEIFImage(String path,String title,long date , Location loc,
@@ -178,7 +429,7 @@ public class MediaSaveService extends Service {
         HEIFImageSaveTask t = new HEIFImageSaveTask(path,title,date, loc, width, height, orientation,
                 exif, resolver, listener, qualitiy, pictureFormat);
 
-        t.execute();
+        t.executeOnExecutor(lane(Priority.USER, fileKey(title, pictureFormat), 0));
     }
 
     public void addClearsightImage(byte[] clearsight, GImage bayer, GDepth.DepthMap depthMap,
@@ -193,11 +444,8 @@ public class MediaSaveService extends Service {
                 title, date,  (loc == null) ? null : new Location(loc),
                 width, height, orientation, exif, resolver, l, pictureFormat);
 
-        mMemoryUse += clearsight.length;
-        if (isQueueFull()) {
-            onQueueFull();
-        }
-        t.execute();
+        t.lane = lane(Priority.USER, fileKey(title, pictureFormat), clearsight.length);
+        t.executeOnExecutor(t.lane);
     }
 
     public void addImage(final byte[] data, String title, long date, Location loc,
@@ -219,7 +467,8 @@ public class MediaSaveService extends Service {
             OnMediaSavedListener l, ContentResolver resolver) {
         // We don't set a queue limit for video saving because the file
         // is already in the storage. Only updating the database.
-        new VideoSaveTask(path, duration, values, l, resolver).execute();
+        new VideoSaveTask(path, duration, values, l, resolver).executeOnExecutor(
+                lane(Priority.USER, path, 0));
     }
 
     public void setListener(Listener l) {
@@ -228,18 +477,10 @@ public class MediaSaveService extends Service {
         l.onQueueStatus(isQueueFull());
     }
 
-    private void onQueueFull() {
-        if (mListener != null) mListener.onQueueStatus(true);
-    }
-
-    private void onQueueAvailable() {
-        if (mListener != null) mListener.onQueueStatus(false);
-    }
-
     private class MpoSaveTask extends AsyncTask<Void, Void, Uri> {
-        private byte[] csImage;
-        private byte[] bayerImage;
-        private byte[] monoImage;
+        private byte[] primaryImage;
+        private List<MpoImageData> auxiliaryImages;
+        private File[] tempFiles;
         private String title;
         private long date;
         private Location loc;
@@ -248,14 +489,15 @@ public class MediaSaveService extends Service {
         private ContentResolver resolver;
         private OnMediaSavedListener listener;
         private String pictureFormat;
+        SaveLane lane;
 
-        public MpoSaveTask(byte[] csImage, byte[] bayerImg,
-                byte[] monoImg, int width, int height, String title, long date,
+        public MpoSaveTask(byte[] primaryImage, List<MpoImageData> auxiliaryImages,
+                File[] tempFiles, int width, int height, String title, long date,
                 Location loc, int orientation, OnMediaSavedListener listener,
                 ContentResolver resolver, String pictureFormat) {
-            this.csImage = csImage;
-            this.bayerImage = bayerImg;
-            this.monoImage = monoImg;
+            this.primaryImage = primaryImage;
+            this.auxiliaryImages = auxiliaryImages;
+            this.tempFiles = tempFiles;
             this.title = title;
             this.date = date;
             this.loc = loc;
@@ -269,33 +511,18 @@ public class MediaSaveService extends Service {
 
         @Override
         protected Uri doInBackground(Void... v) {
-            // encode jpeg and add exif for all images
             MpoData mpo = new MpoData();
-            MpoImageData bayer = new MpoImageData(bayerImage,
-                    ByteOrder.BIG_ENDIAN);
-
-            MpoImageData mono = new MpoImageData(monoImage,
-                    ByteOrder.BIG_ENDIAN);
-
-            if (csImage == null) {
-                mpo.addAuxiliaryMpoImage(mono);
-                mpo.setPrimaryMpoImage(bayer);
-            } else {
-                MpoImageData cs = new MpoImageData(csImage,
-                        ByteOrder.BIG_ENDIAN);
-
-                mpo.addAuxiliaryMpoImage(bayer);
-                mpo.addAuxiliaryMpoImage(mono);
-                mpo.setPrimaryMpoImage(cs);
+            for (MpoImageData image : auxiliaryImages) {
+                mpo.addAuxiliaryMpoImage(image);
             }
+            mpo.setPrimaryMpoImage(new MpoImageData(primaryImage, ByteOrder.BIG_ENDIAN));
 
-            // combine to single mpo
+            // combine to single mpo, streaming each image into the file
             String path = Storage.generateFilepath(title, pictureFormat);
-            int size = MpoInterface.writeMpo(mpo, path);
-            // Try to get the real image size after add exif.
-            File f = new File(path);
-            if (f.exists() && f.isFile()) {
-                size = (int) f.length();
+            int size = (int) Storage.writeMpoFile(path, mpo);
+            lane.setWritten(size);
+            if (tempFiles != null) {
+                deleteFiles(tempFiles);
             }
             return Storage.addImage(resolver, title, date, loc, orientation, null,
                     size, path, width, height, pictureFormat);
@@ -305,14 +532,6 @@ public class MediaSaveService extends Service {
         protected void onPostExecute(Uri uri) {
             if (listener != null)
                 listener.onMediaSaved(uri);
-            boolean previouslyFull = isQueueFull();
-            long size = (csImage == null ? 0
-                    : csImage.length)
-                    + bayerImage.length
-                    + monoImage.length;
-            mMemoryUse -= size;
-            if (isQueueFull() != previouslyFull)
-                onQueueAvailable();
         }
     }
 
@@ -320,6 +539,7 @@ public class MediaSaveService extends Service {
         private byte[] data;
         private String title;
         private String pictureFormat;
+        SaveLane lane;
 
         public RawImageSaveTask(byte[] data, String title, String pictureFormat) {
             this.data = data;
@@ -335,14 +555,30 @@ public class MediaSaveService extends Service {
         @Override
         protected Long doInBackground(Void... params) {
             long length = Storage.addRawImage(title, data, pictureFormat);
+            lane.setWritten(length);
             return new Long(length);
         }
+    }
+
+    private class DngSaveTask extends AsyncTask<Void, Void, Long> {
+        private byte[] data;
+        private int rowStride;
+        private DngWriter writer;
+        private String title;
+        SaveLane lane;
+
+        public DngSaveTask(byte[] data, int rowStride, DngWriter writer, String title) {
+            this.data = data;
+            this.rowStride = rowStride;
+            this.writer = writer;
+            this.title = title;
+        }
 
         @Override
-        protected void onPostExecute(Long l) {
-            boolean previouslyFull = isQueueFull();
-            mMemoryUse -= data.length;
-            if (isQueueFull() != previouslyFull) onQueueAvailable();
+        protected Long doInBackground(Void... params) {
+            long length = Storage.addDngImage(title, writer, data, rowStride);
+            lane.setWritten(length);
+            return length;
         }
     }
 
@@ -397,6 +633,8 @@ public class MediaSaveService extends Service {
 
     private class ImageSaveTask extends AsyncTask <Void, Void, Uri> {
         private byte[] data;
+        // Bytes of data that hold the image.
+        int length;
         private String title;
         private long date;
         private Location loc;
@@ -406,11 +644,20 @@ public class MediaSaveService extends Service {
         private ContentResolver resolver;
         private OnMediaSavedListener listener;
         private String pictureFormat;
+        // Journal entry of the image, completed once it is in the MediaStore.
+        SaveSpool.Entry spoolEntry;
+        // Place of the image in mBatcher, which inserts it in capture order. Null if the
+        // image goes to the MediaStore on its own.
+        MediaStoreBatcher.Slot slot;
+        // Whether the batcher sends the image without waiting for a full batch.
+        boolean urgent;
+        SaveLane lane;
 
         public ImageSaveTask(byte[] data, String title, long date, Location loc,
                              int width, int height, int orientation, ExifInterface exif,
                              ContentResolver resolver, OnMediaSavedListener listener, String pictureFormat) {
             this.data = data;
+            this.length = data == null ? 0 : data.length;
             this.title = title;
             this.date = date;
             this.loc = loc;
@@ -430,24 +677,64 @@ public class MediaSaveService extends Service {
 
         @Override
         protected Uri doInBackground(Void... v) {
-            if (width == 0 || height == 0) {
-                // Decode bounds
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                options.inJustDecodeBounds = true;
-                BitmapFactory.decodeByteArray(data, 0, data.length, options);
-                width = options.outWidth;
-                height = options.outHeight;
+            ContentValues values = null;
+            try {
+                if (data == null) {
+                    data = mSpool.read(spoolEntry);
+                    length = data.length;
+                }
+                if (width == 0 || height == 0) {
+                    // Decode bounds
+                    BitmapFactory.Options options = new BitmapFactory.Options();
+                    options.inJustDecodeBounds = true;
+                    BitmapFactory.decodeByteArray(data, 0, length, options);
+                    width = options.outWidth;
+                    height = options.outHeight;
+                }
+                values = Storage.writeImage(title, date, loc, orientation, exif,
+                        data, length, width, height, pictureFormat);
+                long written = values.getAsLong(ImageColumns.SIZE);
+                lane.setWritten(written);
+                if (written <= 0) {
+                    values = null;
+                }
+                if (slot == null) {
+                    Uri uri = values == null ? null : Storage.insertImage(resolver, values);
+                    onSaved(uri);
+                    return uri;
+                }
+            } finally {
+                // Filled even if the write failed, the images behind wait for it.
+                if (slot != null) {
+                    slot.fill(values, new MediaStoreBatcher.Callback() {
+                        @Override
+                        public void onInserted(final Uri uri) {
+                            onSaved(uri);
+                            mHandler.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (listener != null) listener.onMediaSaved(uri);
+                                }
+                            });
+                        }
+                    }, urgent);
+                }
+            }
+            return null;
+        }
+
+        private void onSaved(Uri uri) {
+            if (spoolEntry != null) {
+                // A failed insert is not retried, it would most likely fail again.
+                if (uri == null) Log.w(TAG, "Failed to save " + spoolEntry);
+                mSpool.complete(spoolEntry);
             }
-            return Storage.addImage(
-                    resolver, title, date, loc, orientation, exif, data, width, height, pictureFormat);
         }
 
         @Override
         protected void onPostExecute(Uri uri) {
-            if (listener != null) listener.onMediaSaved(uri);
-            boolean previouslyFull = isQueueFull();
-            mMemoryUse -= data.length;
-            if (isQueueFull() != previouslyFull) onQueueAvailable();
+            // Batched images are reported once the batcher has inserted them.
+            if (listener != null && slot == null) listener.onMediaSaved(uri);
         }
     }
 
@@ -467,6 +754,7 @@ public class MediaSaveService extends Service {
         private ContentResolver resolver;
         private OnMediaSavedListener listener;
         private String pictureFormat;
+        SaveLane lane;
 
         public ClearsightImageSaveTask(byte[] clearsight, GImage bayer,GDepth.DepthMap depthMap,
                                        String title, long date, Location loc,
@@ -515,16 +803,16 @@ public class MediaSaveService extends Service {
                 width = options.outWidth;
                 height = options.outHeight;
             }
-            return Storage.addImage(
-                    resolver, title, date, loc, orientation, exif, data, width, height, pictureFormat);
+            ContentValues values = Storage.writeImage(title, date, loc, orientation, exif,
+                    data, width, height, pictureFormat);
+            long written = values.getAsLong(ImageColumns.SIZE);
+            lane.setWritten(written);
+            return written <= 0 ? null : Storage.insertImage(resolver, values);
         }
 
         @Override
         protected void onPostExecute(Uri uri) {
             if (listener != null) listener.onMediaSaved(uri);
-            boolean previouslyFull = isQueueFull();
-            mMemoryUse -= data.length;
-            if (isQueueFull() != previouslyFull) onQueueAvailable();
         }
 
         private byte[] converToJpegByte(byte[] depthBuf, int width, int height) {
@@ -0,0 +1,276 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the MediaStore rows of saved images and inserts them in batches, so that a
+ * longshot burst costs a few provider calls instead of one per image. A batch is sent
+ * once it is full or when the oldest row in it has waited for the given delay.
+ *
+ * Rows go in, and the callbacks get their URIs on the batcher's thread, in the order
+ * their {@link Slot}s were reserved, whatever order the rows are filled in. A save
+ * reserves its slot when it is queued and fills it once its file is written, so an
+ * image written early never overtakes one taken before it.
+ */
+public class MediaStoreBatcher {
+    private static final String TAG = "CAM_MediaStoreBatcher";
+
+    public interface Callback {
+        public void onInserted(Uri uri);
+    }
+
+    /**
+     * A place in the insertion order.
+     */
+    public final class Slot {
+        private ContentValues mValues;
+        private Callback mCallback;
+        private boolean mFilled;
+        private boolean mUrgent;
+
+        private Slot() {
+        }
+
+        /**
+         * Gives the slot its row, built by {@link Storage#getContentValuesForData}, or
+         * null if the image could not be written, in which case the callback gets null.
+         * callback may be null.
+         *
+         * @param urgent send the rows up to this one as soon as the slots before it are
+         *               filled, instead of waiting for the batch to fill up.
+         */
+        public void fill(ContentValues values, Callback callback, boolean urgent) {
+            MediaStoreBatcher.this.fill(this, values, callback, urgent);
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final int mMaxBatch;
+    private final long mMaxDelayMs;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushPending(true);
+        }
+    };
+    private final Runnable mFullBatchTask = new Runnable() {
+        @Override
+        public void run() {
+            flushPending(false);
+        }
+    };
+
+    // Reserved slots in order, the filled ones at the head are ready to go.
+    private final ArrayDeque<Slot> mSlots = new ArrayDeque<Slot>();
+    private boolean mDelayPosted;
+    private long mBatches;
+    private long mInserted;
+
+    public MediaStoreBatcher(ContentResolver resolver, int maxBatch, long maxDelayMs) {
+        mResolver = resolver;
+        mMaxBatch = Math.max(1, maxBatch);
+        mMaxDelayMs = maxDelayMs;
+        mThread = new HandlerThread("MediaStoreBatcher");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Takes the next place in the insertion order. The rows of later slots wait until
+     * this one is filled.
+     */
+    public synchronized Slot reserve() {
+        Slot slot = new Slot();
+        mSlots.add(slot);
+        return slot;
+    }
+
+    /**
+     * Queues a row behind all reserved slots, same as filling a new slot right away.
+     */
+    public void add(ContentValues values, Callback callback) {
+        reserve().fill(values, callback, false);
+    }
+
+    private void fill(Slot slot, ContentValues values, Callback callback, boolean urgent) {
+        synchronized (this) {
+            if (slot.mFilled) {
+                throw new IllegalStateException("Slot filled twice");
+            }
+            slot.mValues = values;
+            slot.mCallback = callback;
+            slot.mUrgent = urgent;
+            slot.mFilled = true;
+            scheduleFlush();
+        }
+    }
+
+    // Posts a flush for the filled slots at the head, if there are any. Called with the
+    // lock held.
+    private void scheduleFlush() {
+        int ready = 0;
+        boolean urgent = false;
+        for (Slot slot : mSlots) {
+            if (!slot.mFilled) {
+                break;
+            }
+            ready++;
+            urgent |= slot.mUrgent;
+        }
+        if (ready == 0) {
+            // Waits for an older slot.
+            return;
+        }
+        if (urgent) {
+            mHandler.removeCallbacks(mFlushTask);
+            mHandler.post(mFlushTask);
+        } else if (ready >= mMaxBatch) {
+            mHandler.removeCallbacks(mFullBatchTask);
+            mHandler.post(mFullBatchTask);
+        } else if (!mDelayPosted) {
+            mHandler.postDelayed(mFlushTask, mMaxDelayMs);
+            mDelayPosted = true;
+        }
+    }
+
+    // Filled slots at the head. Called with the lock held.
+    private int getReadyCount() {
+        int ready = 0;
+        for (Slot slot : mSlots) {
+            if (!slot.mFilled) {
+                break;
+            }
+            ready++;
+        }
+        return ready;
+    }
+
+    /**
+     * Sends the rows ready so far without waiting for the batch to fill up.
+     */
+    public void flush() {
+        mHandler.removeCallbacks(mFlushTask);
+        mHandler.post(mFlushTask);
+    }
+
+    /**
+     * Sends the rows ready so far and stops the batcher thread after that. Slots still
+     * unfilled by then are never inserted, so the saves holding them must be done.
+     */
+    public void quit() {
+        flush();
+        mThread.quitSafely();
+    }
+
+    // Inserts the filled slots at the head, or with all false only as many full
+    // batches as there are, the rest waits for more rows or the delay.
+    private void flushPending(boolean all) {
+        while (true) {
+            List<Slot> slots = new ArrayList<Slot>();
+            synchronized (this) {
+                if (all) {
+                    mHandler.removeCallbacks(mFlushTask);
+                    mDelayPosted = false;
+                }
+                if (all || getReadyCount() >= mMaxBatch) {
+                    while (slots.size() < mMaxBatch && !mSlots.isEmpty()
+                            && mSlots.peek().mFilled) {
+                        slots.add(mSlots.poll());
+                    }
+                }
+                if (slots.isEmpty()) {
+                    scheduleFlush();
+                    return;
+                }
+            }
+            insert(slots);
+        }
+    }
+
+    private void insert(List<Slot> slots) {
+        List<ContentValues> values = new ArrayList<ContentValues>(slots.size());
+        for (Slot slot : slots) {
+            if (slot.mValues != null) {
+                values.add(slot.mValues);
+            }
+        }
+        Uri[] uris = values.isEmpty() ? new Uri[0] : Storage.insertImages(mResolver, values);
+        synchronized (this) {
+            if (uris.length > 0) {
+                mBatches++;
+            }
+            mInserted += uris.length;
+        }
+        int next = 0;
+        for (Slot slot : slots) {
+            Uri uri = slot.mValues == null ? null : uris[next++];
+            if (slot.mCallback != null) {
+                slot.mCallback.onInserted(uri);
+            }
+        }
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Inserted " + values.size() + " images, " + this);
+        }
+    }
+
+    public synchronized long getBatchCount() {
+        return mBatches;
+    }
+
+    public synchronized long getInsertedCount() {
+        return mInserted;
+    }
+
+    /**
+     * Reserved slots not inserted yet, filled or not.
+     */
+    public synchronized int getPendingCount() {
+        return mSlots.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MediaStoreBatcher{batches=" + mBatches + ", inserted=" + mInserted
+                + ", pending=" + mSlots.size() + "}";
+    }
+}
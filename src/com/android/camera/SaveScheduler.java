@@ -0,0 +1,376 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the save requests of {@link MediaSaveService} on a fixed number of I/O threads.
+ *
+ * Requests are queued by priority, so a photo the user is waiting for is written before
+ * the rest of a longshot burst, and debug dumps go last. Requests for the same file run
+ * in the order they were submitted and never at the same time. The bytes held by queued
+ * requests are counted against a budget; the scheduler reports when the budget is used
+ * up, and capture code that can afford to wait calls {@link #awaitCapacity(long)}
+ * rather than dropping the image.
+ */
+public class SaveScheduler {
+    private static final String TAG = "CAM_SaveScheduler";
+
+    public enum Priority {
+        /** Single shots and anything else the user is waiting to see. */
+        USER,
+        /** Longshot and other burst frames. */
+        BURST,
+        /** Debug dumps. */
+        DEBUG
+    }
+
+    public interface Listener {
+        /**
+         * Called from the submitting or an I/O thread whenever the budget becomes used
+         * up or available again.
+         */
+        public void onQueueStatus(boolean full);
+    }
+
+    private class Job implements Runnable, Comparable<Job> {
+        final Runnable mTask;
+        final Priority mPriority;
+        final String mKey;
+        final long mBytes;
+        final long mSequence;
+        final long mSubmitNs;
+
+        Job(Runnable task, Priority priority, String key, long bytes) {
+            mTask = task;
+            mPriority = priority;
+            mKey = key;
+            mBytes = bytes;
+            mSequence = mNextSequence.getAndIncrement();
+            mSubmitNs = System.nanoTime();
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (mPriority != other.mPriority) {
+                return mPriority.ordinal() - other.mPriority.ordinal();
+            }
+            return Long.compare(mSequence, other.mSequence);
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            mQueueDepth[mPriority.ordinal()].decrementAndGet();
+            try {
+                mTask.run();
+            } finally {
+                long end = System.nanoTime();
+                mCompleted[mPriority.ordinal()].incrementAndGet();
+                mCompletedBytes.addAndGet(mBytes);
+                mWaitNs.addAndGet(start - mSubmitNs);
+                mBusyNs.addAndGet(end - start);
+                release(mBytes);
+                onJobDone(this);
+            }
+        }
+    }
+
+    private final long mBudgetBytes;
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicLong mNextSequence = new AtomicLong();
+    private final AtomicLong mQueuedBytes = new AtomicLong();
+    private final Object mBudgetLock = new Object();
+    //Files with a request running, mapped to the requests waiting for it.
+    private final HashMap<String, ArrayDeque<Job>> mBusyKeys =
+            new HashMap<String, ArrayDeque<Job>>();
+    private volatile Listener mListener;
+    private volatile Runnable mOnTerminated;
+
+    private final AtomicInteger[] mQueueDepth = new AtomicInteger[Priority.values().length];
+    private final AtomicLong[] mCompleted = new AtomicLong[Priority.values().length];
+    private final AtomicLong mCompletedBytes = new AtomicLong();
+    private final AtomicLong mWaitNs = new AtomicLong();
+    private final AtomicLong mBusyNs = new AtomicLong();
+
+    /**
+     * @param threads number of I/O threads.
+     * @param budgetBytes bytes queued requests may hold before the queue counts as full.
+     */
+    public SaveScheduler(int threads, long budgetBytes) {
+        mBudgetBytes = budgetBytes;
+        for (int i = 0; i < mQueueDepth.length; i++) {
+            mQueueDepth[i] = new AtomicInteger();
+            mCompleted[i] = new AtomicLong();
+        }
+        threads = Math.max(1, threads);
+        mExecutor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "MediaSave-" + mCount.incrementAndGet());
+                        t.setPriority(Thread.NORM_PRIORITY - 1);
+                        return t;
+                    }
+                }) {
+            @Override
+            protected void terminated() {
+                Runnable onTerminated = mOnTerminated;
+                if (onTerminated != null) {
+                    onTerminated.run();
+                }
+            }
+        };
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Queues task. Its bytes count against the budget until it has run, even when the
+     * budget is already used up; callers decide whether to drop or wait beforehand.
+     *
+     * @param key the file the task writes, tasks with the same key run one at a time in
+     *            submission order. May be null.
+     */
+    public void submit(Runnable task, Priority priority, String key, long bytes) {
+        Job job = new Job(task, priority, key, bytes);
+        reserve(bytes);
+        mQueueDepth[priority.ordinal()].incrementAndGet();
+        if (key != null) {
+            synchronized (mBusyKeys) {
+                ArrayDeque<Job> waiting = mBusyKeys.get(key);
+                if (waiting != null) {
+                    waiting.add(job);
+                    return;
+                }
+                mBusyKeys.put(key, new ArrayDeque<Job>());
+            }
+        }
+        mExecutor.execute(job);
+    }
+
+    /**
+     * An executor that submits everything given to it with the same priority, key and
+     * size, for use with {@link android.os.AsyncTask#executeOnExecutor}.
+     */
+    public Executor lane(final Priority priority, final String key, final long bytes) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                submit(task, priority, key, bytes);
+            }
+        };
+    }
+
+    private void onJobDone(Job job) {
+        if (job.mKey == null) {
+            return;
+        }
+        Job next;
+        synchronized (mBusyKeys) {
+            ArrayDeque<Job> waiting = mBusyKeys.get(job.mKey);
+            next = waiting == null ? null : waiting.poll();
+            if (next == null) {
+                mBusyKeys.remove(job.mKey);
+            }
+        }
+        if (next != null) {
+            try {
+                mExecutor.execute(next);
+            } catch (RejectedExecutionException e) {
+                // Shut down, so the executor takes nothing new. The requests still
+                // waiting for this file run here instead, one after the other.
+                next.run();
+            }
+        }
+    }
+
+    private void reserve(long bytes) {
+        if (bytes == 0) {
+            return;
+        }
+        long after = mQueuedBytes.addAndGet(bytes);
+        if (after >= mBudgetBytes && after - bytes < mBudgetBytes) {
+            notifyListener(true);
+        }
+    }
+
+    private void release(long bytes) {
+        if (bytes == 0) {
+            return;
+        }
+        long after = mQueuedBytes.addAndGet(-bytes);
+        if (after < mBudgetBytes && after + bytes >= mBudgetBytes) {
+            synchronized (mBudgetLock) {
+                mBudgetLock.notifyAll();
+            }
+            notifyListener(false);
+        }
+    }
+
+    private void notifyListener(boolean full) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onQueueStatus(full);
+        }
+    }
+
+    public boolean isFull() {
+        return mQueuedBytes.get() >= mBudgetBytes;
+    }
+
+    /**
+     * Blocks until the queued requests hold less than the budget. Must not be called on
+     * the main thread.
+     *
+     * @return false if the budget was still used up after timeoutMs.
+     */
+    public boolean awaitCapacity(long timeoutMs) {
+        if (!isFull()) {
+            return true;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        synchronized (mBudgetLock) {
+            while (isFull()) {
+                long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMs <= 0) {
+                    Log.w(TAG, "Save queue still full after " + timeoutMs + "ms: " + this);
+                    return false;
+                }
+                try {
+                    mBudgetLock.wait(remainingMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return !isFull();
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Lets the queued requests finish, including those waiting for a file another
+     * request is writing, and stops the I/O threads after them.
+     */
+    public void shutdown() {
+        shutdown(null);
+    }
+
+    /**
+     * Like {@link #shutdown()}, and runs onTerminated on the last I/O thread once every
+     * request has finished, or right here if none is left.
+     */
+    public void shutdown(Runnable onTerminated) {
+        mOnTerminated = onTerminated;
+        mExecutor.shutdown();
+    }
+
+    public long getBudgetBytes() {
+        return mBudgetBytes;
+    }
+
+    public long getQueuedBytes() {
+        return mQueuedBytes.get();
+    }
+
+    /**
+     * Requests of the given priority that have not started yet.
+     */
+    public int getQueueDepth(Priority priority) {
+        return mQueueDepth[priority.ordinal()].get();
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (AtomicInteger lane : mQueueDepth) {
+            depth += lane.get();
+        }
+        return depth;
+    }
+
+    public long getCompletedCount(Priority priority) {
+        return mCompleted[priority.ordinal()].get();
+    }
+
+    public long getCompletedCount() {
+        long count = 0;
+        for (AtomicLong lane : mCompleted) {
+            count += lane.get();
+        }
+        return count;
+    }
+
+    /**
+     * Bytes saved per second a thread spent running requests.
+     */
+    public long getThroughputBytesPerSecond() {
+        long busyNs = mBusyNs.get();
+        return busyNs == 0 ? 0 : mCompletedBytes.get() * 1000000000L / busyNs;
+    }
+
+    /**
+     * Average time requests waited in the queue before they started.
+     */
+    public long getAverageWaitMs() {
+        long count = getCompletedCount();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(mWaitNs.get() / count);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("SaveScheduler{queued=");
+        sb.append(getQueuedBytes() / 1024).append('/').append(mBudgetBytes / 1024).append("KB");
+        for (Priority priority : Priority.values()) {
+            sb.append(", ").append(priority.name().toLowerCase()).append('=')
+                    .append(getQueueDepth(priority)).append('/')
+                    .append(getCompletedCount(priority));
+        }
+        sb.append(", wait=").append(getAverageWaitMs()).append("ms, throughput=")
+                .append(getThroughputBytesPerSecond() / 1024).append("KB/s}");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,445 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera;
+
+import android.location.Location;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Write-ahead journal for images waiting in {@link MediaSaveService}, so that a burst in
+ * flight survives the process being killed. Every image is copied into a preallocated,
+ * memory mapped file before it is queued and marked done once it is in the MediaStore.
+ * The mapping lives in the page cache, so a single sequential copy is all a capture pays
+ * and the data outlives the process.
+ *
+ * The journal is a ring: entries are appended at the tail, and the head moves past
+ * entries that are done, which frees their space. Entries left pending after a restart
+ * are returned by {@link #getPendingEntries()} to be saved again.
+ *
+ * Layout: a header of magic, version and head offset, then the entries. An entry is a
+ * fixed header (magic, state, payload length, total length, date, orientation, width,
+ * height, EXIF length, whether there is a location, and its latitude, longitude,
+ * altitude and time), the title, picture format and location provider as length
+ * prefixed UTF-8, the EXIF header as a JPEG without image data, and the payload.
+ * A zero word follows the last entry and a wrap marker sends readers back to the start.
+ */
+public class SaveSpool {
+    private static final String TAG = "CAM_SaveSpool";
+
+    private static final int FILE_MAGIC = 0x53504f4f; // SPOO
+    private static final int VERSION = 2;
+    private static final int HEAD_OFFSET = 8;
+    private static final int DATA_START = 16;
+
+    private static final int ENTRY_MAGIC = 0x454e5452; // ENTR
+    private static final int WRAP_MAGIC = 0x57524150; // WRAP
+    private static final int END = 0;
+    private static final int ENTRY_HEADER_SIZE = 76;
+    private static final int STATE_OFFSET = 4;
+
+    private static final int STATE_WRITING = 0;
+    private static final int STATE_PENDING = 1;
+    private static final int STATE_DONE = 2;
+
+    public static class Entry {
+        public final String title;
+        public final String pictureFormat;
+        public final long date;
+        public final int orientation;
+        public final int width;
+        public final int height;
+        public final int length;
+        // Where the image was taken, or null.
+        public final Location location;
+        private final int mOffset;
+        private final int mSize;
+        private final int mExifOffset;
+        private final int mExifLength;
+        private final int mPayloadOffset;
+
+        private Entry(String title, String pictureFormat, long date, int orientation,
+                      int width, int height, int length, Location location, int offset,
+                      int size, int exifOffset, int exifLength, int payloadOffset) {
+            this.title = title;
+            this.pictureFormat = pictureFormat;
+            this.date = date;
+            this.orientation = orientation;
+            this.width = width;
+            this.height = height;
+            this.length = length;
+            this.location = location;
+            mOffset = offset;
+            mSize = size;
+            mExifOffset = exifOffset;
+            mExifLength = exifLength;
+            mPayloadOffset = payloadOffset;
+        }
+
+        @Override
+        public String toString() {
+            return title + "." + pictureFormat + "@" + mOffset + "(" + length + ")";
+        }
+    }
+
+    private final File mFile;
+    private final MappedByteBuffer mBuffer;
+    private final int mCapacity;
+    private int mHead;
+    private int mTail;
+    private final List<Entry> mPending = new ArrayList<Entry>();
+
+    private SaveSpool(File file, MappedByteBuffer buffer, int capacity) {
+        mFile = file;
+        mBuffer = buffer;
+        mCapacity = capacity;
+    }
+
+    /**
+     * Opens the journal, creating it with the given size if it does not exist or does
+     * not match, and collects the entries a previous process left pending.
+     *
+     * @return null if the file cannot be mapped, saving then goes ahead without a journal.
+     */
+    public static SaveSpool open(File file, int capacity) {
+        RandomAccessFile raf = null;
+        try {
+            File dir = file.getParentFile();
+            if (dir != null) {
+                dir.mkdirs();
+            }
+            raf = new RandomAccessFile(file, "rw");
+            boolean fresh = raf.length() != capacity;
+            if (fresh) {
+                raf.setLength(capacity);
+            }
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    capacity);
+            SaveSpool spool = new SaveSpool(file, buffer, capacity);
+            if (fresh || !spool.recover()) {
+                spool.reset();
+            }
+            return spool;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open " + file, e);
+            return null;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private void reset() {
+        mBuffer.putInt(0, FILE_MAGIC);
+        mBuffer.putInt(4, VERSION);
+        mHead = DATA_START;
+        mTail = DATA_START;
+        mBuffer.putInt(DATA_START, END);
+        mBuffer.putInt(HEAD_OFFSET, mHead);
+    }
+
+    private boolean recover() {
+        if (mBuffer.getInt(0) != FILE_MAGIC || mBuffer.getInt(4) != VERSION) {
+            return false;
+        }
+        int pos = mBuffer.getInt(HEAD_OFFSET);
+        mHead = pos;
+        boolean wrapped = false;
+        while (true) {
+            if (pos < DATA_START || pos > mCapacity - 4) {
+                return false;
+            }
+            int magic = mBuffer.getInt(pos);
+            if (magic == END) {
+                break;
+            } else if (magic == WRAP_MAGIC) {
+                if (wrapped) {
+                    return false;
+                }
+                wrapped = true;
+                pos = DATA_START;
+                continue;
+            } else if (magic != ENTRY_MAGIC) {
+                return false;
+            }
+            Entry entry = readEntry(pos);
+            if (entry == null) {
+                return false;
+            }
+            if (mBuffer.getInt(pos + STATE_OFFSET) == STATE_PENDING) {
+                mPending.add(entry);
+            } else {
+                //Done, or cut off while it was being written.
+                mBuffer.putInt(pos + STATE_OFFSET, STATE_DONE);
+            }
+            pos += entry.mSize;
+        }
+        mTail = pos;
+        advanceHead();
+        Log.d(TAG, "Recovered " + mPending.size() + " pending entries from " + mFile);
+        return true;
+    }
+
+    private Entry readEntry(int pos) {
+        int length = mBuffer.getInt(pos + 8);
+        int size = mBuffer.getInt(pos + 12);
+        if (length < 0 || size < ENTRY_HEADER_SIZE + length || pos + size > mCapacity - 4) {
+            return null;
+        }
+        long date = mBuffer.getLong(pos + 16);
+        int orientation = mBuffer.getInt(pos + 24);
+        int width = mBuffer.getInt(pos + 28);
+        int height = mBuffer.getInt(pos + 32);
+        int exifLength = mBuffer.getInt(pos + 36);
+        boolean hasLocation = mBuffer.getInt(pos + 40) != 0;
+        if (exifLength < 0 || size < ENTRY_HEADER_SIZE + exifLength + length) {
+            return null;
+        }
+        ByteBuffer b = mBuffer.duplicate();
+        b.position(pos + ENTRY_HEADER_SIZE);
+        String title = readString(b);
+        String format = readString(b);
+        String provider = readString(b);
+        if (title == null || format == null || provider == null
+                || b.position() + exifLength + length > pos + size) {
+            return null;
+        }
+        Location location = null;
+        if (hasLocation) {
+            location = new Location(provider);
+            location.setLatitude(mBuffer.getDouble(pos + 44));
+            location.setLongitude(mBuffer.getDouble(pos + 52));
+            double altitude = mBuffer.getDouble(pos + 60);
+            if (!Double.isNaN(altitude)) {
+                location.setAltitude(altitude);
+            }
+            location.setTime(mBuffer.getLong(pos + 68));
+        }
+        int exifOffset = b.position();
+        return new Entry(title, format, date, orientation, width, height, length, location,
+                pos, size, exifOffset, exifLength, exifOffset + exifLength);
+    }
+
+    private static String readString(ByteBuffer b) {
+        int len = b.getShort() & 0xffff;
+        if (len > b.remaining()) {
+            return null;
+        }
+        byte[] bytes = new byte[len];
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Entries a previous process did not finish, oldest first. They stay in the journal
+     * until {@link #complete(Entry)} is called for them.
+     */
+    public synchronized List<Entry> getPendingEntries() {
+        return new ArrayList<Entry>(mPending);
+    }
+
+    /**
+     * Copies an image into the journal, with its location and the EXIF header it is to
+     * be saved with, either of which can be null.
+     *
+     * @return the entry to complete once the image is saved, or null if the journal has
+     *         no room for it, in which case it is saved without one.
+     */
+    public Entry append(String title, String pictureFormat, long date, int orientation,
+                        int width, int height, Location location, byte[] exif, byte[] data) {
+        return append(title, pictureFormat, date, orientation, width, height, location, exif,
+                data, data.length);
+    }
+
+    /**
+     * Same as {@link #append(String, String, long, int, int, int, Location, byte[],
+     * byte[])} for an image in the first length bytes of data.
+     */
+    public synchronized Entry append(String title, String pictureFormat, long date,
+                                     int orientation, int width, int height, Location location,
+                                     byte[] exif, byte[] data, int length) {
+        byte[] titleBytes = title.getBytes(StandardCharsets.UTF_8);
+        byte[] formatBytes = pictureFormat.getBytes(StandardCharsets.UTF_8);
+        byte[] providerBytes = (location == null || location.getProvider() == null ? ""
+                : location.getProvider()).getBytes(StandardCharsets.UTF_8);
+        int exifLength = exif == null ? 0 : exif.length;
+        int exifOffset = ENTRY_HEADER_SIZE + 2 + titleBytes.length + 2 + formatBytes.length
+                + 2 + providerBytes.length;
+        int payloadOffset = exifOffset + exifLength;
+        int size = (payloadOffset + length + 3) & ~3;
+        int pos = reserve(size);
+        if (pos < 0) {
+            Log.w(TAG, "No room for " + title + " (" + length + " bytes)");
+            return null;
+        }
+        //The end marker goes in first and the state last, so a reader never walks into
+        //a half written entry.
+        mBuffer.putInt(pos + size, END);
+        ByteBuffer b = mBuffer.duplicate();
+        b.position(pos);
+        b.putInt(ENTRY_MAGIC);
+        b.putInt(STATE_WRITING);
+        b.putInt(length);
+        b.putInt(size);
+        b.putLong(date);
+        b.putInt(orientation);
+        b.putInt(width);
+        b.putInt(height);
+        b.putInt(exifLength);
+        b.putInt(location == null ? 0 : 1);
+        b.putDouble(location == null ? 0 : location.getLatitude());
+        b.putDouble(location == null ? 0 : location.getLongitude());
+        b.putDouble(location == null || !location.hasAltitude() ? Double.NaN
+                : location.getAltitude());
+        b.putLong(location == null ? 0 : location.getTime());
+        b.putShort((short) titleBytes.length);
+        b.put(titleBytes);
+        b.putShort((short) formatBytes.length);
+        b.put(formatBytes);
+        b.putShort((short) providerBytes.length);
+        b.put(providerBytes);
+        if (exif != null) {
+            b.put(exif);
+        }
+        b.put(data, 0, length);
+        if (pos != mTail) {
+            mBuffer.putInt(mTail, WRAP_MAGIC);
+        }
+        mBuffer.putInt(pos + STATE_OFFSET, STATE_PENDING);
+        mTail = pos + size;
+        Entry entry = new Entry(title, pictureFormat, date, orientation, width, height,
+                length, location == null ? null : new Location(location), pos, size,
+                pos + exifOffset, exifLength, pos + payloadOffset);
+        mPending.add(entry);
+        return entry;
+    }
+
+    //Returns where an entry of the given size goes, or -1. Space for the end marker
+    //after it is always kept, and it never touches the entry at the head.
+    private int reserve(int size) {
+        if (mTail >= mHead) {
+            if (mTail + size + 4 <= mCapacity) {
+                return mTail;
+            }
+            if (DATA_START + size + 4 <= mHead) {
+                return DATA_START;
+            }
+            return -1;
+        }
+        return mTail + size + 4 <= mHead ? mTail : -1;
+    }
+
+    /**
+     * Reads the image of an entry back from the journal.
+     */
+    public synchronized byte[] read(Entry entry) {
+        byte[] data = new byte[entry.length];
+        ByteBuffer b = mBuffer.duplicate();
+        b.position(entry.mPayloadOffset);
+        b.get(data);
+        return data;
+    }
+
+    /**
+     * Reads the EXIF header of an entry back from the journal, as a JPEG with no image
+     * data, or returns null if it was journaled without one.
+     */
+    public synchronized byte[] readExif(Entry entry) {
+        if (entry.mExifLength == 0) {
+            return null;
+        }
+        byte[] exif = new byte[entry.mExifLength];
+        ByteBuffer b = mBuffer.duplicate();
+        b.position(entry.mExifOffset);
+        b.get(exif);
+        return exif;
+    }
+
+    /**
+     * Marks an entry done, its space is reused once the entries before it are done too.
+     */
+    public synchronized void complete(Entry entry) {
+        if (!mPending.remove(entry)) {
+            return;
+        }
+        mBuffer.putInt(entry.mOffset + STATE_OFFSET, STATE_DONE);
+        advanceHead();
+    }
+
+    private void advanceHead() {
+        while (mHead != mTail) {
+            int magic = mBuffer.getInt(mHead);
+            if (magic == WRAP_MAGIC) {
+                mHead = DATA_START;
+            } else if (magic == ENTRY_MAGIC
+                    && mBuffer.getInt(mHead + STATE_OFFSET) == STATE_DONE) {
+                mHead += mBuffer.getInt(mHead + 12);
+            } else {
+                break;
+            }
+        }
+        if (mHead == mTail) {
+            //Empty, start over at the beginning to keep the ring from wrapping.
+            mHead = DATA_START;
+            mTail = DATA_START;
+            mBuffer.putInt(DATA_START, END);
+        }
+        mBuffer.putInt(HEAD_OFFSET, mHead);
+    }
+
+    public synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    /**
+     * Bytes between the head and the tail, including entries that are done but not yet
+     * reclaimed.
+     */
+    public synchronized int getUsedBytes() {
+        return mTail >= mHead ? mTail - mHead : mCapacity - mHead + mTail - DATA_START;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+}
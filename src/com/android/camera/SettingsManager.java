@@ -1533,6 +1533,10 @@ public class SettingsManager implements ListMenu.SettingsListener {
                 .SCALER_AVAILABLE_MAX_DIGITAL_ZOOM);
     }
 
+    public CameraCharacteristics getCharacteristics(int id) {
+        return mCharacteristics.get(id);
+    }
+
     public Rect getSensorActiveArraySize(int id) {
         return mCharacteristics.get(id).get(CameraCharacteristics
                 .SENSOR_INFO_ACTIVE_ARRAY_SIZE);
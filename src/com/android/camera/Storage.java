@@ -17,12 +17,18 @@
 package com.android.camera;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 import android.annotation.TargetApi;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.location.Location;
@@ -31,19 +37,26 @@ import android.os.Build;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.StatFs;
+import android.provider.MediaStore;
 import android.provider.MediaStore.Images;
 import android.provider.MediaStore.Images.ImageColumns;
 import android.provider.MediaStore.MediaColumns;
 import android.util.Log;
 
 import com.android.camera.data.LocalData;
+import com.android.camera.exif.DngWriter;
 import com.android.camera.exif.ExifInterface;
+import com.android.camera.mpo.MpoData;
+import com.android.camera.mpo.MpoInterface;
 import com.android.camera.util.ApiHelper;
+import com.android.camera.util.PersistUtil;
 import androidx.heifwriter.HeifWriter;
 import android.graphics.ImageFormat;
 
 public class Storage {
     private static final String TAG = "CameraStorage";
+    private static final ImageFileWriter.Durability DURABILITY =
+            ImageFileWriter.Durability.fromValue(PersistUtil.getSaveDurability());
 
     public static final String DCIM =
             Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM).toString();
@@ -69,6 +82,9 @@ public class Storage {
     }
 
     public static void setSaveSDCard(boolean saveSDCard) {
+        if (sSaveSDCard != saveSDCard) {
+            StorageBudget.instance().invalidate();
+        }
         sSaveSDCard = saveSDCard;
     }
 
@@ -81,12 +97,21 @@ public class Storage {
         }
     }
 
+    // Returns the size of the file, or 0 if it could not be written.
     public static int writeFile(String path, byte[] jpeg, ExifInterface exif,
             String mimeType) {
+        return writeFile(path, jpeg, jpeg == null ? 0 : jpeg.length, exif, mimeType);
+    }
+
+    // Same as above for an image in the first length bytes of jpeg.
+    public static int writeFile(String path, byte[] jpeg, int length, ExifInterface exif,
+            String mimeType) {
         if (exif != null && (mimeType == null ||
             mimeType.equalsIgnoreCase("jpeg"))) {
             try {
-                return exif.writeExif(jpeg, path);
+                // The new headers and the untouched image data go out in one write.
+                return (int) ImageFileWriter.write(path, DURABILITY,
+                        exif.getExifWriteBuffers(jpeg, length));
             } catch (Exception e) {
                 Log.e(TAG, "Failed to write data", e);
             }
@@ -95,26 +120,24 @@ public class Storage {
                  File dir = new File(RAW_DIRECTORY);
                  dir.mkdirs();
             }
-            writeFile(path, jpeg);
-            return jpeg.length;
+            return (int) writeFile(path, jpeg, length);
         }
         return 0;
     }
 
-    public static void writeFile(String path, byte[] data) {
-        FileOutputStream out = null;
+    // Returns the size of the file, or 0 if it could not be written.
+    public static long writeFile(String path, byte[] data) {
+        return writeFile(path, data, data.length);
+    }
+
+    // Same as above for the first length bytes of data.
+    public static long writeFile(String path, byte[] data, int length) {
         try {
-            out = new FileOutputStream(path);
-            out.write(data);
+            return ImageFileWriter.write(path, DURABILITY, ByteBuffer.wrap(data, 0, length));
         } catch (Exception e) {
             Log.e(TAG, "Failed to write data", e);
-        } finally {
-            try {
-                out.close();
-            } catch (Exception e) {
-                Log.e(TAG, "Failed to close file after write", e);
-            }
         }
+        return 0;
     }
 
     // Save the image with a given mimeType and add it the MediaStore.
@@ -122,15 +145,28 @@ public class Storage {
             Location location, int orientation, ExifInterface exif, byte[] jpeg, int width,
             int height, String mimeType) {
 
+        return insertImage(resolver, writeImage(title, date, location, orientation, exif,
+                jpeg, width, height, mimeType));
+    }
+
+    // Save the image with a given mimeType and return the values to add it to the
+    // MediaStore with. Their SIZE is what was written, 0 if the write failed.
+    public static ContentValues writeImage(String title, long date, Location location,
+            int orientation, ExifInterface exif, byte[] jpeg, int width, int height,
+            String mimeType) {
+        return writeImage(title, date, location, orientation, exif, jpeg, jpeg.length,
+                width, height, mimeType);
+    }
+
+    // Same as above for an image in the first length bytes of jpeg.
+    public static ContentValues writeImage(String title, long date, Location location,
+            int orientation, ExifInterface exif, byte[] jpeg, int length, int width,
+            int height, String mimeType) {
         String path = generateFilepath(title, mimeType);
-        int size = writeFile(path, jpeg, exif, mimeType);
-        // Try to get the real image size after add exif.
-        File f = new File(path);
-        if (f.exists() && f.isFile()) {
-            size = (int) f.length();
-        }
-        return addImage(resolver, title, date, location, orientation, exif,
-                size, path, width, height, mimeType);
+        // This is the real image size, with the exif header that was added.
+        int size = writeFile(path, jpeg, length, exif, mimeType);
+        return getContentValuesForData(title, date, location, orientation, exif, size, path,
+                width, height, mimeType);
     }
 
     // Get a ContentValues object for the given photo data
@@ -208,13 +244,50 @@ public class Storage {
     public static long addRawImage(String title, byte[] data,
                                   String mimeType) {
         String path = generateFilepath(title, mimeType);
-        int size = writeFile(path, data, null, mimeType);
-        // Try to get the real image size after add exif.
-        File f = new File(path);
-        if (f.exists() && f.isFile()) {
-            size = (int) f.length();
+        return writeFile(path, data, null, mimeType);
+    }
+
+    /**
+     * Writes a RAW10 frame as a DNG in the raw directory, converting it strip by strip.
+     *
+     * @return the size of the file, or 0 if it could not be written.
+     */
+    public static long addDngImage(String title, final DngWriter writer, final byte[] data,
+            final int rowStride) {
+        String path = generateFilepath(title, "dng");
+        new File(RAW_DIRECTORY).mkdirs();
+        try {
+            return ImageFileWriter.write(path, DURABILITY, new ImageFileWriter.Content() {
+                @Override
+                public long writeTo(FileChannel channel) throws IOException {
+                    return writer.writeRaw10(channel, ByteBuffer.wrap(data), rowStride);
+                }
+            });
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to write " + path, e);
+            new File(path).delete();
         }
-        return size;
+        return 0;
+    }
+
+    /**
+     * Writes an MPO file, with every image going to the file straight from its buffer.
+     *
+     * @return the size of the file, or 0 if it could not be written.
+     */
+    public static long writeMpoFile(String path, final MpoData mpo) {
+        try {
+            return ImageFileWriter.write(path, DURABILITY, new ImageFileWriter.Content() {
+                @Override
+                public long writeTo(FileChannel channel) throws IOException {
+                    return MpoInterface.writeMpo(mpo, channel);
+                }
+            });
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to write " + path, e);
+            new File(path).delete();
+        }
+        return 0;
     }
 
     public static Uri addHeifImage(ContentResolver resolver, String title, long date,
@@ -288,7 +361,8 @@ public class Storage {
                 return DIRECTORY + '/' + title + suffix;
             }
         } else {
-            return RAW_DIRECTORY + '/' + title + ".raw";
+            String suffix = pictureFormat.equalsIgnoreCase("dng") ? ".dng" : ".raw";
+            return RAW_DIRECTORY + '/' + title + suffix;
         }
     }
 
@@ -332,7 +406,15 @@ public class Storage {
         return UNKNOWN_SIZE;
     }
 
+    /**
+     * Returns the free space on the current save path, as estimated by
+     * {@link StorageBudget} from its last measurement and the saves still in flight.
+     */
     public static long getAvailableSpace() {
+        return StorageBudget.instance().getAvailableSpace();
+    }
+
+    static long measureAvailableSpace() {
         if (isSaveSDCard()) {
             return getSDCardAvailableSpace();
         } else {
@@ -342,7 +424,7 @@ public class Storage {
 
     public static boolean switchSavePath() {
         if (!isSaveSDCard()
-                && getInternalStorageAvailableSpace() <= LOW_STORAGE_THRESHOLD_BYTES
+                && getAvailableSpace() <= LOW_STORAGE_THRESHOLD_BYTES
                 && getSDCardAvailableSpace() > LOW_STORAGE_THRESHOLD_BYTES) {
             setSaveSDCard(true);
             return true;
@@ -361,7 +443,72 @@ public class Storage {
         }
     }
 
-    private static Uri insertImage(ContentResolver resolver, ContentValues values) {
+    // Adds several images to the media store in one call. If the batch is rolled back
+    // they are added one by one, so a single bad row does not lose the others. Any other
+    // failure may come after the rows went in, so they are not added again and the
+    // images get no uri.
+    public static Uri[] insertImages(ContentResolver resolver, List<ContentValues> values) {
+        Uri[] uris = new Uri[values.size()];
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(values.size());
+        for (ContentValues v : values) {
+            operations.add(ContentProviderOperation
+                    .newInsert(Images.Media.EXTERNAL_CONTENT_URI).withValues(v).build());
+        }
+        try {
+            ContentProviderResult[] results = resolver.applyBatch(MediaStore.AUTHORITY,
+                    operations);
+            for (int i = 0; i < uris.length; i++) {
+                uris[i] = results[i].uri;
+            }
+            return uris;
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, "Failed to write MediaStore in a batch, trying one by one " + e);
+        } catch (Throwable th) {
+            Log.e(TAG, "Failed to write MediaStore in a batch " + th);
+            return uris;
+        }
+        for (int i = 0; i < uris.length; i++) {
+            uris[i] = insertImage(resolver, values.get(i));
+        }
+        return uris;
+    }
+
+    /**
+     * Updates the MediaStore rows of the given images in one batch, falling
+     * back to one update per image if the batch fails. Returns the number of
+     * rows updated.
+     */
+    public static int updateImages(ContentResolver resolver, List<Uri> uris,
+            List<ContentValues> values) {
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(uris.size());
+        for (int i = 0; i < uris.size(); i++) {
+            operations.add(ContentProviderOperation
+                    .newUpdate(uris.get(i)).withValues(values.get(i)).build());
+        }
+        int count = 0;
+        try {
+            ContentProviderResult[] results = resolver.applyBatch(MediaStore.AUTHORITY,
+                    operations);
+            for (ContentProviderResult result : results) {
+                count += result.count;
+            }
+            return count;
+        } catch (Throwable th) {
+            Log.e(TAG, "Failed to update MediaStore in a batch, trying one by one " + th);
+        }
+        for (int i = 0; i < uris.size(); i++) {
+            try {
+                count += resolver.update(uris.get(i), values.get(i), null, null);
+            } catch (Throwable th) {
+                Log.e(TAG, "Failed to update MediaStore " + th);
+            }
+        }
+        return count;
+    }
+
+    public static Uri insertImage(ContentResolver resolver, ContentValues values) {
         Uri uri = null;
         try {
             uri = resolver.insert(Images.Media.EXTERNAL_CONTENT_URI, values);
@@ -0,0 +1,216 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a running estimate of the free space on the current save path, so that
+ * capture code can ask whether it may shoot without a StatFs call each time. One
+ * measurement is taken as the baseline; bytes of queued saves are reserved against it
+ * and turned into written bytes once the save finishes. The baseline is measured again
+ * when it gets older than the refresh period or after {@link #invalidate()}, which is
+ * called on media mount events and when the save path changes.
+ */
+public class StorageBudget {
+    private static final String TAG = "CAM_StorageBudget";
+
+    public static final int LEVEL_OK = 0;
+    public static final int LEVEL_LOW = 1;
+    public static final int LEVEL_CRITICAL = 2;
+
+    public static final long CRITICAL_STORAGE_THRESHOLD_BYTES = 20 * 1024 * 1024;
+    private static final long REFRESH_PERIOD_MS = 30 * 1000;
+
+    public interface Measurer {
+        public long measure();
+    }
+
+    public interface Listener {
+        /**
+         * Called when the free space crosses the low or critical threshold, on the
+         * thread that caused the change.
+         */
+        public void onStorageLevelChanged(int level, long availableBytes);
+    }
+
+    private static StorageBudget sInstance;
+
+    private final Measurer mMeasurer;
+    private final long mRefreshPeriodMs;
+    private final long mLowThreshold;
+    private final long mCriticalThreshold;
+    private final CopyOnWriteArrayList<Listener> mListeners =
+            new CopyOnWriteArrayList<Listener>();
+    private final Object mMeasureLock = new Object();
+
+    // Bytes reserved by saves that are queued or still being written.
+    private final AtomicLong mReserved = new AtomicLong();
+    // Bytes written since the baseline was measured.
+    private final AtomicLong mWritten = new AtomicLong();
+    private volatile long mBaseline = Storage.UNKNOWN_SIZE;
+    private volatile long mMeasuredAt;
+    private volatile boolean mStale = true;
+    private int mLevel = LEVEL_OK;
+    private long mMeasureCount;
+
+    public static synchronized StorageBudget instance() {
+        if (sInstance == null) {
+            sInstance = new StorageBudget(new Measurer() {
+                @Override
+                public long measure() {
+                    return Storage.measureAvailableSpace();
+                }
+            }, REFRESH_PERIOD_MS, Storage.LOW_STORAGE_THRESHOLD_BYTES,
+                    CRITICAL_STORAGE_THRESHOLD_BYTES);
+        }
+        return sInstance;
+    }
+
+    public StorageBudget(Measurer measurer, long refreshPeriodMs, long lowThreshold,
+            long criticalThreshold) {
+        mMeasurer = measurer;
+        mRefreshPeriodMs = refreshPeriodMs;
+        mLowThreshold = lowThreshold;
+        mCriticalThreshold = criticalThreshold;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Returns the estimated free space in bytes, or one of the negative Storage codes
+     * (UNAVAILABLE, PREPARING, UNKNOWN_SIZE) if the last measurement failed.
+     */
+    public long getAvailableSpace() {
+        if (mStale || SystemClock.elapsedRealtime() - mMeasuredAt >= mRefreshPeriodMs) {
+            remeasure();
+        }
+        return estimate();
+    }
+
+    /** Forces the next query to take a fresh measurement. */
+    public void invalidate() {
+        mStale = true;
+    }
+
+    /** Reserves the expected size of a save that has just been queued. */
+    public void reserve(long bytes) {
+        if (bytes <= 0) return;
+        mReserved.addAndGet(bytes);
+        updateLevel();
+    }
+
+    /**
+     * Releases a reservation once its save is done, accounting writtenBytes as used;
+     * pass 0 if the save failed and left nothing behind.
+     */
+    public void release(long reservedBytes, long writtenBytes) {
+        if (reservedBytes > 0) mReserved.addAndGet(-reservedBytes);
+        if (writtenBytes > 0) mWritten.addAndGet(writtenBytes);
+        updateLevel();
+    }
+
+    public long getReservedBytes() {
+        return mReserved.get();
+    }
+
+    public synchronized int getLevel() {
+        return mLevel;
+    }
+
+    public long getMeasureCount() {
+        synchronized (mMeasureLock) {
+            return mMeasureCount;
+        }
+    }
+
+    private void remeasure() {
+        synchronized (mMeasureLock) {
+            // Another caller may have measured while this one waited for the lock.
+            if (!mStale && SystemClock.elapsedRealtime() - mMeasuredAt < mRefreshPeriodMs) {
+                return;
+            }
+            mStale = false;
+            long written = mWritten.get();
+            long space = mMeasurer.measure();
+            // The new baseline already includes what was written before the measurement.
+            mWritten.addAndGet(-written);
+            mBaseline = space;
+            mMeasuredAt = SystemClock.elapsedRealtime();
+            mMeasureCount++;
+        }
+        updateLevel();
+    }
+
+    private long estimate() {
+        long baseline = mBaseline;
+        if (baseline < 0) return baseline;
+        return Math.max(0, baseline - mWritten.get() - mReserved.get());
+    }
+
+    private void updateLevel() {
+        long space = estimate();
+        int level;
+        if (space < 0) {
+            // An unusable save path is reported through the Storage codes instead.
+            level = LEVEL_OK;
+        } else if (space <= mCriticalThreshold) {
+            level = LEVEL_CRITICAL;
+        } else if (space <= mLowThreshold) {
+            level = LEVEL_LOW;
+        } else {
+            level = LEVEL_OK;
+        }
+        synchronized (this) {
+            if (level == mLevel) return;
+            mLevel = level;
+        }
+        Log.d(TAG, "Storage level " + level + ", " + space + " bytes available");
+        for (Listener listener : mListeners) {
+            listener.onStorageLevelChanged(level, space);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StorageBudget[baseline=" + mBaseline + " written=" + mWritten.get()
+                + " reserved=" + mReserved.get() + " level=" + getLevel() + "]";
+    }
+}
@@ -0,0 +1,218 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.provider.MediaStore.Images;
+import android.provider.MediaStore.Images.ImageColumns;
+import android.util.Log;
+
+import com.android.camera.Storage;
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifTag;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Rewrites the exif of many jpeg files at once, e.g. to rotate or strip the location
+ * from a selection of photos. Files are rewritten on a few I/O threads, in place where
+ * the new values fit and otherwise through a temporary file (see
+ * {@link ExifInterface#rewriteExifFile}), and the MediaStore rows of all the files are
+ * updated together in batches afterwards.
+ */
+public class ExifBatchRewriter {
+    private static final String TAG = "CAM_ExifBatchRewriter";
+    private static final int IO_THREADS = 2;
+    // MediaStore rows per provider call.
+    private static final int MAX_BATCH = 100;
+
+    private static ExifBatchRewriter sInstance;
+
+    /**
+     * A set of changes to the exif of one file, and to its MediaStore row.
+     */
+    public static class Job {
+        final String mPath;
+        final Uri mUri;
+        final List<ExifTag> mTags;
+        final int[] mRemovedTagIds;
+        final ContentValues mValues;
+
+        /**
+         * @param path the jpeg file.
+         * @param uri the MediaStore row of the file, or null.
+         * @param tags tags to set.
+         * @param removedTagIds tag constants of the tags to remove, or null.
+         * @param values MediaStore columns to update once the file is rewritten, or null.
+         *            The new size of the file is added to them.
+         */
+        public Job(String path, Uri uri, List<ExifTag> tags, int[] removedTagIds,
+                ContentValues values) {
+            mPath = path;
+            mUri = uri;
+            mTags = tags;
+            mRemovedTagIds = removedTagIds;
+            mValues = values != null ? values : new ContentValues();
+        }
+
+        /**
+         * Returns a job that sets the orientation of the image to degrees, or null if the
+         * orientation tag cannot be built.
+         */
+        public static Job rotate(String path, Uri uri, int degrees) {
+            ExifTag tag = new ExifInterface().buildTag(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.getOrientationValueForRotation(degrees));
+            if (tag == null) {
+                Log.w(TAG, "Cannot build tag: " + ExifInterface.TAG_ORIENTATION);
+                return null;
+            }
+            ContentValues values = new ContentValues();
+            values.put(Images.Media.ORIENTATION, degrees);
+            return new Job(path, uri, Collections.singletonList(tag), null, values);
+        }
+
+        /**
+         * Returns a job that removes all the GPS tags of the image.
+         */
+        public static Job stripLocation(String path, Uri uri) {
+            int[] gpsTags = new int[ExifInterface.TAG_GPS_DIFFERENTIAL
+                    - ExifInterface.TAG_GPS_VERSION_ID + 1];
+            for (int i = 0; i < gpsTags.length; i++) {
+                gpsTags[i] = ExifInterface.TAG_GPS_VERSION_ID + i;
+            }
+            ContentValues values = new ContentValues();
+            values.putNull(ImageColumns.LATITUDE);
+            values.putNull(ImageColumns.LONGITUDE);
+            return new Job(path, uri, Collections.<ExifTag>emptyList(), gpsTags, values);
+        }
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+
+    public static synchronized ExifBatchRewriter getInstance() {
+        if (sInstance == null) {
+            sInstance = new ExifBatchRewriter(IO_THREADS);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param threads number of files rewritten at the same time.
+     */
+    public ExifBatchRewriter(int threads) {
+        threads = Math.max(1, threads);
+        mExecutor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "ExifRewrite-" + mCount.incrementAndGet());
+                        t.setPriority(Thread.NORM_PRIORITY - 1);
+                        return t;
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs the jobs and updates the MediaStore rows of the files rewritten. Blocks until
+     * everything is done, so it must not be called on the main thread. Jobs in one call
+     * must be for different files.
+     *
+     * @param resolver used for the MediaStore updates, or null to skip them.
+     * @return for each job, whether its file was rewritten.
+     */
+    public boolean[] rewrite(ContentResolver resolver, List<Job> jobs) {
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(jobs.size());
+        for (final Job job : jobs) {
+            futures.add(mExecutor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return rewriteFile(job);
+                }
+            }));
+        }
+
+        boolean[] success = new boolean[jobs.size()];
+        List<Uri> uris = new ArrayList<Uri>();
+        List<ContentValues> values = new ArrayList<ContentValues>();
+        for (int i = 0; i < success.length; i++) {
+            try {
+                success[i] = futures.get(i).get();
+            } catch (ExecutionException e) {
+                Log.w(TAG, "Cannot set exif data: " + jobs.get(i).mPath, e.getCause());
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Interrupted while rewriting exif");
+                Thread.currentThread().interrupt();
+                break;
+            }
+            Job job = jobs.get(i);
+            if (success[i] && job.mUri != null) {
+                uris.add(job.mUri);
+                values.add(job.mValues);
+            }
+        }
+
+        if (resolver != null) {
+            for (int start = 0; start < uris.size(); start += MAX_BATCH) {
+                int end = Math.min(uris.size(), start + MAX_BATCH);
+                Storage.updateImages(resolver, uris.subList(start, end),
+                        values.subList(start, end));
+            }
+        }
+        return success;
+    }
+
+    private static boolean rewriteFile(Job job) {
+        try {
+            new ExifInterface().rewriteExifFile(job.mPath, job.mTags, job.mRemovedTagIds);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot set exif data: " + job.mPath, e);
+            return false;
+        }
+        job.mValues.put(Images.Media.SIZE, new File(job.mPath).length());
+        return true;
+    }
+}
@@ -17,20 +17,14 @@
 package com.android.camera.data;
 
 import android.app.ProgressDialog;
-import android.content.ContentValues;
 import android.content.Context;
 import android.os.AsyncTask;
-import android.provider.MediaStore.Images;
 import android.util.Log;
 
 import com.android.camera.data.LocalMediaData.PhotoData;
-import com.android.camera.exif.ExifInterface;
-import com.android.camera.exif.ExifTag;
 import org.codeaurora.snapcam.R;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
+import java.util.Collections;
 
 /**
  * RotationTask can be used to rotate a {@link LocalData} by updating the exif
@@ -70,8 +64,8 @@ public class RotationTask extends AsyncTask<LocalData, Void, LocalData> {
 
     /**
      * Rotates the image by updating the exif. Done in background thread.
-     * The worst case is the whole file needed to be re-written with
-     * modified exif data.
+     * The worst case is the headers needed to be re-written into a new
+     * file, see {@link ExifBatchRewriter}.
      *
      * @return A new {@link LocalData} object which containing the new info.
      */
@@ -90,41 +84,21 @@ public class RotationTask extends AsyncTask<LocalData, Void, LocalData> {
             finalRotationDegrees = (originRotation + 270) % 360;
         }
 
-        String filePath = imageData.getPath();
-        ContentValues values = new ContentValues();
         boolean success = false;
         int newOrientation = 0;
         if (imageData.getMimeType().equalsIgnoreCase(LocalData.MIME_TYPE_JPEG)) {
-            ExifInterface exifInterface = new ExifInterface();
-            ExifTag tag = exifInterface.buildTag(
-                    ExifInterface.TAG_ORIENTATION,
-                    ExifInterface.getOrientationValueForRotation(
-                            finalRotationDegrees));
-            if (tag != null) {
-                exifInterface.setTag(tag);
-                try {
-                    // Note: This only works if the file already has some EXIF.
-                    exifInterface.forceRewriteExif(filePath);
-                    long fileSize = new File(filePath).length();
-                    values.put(Images.Media.SIZE, fileSize);
-                    newOrientation = finalRotationDegrees;
-                    success = true;
-                } catch (FileNotFoundException e) {
-                    Log.w(TAG, "Cannot find file to set exif: " + filePath);
-                } catch (IOException e) {
-                    Log.w(TAG, "Cannot set exif data: " + filePath);
-                }
-            } else {
-                Log.w(TAG, "Cannot build tag: " + ExifInterface.TAG_ORIENTATION);
+            ExifBatchRewriter.Job job = ExifBatchRewriter.Job.rotate(imageData.getPath(),
+                    imageData.getContentUri(), finalRotationDegrees);
+            if (job != null) {
+                // Rewrites the file and updates its orientation and size in MediaStore.
+                success = ExifBatchRewriter.getInstance().rewrite(
+                        mContext.getContentResolver(), Collections.singletonList(job))[0];
+                newOrientation = finalRotationDegrees;
             }
         }
 
         PhotoData result = null;
         if (success) {
-            // MediaStore using SQLite is thread safe.
-            values.put(Images.Media.ORIENTATION, finalRotationDegrees);
-            mContext.getContentResolver().update(imageData.getContentUri(),
-                    values, null, null);
             double[] latLong = data.getLatLong();
             double latitude = 0;
             double longitude = 0;
@@ -0,0 +1,371 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.exif;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes a RAW10 frame as a single-IFD DNG. The tags are kept in an {@link IfdData}
+ * and laid out like {@link ExifOutputStream} does, then the image is converted and
+ * written one strip at a time, so only the header and one strip are ever buffered.
+ * The pixels are either repacked to the DNG 10-bit layout or, with
+ * {@link #setUnpacked(boolean)}, widened to 16 bits per sample.
+ */
+public class DngWriter {
+    public static final short TAG_NEW_SUBFILE_TYPE = 0x00FE;
+    public static final short TAG_IMAGE_WIDTH = 0x0100;
+    public static final short TAG_IMAGE_LENGTH = 0x0101;
+    public static final short TAG_BITS_PER_SAMPLE = 0x0102;
+    public static final short TAG_COMPRESSION = 0x0103;
+    public static final short TAG_PHOTOMETRIC_INTERPRETATION = 0x0106;
+    public static final short TAG_MAKE = 0x010F;
+    public static final short TAG_MODEL = 0x0110;
+    public static final short TAG_STRIP_OFFSETS = 0x0111;
+    public static final short TAG_ORIENTATION = 0x0112;
+    public static final short TAG_SAMPLES_PER_PIXEL = 0x0115;
+    public static final short TAG_ROWS_PER_STRIP = 0x0116;
+    public static final short TAG_STRIP_BYTE_COUNTS = 0x0117;
+    public static final short TAG_PLANAR_CONFIGURATION = 0x011C;
+    public static final short TAG_SOFTWARE = 0x0131;
+    public static final short TAG_DATE_TIME = 0x0132;
+    public static final short TAG_CFA_REPEAT_PATTERN_DIM = (short) 0x828D;
+    public static final short TAG_CFA_PATTERN = (short) 0x828E;
+    public static final short TAG_EXPOSURE_TIME = (short) 0x829A;
+    public static final short TAG_F_NUMBER = (short) 0x829D;
+    public static final short TAG_ISO_SPEED_RATINGS = (short) 0x8827;
+    public static final short TAG_FOCAL_LENGTH = (short) 0x920A;
+    public static final short TAG_DNG_VERSION = (short) 0xC612;
+    public static final short TAG_DNG_BACKWARD_VERSION = (short) 0xC613;
+    public static final short TAG_UNIQUE_CAMERA_MODEL = (short) 0xC614;
+    public static final short TAG_BLACK_LEVEL_REPEAT_DIM = (short) 0xC619;
+    public static final short TAG_BLACK_LEVEL = (short) 0xC61A;
+    public static final short TAG_WHITE_LEVEL = (short) 0xC61D;
+    public static final short TAG_COLOR_MATRIX_1 = (short) 0xC621;
+    public static final short TAG_CAMERA_CALIBRATION_1 = (short) 0xC623;
+    public static final short TAG_AS_SHOT_NEUTRAL = (short) 0xC628;
+    public static final short TAG_CALIBRATION_ILLUMINANT_1 = (short) 0xC65A;
+    public static final short TAG_FORWARD_MATRIX_1 = (short) 0xC714;
+
+    public static final byte CFA_RED = 0;
+    public static final byte CFA_GREEN = 1;
+    public static final byte CFA_BLUE = 2;
+
+    private static final short PHOTOMETRIC_CFA = (short) 32803;
+    private static final short TIFF_HEADER = 0x002A;
+    private static final short TIFF_LITTLE_ENDIAN = 0x4949;
+    private static final int TIFF_HEADER_SIZE = 8;
+    private static final int TAG_SIZE = 12;
+    private static final int DEFAULT_STRIP_BYTES = 64 * 1024;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final IfdData mIfd = new IfdData(IfdId.TYPE_IFD_0);
+    private boolean mUnpacked;
+    private int mRowsPerStrip;
+
+    /**
+     * @param width the width in pixels, a multiple of 4 as RAW10 requires.
+     */
+    public DngWriter(int width, int height) {
+        if (width <= 0 || height <= 0 || width % 4 != 0) {
+            throw new IllegalArgumentException("Bad RAW10 size " + width + "x" + height);
+        }
+        mWidth = width;
+        mHeight = height;
+        mRowsPerStrip = Math.max(1, Math.min(height, DEFAULT_STRIP_BYTES / getOutputRowBytes()));
+        setTag(TAG_DNG_VERSION, ExifTag.TYPE_UNSIGNED_BYTE, new byte[] {1, 4, 0, 0});
+        setTag(TAG_DNG_BACKWARD_VERSION, ExifTag.TYPE_UNSIGNED_BYTE, new byte[] {1, 1, 0, 0});
+        setTag(TAG_ORIENTATION, ExifTag.TYPE_UNSIGNED_SHORT, 1);
+        setWhiteLevel(1023);
+    }
+
+    /** Writes 16 bits per sample instead of packed 10-bit samples. */
+    public DngWriter setUnpacked(boolean unpacked) {
+        mUnpacked = unpacked;
+        return this;
+    }
+
+    public DngWriter setRowsPerStrip(int rows) {
+        mRowsPerStrip = Math.max(1, Math.min(rows, mHeight));
+        return this;
+    }
+
+    public int getRowsPerStrip() {
+        return mRowsPerStrip;
+    }
+
+    /**
+     * Adds or replaces a tag. The value is anything {@link ExifTag#setValue(Object)}
+     * accepts for the type.
+     *
+     * @return false if the value does not fit the type.
+     */
+    public boolean setTag(short tagId, short type, Object value) {
+        ExifTag tag = new ExifTag(tagId, type, 0, IfdId.TYPE_IFD_0, false);
+        if (!tag.setValue(value)) {
+            return false;
+        }
+        mIfd.setTag(tag);
+        return true;
+    }
+
+    public ExifTag getTag(short tagId) {
+        return mIfd.getTag(tagId);
+    }
+
+    /**
+     * Sets the 2x2 color filter pattern in row order, using the CFA_ colors.
+     */
+    public DngWriter setCfaPattern(byte[] pattern) {
+        setTag(TAG_CFA_REPEAT_PATTERN_DIM, ExifTag.TYPE_UNSIGNED_SHORT, new int[] {2, 2});
+        setTag(TAG_CFA_PATTERN, ExifTag.TYPE_UNSIGNED_BYTE, pattern);
+        return this;
+    }
+
+    /**
+     * Sets the black level of each position of the 2x2 pattern, in row order.
+     */
+    public DngWriter setBlackLevel(int[] levels) {
+        setTag(TAG_BLACK_LEVEL_REPEAT_DIM, ExifTag.TYPE_UNSIGNED_SHORT, new int[] {2, 2});
+        setTag(TAG_BLACK_LEVEL, ExifTag.TYPE_UNSIGNED_LONG, levels);
+        return this;
+    }
+
+    public DngWriter setWhiteLevel(int level) {
+        setTag(TAG_WHITE_LEVEL, ExifTag.TYPE_UNSIGNED_LONG, level);
+        return this;
+    }
+
+    /** Sets the EXIF orientation, 1 to 8. */
+    public DngWriter setOrientation(int orientation) {
+        setTag(TAG_ORIENTATION, ExifTag.TYPE_UNSIGNED_SHORT, orientation);
+        return this;
+    }
+
+    /** Sets the capture time, in milliseconds since the epoch. */
+    public DngWriter setDateTime(long time) {
+        ExifTag tag = new ExifTag(TAG_DATE_TIME, ExifTag.TYPE_ASCII, 0, IfdId.TYPE_IFD_0, false);
+        if (tag.setTimeValue(time)) {
+            mIfd.setTag(tag);
+        }
+        return this;
+    }
+
+    public DngWriter setString(short tagId, String value) {
+        if (value != null) {
+            setTag(tagId, ExifTag.TYPE_ASCII, value);
+        }
+        return this;
+    }
+
+    public DngWriter setRationals(short tagId, short type, Rational[] values) {
+        if (values != null) {
+            setTag(tagId, type, values);
+        }
+        return this;
+    }
+
+    /** The size of the DNG file that {@link #writeRaw10} produces with the current tags. */
+    public long getFileSize() {
+        return layout(0);
+    }
+
+    /**
+     * Writes the file to the channel, reading the frame from raw starting at its
+     * position, with rows rowStride bytes apart.
+     *
+     * @return the number of bytes written.
+     */
+    public long writeRaw10(WritableByteChannel channel, ByteBuffer raw, int rowStride)
+            throws IOException {
+        int inRowBytes = mWidth * 5 / 4;
+        if (rowStride < inRowBytes
+                || raw.remaining() < (long) rowStride * (mHeight - 1) + inRowBytes) {
+            throw new IllegalArgumentException("RAW10 buffer too small: " + raw.remaining()
+                    + " bytes, stride " + rowStride);
+        }
+        int dataOffset = (int) layout(0) - getImageBytes();
+        layout(dataOffset);
+
+        ByteBuffer header = ByteBuffer.allocate(dataOffset);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.putShort(TIFF_LITTLE_ENDIAN);
+        header.putShort(TIFF_HEADER);
+        header.putInt(TIFF_HEADER_SIZE);
+        writeIfd(header);
+        header.clear();
+        long written = writeFully(channel, header);
+
+        int outRowBytes = getOutputRowBytes();
+        byte[] row = new byte[inRowBytes];
+        ByteBuffer strip = ByteBuffer.allocate(mRowsPerStrip * outRowBytes);
+        int base = raw.position();
+        for (int y = 0; y < mHeight; y += mRowsPerStrip) {
+            int rows = Math.min(mRowsPerStrip, mHeight - y);
+            byte[] dst = strip.array();
+            for (int i = 0; i < rows; i++) {
+                raw.position(base + (y + i) * rowStride);
+                raw.get(row);
+                if (mUnpacked) {
+                    unpackRow(row, dst, i * outRowBytes, mWidth);
+                } else {
+                    repackRow(row, dst, i * outRowBytes, mWidth);
+                }
+            }
+            strip.position(0);
+            strip.limit(rows * outRowBytes);
+            written += writeFully(channel, strip);
+            strip.clear();
+        }
+        raw.position(base);
+        return written;
+    }
+
+    /**
+     * Fills in the tags that depend on the layout and gives the tag values their
+     * offsets, with the image data starting at dataOffset.
+     *
+     * @return the size of the file.
+     */
+    private long layout(int dataOffset) {
+        int outRowBytes = getOutputRowBytes();
+        int strips = (mHeight + mRowsPerStrip - 1) / mRowsPerStrip;
+        long[] offsets = new long[strips];
+        long[] counts = new long[strips];
+        for (int i = 0; i < strips; i++) {
+            int rows = Math.min(mRowsPerStrip, mHeight - i * mRowsPerStrip);
+            offsets[i] = dataOffset + (long) i * mRowsPerStrip * outRowBytes;
+            counts[i] = (long) rows * outRowBytes;
+        }
+        setTag(TAG_NEW_SUBFILE_TYPE, ExifTag.TYPE_UNSIGNED_LONG, 0L);
+        setTag(TAG_IMAGE_WIDTH, ExifTag.TYPE_UNSIGNED_LONG, (long) mWidth);
+        setTag(TAG_IMAGE_LENGTH, ExifTag.TYPE_UNSIGNED_LONG, (long) mHeight);
+        setTag(TAG_BITS_PER_SAMPLE, ExifTag.TYPE_UNSIGNED_SHORT, mUnpacked ? 16 : 10);
+        setTag(TAG_COMPRESSION, ExifTag.TYPE_UNSIGNED_SHORT, 1);
+        setTag(TAG_PHOTOMETRIC_INTERPRETATION, ExifTag.TYPE_UNSIGNED_SHORT,
+                PHOTOMETRIC_CFA & 0xffff);
+        setTag(TAG_SAMPLES_PER_PIXEL, ExifTag.TYPE_UNSIGNED_SHORT, 1);
+        setTag(TAG_PLANAR_CONFIGURATION, ExifTag.TYPE_UNSIGNED_SHORT, 1);
+        setTag(TAG_ROWS_PER_STRIP, ExifTag.TYPE_UNSIGNED_LONG, (long) mRowsPerStrip);
+        setTag(TAG_STRIP_OFFSETS, ExifTag.TYPE_UNSIGNED_LONG, offsets);
+        setTag(TAG_STRIP_BYTE_COUNTS, ExifTag.TYPE_UNSIGNED_LONG, counts);
+
+        int offset = TIFF_HEADER_SIZE + 2 + mIfd.getTagCount() * TAG_SIZE + 4;
+        for (int i = 0, n = mIfd.getTagCount(); i < n; i++) {
+            ExifTag tag = mIfd.getTagAt(i);
+            if (tag.getDataSize() > 4) {
+                tag.setOffset(offset);
+                // TIFF wants every value to start on a word boundary.
+                offset += (tag.getDataSize() + 1) & ~1;
+            }
+        }
+        offset = (offset + 3) & ~3;
+        return offset + getImageBytes();
+    }
+
+    private void writeIfd(ByteBuffer out) {
+        int tagCount = mIfd.getTagCount();
+        out.putShort((short) tagCount);
+        for (int i = 0; i < tagCount; i++) {
+            ExifTag tag = mIfd.getTagAt(i);
+            out.putShort(tag.getTagId());
+            out.putShort(tag.getDataType());
+            out.putInt(tag.getComponentCount());
+            if (tag.getDataSize() > 4) {
+                out.putInt(tag.getOffset());
+            } else {
+                int end = out.position() + 4;
+                ExifOutputStream.writeTagValue(tag, out);
+                out.position(end);
+            }
+        }
+        out.putInt(0);
+        for (int i = 0; i < tagCount; i++) {
+            ExifTag tag = mIfd.getTagAt(i);
+            if (tag.getDataSize() > 4) {
+                ExifOutputStream.writeTagValue(tag, out);
+                // Word alignment; the buffer is zero-filled.
+                out.position((out.position() + 1) & ~1);
+            }
+        }
+    }
+
+    private int getOutputRowBytes() {
+        return mUnpacked ? mWidth * 2 : mWidth * 10 / 8;
+    }
+
+    private int getImageBytes() {
+        return mHeight * getOutputRowBytes();
+    }
+
+    private static long writeFully(WritableByteChannel channel, ByteBuffer buffer)
+            throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer);
+        }
+        return written;
+    }
+
+    /**
+     * Converts a row from the camera2 RAW10 layout, where each group of 4 pixels is
+     * stored as their high 8 bits followed by a byte with their low 2 bits, to the
+     * DNG layout, where the 10-bit samples follow each other most significant bit first.
+     */
+    static void repackRow(byte[] src, byte[] dst, int offset, int width) {
+        for (int s = 0, d = offset, n = width * 5 / 4; s < n; s += 5, d += 5) {
+            int low = src[s + 4] & 0xff;
+            int p0 = ((src[s] & 0xff) << 2) | (low & 0x3);
+            int p1 = ((src[s + 1] & 0xff) << 2) | ((low >> 2) & 0x3);
+            int p2 = ((src[s + 2] & 0xff) << 2) | ((low >> 4) & 0x3);
+            int p3 = ((src[s + 3] & 0xff) << 2) | ((low >> 6) & 0x3);
+            dst[d] = (byte) (p0 >> 2);
+            dst[d + 1] = (byte) ((p0 << 6) | (p1 >> 4));
+            dst[d + 2] = (byte) ((p1 << 4) | (p2 >> 6));
+            dst[d + 3] = (byte) ((p2 << 2) | (p3 >> 8));
+            dst[d + 4] = (byte) p3;
+        }
+    }
+
+    /** Converts a RAW10 row to little endian 16-bit samples. */
+    static void unpackRow(byte[] src, byte[] dst, int offset, int width) {
+        for (int s = 0, d = offset, n = width * 5 / 4; s < n; s += 5) {
+            int low = src[s + 4] & 0xff;
+            for (int i = 0; i < 4; i++, d += 2) {
+                int p = ((src[s + i] & 0xff) << 2) | ((low >> (2 * i)) & 0x3);
+                dst[d] = (byte) p;
+                dst[d + 1] = (byte) (p >> 8);
+            }
+        }
+    }
+}
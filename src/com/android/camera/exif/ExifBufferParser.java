@@ -0,0 +1,576 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.exif;
+
+import android.util.Log;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A random access counterpart of {@link ExifParser} for JPEGs that are already in a
+ * ByteBuffer, either in memory or mapped from a file. Instead of streaming through
+ * the APP1 segment it reads the IFDs at their offsets in a view of the buffer, so
+ * nothing is copied but the values of the tags that are asked for. A single tag can
+ * be looked up with {@link #getTag(int, short)}, which only walks the IFDs on the way
+ * to it and decodes its value on first access; {@link #read(int)} decodes the
+ * requested IFDs into an {@link ExifData} the way {@link ExifReader} does.
+ */
+class ExifBufferParser {
+    private static final String TAG = "ExifBufferParser";
+
+    private static final int EXIF_HEADER = 0x45786966; // "Exif"
+    private static final short EXIF_HEADER_TAIL = (short) 0x0000;
+    private static final short LITTLE_ENDIAN_TAG = (short) 0x4949; // "II"
+    private static final short BIG_ENDIAN_TAG = (short) 0x4d4d; // "MM"
+    private static final short TIFF_HEADER_TAIL = 0x002A;
+    private static final int TAG_SIZE = 12;
+    private static final int OFFSET_SIZE = 2;
+
+    private static final int IFD_UNRESOLVED = -2;
+    private static final int IFD_ABSENT = -1;
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private static final short TAG_ORIENTATION = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_ORIENTATION);
+    private static final short TAG_EXIF_IFD = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_EXIF_IFD);
+    private static final short TAG_GPS_IFD = ExifInterface.getTrueTagKey(ExifInterface.TAG_GPS_IFD);
+    private static final short TAG_INTEROPERABILITY_IFD = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_INTEROPERABILITY_IFD);
+    private static final short TAG_JPEG_INTERCHANGE_FORMAT = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT);
+    private static final short TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH);
+    private static final short TAG_STRIP_OFFSETS = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_STRIP_OFFSETS);
+    private static final short TAG_STRIP_BYTE_COUNTS = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_STRIP_BYTE_COUNTS);
+
+    private final ExifInterface mInterface;
+    // The APP1 segment from the TIFF header on, so offsets index it directly.
+    private final ByteBuffer mTiff;
+    private final int mTiffStartPosition;
+    private final int[] mIfdOffsets = new int[IfdId.TYPE_IFD_COUNT];
+    private final Map<Integer, ExifTag> mTags = new HashMap<Integer, ExifTag>();
+
+    private ExifBufferParser(ExifInterface iRef, ByteBuffer tiff, int tiffStart) {
+        mInterface = iRef;
+        mTiff = tiff;
+        mTiffStartPosition = tiffStart;
+        for (int i = 0; i < mIfdOffsets.length; i++) {
+            mIfdOffsets[i] = IFD_UNRESOLVED;
+        }
+    }
+
+    /**
+     * Returns the offset from the buffer's position of the end of the first SOF marker
+     * and its length field, or -1 if the JPEG has no SOF. {@link ExifOutputStream} copies
+     * everything after it as it is, so only the bytes up to there need to go through the
+     * stream when the Exif header is replaced. The buffer is left untouched.
+     */
+    protected static int findFrameHeaderEnd(ByteBuffer jpeg) {
+        ByteBuffer buf = jpeg.slice();
+        buf.order(ByteOrder.BIG_ENDIAN);
+        try {
+            if (buf.getShort() != JpegHeader.SOI) {
+                return -1;
+            }
+            short marker = buf.getShort();
+            while (marker != JpegHeader.EOI) {
+                int length = buf.getShort() & 0xffff;
+                if (JpegHeader.isSofMarker(marker)) {
+                    return buf.position();
+                }
+                int next = buf.position() + length - 2;
+                if (length < 2 || next > buf.limit()) {
+                    return -1;
+                }
+                buf.position(next);
+                marker = buf.getShort();
+            }
+        } catch (BufferUnderflowException e) {
+            Log.w(TAG, "Invalid JPEG format.");
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the Exif data in the JPEG between the position and the limit of the buffer,
+     * which is left untouched.
+     *
+     * @param iRef the interface whose tag definitions decide where the IFD and image
+     *            offset tags are allowed, or null to accept them anywhere.
+     * @exception ExifInvalidFormatException if the buffer does not hold a JPEG or the
+     *                TIFF header is broken.
+     */
+    protected static ExifBufferParser parse(ByteBuffer jpeg, ExifInterface iRef)
+            throws ExifInvalidFormatException {
+        ByteBuffer buf = jpeg.slice();
+        buf.order(ByteOrder.BIG_ENDIAN);
+        if (buf.remaining() < 2 || buf.getShort() != JpegHeader.SOI) {
+            throw new ExifInvalidFormatException("Invalid JPEG format");
+        }
+        try {
+            short marker = buf.getShort();
+            while (marker != JpegHeader.EOI && !JpegHeader.isSofMarker(marker)) {
+                int length = buf.getShort() & 0xffff;
+                int next = buf.position() + length - 2;
+                // Some invalid formatted image contains multiple APP1,
+                // try to find the one with Exif data.
+                if (marker == JpegHeader.APP1 && length >= 8
+                        && buf.getInt() == EXIF_HEADER && buf.getShort() == EXIF_HEADER_TAIL) {
+                    int start = buf.position();
+                    buf.limit(Math.min(buf.limit(), start + length - 8));
+                    ByteBuffer tiff = buf.slice();
+                    return new ExifBufferParser(iRef, tiff, start).parseTiffHeader();
+                }
+                if (length < 2 || next > buf.limit()) {
+                    Log.w(TAG, "Invalid JPEG format.");
+                    break;
+                }
+                buf.position(next);
+                marker = buf.getShort();
+            }
+        } catch (BufferUnderflowException e) {
+            Log.w(TAG, "Invalid JPEG format.");
+        }
+        return new ExifBufferParser(iRef, null, 0);
+    }
+
+    private ExifBufferParser parseTiffHeader() throws ExifInvalidFormatException {
+        if (mTiff.remaining() < 8) {
+            throw new ExifInvalidFormatException("Invalid TIFF header");
+        }
+        short byteOrder = mTiff.getShort(0);
+        if (LITTLE_ENDIAN_TAG == byteOrder) {
+            mTiff.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (BIG_ENDIAN_TAG == byteOrder) {
+            mTiff.order(ByteOrder.BIG_ENDIAN);
+        } else {
+            throw new ExifInvalidFormatException("Invalid TIFF header");
+        }
+        if (mTiff.getShort(2) != TIFF_HEADER_TAIL) {
+            throw new ExifInvalidFormatException("Invalid TIFF header");
+        }
+        mIfdOffsets[IfdId.TYPE_IFD_0] = checkIfd(getUnsignedInt(4));
+        return this;
+    }
+
+    protected boolean containsExifData() {
+        return mTiff != null;
+    }
+
+    protected ByteOrder getByteOrder() {
+        return mTiff == null ? ByteOrder.BIG_ENDIAN : mTiff.order();
+    }
+
+    /** The position of the TIFF header in the JPEG. */
+    protected int getTiffStartPosition() {
+        return mTiffStartPosition;
+    }
+
+    /**
+     * Returns the offset of the IFD from the TIFF header, or -1 if the file does not
+     * have it. Only the IFDs that link to it are looked at.
+     */
+    protected int getIfdOffset(int ifd) {
+        if (mTiff == null) {
+            return IFD_ABSENT;
+        }
+        if (mIfdOffsets[ifd] == IFD_UNRESOLVED) {
+            long offset = 0;
+            switch (ifd) {
+                case IfdId.TYPE_IFD_1:
+                    int ifd0 = getIfdOffset(IfdId.TYPE_IFD_0);
+                    if (ifd0 >= 0) {
+                        offset = getUnsignedInt(ifd0 + OFFSET_SIZE + getEntryCount(ifd0) * TAG_SIZE);
+                    }
+                    break;
+                case IfdId.TYPE_IFD_EXIF:
+                    offset = getPointer(IfdId.TYPE_IFD_0, TAG_EXIF_IFD, ExifInterface.TAG_EXIF_IFD);
+                    break;
+                case IfdId.TYPE_IFD_GPS:
+                    offset = getPointer(IfdId.TYPE_IFD_0, TAG_GPS_IFD, ExifInterface.TAG_GPS_IFD);
+                    break;
+                case IfdId.TYPE_IFD_INTEROPERABILITY:
+                    offset = getPointer(IfdId.TYPE_IFD_EXIF, TAG_INTEROPERABILITY_IFD,
+                            ExifInterface.TAG_INTEROPERABILITY_IFD);
+                    break;
+            }
+            mIfdOffsets[ifd] = offset == 0 ? IFD_ABSENT : checkIfd(offset);
+        }
+        return mIfdOffsets[ifd];
+    }
+
+    /**
+     * Returns the tag with its value, or null if the IFD does not have it. The value
+     * is decoded the first time the tag is asked for.
+     */
+    protected ExifTag getTag(int ifd, short tagId) throws ExifInvalidFormatException {
+        Integer key = ExifInterface.defineTag(ifd, tagId);
+        if (mTags.containsKey(key)) {
+            return mTags.get(key);
+        }
+        ExifTag tag = null;
+        int entry = findEntry(ifd, tagId);
+        if (entry >= 0) {
+            tag = readTag(ifd, entry);
+        }
+        mTags.put(key, tag);
+        return tag;
+    }
+
+    /**
+     * Returns the orientation tag value of IFD0, or 0 if there is none. This reads
+     * nothing but the TIFF header and the entries of IFD0.
+     */
+    protected int getOrientationValue() throws ExifInvalidFormatException {
+        ExifTag tag = getTag(IfdId.TYPE_IFD_0, TAG_ORIENTATION);
+        if (tag == null || !(tag.getValue() instanceof long[]) || tag.getComponentCount() < 1) {
+            return 0;
+        }
+        return (int) tag.getValueAt(0);
+    }
+
+    /**
+     * Decodes the IFDs and the thumbnail selected by the {@link ExifParser} option bits.
+     */
+    protected ExifData read(int options) throws ExifInvalidFormatException {
+        ExifData data = new ExifData(getByteOrder());
+        if (mTiff == null) {
+            return data;
+        }
+        int[] ifds = IfdData.getIfds();
+        for (int i = 0; i < ifds.length; i++) {
+            if ((options & optionForIfd(ifds[i])) == 0) {
+                continue;
+            }
+            int offset = getIfdOffset(ifds[i]);
+            if (offset < 0) {
+                continue;
+            }
+            IfdData ifd = new IfdData(ifds[i]);
+            for (int j = 0, n = getEntryCount(offset); j < n; j++) {
+                ExifTag tag = readTag(ifds[i], offset + OFFSET_SIZE + j * TAG_SIZE);
+                if (tag != null) {
+                    ifd.setTag(tag);
+                }
+            }
+            data.addIfdData(ifd);
+        }
+        if ((options & ExifParser.OPTION_THUMBNAIL) != 0) {
+            readThumbnail(data);
+        }
+        return data;
+    }
+
+    private static int optionForIfd(int ifd) {
+        switch (ifd) {
+            case IfdId.TYPE_IFD_0:
+                return ExifParser.OPTION_IFD_0;
+            case IfdId.TYPE_IFD_1:
+                return ExifParser.OPTION_IFD_1;
+            case IfdId.TYPE_IFD_EXIF:
+                return ExifParser.OPTION_IFD_EXIF;
+            case IfdId.TYPE_IFD_GPS:
+                return ExifParser.OPTION_IFD_GPS;
+            case IfdId.TYPE_IFD_INTEROPERABILITY:
+                return ExifParser.OPTION_IFD_INTEROPERABILITY;
+        }
+        return 0;
+    }
+
+    private void readThumbnail(ExifData data) throws ExifInvalidFormatException {
+        ExifTag jpeg = getAllowedTag(IfdId.TYPE_IFD_1, TAG_JPEG_INTERCHANGE_FORMAT,
+                ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT);
+        if (jpeg != null) {
+            ExifTag length = getAllowedTag(IfdId.TYPE_IFD_1, TAG_JPEG_INTERCHANGE_FORMAT_LENGTH,
+                    ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH);
+            byte[] thumbnail = getBytes(jpeg.getValueAt(0),
+                    length == null ? 0 : length.getValueAt(0));
+            if (thumbnail != null) {
+                data.setCompressedThumbnail(thumbnail);
+            } else {
+                Log.w(TAG, "Failed to read the compressed thumbnail");
+            }
+            return;
+        }
+        ExifTag offsets = getAllowedTag(IfdId.TYPE_IFD_1, TAG_STRIP_OFFSETS,
+                ExifInterface.TAG_STRIP_OFFSETS);
+        ExifTag counts = getAllowedTag(IfdId.TYPE_IFD_1, TAG_STRIP_BYTE_COUNTS,
+                ExifInterface.TAG_STRIP_BYTE_COUNTS);
+        if (offsets == null || counts == null) {
+            return;
+        }
+        for (int i = 0; i < offsets.getComponentCount(); i++) {
+            int size = (int) counts.getValueAt(Math.min(i, counts.getComponentCount() - 1));
+            byte[] strip = getBytes(offsets.getValueAt(i), size);
+            if (strip != null) {
+                data.setStripBytes(i, strip);
+            } else {
+                Log.w(TAG, "Failed to read the strip bytes");
+            }
+        }
+    }
+
+    /**
+     * Returns a view of the compressed thumbnail of IFD1, or null if there is none.
+     * Only the link to IFD1 and its entries are read; nothing is copied.
+     */
+    protected ByteBuffer getCompressedThumbnail() throws ExifInvalidFormatException {
+        ExifTag jpeg = getAllowedTag(IfdId.TYPE_IFD_1, TAG_JPEG_INTERCHANGE_FORMAT,
+                ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT);
+        ExifTag length = getAllowedTag(IfdId.TYPE_IFD_1, TAG_JPEG_INTERCHANGE_FORMAT_LENGTH,
+                ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH);
+        if (jpeg == null || length == null) {
+            return null;
+        }
+        long offset = jpeg.getValueAt(0);
+        long size = length.getValueAt(0);
+        if (offset < 0 || size <= 0 || offset + size > mTiff.limit()) {
+            return null;
+        }
+        ByteBuffer view = mTiff.duplicate();
+        view.limit((int) (offset + size));
+        view.position((int) offset);
+        return view.slice();
+    }
+
+    private ExifTag getAllowedTag(int ifd, short tagId, int definedTag)
+            throws ExifInvalidFormatException {
+        ExifTag tag = getTag(ifd, tagId);
+        if (tag == null || tag.getComponentCount() == 0 || !tag.hasValue()
+                || !checkAllowed(ifd, definedTag)) {
+            return null;
+        }
+        return tag;
+    }
+
+    private long getPointer(int ifd, short tagId, int definedTag) {
+        if (getIfdOffset(ifd) < 0) {
+            return 0;
+        }
+        try {
+            ExifTag tag = getAllowedTag(ifd, tagId, definedTag);
+            return tag == null ? 0 : tag.getValueAt(0);
+        } catch (ExifInvalidFormatException e) {
+            Log.w(TAG, "Invalid link to IFD", e);
+            return 0;
+        }
+    }
+
+    private int checkIfd(long offset) {
+        if (offset < 8 || offset + OFFSET_SIZE > mTiff.limit()) {
+            Log.w(TAG, "Invalid IFD offset " + offset);
+            return IFD_ABSENT;
+        }
+        int count = mTiff.getShort((int) offset) & 0xffff;
+        // The entries and the link to the next IFD.
+        if (offset + OFFSET_SIZE + count * TAG_SIZE + 4 > mTiff.limit()) {
+            Log.w(TAG, "Invalid size of IFD at " + offset);
+            return IFD_ABSENT;
+        }
+        return (int) offset;
+    }
+
+    private boolean checkAllowed(int ifd, int tagId) {
+        if (mInterface == null) {
+            return true;
+        }
+        int info = mInterface.getTagInfo().get(tagId);
+        if (info == ExifInterface.DEFINITION_NULL) {
+            return false;
+        }
+        return ExifInterface.isIfdAllowed(info, ifd);
+    }
+
+    private int getEntryCount(int ifdOffset) {
+        return mTiff.getShort(ifdOffset) & 0xffff;
+    }
+
+    private int findEntry(int ifd, short tagId) {
+        int offset = getIfdOffset(ifd);
+        if (offset < 0) {
+            return -1;
+        }
+        for (int i = 0, n = getEntryCount(offset); i < n; i++) {
+            int entry = offset + OFFSET_SIZE + i * TAG_SIZE;
+            if (mTiff.getShort(entry) == tagId) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    private long getUnsignedInt(int offset) {
+        return mTiff.getInt(offset) & 0xffffffffL;
+    }
+
+    private byte[] getBytes(long offset, long size) {
+        if (offset < 0 || size <= 0 || offset + size > mTiff.limit()) {
+            return null;
+        }
+        byte[] buf = new byte[(int) size];
+        ByteBuffer view = mTiff.duplicate();
+        view.position((int) offset);
+        view.get(buf);
+        return buf;
+    }
+
+    /**
+     * Decodes the IFD entry at the given offset into a tag with its value, as
+     * {@link ExifParser} and {@link ExifReader} would; returns null for entries that
+     * they skip.
+     */
+    private ExifTag readTag(int ifd, int entry) throws ExifInvalidFormatException {
+        short tagId = mTiff.getShort(entry);
+        short dataFormat = mTiff.getShort(entry + 2);
+        long numOfComp = getUnsignedInt(entry + 4);
+        if (numOfComp > Integer.MAX_VALUE) {
+            throw new ExifInvalidFormatException(
+                    "Number of component is larger then Integer.MAX_VALUE");
+        }
+        // Some invalid image file contains invalid data type. Ignore those tags
+        if (!ExifTag.isValidType(dataFormat)) {
+            Log.w(TAG, String.format("Tag %04x: Invalid data type %d", tagId, dataFormat));
+            return null;
+        }
+        ExifTag tag = new ExifTag(tagId, dataFormat, (int) numOfComp, ifd,
+                ((int) numOfComp) != ExifTag.SIZE_UNDEFINED);
+        int dataSize = tag.getDataSize();
+        if (dataSize > 4) {
+            long offset = getUnsignedInt(entry + 8);
+            if (offset > Integer.MAX_VALUE) {
+                throw new ExifInvalidFormatException(
+                        "offset is larger then Integer.MAX_VALUE");
+            }
+            tag.setOffset((int) offset);
+            if (offset + dataSize > mTiff.limit()) {
+                if (!shortenToLimit(tag, offset)) {
+                    Log.w(TAG, "Value out of the Exif data for tag: \n" + tag.toString());
+                    return tag;
+                }
+            }
+            readValue(tag, (int) offset);
+        } else {
+            boolean defCount = tag.hasDefinedCount();
+            // Set defined count to 0 so we can add \0 to non-terminated strings
+            tag.setHasDefinedCount(false);
+            readValue(tag, entry + 8);
+            tag.setHasDefinedCount(defCount);
+            tag.setOffset(entry + 8);
+        }
+        return tag;
+    }
+
+    // Values of byte types that run past the Exif data are cut short, like the stream
+    // parser cuts them at the next value it knows about.
+    private boolean shortenToLimit(ExifTag tag, long offset) {
+        short type = tag.getDataType();
+        if (type != ExifTag.TYPE_ASCII && type != ExifTag.TYPE_UNDEFINED
+                && type != ExifTag.TYPE_UNSIGNED_BYTE) {
+            return false;
+        }
+        int size = (int) Math.max(0, mTiff.limit() - offset);
+        Log.w(TAG, "Invalid size of tag: \n" + tag.toString() + " setting count to: " + size);
+        tag.forceSetComponentCount(size);
+        return true;
+    }
+
+    private void readValue(ExifTag tag, int offset) {
+        ByteBuffer buf = mTiff;
+        int n = tag.getComponentCount();
+        switch (tag.getDataType()) {
+            case ExifTag.TYPE_UNSIGNED_BYTE:
+            case ExifTag.TYPE_UNDEFINED: {
+                byte value[] = new byte[n];
+                ByteBuffer view = buf.duplicate();
+                view.position(offset);
+                view.get(value);
+                tag.setValue(value);
+            }
+                break;
+            case ExifTag.TYPE_ASCII: {
+                byte value[] = new byte[n];
+                ByteBuffer view = buf.duplicate();
+                view.position(offset);
+                view.get(value);
+                tag.setValue(n > 0 ? new String(value, US_ASCII) : "");
+            }
+                break;
+            case ExifTag.TYPE_UNSIGNED_LONG: {
+                long value[] = new long[n];
+                for (int i = 0; i < n; i++) {
+                    value[i] = buf.getInt(offset + i * 4) & 0xffffffffL;
+                }
+                tag.setValue(value);
+            }
+                break;
+            case ExifTag.TYPE_UNSIGNED_RATIONAL: {
+                long value[] = new long[n * 2];
+                for (int i = 0; i < value.length; i++) {
+                    value[i] = buf.getInt(offset + i * 4) & 0xffffffffL;
+                }
+                tag.setRationalValue(value);
+            }
+                break;
+            case ExifTag.TYPE_UNSIGNED_SHORT: {
+                int value[] = new int[n];
+                for (int i = 0; i < n; i++) {
+                    value[i] = buf.getShort(offset + i * 2) & 0xffff;
+                }
+                tag.setValue(value);
+            }
+                break;
+            case ExifTag.TYPE_LONG: {
+                int value[] = new int[n];
+                for (int i = 0; i < n; i++) {
+                    value[i] = buf.getInt(offset + i * 4);
+                }
+                tag.setValue(value);
+            }
+                break;
+            case ExifTag.TYPE_RATIONAL: {
+                long value[] = new long[n * 2];
+                for (int i = 0; i < value.length; i++) {
+                    value[i] = buf.getInt(offset + i * 4);
+                }
+                tag.setRationalValue(value);
+            }
+                break;
+        }
+    }
+}
@@ -199,7 +199,8 @@ class ExifData {
     }
 
     /**
-     * Removes the tag with a given TID and IFD.
+     * Removes the tag with a given TID and IFD. A GPS or interoperability IFD
+     * left empty is removed as well, so that no pointer to it is written.
      */
     protected void removeTag(short tagId, int ifdId) {
         IfdData ifdData = mIfdDatas[ifdId];
@@ -207,6 +208,10 @@ class ExifData {
             return;
         }
         ifdData.removeTag(tagId);
+        if (ifdData.getTagCount() == 0 && (ifdId == IfdId.TYPE_IFD_GPS
+                || ifdId == IfdId.TYPE_IFD_INTEROPERABILITY)) {
+            mIfdDatas[ifdId] = null;
+        }
     }
 
     /**
@@ -23,7 +23,6 @@ import android.util.SparseIntArray;
 import android.os.Build;
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
@@ -36,6 +35,7 @@ import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.nio.MappedByteBuffer;
 import java.text.DateFormat;
@@ -709,6 +709,18 @@ public class ExifInterface {
         public static final short DIFFERENTIAL_CORRECTION_APPLIED = 1;
     }
 
+    /**
+     * Flags for {@link #readExif(ByteBuffer, int)} to pick what is read.
+     */
+    public static final int READ_IFD_0 = ExifParser.OPTION_IFD_0;
+    public static final int READ_IFD_1 = ExifParser.OPTION_IFD_1;
+    public static final int READ_IFD_EXIF = ExifParser.OPTION_IFD_EXIF;
+    public static final int READ_IFD_GPS = ExifParser.OPTION_IFD_GPS;
+    public static final int READ_IFD_INTEROPERABILITY = ExifParser.OPTION_IFD_INTEROPERABILITY;
+    public static final int READ_THUMBNAIL = ExifParser.OPTION_THUMBNAIL;
+    public static final int READ_ALL = READ_IFD_0 | READ_IFD_1 | READ_IFD_EXIF | READ_IFD_GPS
+            | READ_IFD_INTEROPERABILITY | READ_THUMBNAIL;
+
     private static final String NULL_ARGUMENT_STRING = "Argument is null";
     private ExifData mData = new ExifData(DEFAULT_BYTE_ORDER);
     public static final ByteOrder DEFAULT_BYTE_ORDER = ByteOrder.BIG_ENDIAN;
@@ -725,7 +737,76 @@ public class ExifInterface {
      * @throws IOException
      */
     public void readExif(byte[] jpeg) throws IOException {
-        readExif(new ByteArrayInputStream(jpeg));
+        readExif(ByteBuffer.wrap(jpeg));
+    }
+
+    /**
+     * Reads the exif tags from a ByteBuffer, clearing this ExifInterface
+     * object's existing exif tags. The IFDs are read where they are in the
+     * buffer, which may be mapped from a file; only the tag values are copied.
+     *
+     * @param jpeg a buffer with a jpeg compressed image between its position
+     *            and limit, which are left unchanged.
+     * @throws IOException
+     */
+    public void readExif(ByteBuffer jpeg) throws IOException {
+        readExif(jpeg, READ_ALL);
+    }
+
+    /**
+     * Reads only the IFDs picked by the options from a ByteBuffer, clearing
+     * this ExifInterface object's existing exif tags.
+     *
+     * @param options a combination of the READ_ flags.
+     * @throws IOException
+     */
+    public void readExif(ByteBuffer jpeg, int options) throws IOException {
+        if (jpeg == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        try {
+            mData = ExifBufferParser.parse(jpeg, this).read(options);
+        } catch (ExifInvalidFormatException e) {
+            throw new IOException("Invalid exif format : " + e);
+        }
+    }
+
+    /**
+     * Returns the rotation in degrees given by the orientation tag of a jpeg,
+     * reading nothing but that tag, or 0 if there is none.
+     */
+    public static int getRotation(ByteBuffer jpeg) {
+        try {
+            return getRotationForOrientationValue(
+                    (short) ExifBufferParser.parse(jpeg, null).getOrientationValue());
+        } catch (ExifInvalidFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns whether a jpeg has an EXIF header, reading nothing but its marker
+     * segments and the TIFF header.
+     */
+    public static boolean hasExif(ByteBuffer jpeg) {
+        try {
+            return ExifBufferParser.parse(jpeg, null).containsExifData();
+        } catch (ExifInvalidFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns a view of the compressed thumbnail in the EXIF header of a jpeg, or
+     * null if there is none. Only the IFD1 entries are read and nothing is copied,
+     * so the thumbnail can be sized up before anything else is parsed.
+     */
+    public static ByteBuffer getThumbnail(ByteBuffer jpeg) {
+        try {
+            return ExifBufferParser.parse(jpeg, null).getCompressedThumbnail();
+        } catch (ExifInvalidFormatException e) {
+            return null;
+        }
     }
 
     /**
@@ -760,15 +841,14 @@ public class ExifInterface {
         if (inFileName == null) {
             throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
         }
-        InputStream is = null;
+        RandomAccessFile file = new RandomAccessFile(inFileName, "r");
         try {
-            is = new BufferedInputStream(new FileInputStream(inFileName));
-            readExif(is);
-        } catch (IOException e) {
-            closeSilently(is);
-            throw e;
+            // The mapping stays valid after the file is closed, and the tags
+            // hold copies of their values.
+            readExif(file.getChannel().map(MapMode.READ_ONLY, 0, file.length()));
+        } finally {
+            closeSilently(file);
         }
-        is.close();
     }
 
     /**
@@ -971,6 +1051,59 @@ public class ExifInterface {
         return eos;
     }
 
+    /**
+     * Same as {@link #getExifWriterStream(OutputStream)}, but the returned
+     * stream writes straight to outStream without a buffer of its own. Use it
+     * when outStream is already in memory, so the jpeg image is not copied
+     * through an intermediate buffer.
+     *
+     * @param outStream an OutputStream to wrap.
+     * @return an OutputStream that wraps the outStream parameter, and adds exif
+     *         metadata. A jpeg image should be written to this stream.
+     */
+    public OutputStream getUnbufferedExifWriterStream(OutputStream outStream) {
+        if (outStream == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        ExifOutputStream eos = new ExifOutputStream(outStream, this, false);
+        eos.setExifData(mData);
+        return eos;
+    }
+
+    /**
+     * Splits a jpeg image with the exif tags in this ExifInterface object added into
+     * buffers that can be written out one after the other, removing prior exif tags.
+     * Only the headers are copied, the compressed image data is wrapped as it is.
+     *
+     * @param jpeg a byte array containing a jpeg compressed image.
+     * @return the headers with the new exif segment, and the rest of the image.
+     * @throws IOException
+     */
+    public ByteBuffer[] getExifWriteBuffers(byte[] jpeg) throws IOException {
+        if (jpeg == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        return getExifWriteBuffers(jpeg, jpeg.length);
+    }
+
+    /**
+     * Same as {@link #getExifWriteBuffers(byte[])} for a jpeg image in the first
+     * length bytes of the array.
+     */
+    public ByteBuffer[] getExifWriteBuffers(byte[] jpeg, int length) throws IOException {
+        if (jpeg == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        ByteArrayOutputStream header = new ByteArrayOutputStream(8192);
+        ExifOutputStream eos = new ExifOutputStream(header, this, false);
+        eos.setExifData(mData);
+        int dataStart = eos.writeHeader(jpeg, 0, length);
+        return new ByteBuffer[] {
+                ByteBuffer.wrap(header.toByteArray()),
+                ByteBuffer.wrap(jpeg, dataStart, length - dataStart)
+        };
+    }
+
     /**
      * Returns an OutputStream object that writes to a file. Exif tags in this
      * ExifInterface object will be added to a jpeg image written to this
@@ -1094,41 +1227,113 @@ public class ExifInterface {
      * @throws FileNotFoundException
      * @throws IOException
      * @see #rewriteExif
+     * @see #rewriteExifFile
      */
     public void forceRewriteExif(String filename, Collection<ExifTag> tags)
             throws FileNotFoundException,
             IOException {
-        // Attempt in-place write
-        boolean rewriteOkay = false;
-        try {
-            rewriteOkay = rewriteExif(filename, tags);
-        } catch (IOException e) {
-            // If jpeg does not contains exif, rewriteExif
-            // will throw EOF IOException, let's catch
-            // it and fall back to do a copy instead
-            // of in-place replacement.
-        }
-        if (!rewriteOkay) {
-            // Fall back to doing a copy
-            ExifData tempData = mData;
-            mData = new ExifData(DEFAULT_BYTE_ORDER);
-            FileInputStream is = null;
-            ByteArrayOutputStream bytes = null;
+        rewriteExifFile(filename, tags, null);
+    }
+
+    /**
+     * Sets tags in the exif metadata of a jpeg file and removes others, keeping
+     * the rest of the tags. If no tags are removed and every tag set already
+     * exists in the file with the same size, the values are overwritten in
+     * place. Otherwise the headers are written to a temporary file next to the
+     * original, the compressed image data is copied after them by the file
+     * channel, and the temporary file is renamed over the original, so the
+     * original is left as it was if anything fails.
+     *
+     * @param filename a String containing a filepath for a jpeg file.
+     * @param tags tags to set.
+     * @param removedTagIds tag constants (from {@link #defineTag}) of the tags
+     *            to remove, or null.
+     * @return true if the values were overwritten in place, false if the file
+     *         was rewritten.
+     * @throws FileNotFoundException
+     * @throws IOException
+     */
+    public boolean rewriteExifFile(String filename, Collection<ExifTag> tags,
+            int[] removedTagIds) throws FileNotFoundException, IOException {
+        if (removedTagIds == null || removedTagIds.length == 0) {
             try {
-                is = new FileInputStream(filename);
-                bytes = new ByteArrayOutputStream();
-                doExifStreamIO(is, bytes);
-                byte[] imageBytes = bytes.toByteArray();
-                readExif(imageBytes);
-                setTags(tags);
-                writeExif(imageBytes, filename);
+                if (rewriteExif(filename, tags)) {
+                    return true;
+                }
             } catch (IOException e) {
-                closeSilently(is);
-                throw e;
-            } finally {
-                is.close();
-                // Prevent clobbering of mData
-                mData = tempData;
+                // If jpeg does not contains exif, rewriteExif
+                // will throw EOF IOException, let's catch
+                // it and fall back to do a copy instead
+                // of in-place replacement.
+            }
+        }
+        // Prevent clobbering of mData
+        ExifData tempData = mData;
+        try {
+            copyWithExif(filename, tags, removedTagIds);
+        } finally {
+            mData = tempData;
+        }
+        return false;
+    }
+
+    private void copyWithExif(String filename, Collection<ExifTag> tags, int[] removedTagIds)
+            throws IOException {
+        File file = new File(filename);
+        File temp = new File(file.getParentFile(), "." + file.getName() + ".tmp");
+        RandomAccessFile in = null;
+        FileOutputStream out = null;
+        boolean replaced = false;
+        try {
+            in = new RandomAccessFile(file, "r");
+            FileChannel source = in.getChannel();
+            long length = source.size();
+            MappedByteBuffer jpeg = source.map(MapMode.READ_ONLY, 0, length);
+            int headerEnd = ExifBufferParser.findFrameHeaderEnd(jpeg);
+            if (headerEnd < 0) {
+                throw new IOException("Not a valid jpeg image: " + filename);
+            }
+            readExif(jpeg);
+            setTags(tags);
+            if (removedTagIds != null) {
+                for (int tagId : removedTagIds) {
+                    deleteTag(tagId, getTrueIfd(tagId));
+                }
+            }
+
+            // Only the headers go through the exif writer, the image data is
+            // copied from channel to channel.
+            byte[] headers = new byte[headerEnd];
+            jpeg.get(headers);
+            ByteArrayOutputStream newHeaders = new ByteArrayOutputStream(headerEnd);
+            ExifOutputStream eos = new ExifOutputStream(newHeaders, this, false);
+            eos.setExifData(mData);
+            long dataStart = eos.writeHeader(headers, 0, headerEnd);
+            out = new FileOutputStream(temp);
+            FileChannel target = out.getChannel();
+            ByteBuffer buf = ByteBuffer.wrap(newHeaders.toByteArray());
+            while (buf.hasRemaining()) {
+                target.write(buf);
+            }
+            for (long position = dataStart; position < length; ) {
+                long copied = source.transferTo(position, length - position, target);
+                if (copied <= 0) {
+                    throw new IOException("Filesize changed during operation");
+                }
+                position += copied;
+            }
+            target.force(false);
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                throw new IOException("Cannot replace " + filename);
+            }
+            replaced = true;
+        } finally {
+            closeSilently(in);
+            closeSilently(out);
+            if (!replaced) {
+                temp.delete();
             }
         }
     }
@@ -1156,6 +1361,10 @@ public class ExifInterface {
         return mData.getAllTags();
     }
 
+    ExifData getExifData() {
+        return mData;
+    }
+
     /**
      * Returns a list of ExifTags that share a TID (which can be obtained by
      * calling {@link #getTrueTagKey} on a defined tag constant) or null if none
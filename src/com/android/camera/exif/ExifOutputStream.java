@@ -73,8 +73,11 @@ class ExifOutputStream extends FilterOutputStream {
     private static final short TAG_SIZE = 12;
     private static final short TIFF_HEADER_SIZE = 8;
     private static final int MAX_EXIF_SIZE = 65535;
+    // APP1 marker, segment length and the "Exif\0\0" identifier.
+    private static final int APP1_HEADER_SIZE = 10;
 
     private ExifData mExifData;
+    private byte[] mSegment;
     private int mState = STATE_SOI;
     private int mByteToSkip;
     private int mByteToCopy;
@@ -85,7 +88,11 @@ class ExifOutputStream extends FilterOutputStream {
     private int mSize = 0;
 
     protected ExifOutputStream(OutputStream ou, ExifInterface iRef) {
-        super(new BufferedOutputStream(ou, STREAMBUFFER_SIZE));
+        this(ou, iRef, true);
+    }
+
+    protected ExifOutputStream(OutputStream ou, ExifInterface iRef, boolean buffered) {
+        super(buffered ? new BufferedOutputStream(ou, STREAMBUFFER_SIZE) : ou);
         mInterface = iRef;
     }
 
@@ -97,6 +104,16 @@ class ExifOutputStream extends FilterOutputStream {
         mExifData = exifData;
     }
 
+    /**
+     * Sets a complete APP1 segment, starting with its marker, to be written
+     * instead of one built from the ExifData.
+     *
+     * @see ExifTemplate
+     */
+    protected void setExifSegment(byte[] segment) {
+        mSegment = segment;
+    }
+
     /**
      * Gets the Exif header to be written into the JPEF file.
      */
@@ -196,6 +213,31 @@ class ExifOutputStream extends FilterOutputStream {
         }
     }
 
+    /**
+     * Writes the part of the image before the compressed data, with its Exif header
+     * replaced by the given header, and returns the offset in buffer at which the rest
+     * of the image starts. The rest can then be written out as it is, without going
+     * through this stream.
+     */
+    int writeHeader(byte[] buffer, int offset, int length) throws IOException {
+        int end = offset + length;
+        while (offset < end
+                && (mState != STATE_JPEG_DATA || mByteToSkip > 0 || mByteToCopy > 0)) {
+            int step;
+            if (mByteToSkip > 0) {
+                step = mByteToSkip;
+            } else if (mByteToCopy > 0) {
+                step = mByteToCopy;
+            } else {
+                step = (mState == STATE_SOI ? 2 : 4) - mBuffer.position();
+            }
+            step = Math.min(step, end - offset);
+            write(buffer, offset, step);
+            offset += step;
+        }
+        return offset;
+    }
+
     /**
      * Writes the one bytes out. The input data should be a valid JPEG format.
      * After writing, it's Exif header will be replaced by the given header.
@@ -215,44 +257,61 @@ class ExifOutputStream extends FilterOutputStream {
     }
 
     private void writeExifData() throws IOException {
+        if (mSegment != null) {
+            out.write(mSegment);
+            mSize += mSegment.length;
+            return;
+        }
         if (mExifData == null) {
             return;
         }
         if (DEBUG) {
             Log.v(TAG, "Writing exif data...");
         }
+        ByteBuffer buffer = buildExifSegment();
+        out.write(buffer.array(), 0, buffer.position());
+        mSize += buffer.position();
+    }
+
+    /**
+     * Lays out the APP1 segment for the ExifData in a buffer, from the marker to
+     * the end of the thumbnail. The buffer is left positioned at its end.
+     */
+    ByteBuffer buildExifSegment() throws IOException {
         ArrayList<ExifTag> nullTags = stripNullValueTags(mExifData);
         createRequiredIfdAndTag();
         int exifSize = calculateAllOffset();
         if (exifSize + 8 > MAX_EXIF_SIZE) {
             throw new IOException("Exif header is too large (>64Kb)");
         }
-        OrderedDataOutputStream dataOutputStream = new OrderedDataOutputStream(out);
-        dataOutputStream.setByteOrder(ByteOrder.BIG_ENDIAN);
-        dataOutputStream.writeShort(JpegHeader.APP1);
-        dataOutputStream.writeShort((short) (exifSize + 8));
-        dataOutputStream.writeInt(EXIF_HEADER);
-        dataOutputStream.writeShort((short) 0x0000);
+        // The whole APP1 segment is laid out in one buffer and handed to the
+        // underlying stream in a single write.
+        ByteBuffer buffer = ByteBuffer.allocate(exifSize + APP1_HEADER_SIZE);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.putShort(JpegHeader.APP1);
+        buffer.putShort((short) (exifSize + 8));
+        buffer.putInt(EXIF_HEADER);
+        buffer.putShort((short) 0x0000);
         if (mExifData.getByteOrder() == ByteOrder.BIG_ENDIAN) {
-            dataOutputStream.writeShort(TIFF_BIG_ENDIAN);
+            buffer.putShort(TIFF_BIG_ENDIAN);
         } else {
-            dataOutputStream.writeShort(TIFF_LITTLE_ENDIAN);
+            buffer.putShort(TIFF_LITTLE_ENDIAN);
         }
-        dataOutputStream.setByteOrder(mExifData.getByteOrder());
-        dataOutputStream.writeShort(TIFF_HEADER);
-        dataOutputStream.writeInt(8);
-        writeAllTags(dataOutputStream);
-        writeThumbnail(dataOutputStream);
+        buffer.order(mExifData.getByteOrder());
+        buffer.putShort(TIFF_HEADER);
+        buffer.putInt(8);
+        writeAllTags(buffer);
+        writeThumbnail(buffer);
         for (ExifTag t : nullTags) {
             mExifData.addTag(t);
         }
-        mSize += dataOutputStream.size();
+        return buffer;
     }
 
     private ArrayList<ExifTag> stripNullValueTags(ExifData data) {
         ArrayList<ExifTag> nullTags = new ArrayList<ExifTag>();
         for(ExifTag t : data.getAllTags()) {
-            if (t.getValue() == null && !ExifInterface.isOffsetTag(t.getTagId())) {
+            if (!t.hasValue() && !ExifInterface.isOffsetTag(t.getTagId())) {
                 data.removeTag(t.getTagId(), t.getIfd());
                 nullTags.add(t);
             }
@@ -260,65 +319,66 @@ class ExifOutputStream extends FilterOutputStream {
         return nullTags;
     }
 
-    private void writeThumbnail(OrderedDataOutputStream dataOutputStream) throws IOException {
+    private void writeThumbnail(ByteBuffer buffer) {
         if (mExifData.hasCompressedThumbnail()) {
-            dataOutputStream.write(mExifData.getCompressedThumbnail());
+            buffer.put(mExifData.getCompressedThumbnail());
         } else if (mExifData.hasUncompressedStrip()) {
             for (int i = 0; i < mExifData.getStripCount(); i++) {
-                dataOutputStream.write(mExifData.getStrip(i));
+                buffer.put(mExifData.getStrip(i));
             }
         }
     }
 
-    private void writeAllTags(OrderedDataOutputStream dataOutputStream) throws IOException {
-        writeIfd(mExifData.getIfdData(IfdId.TYPE_IFD_0), dataOutputStream);
-        writeIfd(mExifData.getIfdData(IfdId.TYPE_IFD_EXIF), dataOutputStream);
+    private void writeAllTags(ByteBuffer buffer) {
+        writeIfd(mExifData.getIfdData(IfdId.TYPE_IFD_0), buffer);
+        writeIfd(mExifData.getIfdData(IfdId.TYPE_IFD_EXIF), buffer);
         IfdData interoperabilityIfd = mExifData.getIfdData(IfdId.TYPE_IFD_INTEROPERABILITY);
         if (interoperabilityIfd != null) {
-            writeIfd(interoperabilityIfd, dataOutputStream);
+            writeIfd(interoperabilityIfd, buffer);
         }
         IfdData gpsIfd = mExifData.getIfdData(IfdId.TYPE_IFD_GPS);
         if (gpsIfd != null) {
-            writeIfd(gpsIfd, dataOutputStream);
+            writeIfd(gpsIfd, buffer);
         }
         IfdData ifd1 = mExifData.getIfdData(IfdId.TYPE_IFD_1);
         if (ifd1 != null) {
-            writeIfd(mExifData.getIfdData(IfdId.TYPE_IFD_1), dataOutputStream);
+            writeIfd(ifd1, buffer);
         }
     }
 
-    private void writeIfd(IfdData ifd, OrderedDataOutputStream dataOutputStream)
-            throws IOException {
-        ExifTag[] tags = ifd.getAllTags();
-        dataOutputStream.writeShort((short) tags.length);
-        for (ExifTag tag : tags) {
-            dataOutputStream.writeShort(tag.getTagId());
-            dataOutputStream.writeShort(tag.getDataType());
-            dataOutputStream.writeInt(tag.getComponentCount());
+    private void writeIfd(IfdData ifd, ByteBuffer buffer) {
+        int tagCount = ifd.getTagCount();
+        buffer.putShort((short) tagCount);
+        for (int i = 0; i < tagCount; i++) {
+            ExifTag tag = ifd.getTagAt(i);
+            buffer.putShort(tag.getTagId());
+            buffer.putShort(tag.getDataType());
+            buffer.putInt(tag.getComponentCount());
             if (DEBUG) {
                 Log.v(TAG, "\n" + tag.toString());
             }
             if (tag.getDataSize() > 4) {
-                dataOutputStream.writeInt(tag.getOffset());
+                buffer.putInt(tag.getOffset());
             } else {
-                ExifOutputStream.writeTagValue(tag, dataOutputStream);
-                for (int i = 0, n = 4 - tag.getDataSize(); i < n; i++) {
-                    dataOutputStream.write(0);
-                }
+                // Values of four bytes or less sit left-justified in the entry.
+                int end = buffer.position() + 4;
+                writeTagValue(tag, buffer);
+                buffer.position(end);
             }
         }
-        dataOutputStream.writeInt(ifd.getOffsetToNextIfd());
-        for (ExifTag tag : tags) {
+        buffer.putInt(ifd.getOffsetToNextIfd());
+        for (int i = 0; i < tagCount; i++) {
+            ExifTag tag = ifd.getTagAt(i);
             if (tag.getDataSize() > 4) {
-                ExifOutputStream.writeTagValue(tag, dataOutputStream);
+                writeTagValue(tag, buffer);
             }
         }
     }
 
     private int calculateOffsetOfIfd(IfdData ifd, int offset) {
         offset += 2 + ifd.getTagCount() * TAG_SIZE + 4;
-        ExifTag[] tags = ifd.getAllTags();
-        for (ExifTag tag : tags) {
+        for (int i = 0, n = ifd.getTagCount(); i < n; i++) {
+            ExifTag tag = ifd.getTagAt(i);
             if (tag.getDataSize() > 4) {
                 tag.setOffset(offset);
                 offset += tag.getDataSize();
@@ -357,6 +417,8 @@ class ExifOutputStream extends FilterOutputStream {
                         + ExifInterface.TAG_GPS_IFD);
             }
             ifd0.setTag(gpsOffsetTag);
+        } else {
+            ifd0.removeTag(ExifInterface.getTrueTagKey(ExifInterface.TAG_GPS_IFD));
         }
 
         // Interoperability IFD
@@ -369,6 +431,8 @@ class ExifOutputStream extends FilterOutputStream {
                         + ExifInterface.TAG_INTEROPERABILITY_IFD);
             }
             exifIfd.setTag(interOffsetTag);
+        } else {
+            exifIfd.removeTag(ExifInterface.getTrueTagKey(ExifInterface.TAG_INTEROPERABILITY_IFD));
         }
 
         IfdData ifd1 = mExifData.getIfdData(IfdId.TYPE_IFD_1);
@@ -486,40 +550,47 @@ class ExifOutputStream extends FilterOutputStream {
         return offset;
     }
 
-    static void writeTagValue(ExifTag tag, OrderedDataOutputStream dataOutputStream)
-            throws IOException {
+    /**
+     * Puts the value of the tag at the buffer's position, in the buffer's byte
+     * order. Also used by {@link ExifModifier} to patch values in place.
+     */
+    static void writeTagValue(ExifTag tag, ByteBuffer buffer) {
         switch (tag.getDataType()) {
             case ExifTag.TYPE_ASCII:
                 byte buf[] = tag.getStringByte();
                 if (buf.length == tag.getComponentCount()) {
                     buf[buf.length - 1] = 0;
-                    dataOutputStream.write(buf);
+                    buffer.put(buf);
                 } else {
-                    dataOutputStream.write(buf);
-                    dataOutputStream.write(0);
+                    buffer.put(buf);
+                    buffer.put((byte) 0);
                 }
                 break;
             case ExifTag.TYPE_LONG:
             case ExifTag.TYPE_UNSIGNED_LONG:
                 for (int i = 0, n = tag.getComponentCount(); i < n; i++) {
-                    dataOutputStream.writeInt((int) tag.getValueAt(i));
+                    buffer.putInt((int) tag.getValueAt(i));
                 }
                 break;
             case ExifTag.TYPE_RATIONAL:
             case ExifTag.TYPE_UNSIGNED_RATIONAL:
-                for (int i = 0, n = tag.getComponentCount(); i < n; i++) {
-                    dataOutputStream.writeRational(tag.getRational(i));
+                for (int i = 0, n = tag.getComponentCount() * 2; i < n; i++) {
+                    buffer.putInt((int) tag.getPackedRationalAt(i));
                 }
                 break;
             case ExifTag.TYPE_UNDEFINED:
             case ExifTag.TYPE_UNSIGNED_BYTE:
-                buf = new byte[tag.getComponentCount()];
-                tag.getBytes(buf);
-                dataOutputStream.write(buf);
+                byte bytes[] = tag.getValueAsBytes();
+                int count = tag.getComponentCount();
+                int length = Math.min(bytes.length, count);
+                buffer.put(bytes, 0, length);
+                for (int i = length; i < count; i++) {
+                    buffer.put((byte) 0);
+                }
                 break;
             case ExifTag.TYPE_UNSIGNED_SHORT:
                 for (int i = 0, n = tag.getComponentCount(); i < n; i++) {
-                    dataOutputStream.writeShort((short) tag.getValueAt(i));
+                    buffer.putShort((short) tag.getValueAt(i));
                 }
                 break;
         }
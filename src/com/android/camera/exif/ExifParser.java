@@ -696,11 +696,11 @@ class ExifParser {
             }
                 break;
             case ExifTag.TYPE_UNSIGNED_RATIONAL: {
-                Rational value[] = new Rational[tag.getComponentCount()];
+                long value[] = new long[tag.getComponentCount() * 2];
                 for (int i = 0, n = value.length; i < n; i++) {
-                    value[i] = readUnsignedRational();
+                    value[i] = readUnsignedLong();
                 }
-                tag.setValue(value);
+                tag.setRationalValue(value);
             }
                 break;
             case ExifTag.TYPE_UNSIGNED_SHORT: {
@@ -720,11 +720,11 @@ class ExifParser {
             }
                 break;
             case ExifTag.TYPE_RATIONAL: {
-                Rational value[] = new Rational[tag.getComponentCount()];
+                long value[] = new long[tag.getComponentCount() * 2];
                 for (int i = 0, n = value.length; i < n; i++) {
-                    value[i] = readRational();
+                    value[i] = readLong();
                 }
-                tag.setValue(value);
+                tag.setRationalValue(value);
             }
                 break;
         }
@@ -97,7 +97,8 @@ public class ExifTag {
     private int mComponentCountActual;
     // The ifd that this tag should be put in
     private int mIfd;
-    // The value (array of elements of type Tag Type)
+    // The value (array of elements of type Tag Type). Rationals are packed as
+    // numerator/denominator pairs in a long[].
     private Object mValue;
     // Value offset in exif header.
     private int mOffset;
@@ -373,11 +374,30 @@ public class ExifTag {
             return false;
         }
 
-        mValue = value;
+        long[] packed = new long[value.length * 2];
+        for (int i = 0; i < value.length; i++) {
+            packed[i * 2] = value[i].getNumerator();
+            packed[i * 2 + 1] = value[i].getDenominator();
+        }
+        mValue = packed;
         mComponentCountActual = value.length;
         return true;
     }
 
+    /**
+     * Sets Rational values packed as numerator/denominator pairs. Used by the
+     * parsers, whose 32-bit reads cannot overflow, to avoid creating a
+     * {@link Rational} per component.
+     */
+    boolean setRationalValue(long[] packed) {
+        if (checkBadComponentCount(packed.length / 2) || !isRational()) {
+            return false;
+        }
+        mValue = packed;
+        mComponentCountActual = packed.length / 2;
+        return true;
+    }
+
     /**
      * Sets a Rational value into this tag. This method should be used for tags
      * of type {@link #TYPE_UNSIGNED_RATIONAL}, or {@link #TYPE_RATIONAL}. This
@@ -603,10 +623,14 @@ public class ExifTag {
      *         does not exist or cannot be converted to an array of Rationals.
      */
     public Rational[] getValueAsRationals() {
-        if (mValue instanceof Rational[]) {
-            return (Rational[]) mValue;
+        if (mValue == null || !isRational()) {
+            return null;
         }
-        return null;
+        Rational[] r = new Rational[mComponentCountActual];
+        for (int i = 0; i < r.length; i++) {
+            r[i] = getRational(i);
+        }
+        return r;
     }
 
     /**
@@ -619,11 +643,10 @@ public class ExifTag {
      * @return the tag's value as a Rational, or the defaultValue.
      */
     public Rational getValueAsRational(Rational defaultValue) {
-        Rational[] r = getValueAsRationals();
-        if (r == null || r.length < 1) {
+        if (mValue == null || !isRational() || mComponentCountActual < 1) {
             return defaultValue;
         }
-        return r[0];
+        return getRational(0);
     }
 
     /**
@@ -649,7 +672,7 @@ public class ExifTag {
      *         not exist or cannot be converted to an array of ints.
      */
     public int[] getValueAsInts() {
-        if (mValue == null) {
+        if (mValue == null || isRational()) {
             return null;
         } else if (mValue instanceof long[]) {
             long[] val = (long[]) mValue;
@@ -687,7 +710,7 @@ public class ExifTag {
      *         does not exist or cannot be converted to an array of longs.
      */
     public long[] getValueAsLongs() {
-        if (mValue instanceof long[]) {
+        if (mValue instanceof long[] && !isRational()) {
             return (long[]) mValue;
         }
         return null;
@@ -714,6 +737,9 @@ public class ExifTag {
      * Gets the tag's value or null if none exists.
      */
     public Object getValue() {
+        if (isRational()) {
+            return getValueAsRationals();
+        }
         return mValue;
     }
 
@@ -734,9 +760,9 @@ public class ExifTag {
         if (b != null && b.length >= 1) {
             return b[0];
         }
-        Rational[] r = getValueAsRationals();
-        if (r != null && r.length >= 1 && r[0].getDenominator() != 0) {
-            return (long) r[0].toDouble();
+        if (mValue != null && isRational() && mComponentCountActual >= 1
+                && getPackedRationalAt(1) != 0) {
+            return (long) (getPackedRationalAt(0) / (double) getPackedRationalAt(1));
         }
         return defaultValue;
     }
@@ -753,6 +779,12 @@ public class ExifTag {
             } else {
                 return Arrays.toString((byte[]) mValue);
             }
+        } else if (isRational()) {
+            if (mComponentCountActual == 1) {
+                return getRational(0).toString();
+            } else {
+                return Arrays.toString(getValueAsRationals());
+            }
         } else if (mValue instanceof long[]) {
             if (((long[]) mValue).length == 1) {
                 return String.valueOf(((long[]) mValue)[0]);
@@ -786,7 +818,7 @@ public class ExifTag {
      *                {@link #TYPE_RATIONAL} or {@link #TYPE_UNSIGNED_RATIONAL}.
      */
     public long getValueAt(int index) {
-        if (mValue instanceof long[]) {
+        if (mValue instanceof long[] && !isRational()) {
             return ((long[]) mValue)[index];
         } else if (mValue instanceof byte[]) {
             return ((byte[]) mValue)[index];
@@ -827,7 +859,21 @@ public class ExifTag {
             throw new IllegalArgumentException("Cannot get RATIONAL value from "
                     + convertTypeToString(mDataType));
         }
-        return ((Rational[]) mValue)[index];
+        long[] packed = (long[]) mValue;
+        return new Rational(packed[index * 2], packed[index * 2 + 1]);
+    }
+
+    /**
+     * Gets an element of the packed numerator/denominator array of a
+     * {@link #TYPE_RATIONAL} or {@link #TYPE_UNSIGNED_RATIONAL} tag: the
+     * numerator of component i is at 2 * i, its denominator at 2 * i + 1.
+     */
+    long getPackedRationalAt(int index) {
+        return ((long[]) mValue)[index];
+    }
+
+    private boolean isRational() {
+        return mDataType == TYPE_RATIONAL || mDataType == TYPE_UNSIGNED_RATIONAL;
     }
 
     /**
@@ -978,11 +1024,6 @@ public class ExifTag {
                         return false;
                     }
                     return Arrays.equals((long[]) mValue, (long[]) tag.mValue);
-                } else if (mValue instanceof Rational[]) {
-                    if (!(tag.mValue instanceof Rational[])) {
-                        return false;
-                    }
-                    return Arrays.equals((Rational[]) mValue, (Rational[]) tag.mValue);
                 } else if (mValue instanceof byte[]) {
                     if (!(tag.mValue instanceof byte[])) {
                         return false;
@@ -0,0 +1,442 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.exif;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.TimeZone;
+
+/**
+ * An APP1 segment that is laid out once from a prototype {@link ExifInterface} and
+ * then copied for every shot, with the values that change from shot to shot patched
+ * in place. Capture paths that write the same set of tags for every picture use it
+ * instead of building and serializing a new ExifInterface per shot.
+ * <p>
+ * The prototype decides which tags are present and where they go. Only tags that
+ * are in the prototype can be patched, and a patched value has to keep the type
+ * and component count it had there, so the prototype should hold placeholders of
+ * the right shape, e.g. any date for the date tags.
+ *
+ * <pre>
+ * ExifTemplate template = ExifTemplate.compile(prototype); // once per session
+ * ExifTemplate.Shot shot = template.newShot();              // per picture
+ * shot.setOrientation(90);
+ * shot.setDateTimeStamp(ExifInterface.TAG_DATE_TIME, now, TimeZone.getDefault());
+ * shot.setRational(ExifInterface.TAG_EXPOSURE_TIME, 1, 50);
+ * jpegEncoder.compress(shot.getWriterStream(out));
+ * </pre>
+ * A prototype with a compressed thumbnail, of any content, leaves a slot in IFD1
+ * that {@link Shot#setThumbnail(byte[])} fills with the shot's own thumbnail.
+ */
+public class ExifTemplate {
+    // APP1 marker, segment length and the "Exif\0\0" identifier.
+    private static final int TIFF_START = 10;
+    private static final int ENTRY_SIZE = 12;
+    private static final int DATE_TIME_LENGTH = 20;
+    private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+    // Largest value of the segment length field.
+    private static final int MAX_SEGMENT_LENGTH = 0xffff;
+
+    private final byte[] mSegment;
+    private final ByteOrder mOrder;
+    // Every entry of the segment, sorted by ExifInterface.defineTag(ifd, tagId).
+    private final int[] mKeys;
+    private final short[] mTypes;
+    private final int[] mCounts;
+    // Position of the value in the segment.
+    private final int[] mValueOffsets;
+    // IFD1 and the thumbnail are laid out last, so a thumbnail of another size
+    // only moves the end of the segment. All -1 if the prototype has none.
+    private final int mIfd1Start;
+    private final int mThumbnailStart;
+    private final int mThumbnailLengthOffset;
+    // Position of IFD0's offset to IFD1.
+    private final int mNextIfdOffset;
+
+    private ExifTemplate(byte[] segment, ByteOrder order) {
+        mSegment = segment;
+        mOrder = order;
+        ByteBuffer buffer = ByteBuffer.wrap(segment).order(order);
+        int ifd0 = TIFF_START + buffer.getInt(TIFF_START + 4);
+        int exifIfd = findIfd(buffer, ifd0, ExifInterface.TAG_EXIF_IFD);
+        int gpsIfd = findIfd(buffer, ifd0, ExifInterface.TAG_GPS_IFD);
+        int interopIfd = exifIfd < 0 ? -1
+                : findIfd(buffer, exifIfd, ExifInterface.TAG_INTEROPERABILITY_IFD);
+        mNextIfdOffset = ifd0 + 2 + buffer.getShort(ifd0) * ENTRY_SIZE;
+        int nextIfd = buffer.getInt(mNextIfdOffset);
+        int ifd1 = nextIfd == 0 ? -1 : TIFF_START + nextIfd;
+
+        int[] ifds = {ifd0, ifd1, exifIfd, gpsIfd, interopIfd};
+        int[] ifdIds = {IfdId.TYPE_IFD_0, IfdId.TYPE_IFD_1, IfdId.TYPE_IFD_EXIF,
+                IfdId.TYPE_IFD_GPS, IfdId.TYPE_IFD_INTEROPERABILITY};
+        int total = 0;
+        for (int ifd : ifds) {
+            if (ifd >= 0) {
+                total += buffer.getShort(ifd) & 0xffff;
+            }
+        }
+        long[] entries = new long[total];
+        int n = 0;
+        for (int i = 0; i < ifds.length; i++) {
+            if (ifds[i] < 0) {
+                continue;
+            }
+            for (int j = 0, count = buffer.getShort(ifds[i]) & 0xffff; j < count; j++) {
+                int entry = ifds[i] + 2 + j * ENTRY_SIZE;
+                int key = ExifInterface.defineTag(ifdIds[i], buffer.getShort(entry));
+                // Sort on the key, remember the entry.
+                entries[n++] = ((long) key << 32) | entry;
+            }
+        }
+        Arrays.sort(entries);
+        mKeys = new int[total];
+        mTypes = new short[total];
+        mCounts = new int[total];
+        mValueOffsets = new int[total];
+        for (int i = 0; i < total; i++) {
+            int entry = (int) entries[i];
+            mKeys[i] = (int) (entries[i] >>> 32);
+            mTypes[i] = buffer.getShort(entry + 2);
+            mCounts[i] = buffer.getInt(entry + 4);
+            int size = ExifTag.getElementSize(mTypes[i]) * mCounts[i];
+            mValueOffsets[i] = size > 4 ? TIFF_START + buffer.getInt(entry + 8) : entry + 8;
+        }
+
+        int start = findValue(ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT,
+                ExifTag.TYPE_UNSIGNED_LONG, 1);
+        int length = findValue(ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH,
+                ExifTag.TYPE_UNSIGNED_LONG, 1);
+        if (start >= 0 && length >= 0 && TIFF_START + buffer.getInt(start)
+                + buffer.getInt(length) == segment.length) {
+            mIfd1Start = ifd1;
+            mThumbnailStart = TIFF_START + buffer.getInt(start);
+            mThumbnailLengthOffset = length;
+        } else {
+            mIfd1Start = -1;
+            mThumbnailStart = -1;
+            mThumbnailLengthOffset = -1;
+        }
+    }
+
+    /**
+     * Lays out the tags of the prototype, including its thumbnail if it has one.
+     * The prototype can be changed or dropped afterwards.
+     *
+     * @throws IOException if the tags do not fit in an APP1 segment.
+     */
+    public static ExifTemplate compile(ExifInterface prototype) throws IOException {
+        ExifData data = prototype.getExifData();
+        ExifOutputStream out = new ExifOutputStream(new ByteArrayOutputStream(0), prototype,
+                false);
+        out.setExifData(data);
+        ByteBuffer buffer = out.buildExifSegment();
+        return new ExifTemplate(Arrays.copyOf(buffer.array(), buffer.position()),
+                data.getByteOrder());
+    }
+
+    /**
+     * Starts a shot with a copy of the template's values.
+     */
+    public Shot newShot() {
+        return new Shot();
+    }
+
+    /**
+     * Gets the size of the APP1 segment, marker included.
+     */
+    public int getSize() {
+        return mSegment.length;
+    }
+
+    /**
+     * Returns true if the template has a thumbnail slot, so shots can be given
+     * their own thumbnail.
+     */
+    public boolean hasThumbnail() {
+        return mThumbnailStart >= 0;
+    }
+
+    /**
+     * Returns true if the template has the given tag, so it can be patched.
+     */
+    public boolean hasTag(int tagId) {
+        return Arrays.binarySearch(mKeys, tagId) >= 0;
+    }
+
+    private int findValue(int tagId, short type, int count) {
+        int i = Arrays.binarySearch(mKeys, tagId);
+        if (i < 0 || mTypes[i] != type || mCounts[i] != count) {
+            return -1;
+        }
+        return mValueOffsets[i];
+    }
+
+    private int findValue(int tagId, short type1, short type2, int count) {
+        int offset = findValue(tagId, type1, count);
+        return offset >= 0 ? offset : findValue(tagId, type2, count);
+    }
+
+    private static int findIfd(ByteBuffer buffer, int ifd, int pointerTag) {
+        short tagId = ExifInterface.getTrueTagKey(pointerTag);
+        for (int i = 0, n = buffer.getShort(ifd) & 0xffff; i < n; i++) {
+            int entry = ifd + 2 + i * ENTRY_SIZE;
+            if (buffer.getShort(entry) == tagId) {
+                return TIFF_START + buffer.getInt(entry + 8);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The APP1 segment of one picture. The setters return false, and leave the
+     * segment as it was, if the template does not have the tag with the shape the
+     * value needs.
+     */
+    public class Shot {
+        private byte[] mData = mSegment.clone();
+        private ByteBuffer mBuffer = ByteBuffer.wrap(mData).order(mOrder);
+
+        private Shot() {
+        }
+
+        /**
+         * Sets {@link ExifInterface#TAG_ORIENTATION} from a clockwise rotation.
+         */
+        public boolean setOrientation(int degrees) {
+            return setValue(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.getOrientationValueForRotation(degrees));
+        }
+
+        /**
+         * Sets a single {@link ExifTag#TYPE_UNSIGNED_SHORT},
+         * {@link ExifTag#TYPE_UNSIGNED_LONG} or {@link ExifTag#TYPE_LONG} value.
+         */
+        public boolean setValue(int tagId, int value) {
+            int offset = findValue(tagId, ExifTag.TYPE_UNSIGNED_SHORT, 1);
+            if (offset >= 0) {
+                if (value < 0 || value > 0xffff) {
+                    return false;
+                }
+                mBuffer.putShort(offset, (short) value);
+                return true;
+            }
+            offset = findValue(tagId, ExifTag.TYPE_UNSIGNED_LONG, ExifTag.TYPE_LONG, 1);
+            if (offset < 0) {
+                return false;
+            }
+            mBuffer.putInt(offset, value);
+            return true;
+        }
+
+        /**
+         * Sets a single {@link ExifTag#TYPE_RATIONAL} or
+         * {@link ExifTag#TYPE_UNSIGNED_RATIONAL} value.
+         */
+        public boolean setRational(int tagId, long numerator, long denominator) {
+            int offset = findValue(tagId, ExifTag.TYPE_UNSIGNED_RATIONAL,
+                    ExifTag.TYPE_RATIONAL, 1);
+            if (offset < 0) {
+                return false;
+            }
+            mBuffer.putInt(offset, (int) numerator);
+            mBuffer.putInt(offset + 4, (int) denominator);
+            return true;
+        }
+
+        /**
+         * Formats a timestamp the way
+         * {@link ExifInterface#addDateTimeStampTag(int, long, TimeZone)} does and
+         * sets it into one of the date tags.
+         */
+        public boolean setDateTimeStamp(int tagId, long timestamp, TimeZone timezone) {
+            int offset = findValue(tagId, ExifTag.TYPE_ASCII, DATE_TIME_LENGTH);
+            if (offset < 0) {
+                return false;
+            }
+            long local = timestamp + timezone.getOffset(timestamp);
+            long days = local / DAY_MS;
+            if (local % DAY_MS < 0) {
+                days--;
+            }
+            int msOfDay = (int) (local - days * DAY_MS);
+
+            // Days since 1970-01-01 to a civil date, in eras of 400 years
+            // starting on March 1st.
+            long z = days + 719468;
+            long era = (z >= 0 ? z : z - 146096) / 146097;
+            int dayOfEra = (int) (z - era * 146097);
+            int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524
+                    - dayOfEra / 146096) / 365;
+            int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+            int mp = (5 * dayOfYear + 2) / 153;
+            int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+            int month = mp < 10 ? mp + 3 : mp - 9;
+            long year = era * 400 + yearOfEra + (month <= 2 ? 1 : 0);
+
+            int hour = msOfDay / 3600000;
+            // "kk" runs from 1 to 24.
+            if (hour == 0) {
+                hour = 24;
+            }
+            putDigits(offset, (int) year, 4);
+            mData[offset + 4] = ':';
+            putDigits(offset + 5, month, 2);
+            mData[offset + 7] = ':';
+            putDigits(offset + 8, day, 2);
+            mData[offset + 10] = ' ';
+            putDigits(offset + 11, hour, 2);
+            mData[offset + 13] = ':';
+            putDigits(offset + 14, msOfDay / 60000 % 60, 2);
+            mData[offset + 16] = ':';
+            putDigits(offset + 17, msOfDay / 1000 % 60, 2);
+            mData[offset + 19] = 0;
+            return true;
+        }
+
+        /**
+         * Sets the GPS latitude, longitude and their references the way
+         * {@link ExifInterface#addGpsTags(double, double)} does.
+         */
+        public boolean setGpsLocation(double latitude, double longitude) {
+            int lat = findValue(ExifInterface.TAG_GPS_LATITUDE,
+                    ExifTag.TYPE_UNSIGNED_RATIONAL, ExifTag.TYPE_RATIONAL, 3);
+            int lon = findValue(ExifInterface.TAG_GPS_LONGITUDE,
+                    ExifTag.TYPE_UNSIGNED_RATIONAL, ExifTag.TYPE_RATIONAL, 3);
+            int latRef = findValue(ExifInterface.TAG_GPS_LATITUDE_REF, ExifTag.TYPE_ASCII, 2);
+            int lonRef = findValue(ExifInterface.TAG_GPS_LONGITUDE_REF, ExifTag.TYPE_ASCII, 2);
+            if (lat < 0 || lon < 0 || latRef < 0 || lonRef < 0) {
+                return false;
+            }
+            putLatLong(lat, latitude);
+            putLatLong(lon, longitude);
+            mData[latRef] = (byte) (latitude >= 0 ? 'N' : 'S');
+            mData[lonRef] = (byte) (longitude >= 0 ? 'E' : 'W');
+            return true;
+        }
+
+        /**
+         * Puts a compressed thumbnail in the template's thumbnail slot, or drops
+         * IFD1 and the thumbnail if it is null. Returns false, and leaves the
+         * segment as it was, if the template has no slot or the segment would
+         * grow past 64Kb.
+         */
+        public boolean setThumbnail(byte[] jpeg) {
+            if (mThumbnailStart < 0) {
+                return false;
+            }
+            if (jpeg == null) {
+                if (mData.length > mIfd1Start) {
+                    resize(mIfd1Start);
+                    mBuffer.putInt(mNextIfdOffset, 0);
+                }
+                return true;
+            }
+            int size = mThumbnailStart + jpeg.length;
+            if (size - 2 > MAX_SEGMENT_LENGTH) {
+                return false;
+            }
+            boolean dropped = mData.length == mIfd1Start;
+            resize(size);
+            if (dropped) {
+                System.arraycopy(mSegment, mIfd1Start, mData, mIfd1Start,
+                        mThumbnailStart - mIfd1Start);
+                mBuffer.putInt(mNextIfdOffset, mIfd1Start - TIFF_START);
+            }
+            System.arraycopy(jpeg, 0, mData, mThumbnailStart, jpeg.length);
+            mBuffer.putInt(mThumbnailLengthOffset, jpeg.length);
+            return true;
+        }
+
+        /**
+         * Gets the APP1 segment, starting with its marker. The array is the shot's
+         * own and is not copied.
+         */
+        public byte[] getSegment() {
+            return mData;
+        }
+
+        /**
+         * Same as {@link ExifInterface#getUnbufferedExifWriterStream(OutputStream)},
+         * with this shot's segment as the EXIF header.
+         */
+        public OutputStream getWriterStream(OutputStream outStream) {
+            ExifOutputStream eos = new ExifOutputStream(outStream, null, false);
+            eos.setExifSegment(mData);
+            return eos;
+        }
+
+        /**
+         * Writes the jpeg image to outStream with its EXIF header replaced by this
+         * shot's segment.
+         */
+        public void writeExif(byte[] jpeg, OutputStream outStream) throws IOException {
+            OutputStream out = getWriterStream(outStream);
+            out.write(jpeg, 0, jpeg.length);
+            out.flush();
+        }
+
+        private void resize(int size) {
+            if (size != mData.length) {
+                mData = Arrays.copyOf(mData, size);
+                mBuffer = ByteBuffer.wrap(mData).order(mOrder);
+                // The segment length is big endian whatever the TIFF byte order.
+                mData[2] = (byte) ((size - 2) >> 8);
+                mData[3] = (byte) (size - 2);
+            }
+        }
+
+        private void putDigits(int offset, int value, int digits) {
+            for (int i = digits - 1; i >= 0; i--) {
+                mData[offset + i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+        }
+
+        // Degrees, minutes and hundredths of seconds, as dd/1 mm/1 ssss/100.
+        private void putLatLong(int offset, double value) {
+            value = Math.abs(value);
+            int degrees = (int) value;
+            value = (value - degrees) * 60;
+            int minutes = (int) value;
+            value = (value - minutes) * 6000;
+            int seconds = (int) value;
+            mBuffer.putInt(offset, degrees);
+            mBuffer.putInt(offset + 4, 1);
+            mBuffer.putInt(offset + 8, minutes);
+            mBuffer.putInt(offset + 12, 1);
+            mBuffer.putInt(offset + 16, seconds);
+            mBuffer.putInt(offset + 20, 100);
+        }
+    }
+}
@@ -16,19 +16,24 @@
 
 package com.android.camera.exif;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
- * This class stores all the tags in an IFD.
+ * This class stores all the tags in an IFD. Tags are kept sorted by tag ID in
+ * parallel arrays, which is the order they have to be written in, and looked
+ * up by binary search without boxing the ID.
  *
  * @see ExifData
  * @see ExifTag
  */
 class IfdData {
 
+    private static final int INITIAL_CAPACITY = 8;
+
     private final int mIfdId;
-    private final Map<Short, ExifTag> mExifTags = new HashMap<Short, ExifTag>();
+    private short[] mTagIds = new short[INITIAL_CAPACITY];
+    private ExifTag[] mExifTags = new ExifTag[INITIAL_CAPACITY];
+    private int mTagCount = 0;
     private int mOffsetToNextIfd = 0;
     private static final int[] sIfds = {
             IfdId.TYPE_IFD_0, IfdId.TYPE_IFD_1, IfdId.TYPE_IFD_EXIF,
@@ -52,10 +57,19 @@ class IfdData {
     }
 
     /**
-     * Get a array the contains all {@link ExifTag} in this IFD.
+     * Get a array the contains all {@link ExifTag} in this IFD, in ascending
+     * tag ID order.
      */
     protected ExifTag[] getAllTags() {
-        return mExifTags.values().toArray(new ExifTag[mExifTags.size()]);
+        return Arrays.copyOf(mExifTags, mTagCount);
+    }
+
+    /**
+     * Gets the tag at the given index in ascending tag ID order. Unlike
+     * {@link #getAllTags()} this does not copy.
+     */
+    ExifTag getTagAt(int index) {
+        return mExifTags[index];
     }
 
     /**
@@ -76,7 +90,8 @@ class IfdData {
      * such tag.
      */
     protected ExifTag getTag(short tagId) {
-        return mExifTags.get(tagId);
+        int index = indexOf(tagId);
+        return index >= 0 ? mExifTags[index] : null;
     }
 
     /**
@@ -84,25 +99,70 @@ class IfdData {
      */
     protected ExifTag setTag(ExifTag tag) {
         tag.setIfd(mIfdId);
-        return mExifTags.put(tag.getTagId(), tag);
+        int index = indexOf(tag.getTagId());
+        if (index >= 0) {
+            ExifTag old = mExifTags[index];
+            mExifTags[index] = tag;
+            return old;
+        }
+        index = -index - 1;
+        if (mTagCount == mTagIds.length) {
+            mTagIds = Arrays.copyOf(mTagIds, mTagCount * 2);
+            mExifTags = Arrays.copyOf(mExifTags, mTagCount * 2);
+        }
+        System.arraycopy(mTagIds, index, mTagIds, index + 1, mTagCount - index);
+        System.arraycopy(mExifTags, index, mExifTags, index + 1, mTagCount - index);
+        mTagIds[index] = tag.getTagId();
+        mExifTags[index] = tag;
+        mTagCount++;
+        return null;
     }
 
     protected boolean checkCollision(short tagId) {
-        return mExifTags.get(tagId) != null;
+        return indexOf(tagId) >= 0;
     }
 
     /**
      * Removes the tag of the given ID
      */
     protected void removeTag(short tagId) {
-        mExifTags.remove(tagId);
+        int index = indexOf(tagId);
+        if (index < 0) {
+            return;
+        }
+        mTagCount--;
+        System.arraycopy(mTagIds, index + 1, mTagIds, index, mTagCount - index);
+        System.arraycopy(mExifTags, index + 1, mExifTags, index, mTagCount - index);
+        mExifTags[mTagCount] = null;
     }
 
     /**
      * Gets the tags count in the IFD.
      */
     protected int getTagCount() {
-        return mExifTags.size();
+        return mTagCount;
+    }
+
+    /**
+     * Binary search over the unsigned tag IDs. Returns the index of the tag, or
+     * (-(insertion point) - 1) if it is not present.
+     */
+    private int indexOf(short tagId) {
+        int key = tagId & 0xffff;
+        int low = 0;
+        int high = mTagCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midKey = mTagIds[mid] & 0xffff;
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
     }
 
     /**
@@ -134,12 +194,12 @@ class IfdData {
         if (obj instanceof IfdData) {
             IfdData data = (IfdData) obj;
             if (data.getId() == mIfdId && data.getTagCount() == getTagCount()) {
-                ExifTag[] tags = data.getAllTags();
-                for (ExifTag tag : tags) {
+                for (int i = 0; i < data.mTagCount; i++) {
+                    ExifTag tag = data.mExifTags[i];
                     if (ExifInterface.isOffsetTag(tag.getTagId())) {
                         continue;
                     }
-                    ExifTag tag2 = mExifTags.get(tag.getTagId());
+                    ExifTag tag2 = getTag(tag.getTagId());
                     if (!tag.equals(tag2)) {
                         return false;
                     }
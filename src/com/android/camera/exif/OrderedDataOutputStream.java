@@ -30,6 +30,18 @@ public class OrderedDataOutputStream extends FilterOutputStream {
         super(out);
     }
 
+    @Override
+    public void write(int oneByte) throws IOException {
+        out.write(oneByte);
+        mSize++;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        out.write(buffer, offset, length);
+        mSize += length;
+    }
+
     public OrderedDataOutputStream setByteOrder(ByteOrder order) {
         mByteBuffer.order(order);
         return this;
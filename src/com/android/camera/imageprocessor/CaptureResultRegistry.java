@@ -0,0 +1,223 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Capture results keyed by sensor timestamp. A consumer asks for the result of a
+ * frame it already holds the image of and gets a {@link ResultFuture} that is
+ * completed when the result arrives, so nobody has to poll for metadata.
+ *
+ * Preview results go through here as well, so beyond the capacity the oldest results
+ * are dropped. A frame that a shot still needs is held with {@link #hold} until
+ * {@link #release}; held results, and those {@link #await} is waiting for, are never
+ * dropped however long the shot takes.
+ */
+public class CaptureResultRegistry {
+    private static final String TAG = "CaptureResultRegistry";
+
+    public static class ResultFuture {
+        private final long mTimestamp;
+        private final CountDownLatch mLatch = new CountDownLatch(1);
+        private volatile TotalCaptureResult mResult;
+        // Guarded by the registry.
+        private int mHolds;
+
+        ResultFuture(long timestamp) {
+            mTimestamp = timestamp;
+        }
+
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        public boolean isDone() {
+            return mLatch.getCount() == 0;
+        }
+
+        /**
+         * Returns the result, waiting at most timeoutMs for it. Returns null on timeout.
+         */
+        public TotalCaptureResult get(long timeoutMs) throws InterruptedException {
+            mLatch.await(timeoutMs, TimeUnit.MILLISECONDS);
+            return mResult;
+        }
+
+        void complete(TotalCaptureResult result) {
+            if (mResult == null) {
+                mResult = result;
+                mLatch.countDown();
+            }
+        }
+    }
+
+    private final int mCapacity;
+    private final LinkedHashMap<Long, ResultFuture> mFutures;
+    private final AtomicLong mHits = new AtomicLong(0);
+    private final AtomicLong mWaits = new AtomicLong(0);
+    private final AtomicLong mTimeouts = new AtomicLong(0);
+    private final AtomicLong mWaitTimeNs = new AtomicLong(0);
+
+    public CaptureResultRegistry(int capacity) {
+        mCapacity = capacity;
+        mFutures = new LinkedHashMap<Long, ResultFuture>(capacity * 2);
+    }
+
+    public void onResult(TotalCaptureResult result) {
+        Long timestamp;
+        try {
+            timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        } catch (IllegalStateException e) {
+            return;
+        }
+        if (timestamp == null) {
+            return;
+        }
+        ResultFuture future;
+        synchronized (mFutures) {
+            future = mFutures.get(timestamp);
+            if (future == null) {
+                future = new ResultFuture(timestamp);
+                mFutures.put(timestamp, future);
+            }
+        }
+        future.complete(result);
+        synchronized (mFutures) {
+            trim();
+        }
+    }
+
+    /**
+     * Keeps the result of the frame with this timestamp until {@link #release} is called
+     * as often, whether it has arrived yet or not.
+     */
+    public void hold(long timestamp) {
+        synchronized (mFutures) {
+            get(timestamp).mHolds++;
+        }
+    }
+
+    /**
+     * Lets the result of a frame passed to {@link #hold} be dropped again.
+     */
+    public void release(long timestamp) {
+        synchronized (mFutures) {
+            ResultFuture future = mFutures.get(timestamp);
+            if (future != null && future.mHolds > 0) {
+                future.mHolds--;
+                trim();
+            }
+        }
+    }
+
+    // Drops the oldest results nobody holds while over capacity.
+    private void trim() {
+        Iterator<ResultFuture> it = mFutures.values().iterator();
+        while (mFutures.size() > mCapacity && it.hasNext()) {
+            if (it.next().mHolds == 0) {
+                it.remove();
+            }
+        }
+    }
+
+    public ResultFuture get(long timestamp) {
+        synchronized (mFutures) {
+            ResultFuture future = mFutures.get(timestamp);
+            if (future == null) {
+                future = new ResultFuture(timestamp);
+                mFutures.put(timestamp, future);
+            }
+            return future;
+        }
+    }
+
+    /**
+     * Returns the result for the frame with this timestamp, waiting at most timeoutMs
+     * for it to arrive. Returns null if it does not arrive in time.
+     */
+    public TotalCaptureResult await(long timestamp, long timeoutMs) {
+        ResultFuture future;
+        synchronized (mFutures) {
+            future = get(timestamp);
+            if (future.isDone()) {
+                mHits.incrementAndGet();
+                return future.mResult;
+            }
+            future.mHolds++;
+        }
+        mWaits.incrementAndGet();
+        long start = System.nanoTime();
+        TotalCaptureResult result = null;
+        try {
+            result = future.get(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            release(timestamp);
+        }
+        mWaitTimeNs.addAndGet(System.nanoTime() - start);
+        if (result == null) {
+            mTimeouts.incrementAndGet();
+            Log.w(TAG, "No capture result for " + timestamp + " after " + timeoutMs + "ms, "
+                    + mTimeouts.get() + " timeouts so far");
+        }
+        return result;
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getWaitCount() {
+        return mWaits.get();
+    }
+
+    public long getTimeoutCount() {
+        return mTimeouts.get();
+    }
+
+    public long getTotalWaitTimeMs() {
+        return mWaitTimeNs.get() / 1000000;
+    }
+
+    @Override
+    public String toString() {
+        return "hits " + getHitCount() + ", waits " + getWaitCount() + ", timeouts "
+                + getTimeoutCount() + ", waited " + getTotalWaitTimeMs() + "ms";
+    }
+}
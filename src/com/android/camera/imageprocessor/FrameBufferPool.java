@@ -0,0 +1,283 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.util.Log;
+
+import com.android.camera.util.PersistUtil;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of frame sized buffers shared by the post processing stages and the image
+ * filters. Buffers are grouped in size classes so that frames of slightly different
+ * sizes can reuse each other's memory, and are handed out as reference counted
+ * {@link Buffer}s that go back to the pool when the last reference is released.
+ * Buffers that are garbage collected while still referenced are reported as leaks.
+ */
+public class FrameBufferPool {
+    private static final String TAG = "FrameBufferPool";
+    private static final int MIN_GRANULE = 4096;
+    private static final long MB = 1024 * 1024;
+
+    private static FrameBufferPool sInstance;
+
+    private final HashMap<Integer, ArrayDeque<ByteBuffer>> mFreeBuffers =
+            new HashMap<Integer, ArrayDeque<ByteBuffer>>();
+    private long mMaxPooledBytes;
+    private long mPooledBytes;
+    private long mOutstandingBytes;
+    private long mPeakBytes;
+    private long mHitCount;
+    private long mMissCount;
+    private long mLeakCount;
+
+    /**
+     * A reference counted buffer taken from the pool. It starts with one reference
+     * held by whoever acquired it.
+     */
+    public static final class Buffer {
+        private final FrameBufferPool mPool;
+        private final ByteBuffer mBuffer;
+        private final int mSize;
+        private final AtomicInteger mRefCount = new AtomicInteger(1);
+        private final Throwable mAcquireSite;
+
+        private Buffer(FrameBufferPool pool, ByteBuffer buffer, int size) {
+            mPool = pool;
+            mBuffer = buffer;
+            mSize = size;
+            mAcquireSite = new Throwable("Buffer of " + size + " bytes acquired here");
+        }
+
+        /**
+         * The buffer, positioned at 0 with its limit at the requested size. The
+         * backing array may be longer than the requested size.
+         */
+        public ByteBuffer getBuffer() {
+            return mBuffer;
+        }
+
+        public byte[] array() {
+            return mBuffer.array();
+        }
+
+        public int getSize() {
+            return mSize;
+        }
+
+        public Buffer retain() {
+            if (mRefCount.getAndIncrement() <= 0) {
+                throw new IllegalStateException("Buffer has already been released");
+            }
+            return this;
+        }
+
+        public void release() {
+            int count = mRefCount.decrementAndGet();
+            if (count == 0) {
+                mPool.recycle(mBuffer);
+            } else if (count < 0) {
+                throw new IllegalStateException("Buffer has already been released");
+            }
+        }
+
+        @Override
+        protected void finalize() throws Throwable {
+            try {
+                if (mRefCount.get() > 0) {
+                    mPool.onLeaked(this);
+                }
+            } finally {
+                super.finalize();
+            }
+        }
+    }
+
+    public static synchronized FrameBufferPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new FrameBufferPool(PersistUtil.getFrameBufferPoolSizeInMb() * MB);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param maxPooledBytes how much free memory the pool may hold on to. Buffers
+     *                       released beyond that are left to the garbage collector.
+     */
+    public FrameBufferPool(long maxPooledBytes) {
+        mMaxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * Returns a buffer of at least size bytes, reusing a pooled one of the same size
+     * class when there is one. The caller owns the only reference.
+     */
+    public Buffer acquire(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Invalid buffer size " + size);
+        }
+        int capacity = sizeClass(size);
+        ByteBuffer buffer = null;
+        synchronized (this) {
+            ArrayDeque<ByteBuffer> free = mFreeBuffers.get(capacity);
+            if (free != null) {
+                buffer = free.poll();
+            }
+            if (buffer != null) {
+                mHitCount++;
+                mPooledBytes -= capacity;
+            } else {
+                mMissCount++;
+            }
+            mOutstandingBytes += capacity;
+            mPeakBytes = Math.max(mPeakBytes, mOutstandingBytes + mPooledBytes);
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return new Buffer(this, buffer, size);
+    }
+
+    /**
+     * Drops pooled buffers until at most maxPooledBytes are held, largest first.
+     */
+    public synchronized void trim(long maxPooledBytes) {
+        while (mPooledBytes > maxPooledBytes) {
+            int largest = 0;
+            for (Map.Entry<Integer, ArrayDeque<ByteBuffer>> entry : mFreeBuffers.entrySet()) {
+                if (!entry.getValue().isEmpty() && entry.getKey() > largest) {
+                    largest = entry.getKey();
+                }
+            }
+            if (largest == 0) {
+                break;
+            }
+            mFreeBuffers.get(largest).poll();
+            mPooledBytes -= largest;
+        }
+        Iterator<ArrayDeque<ByteBuffer>> it = mFreeBuffers.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        trim(0);
+    }
+
+    public synchronized void setMaxPooledBytes(long maxPooledBytes) {
+        mMaxPooledBytes = maxPooledBytes;
+        trim(maxPooledBytes);
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized float getHitRate() {
+        long total = mHitCount + mMissCount;
+        return total == 0 ? 0f : (float) mHitCount / total;
+    }
+
+    /** Bytes held in the pool waiting to be reused. */
+    public synchronized long getPooledBytes() {
+        return mPooledBytes;
+    }
+
+    /** Bytes handed out and not released yet. */
+    public synchronized long getOutstandingBytes() {
+        return mOutstandingBytes;
+    }
+
+    /** Highest pooled plus outstanding footprint seen so far. */
+    public synchronized long getPeakBytes() {
+        return mPeakBytes;
+    }
+
+    public synchronized long getLeakCount() {
+        return mLeakCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FrameBufferPool{hits=" + mHitCount + ", misses=" + mMissCount
+                + ", pooled=" + mPooledBytes + ", outstanding=" + mOutstandingBytes
+                + ", peak=" + mPeakBytes + ", leaks=" + mLeakCount + "}";
+    }
+
+    /**
+     * Rounds size up so that sizes within 1/8 of a power of two share a class,
+     * which bounds the wasted space to 12.5%.
+     */
+    static int sizeClass(int size) {
+        int granule = Math.max(MIN_GRANULE, Integer.highestOneBit(size - 1) >> 3);
+        long rounded = ((long) size + granule - 1) / granule * granule;
+        return rounded > Integer.MAX_VALUE ? size : (int) rounded;
+    }
+
+    private void recycle(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        synchronized (this) {
+            mOutstandingBytes -= capacity;
+            if (mPooledBytes + capacity > mMaxPooledBytes) {
+                return;
+            }
+            ArrayDeque<ByteBuffer> free = mFreeBuffers.get(capacity);
+            if (free == null) {
+                free = new ArrayDeque<ByteBuffer>();
+                mFreeBuffers.put(capacity, free);
+            }
+            free.push(buffer);
+            mPooledBytes += capacity;
+        }
+    }
+
+    private void onLeaked(Buffer buffer) {
+        synchronized (this) {
+            mLeakCount++;
+            mOutstandingBytes -= buffer.mBuffer.capacity();
+        }
+        Log.w(TAG, "Buffer of " + buffer.getSize() + " bytes was never released",
+                buffer.mAcquireSite);
+    }
+}
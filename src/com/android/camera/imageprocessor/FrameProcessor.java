@@ -55,15 +55,23 @@ import com.android.camera.imageprocessor.filter.DeepPortraitFilter;
 import com.android.camera.imageprocessor.filter.ImageFilter;
 import com.android.camera.imageprocessor.filter.TrackingFocusFrameListener;
 import com.android.camera.ui.RotateTextToast;
+import com.android.camera.util.PersistUtil;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
 import org.codeaurora.snapcam.R;
 
 public class FrameProcessor {
     private static final String TAG = "FrameProcessor";
+    private static final boolean DEBUG =
+            (PersistUtil.getCamera2Debug() == PersistUtil.CAMERA2_DEBUG_DUMP_LOG) ||
+            (PersistUtil.getCamera2Debug() == PersistUtil.CAMERA2_DEBUG_DUMP_ALL);
+    //Rotate and convert preview frames with NV21Kernels instead of RenderScript.
+    private static final boolean USE_JAVA_KERNELS = PersistUtil.isPreviewJavaKernelsEnabled();
     private ImageReader mInputImageReader;
     private Allocation mInputAllocation;
     private Allocation mProcessAllocation;
@@ -74,11 +82,10 @@ public class FrameProcessor {
     private Handler mProcessingHandler;
     private HandlerThread mOutingThread;
     private Handler mOutingHandler;
-    private HandlerThread mListeningThread;
-    private Handler mListeningHandler;
 
     private ProcessingTask mTask;
-    private ListeningTask mListeningTask;
+    private PreviewFilterGraph mFilterGraph;
+    private final PreviewPipelineStats mPipelineStats = new PreviewPipelineStats();
     private RenderScript mRs;
     private Activity mActivity;
     ScriptC_YuvToRgb mRsYuvToRGB;
@@ -136,19 +143,33 @@ public class FrameProcessor {
                 mOutingHandler = new Handler(mOutingThread.getLooper());
             }
 
-            if (mListeningThread == null) {
-                mListeningThread = new HandlerThread("FrameListeningThread");
-                mListeningThread.start();
-                mListeningHandler = new Handler(mListeningThread.getLooper());
+            mFilterGraph = new PreviewFilterGraph(mPreviewFilters,
+                    Math.max(1, Runtime.getRuntime().availableProcessors() / 2), mPipelineStats);
+            //Frame listeners get a steady, reduced rate so that they leave the preview its
+            //frame budget. A target of 0 lets them take every frame they can keep up with.
+            if (PersistUtil.getPreviewListenerFps() > 0) {
+                mFilterGraph.setListenerRate(PersistUtil.getPreviewListenerFps(),
+                        Math.max(1, PersistUtil.getPreviewListenerLoadPercent()) / 100f,
+                        PersistUtil.getPreviewListenerDownscale());
             }
-
-            mListeningTask = new ListeningTask();
             mTask = new ProcessingTask();
             mInputImageReader.setOnImageAvailableListener(mTask, mProcessingHandler);
             mIsAllocationEverUsed = false;
         }
     }
 
+    private int getPreviewRotation() {
+        int degree = 90;
+        if(mModule.getMainCameraCharacteristics() != null) {
+            degree = mModule.getMainCameraCharacteristics().
+                    get(CameraCharacteristics.SENSOR_ORIENTATION);
+            if (mModule.getMainCameraId() == CaptureModule.FRONT_ID) {
+                degree = Math.abs(degree - 90);
+            }
+        }
+        return degree;
+    }
+
     private void createAllocation(int width, int height, int stridePad) {
         Type.Builder yuvTypeBuilder = new Type.Builder(mRs, Element.YUV(mRs));
         yuvTypeBuilder.setX(width);
@@ -163,15 +184,7 @@ public class FrameProcessor {
         mRsRotator.set_width(width);
         mRsRotator.set_height(height);
         mRsRotator.set_pad(stridePad);
-        int degree = 90;
-        if(mModule.getMainCameraCharacteristics() != null) {
-            degree = mModule.getMainCameraCharacteristics().
-                    get(CameraCharacteristics.SENSOR_ORIENTATION);
-            if (mModule.getMainCameraId() == CaptureModule.FRONT_ID) {
-                degree = Math.abs(degree - 90);
-            }
-        }
-        mRsRotator.set_degree(degree);
+        mRsRotator.set_degree(getPreviewRotation());
         mRsYuvToRGB.set_gIn(mProcessAllocation);
         mRsYuvToRGB.set_width(height);
         mRsYuvToRGB.set_height(width);
@@ -284,14 +297,15 @@ public class FrameProcessor {
             } catch (InterruptedException e) {
             }
         }
-        if (mListeningThread != null) {
-            mListeningThread.quitSafely();
-            try {
-                mListeningThread.join();
-                mListeningThread = null;
-                mListeningHandler = null;
-            } catch (InterruptedException e) {
-            }
+        if (DEBUG) {
+            dumpPipelineStats();
+        }
+        if (mFilterGraph != null) {
+            mFilterGraph.shutdown();
+            mFilterGraph = null;
+        }
+        if (mTask != null) {
+            mTask.release();
         }
         for (ImageFilter filter : mPreviewFilters) {
             filter.deinit();
@@ -354,6 +368,31 @@ public class FrameProcessor {
         return true;
     }
 
+    public PreviewPipelineStats getPipelineStats() {
+        return mPipelineStats;
+    }
+
+    private void dumpPipelineStats() {
+        Log.d(TAG, mPipelineStats.toString());
+        for (PreviewFilterGraph.FilterStats stats : getFilterStats()) {
+            Log.d(TAG, stats.toString());
+        }
+        File file = new File(mActivity.getFilesDir(), "preview_pipeline_stats.txt");
+        try {
+            mPipelineStats.dump(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not dump preview stats", e);
+        }
+    }
+
+    public List<PreviewFilterGraph.FilterStats> getFilterStats() {
+        PreviewFilterGraph graph = mFilterGraph;
+        if (graph == null) {
+            return new ArrayList<PreviewFilterGraph.FilterStats>();
+        }
+        return graph.getStats();
+    }
+
     public void setOutputSurface(Surface surface) {
         mSurfaceAsItIs = surface;
         if (mFinalFilters.size() != 0) {
@@ -403,6 +442,14 @@ public class FrameProcessor {
         int stride;
         int height;
         int width;
+        //Used instead of the allocations when the Java kernels are enabled.
+        byte[] rotatedBytes = null;
+        byte[] rgbaBytes = null;
+        int rotateDegree;
+        boolean rotateMirror;
+        //Newest frame waiting for the output stage, older ones are skipped.
+        private final AtomicReference<SharedFrame> mPendingFrame =
+                new AtomicReference<SharedFrame>();
 
         public ProcessingTask() {
         }
@@ -411,14 +458,21 @@ public class FrameProcessor {
         public void onImageAvailable(ImageReader reader) {
             synchronized (mAllocationLock) {
                 if (mOutputAllocation == null) {
+                    mPipelineStats.recordDrop(PreviewPipelineStats.Drop.NOT_READY);
                     return;
                 }
                 try {
+                    long arrival = PreviewPipelineStats.now();
                     Image image = reader.acquireLatestImage();
                     if (image == null) {
                         return;
                     }
+                    long sequence = mPipelineStats.beginFrame(image.getTimestamp());
+                    long acquired = PreviewPipelineStats.now();
+                    mPipelineStats.recordStage(sequence, PreviewPipelineStats.Stage.ACQUIRE,
+                            acquired - arrival);
                     if (!mIsActive) {
+                        mPipelineStats.recordDrop(PreviewPipelineStats.Drop.INACTIVE);
                         image.close();
                         return;
                     }
@@ -437,45 +491,34 @@ public class FrameProcessor {
                         return;
                     }
                     mIsAllocationEverUsed = true;
-                    ByteBuffer bY = image.getPlanes()[0].getBuffer();
-                    ByteBuffer bVU = image.getPlanes()[2].getBuffer();
-                    if (yvuBytes == null || width != mSize.getWidth() || height != mSize.getHeight()) {
-                        stride = image.getPlanes()[0].getRowStride();
-                        width = mSize.getWidth();
-                        height = mSize.getHeight();
-                        ySize = stride * mSize.getHeight();
-                        yvuBytes = new byte[ySize * 3 / 2];
-                    }
-                    boolean needToFeedSurface = false;
+                    SharedFrame frame = new SharedFrame(image, mSize.getWidth(), mSize.getHeight());
+                    frame.mSequence = sequence;
+                    frame.mArrivalNs = arrival;
                     //Start processing yvu buf
-                    for (ImageFilter filter : mPreviewFilters) {
-                        if (filter.isFrameListener()) {
-                            if (mListeningTask.setParam(filter, bY, bVU, mSize.getWidth(), mSize.getHeight(), stride)) {
-                                mListeningHandler.post(mListeningTask);
-                            }
-                        } else {
-                            filter.init(mSize.getWidth(), mSize.getHeight(), stride, stride);
-                            if (filter instanceof BeautificationFilter) {
-                                filter.addImage(bY, bVU, 0, new Boolean(false));
-                            } else{
-                                filter.addImage(bY, bVU, 0, new Boolean(true));
-                            }
-                            needToFeedSurface = true;
-                        }
-                        bY.rewind();
-                        bVU.rewind();
+                    //Filters that change the frame run in place first, the listeners and
+                    //the output stage then share the result without copying it.
+                    boolean needToFeedSurface = mFilterGraph.hasMutators();
+                    mFilterGraph.runMutators(frame);
+                    if (needToFeedSurface) {
+                        mPipelineStats.recordStage(sequence, PreviewPipelineStats.Stage.FILTER,
+                                PreviewPipelineStats.now() - acquired);
                     }
+                    mFilterGraph.dispatchReaders(frame);
                     if (mIsFirstIn && mIsVideoOn && isFrameListnerEnabled()) {
                         mIsFirstIn = false;
                         mModule.startMediaRecording();
                     }
                     //End processing yvu buf
                     if (needToFeedSurface) {
-                        bY.get(yvuBytes, 0, bY.remaining());
-                        bVU.get(yvuBytes, ySize, bVU.remaining());
-                        mOutingHandler.post(this);
+                        SharedFrame skipped = mPendingFrame.getAndSet(frame.retain());
+                        if (skipped != null) {
+                            skipped.release();
+                            mPipelineStats.recordDrop(PreviewPipelineStats.Drop.OUTPUT_BUSY);
+                        } else {
+                            mOutingHandler.post(this);
+                        }
                     }
-                    image.close();
+                    frame.release();
                 } catch (IllegalStateException e) {
                 }
             }
@@ -483,79 +526,89 @@ public class FrameProcessor {
 
         @Override
         public void run() {
+            SharedFrame frame = mPendingFrame.getAndSet(null);
+            if (frame == null) {
+                return;
+            }
             synchronized (mAllocationLock) {
                 if (!mIsActive) {
+                    mPipelineStats.recordDrop(PreviewPipelineStats.Drop.INACTIVE);
+                    frame.release();
                     return;
                 }
-                if (mInputAllocation == null) {
-                    createAllocation(stride, height, stride - width);
+                long sequence = frame.mSequence;
+                long arrival = frame.mArrivalNs;
+                long start = PreviewPipelineStats.now();
+                if (yvuBytes == null || width != frame.getWidth() || height != frame.getHeight()) {
+                    stride = frame.getStride();
+                    width = frame.getWidth();
+                    height = frame.getHeight();
+                    ySize = stride * height;
+                    yvuBytes = new byte[ySize * 3 / 2];
+                    rotatedBytes = null;
                 }
-                mInputAllocation.copyFrom(yvuBytes);
-                mRsRotator.forEach_rotate90andMerge(mInputAllocation);
-                mRsYuvToRGB.forEach_nv21ToRgb(mOutputAllocation);
+                ByteBuffer bY = frame.getY();
+                ByteBuffer bVU = frame.getVU();
+                bY.get(yvuBytes, 0, bY.remaining());
+                bVU.get(yvuBytes, ySize, bVU.remaining());
+                frame.release();
+                long copied;
+                long rotated;
+                if (USE_JAVA_KERNELS) {
+                    if (rotatedBytes == null) {
+                        rotatedBytes = new byte[width * height * 3 / 2];
+                        rgbaBytes = new byte[width * height * 4];
+                        //The preview is always shown transposed, the mirror flag picks
+                        //the direction the same way the rotator script does.
+                        int degree = getPreviewRotation();
+                        rotateDegree = (degree == 90 || degree == 0) ? 90 : 270;
+                        rotateMirror = (degree == 0 || degree == 180);
+                    }
+                    copied = PreviewPipelineStats.now();
+                    mPipelineStats.recordStage(sequence, PreviewPipelineStats.Stage.COPY,
+                            copied - start);
+                    NV21Kernels.rotate(yvuBytes, width, height, stride, rotateDegree,
+                            rotateMirror, rotatedBytes);
+                    rotated = PreviewPipelineStats.now();
+                    mPipelineStats.recordStage(sequence, PreviewPipelineStats.Stage.ROTATE,
+                            rotated - copied);
+                    NV21Kernels.toRgba(rotatedBytes, height, width, height, rgbaBytes);
+                    mOutputAllocation.copyFrom(rgbaBytes);
+                } else {
+                    if (mInputAllocation == null) {
+                        createAllocation(stride, height, stride - width);
+                    }
+                    mInputAllocation.copyFrom(yvuBytes);
+                    copied = PreviewPipelineStats.now();
+                    mPipelineStats.recordStage(sequence, PreviewPipelineStats.Stage.COPY,
+                            copied - start);
+                    mRsRotator.forEach_rotate90andMerge(mInputAllocation);
+                    rotated = PreviewPipelineStats.now();
+                    mPipelineStats.recordStage(sequence, PreviewPipelineStats.Stage.ROTATE,
+                            rotated - copied);
+                    mRsYuvToRGB.forEach_nv21ToRgb(mOutputAllocation);
+                }
+                long converted = PreviewPipelineStats.now();
+                mPipelineStats.recordStage(sequence, PreviewPipelineStats.Stage.CONVERT,
+                        converted - rotated);
                 mOutputAllocation.ioSend();
                 if (mVideoOutputAllocation != null) {
                     mVideoOutputAllocation.copyFrom(mOutputAllocation);
                     mVideoOutputAllocation.ioSend();
                 }
+                long sent = PreviewPipelineStats.now();
+                mPipelineStats.recordStage(sequence, PreviewPipelineStats.Stage.SEND,
+                        sent - converted);
+                mPipelineStats.recordStage(sequence, PreviewPipelineStats.Stage.END_TO_END,
+                        sent - arrival);
             }
         }
-    }
-
-    class ListeningTask implements Runnable {
 
-        ImageFilter mFilter;
-        ByteBuffer mBY = null, mBVU = null;
-        int mWidth, mHeight, mStride;
-        int bYSize, bVUSize;
-        Semaphore mMutureLock = new Semaphore(1);
-
-        public boolean setParam(ImageFilter filter, ByteBuffer bY, ByteBuffer bVU, int width, int height, int stride) {
-            if (!mIsActive) {
-                return false;
-            }
-            if (!mMutureLock.tryAcquire()) {
-                return false;
-            }
-            mFilter = filter;
-            if (mBY == null || bYSize != bY.remaining()) {
-                bYSize = bY.remaining();
-                mBY = ByteBuffer.allocateDirect(bYSize);
-            }
-            if (mBVU == null || bVUSize != bVU.remaining()) {
-                bVUSize = bVU.remaining();
-                mBVU = ByteBuffer.allocateDirect(bVUSize);
-            }
-            mBY.rewind();
-            mBVU.rewind();
-            mBY.put(bY);
-            mBVU.put(bVU);
-            mWidth = width;
-            mHeight = height;
-            mStride = stride;
-            mMutureLock.release();
-            return true;
-        }
-
-        @Override
-        public void run() {
-            try {
-                if (!mIsActive) {
-                    return;
-                }
-                mMutureLock.acquire();
-                mBY.rewind();
-                mBVU.rewind();
-                mFilter.init(mWidth, mHeight, mStride, mStride);
-                if (mFilter instanceof BeautificationFilter) {
-                    mFilter.addImage(mBY, mBVU, 0, new Boolean(false));
-                } else {
-                    mFilter.addImage(mBY, mBVU, 0, new Boolean(true));
-                }
-                mMutureLock.release();
-            } catch (InterruptedException e) {
+        public void release() {
+            SharedFrame frame = mPendingFrame.getAndSet(null);
+            if (frame != null) {
+                frame.release();
             }
         }
     }
 }
-
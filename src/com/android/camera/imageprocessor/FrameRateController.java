@@ -0,0 +1,151 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.imageprocessor;
+
+/**
+ * Decides which preview frames a frame listener gets. Frames are picked on a fixed grid
+ * of sensor timestamps, one per interval, so a 30fps preview with a 15fps target hands
+ * over every second frame no matter when the listener happens to be free. The interval
+ * grows when the listener's measured cost would otherwise take more than its share of
+ * a core, and shrinks back to the target when the cost goes down.
+ * {@link #accept(long)} is called from the thread that dispatches frames and
+ * {@link #onProcessed(long)} from the listener's thread.
+ */
+public class FrameRateController {
+    private static final long NS_PER_SECOND = 1000000000L;
+    //Weight of the newest sample in the running averages, as a shift.
+    private static final int EWMA_SHIFT = 3;
+
+    private long mTargetIntervalNs;
+    private final float mMaxLoad;
+    private long mIntervalNs;
+    private long mNextDueNs = -1;
+    private long mLastAcceptedNs = -1;
+    private long mAvgCostNs;
+    private long mAvgAcceptedIntervalNs;
+    private long mAccepted;
+    private long mDecimated;
+
+    /**
+     * @param targetFps highest rate the listener should see frames at.
+     * @param maxLoad share of one core the listener may use, e.g. 0.5 to leave it at
+     *                least half of every interval idle.
+     */
+    public FrameRateController(float targetFps, float maxLoad) {
+        if (targetFps <= 0 || maxLoad <= 0) {
+            throw new IllegalArgumentException("fps " + targetFps + " load " + maxLoad);
+        }
+        mMaxLoad = maxLoad;
+        setTargetFps(targetFps);
+    }
+
+    public synchronized void setTargetFps(float targetFps) {
+        mTargetIntervalNs = (long) (NS_PER_SECOND / targetFps);
+        updateInterval();
+    }
+
+    /**
+     * Returns whether the frame with the given sensor timestamp should go to the listener.
+     * A frame up to a quarter interval early still counts as on time, so that timestamp
+     * jitter does not make the listener skip a whole extra frame.
+     */
+    public synchronized boolean accept(long timestampNs) {
+        if (mNextDueNs >= 0 && timestampNs < mNextDueNs - mIntervalNs / 4
+                && timestampNs >= mLastAcceptedNs) {
+            mDecimated++;
+            return false;
+        }
+        if (mNextDueNs < 0 || timestampNs < mLastAcceptedNs
+                || timestampNs >= mNextDueNs + mIntervalNs) {
+            //First frame, timestamps went backwards or we fell behind: restart the grid.
+            mNextDueNs = timestampNs + mIntervalNs;
+        } else {
+            mNextDueNs += mIntervalNs;
+        }
+        if (mLastAcceptedNs >= 0 && timestampNs > mLastAcceptedNs) {
+            mAvgAcceptedIntervalNs = average(mAvgAcceptedIntervalNs,
+                    timestampNs - mLastAcceptedNs);
+        }
+        mLastAcceptedNs = timestampNs;
+        mAccepted++;
+        return true;
+    }
+
+    /**
+     * Reports how long the listener took for a frame it accepted.
+     */
+    public synchronized void onProcessed(long costNs) {
+        mAvgCostNs = average(mAvgCostNs, costNs);
+        updateInterval();
+    }
+
+    private void updateInterval() {
+        mIntervalNs = Math.max(mTargetIntervalNs, (long) (mAvgCostNs / mMaxLoad));
+    }
+
+    private static long average(long avg, long sample) {
+        return avg == 0 ? sample : avg + ((sample - avg) >> EWMA_SHIFT);
+    }
+
+    public synchronized float getTargetFps() {
+        return (float) NS_PER_SECOND / mTargetIntervalNs;
+    }
+
+    /**
+     * Rate frames are currently handed over at, lower than the target while the listener
+     * is too slow for it.
+     */
+    public synchronized float getAllowedFps() {
+        return (float) NS_PER_SECOND / mIntervalNs;
+    }
+
+    public synchronized float getAchievedFps() {
+        return mAvgAcceptedIntervalNs == 0 ? 0 : (float) NS_PER_SECOND / mAvgAcceptedIntervalNs;
+    }
+
+    public synchronized long getAverageCostNs() {
+        return mAvgCostNs;
+    }
+
+    public synchronized long getAcceptedCount() {
+        return mAccepted;
+    }
+
+    public synchronized long getDecimatedCount() {
+        return mDecimated;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("target=%.1ffps allowed=%.1ffps achieved=%.1ffps cost=%dus"
+                + " accepted=%d decimated=%d", getTargetFps(), getAllowedFps(),
+                getAchievedFps(), mAvgCostNs / 1000, mAccepted, mDecimated);
+    }
+}
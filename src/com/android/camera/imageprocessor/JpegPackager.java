@@ -0,0 +1,384 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.location.Location;
+import android.util.Log;
+
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifTemplate;
+import com.android.camera.exif.Rational;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.TimeZone;
+
+/**
+ * Encodes NV21 buffers into complete JPEG files in a single pass.
+ *
+ * The compressor writes through an EXIF writer stream, so SOI and the APP1 segment
+ * built from the {@link ExifInterface} are emitted first and the compressed scan is
+ * streamed right after them into one buffer. The result keeps the ExifInterface
+ * that was used, so it never has to be parsed again.
+ *
+ * The capture paths describe each shot with an {@link ExifTemplate.Shot} instead. The
+ * tags they write only depend on which capture result keys are present, so a packager
+ * lays out a template once for each such set and every shot just copies it and
+ * patches the orientation, date and capture values. Such a result carries no
+ * ExifInterface: its APP1 segment is already complete, so it is saved byte for byte
+ * and never parsed or serialized again. {@link PostProcessor} keeps one packager
+ * while the camera is open and clears its templates when it closes.
+ *
+ * A shot can also carry a small thumbnail in IFD1, shrunk from the same NV21 buffer
+ * before the full encode, so that previews do not have to decode the whole picture.
+ */
+public class JpegPackager {
+    private static final String TAG = "JpegPackager";
+    private static final int EXIF_RESERVE = 64 * 1024;
+
+    private static final int HAS_FLASH = 1;
+    private static final int HAS_FOCAL_LENGTH = 1 << 1;
+    private static final int HAS_WHITE_BALANCE = 1 << 2;
+    private static final int HAS_APERTURE = 1 << 3;
+    private static final int HAS_EXPOSURE_TIME = 1 << 4;
+    private static final int HAS_ISO = 1 << 5;
+    private static final int HAS_GPS = 1 << 6;
+    private static final int HAS_THUMBNAIL = 1 << 7;
+
+    // Longest side of the EXIF thumbnail, at most.
+    private static final int THUMBNAIL_SIZE = 320;
+    private static final int THUMBNAIL_QUALITY = 80;
+
+    public static class Result {
+        /**
+         * The array the encoder wrote into; the jpeg is its first {@link #length}
+         * bytes and the rest is unused. Hand both to the save path as they are.
+         */
+        public final byte[] buffer;
+        public final int length;
+        /** The EXIF the jpeg was encoded with, or null if it came from a template. */
+        public final ExifInterface exif;
+        private byte[] mJpeg;
+
+        Result(byte[] buffer, int length, ExifInterface exif) {
+            this.buffer = buffer;
+            this.length = length;
+            this.exif = exif;
+        }
+
+        /**
+         * Returns the jpeg in an array of its own length, for the callers that cannot
+         * take a length. The buffer is trimmed on the first call only when it is
+         * larger than the jpeg.
+         */
+        public synchronized byte[] getJpeg() {
+            if (mJpeg == null) {
+                mJpeg = length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+            }
+            return mJpeg;
+        }
+    }
+
+    // Templates by the set of capture result keys present, built on first use.
+    private final ExifTemplate[] mTemplates = new ExifTemplate[HAS_THUMBNAIL << 1];
+
+    public static ExifInterface buildExif(int orientationInDegree, TotalCaptureResult result) {
+        ExifInterface exif = new ExifInterface();
+        exif.addMakeAndModelTag();
+        exif.addOrientationTag(orientationInDegree);
+        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, System.currentTimeMillis(),
+                TimeZone.getDefault());
+        if(result != null) {
+            if(result.get(CaptureResult.FLASH_MODE) != null) {
+                exif.addFlashTag(result.get(CaptureResult.FLASH_MODE) != CaptureResult.FLASH_MODE_OFF);
+            }
+            if(result.get(CaptureResult.LENS_FOCAL_LENGTH) != null) {
+                exif.addFocalLength(new Rational((int)(result.get(CaptureResult.LENS_FOCAL_LENGTH)*100), 100));
+            }
+            if(result.get(CaptureResult.CONTROL_AWB_MODE) != null) {
+                exif.addWhiteBalanceMode(result.get(CaptureResult.CONTROL_AWB_MODE));
+            }
+            if(result.get(CaptureResult.LENS_APERTURE) != null) {
+                exif.addAperture(new Rational((int)(result.get(CaptureResult.LENS_APERTURE)*100), 100));
+            }
+            if(result.get(CaptureResult.SENSOR_EXPOSURE_TIME) != null) {
+                exif.addExposureTime(new Rational(result.get(CaptureResult.SENSOR_EXPOSURE_TIME)/1000000, 1000));
+            }
+            if(result.get(CaptureResult.SENSOR_SENSITIVITY) != null) {
+                exif.addISO(result.get(CaptureResult.SENSOR_SENSITIVITY));
+            }
+            if(result.get(CaptureResult.JPEG_GPS_LOCATION ) != null) {
+                exif.addGpsTags(result.get(CaptureResult.JPEG_GPS_LOCATION).getLatitude(),
+                        result.get(CaptureResult.JPEG_GPS_LOCATION).getLongitude());
+            }
+        }
+        return exif;
+    }
+
+    /**
+     * Describes a shot with the same tags {@link #buildExif(int, TotalCaptureResult)}
+     * would set, from a template shared with every other shot that has the same
+     * capture result keys.
+     *
+     * @return the shot, or null if its template could not be built.
+     */
+    public ExifTemplate.Shot buildExifShot(int orientationInDegree,
+                                           TotalCaptureResult result) {
+        return buildExifShot(orientationInDegree, result, null);
+    }
+
+    /**
+     * Same as {@link #buildExifShot(int, TotalCaptureResult)}, with a compressed
+     * thumbnail, e.g. from {@link #encodeThumbnail}, put in IFD1. A thumbnail too
+     * large for the APP1 segment is left out.
+     */
+    public ExifTemplate.Shot buildExifShot(int orientationInDegree,
+                                           TotalCaptureResult result,
+                                           byte[] thumbnail) {
+        Integer flashMode = null;
+        Float focalLength = null;
+        Integer awbMode = null;
+        Float aperture = null;
+        Long exposureTime = null;
+        Integer iso = null;
+        Location location = null;
+        if (result != null) {
+            flashMode = result.get(CaptureResult.FLASH_MODE);
+            focalLength = result.get(CaptureResult.LENS_FOCAL_LENGTH);
+            awbMode = result.get(CaptureResult.CONTROL_AWB_MODE);
+            aperture = result.get(CaptureResult.LENS_APERTURE);
+            exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+            iso = result.get(CaptureResult.SENSOR_SENSITIVITY);
+            location = result.get(CaptureResult.JPEG_GPS_LOCATION);
+        }
+        int keys = (flashMode != null ? HAS_FLASH : 0)
+                | (focalLength != null ? HAS_FOCAL_LENGTH : 0)
+                | (awbMode != null ? HAS_WHITE_BALANCE : 0)
+                | (aperture != null ? HAS_APERTURE : 0)
+                | (exposureTime != null ? HAS_EXPOSURE_TIME : 0)
+                | (iso != null ? HAS_ISO : 0)
+                | (location != null ? HAS_GPS : 0)
+                | (thumbnail != null ? HAS_THUMBNAIL : 0);
+        ExifTemplate template = getTemplate(keys);
+        if (template == null) {
+            return null;
+        }
+        ExifTemplate.Shot shot = template.newShot();
+        shot.setOrientation(orientationInDegree);
+        shot.setDateTimeStamp(ExifInterface.TAG_DATE_TIME, System.currentTimeMillis(),
+                TimeZone.getDefault());
+        if (flashMode != null) {
+            shot.setValue(ExifInterface.TAG_FLASH, flashMode != CaptureResult.FLASH_MODE_OFF
+                    ? ExifInterface.Flash.FIRED : ExifInterface.Flash.DID_NOT_FIRED);
+        }
+        if (focalLength != null) {
+            shot.setRational(ExifInterface.TAG_FOCAL_LENGTH, (int) (focalLength * 100), 100);
+        }
+        if (awbMode != null) {
+            shot.setValue(ExifInterface.TAG_WHITE_BALANCE,
+                    awbMode == CaptureResult.CONTROL_AWB_MODE_AUTO
+                            ? ExifInterface.WhiteBalance.AUTO
+                            : ExifInterface.WhiteBalance.MANUAL);
+        }
+        if (aperture != null) {
+            shot.setRational(ExifInterface.TAG_APERTURE_VALUE, (int) (aperture * 100), 100);
+        }
+        if (exposureTime != null) {
+            shot.setRational(ExifInterface.TAG_EXPOSURE_TIME, exposureTime / 1000000, 1000);
+        }
+        if (iso != null) {
+            shot.setValue(ExifInterface.TAG_ISO_SPEED_RATINGS, iso);
+        }
+        if (location != null) {
+            shot.setGpsLocation(location.getLatitude(), location.getLongitude());
+        }
+        if (thumbnail != null && !shot.setThumbnail(thumbnail)) {
+            Log.w(TAG, "Thumbnail of " + thumbnail.length + " bytes does not fit in EXIF");
+            shot.setThumbnail(null);
+        }
+        return shot;
+    }
+
+    /**
+     * Drops the templates built so far, the next shots build them again.
+     */
+    public void clear() {
+        synchronized (mTemplates) {
+            Arrays.fill(mTemplates, null);
+        }
+    }
+
+    private ExifTemplate getTemplate(int keys) {
+        synchronized (mTemplates) {
+            if (mTemplates[keys] == null) {
+                // Placeholders only decide the layout, every value is patched per shot.
+                ExifInterface exif = new ExifInterface();
+                exif.addMakeAndModelTag();
+                exif.addOrientationTag(0);
+                exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, 0, TimeZone.getDefault());
+                if ((keys & HAS_FLASH) != 0) {
+                    exif.addFlashTag(false);
+                }
+                if ((keys & HAS_FOCAL_LENGTH) != 0) {
+                    exif.addFocalLength(new Rational(0, 100));
+                }
+                if ((keys & HAS_WHITE_BALANCE) != 0) {
+                    exif.addWhiteBalanceMode(CaptureResult.CONTROL_AWB_MODE_AUTO);
+                }
+                if ((keys & HAS_APERTURE) != 0) {
+                    exif.addAperture(new Rational(0, 100));
+                }
+                if ((keys & HAS_EXPOSURE_TIME) != 0) {
+                    exif.addExposureTime(new Rational(0, 1000));
+                }
+                if ((keys & HAS_ISO) != 0) {
+                    exif.addISO(0);
+                }
+                if ((keys & HAS_GPS) != 0) {
+                    exif.addGpsTags(0, 0);
+                }
+                if ((keys & HAS_THUMBNAIL) != 0) {
+                    // Just SOI and EOI, the slot is filled per shot.
+                    exif.setCompressedThumbnail(new byte[] {
+                            (byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xd9
+                    });
+                }
+                try {
+                    mTemplates[keys] = ExifTemplate.compile(exif);
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not build EXIF template", e);
+                }
+            }
+            return mTemplates[keys];
+        }
+    }
+
+    /**
+     * Shrinks the region of interest of the image so that its longest side is at
+     * most {@link #THUMBNAIL_SIZE} and compresses it, for the EXIF thumbnail.
+     *
+     * @return the thumbnail, or null if the region is too small to shrink.
+     */
+    public static byte[] encodeThumbnail(ImageFilter.ResultImage image) {
+        Rect roi = image.outRoi;
+        int left = roi.left & ~1;
+        int top = roi.top & ~1;
+        int width = roi.right - left;
+        int height = roi.bottom - top;
+        int ratio = (Math.max(width, height) + THUMBNAIL_SIZE - 1) / THUMBNAIL_SIZE;
+        int thumbWidth = NV21Kernels.shrunkSize(width, ratio);
+        int thumbHeight = NV21Kernels.shrunkSize(height, ratio);
+        if (thumbWidth == 0 || thumbHeight == 0) {
+            return null;
+        }
+        byte[] nv21 = new byte[thumbWidth * thumbHeight * 3 / 2];
+        NV21Kernels.shrink(image.outBuffer.array(), image.stride, image.height, left, top,
+                width, height, ratio, nv21);
+        YuvImage im = new YuvImage(nv21, ImageFormat.NV21, thumbWidth, thumbHeight, null);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(thumbWidth * thumbHeight / 4);
+        im.compressToJpeg(new Rect(0, 0, thumbWidth, thumbHeight), THUMBNAIL_QUALITY, out);
+        return out.toByteArray();
+    }
+
+    public static Result encode(ImageFilter.ResultImage image, int quality, ExifInterface exif) {
+        return encode(image.outBuffer.array(), image.width, image.height, image.stride,
+                image.stride, image.outRoi, quality, exif);
+    }
+
+    public static Result encode(byte[] nv21, int width, int height, int yStride, int vuStride,
+                                Rect roi, int quality, ExifInterface exif) {
+        YuvImage im = new YuvImage(nv21, ImageFormat.NV21, width, height,
+                new int[]{yStride, vuStride});
+        JpegBuffer buffer = new JpegBuffer(estimateSize(roi, quality));
+        OutputStream out = buffer;
+        if (exif != null) {
+            out = exif.getUnbufferedExifWriterStream(buffer);
+        }
+        im.compressToJpeg(roi, quality, out);
+        try {
+            out.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write EXIF", e);
+        }
+        return new Result(buffer.array(), buffer.size(), exif);
+    }
+
+    public static Result encode(ImageFilter.ResultImage image, int quality,
+                                ExifTemplate.Shot exif) {
+        return encode(image.outBuffer.array(), image.width, image.height, image.stride,
+                image.stride, image.outRoi, quality, exif);
+    }
+
+    /**
+     * Same as {@link #encode(byte[], int, int, int, int, Rect, int, ExifInterface)}
+     * with the EXIF header taken from a template shot. The result carries no
+     * ExifInterface; the header is already in the jpeg.
+     */
+    public static Result encode(byte[] nv21, int width, int height, int yStride, int vuStride,
+                                Rect roi, int quality, ExifTemplate.Shot exif) {
+        YuvImage im = new YuvImage(nv21, ImageFormat.NV21, width, height,
+                new int[]{yStride, vuStride});
+        JpegBuffer buffer = new JpegBuffer(estimateSize(roi, quality));
+        OutputStream out = buffer;
+        if (exif != null) {
+            out = exif.getWriterStream(buffer);
+        }
+        im.compressToJpeg(roi, quality, out);
+        try {
+            out.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write EXIF", e);
+        }
+        return new Result(buffer.array(), buffer.size(), null);
+    }
+
+    private static int estimateSize(Rect roi, int quality) {
+        // Roughly 2 bits per pixel at quality 50 and 4 at quality 100.
+        long pixels = (long) roi.width() * roi.height();
+        return (int) Math.min(Integer.MAX_VALUE - EXIF_RESERVE,
+                pixels * Math.max(quality, 10) / 200) + EXIF_RESERVE;
+    }
+
+    private static class JpegBuffer extends ByteArrayOutputStream {
+        JpegBuffer(int size) {
+            super(size);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+}
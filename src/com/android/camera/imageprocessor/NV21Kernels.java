@@ -0,0 +1,484 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.imageprocessor;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * NV21 image operations in plain Java. Every operation writes into buffers supplied by
+ * the caller and allocates no image data; a call only creates its row kernel and, for
+ * images large enough to split, the fork/join tasks. Large images are split into bands
+ * of rows that run in parallel on a fork/join pool; rotations walk each band in square
+ * tiles so that the column-wise reads stay within the cache.
+ *
+ * Unless stated otherwise, input frames have a luma plane of stride * height bytes
+ * followed by interleaved VU rows of the same stride, and outputs are packed.
+ */
+public final class NV21Kernels {
+    private static final int TILE = 32;
+    // Below this many pixels a task is not worth forking.
+    private static final int MIN_PIXELS_PER_TASK = 64 * 1024;
+
+    private static final ForkJoinPool sPool =
+            new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    interface RowKernel {
+        void run(int from, int to);
+    }
+
+    private static class RowTask extends RecursiveAction {
+        private final RowKernel mKernel;
+        private final int mFrom;
+        private final int mTo;
+        private final int mGrain;
+        private final int mAlign;
+
+        RowTask(RowKernel kernel, int from, int to, int grain, int align) {
+            mKernel = kernel;
+            mFrom = from;
+            mTo = to;
+            mGrain = grain;
+            mAlign = align;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= mGrain) {
+                mKernel.run(mFrom, mTo);
+                return;
+            }
+            int mid = mFrom + Math.max(mAlign, (mTo - mFrom) / 2 / mAlign * mAlign);
+            invokeAll(new RowTask(mKernel, mFrom, mid, mGrain, mAlign),
+                    new RowTask(mKernel, mid, mTo, mGrain, mAlign));
+        }
+    }
+
+    private NV21Kernels() {
+    }
+
+    /**
+     * Runs kernel over [0, rows), in parallel when there is enough work. Bands start at
+     * multiples of align rows.
+     */
+    static void forEachRow(int rows, int pixelsPerRow, int align, RowKernel kernel) {
+        int grain = Math.max(align, MIN_PIXELS_PER_TASK / Math.max(1, pixelsPerRow));
+        grain = (grain + align - 1) / align * align;
+        if (rows <= grain || sPool.getParallelism() == 1) {
+            kernel.run(0, rows);
+        } else {
+            sPool.invoke(new RowTask(kernel, 0, rows, grain, align));
+        }
+    }
+
+    /**
+     * Rotates a frame clockwise by degrees (0, 90, 180 or 270) and optionally mirrors the
+     * result horizontally. The output is packed; for 90 and 270 degrees it is height
+     * pixels wide and width pixels high. width and height must be even.
+     */
+    public static void rotate(final byte[] src, int width, int height, int stride,
+                              int degrees, boolean mirror, final byte[] dst) {
+        boolean transposed = degrees == 90 || degrees == 270;
+        int dstWidth = transposed ? height : width;
+        int dstHeight = transposed ? width : height;
+        final int lumaSize = stride * height;
+        final int dstLumaSize = dstWidth * dstHeight;
+        transform(src, 0, degrees, mirror, width, height, stride, dst, 0, dstWidth, 1);
+        transform(src, lumaSize, degrees, mirror, width / 2, height / 2, stride,
+                dst, dstLumaSize, dstWidth, 2);
+    }
+
+    /**
+     * Rotates one plane of width x height pixels of pixelSize bytes into dst at
+     * dstOffset. The index of the source pixel for output (r, c) is
+     * origin + r * rowStep + c * colStep, in pixels for the luma plane and in VU pairs
+     * for the chroma plane.
+     */
+    private static void transform(final byte[] src, int srcOffset, int degrees,
+                                  boolean mirror, int width, int height, int stride,
+                                  final byte[] dst, final int dstOffset, final int dstStride,
+                                  final int pixelSize) {
+        boolean transposed = degrees == 90 || degrees == 270;
+        int rows = transposed ? width : height;
+        final int cols = transposed ? height : width;
+        int origin;
+        int rowStep;
+        int colStep;
+        switch (degrees) {
+            case 0:
+                origin = 0;
+                rowStep = stride;
+                colStep = pixelSize;
+                break;
+            case 90:
+                origin = (height - 1) * stride;
+                rowStep = pixelSize;
+                colStep = -stride;
+                break;
+            case 180:
+                origin = (height - 1) * stride + (width - 1) * pixelSize;
+                rowStep = -stride;
+                colStep = -pixelSize;
+                break;
+            case 270:
+                origin = (width - 1) * pixelSize;
+                rowStep = -pixelSize;
+                colStep = stride;
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported rotation " + degrees);
+        }
+        if (mirror) {
+            origin += (cols - 1) * colStep;
+            colStep = -colStep;
+        }
+        final int start = srcOffset + origin;
+        final int rowInc = rowStep;
+        final int colInc = colStep;
+        forEachRow(rows, cols, TILE, new RowKernel() {
+            @Override
+            public void run(int from, int to) {
+                for (int r0 = from; r0 < to; r0 += TILE) {
+                    int r1 = Math.min(r0 + TILE, to);
+                    for (int c0 = 0; c0 < cols; c0 += TILE) {
+                        int c1 = Math.min(c0 + TILE, cols);
+                        for (int r = r0; r < r1; r++) {
+                            int s = start + r * rowInc + c0 * colInc;
+                            int d = dstOffset + r * dstStride + c0 * pixelSize;
+                            if (pixelSize == 1) {
+                                for (int c = c0; c < c1; c++, s += colInc) {
+                                    dst[d++] = src[s];
+                                }
+                            } else {
+                                for (int c = c0; c < c1; c++, s += colInc) {
+                                    dst[d++] = src[s];
+                                    dst[d++] = src[s + 1];
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Mirrors a frame in place, top to bottom when vertical is set and left to right
+     * otherwise. A vertical flip moves whole rows including the stride padding.
+     */
+    public static void mirror(final byte[] buf, final int width, final int height,
+                              final int stride, boolean vertical) {
+        final int lumaSize = stride * height;
+        if (vertical) {
+            forEachRow(height / 2, stride, 2, new RowKernel() {
+                @Override
+                public void run(int from, int to) {
+                    for (int y = from; y < to; y++) {
+                        swapRows(buf, y * stride, (height - 1 - y) * stride, stride);
+                    }
+                    int chromaRows = height / 2;
+                    for (int y = from / 2; y < (to + 1) / 2 && y < chromaRows / 2; y++) {
+                        swapRows(buf, lumaSize + y * stride,
+                                lumaSize + (chromaRows - 1 - y) * stride, stride);
+                    }
+                }
+            });
+        } else {
+            forEachRow(height, width, 2, new RowKernel() {
+                @Override
+                public void run(int from, int to) {
+                    for (int y = from; y < to; y++) {
+                        int left = y * stride;
+                        int right = left + width - 1;
+                        while (left < right) {
+                            byte t = buf[left];
+                            buf[left++] = buf[right];
+                            buf[right--] = t;
+                        }
+                        if (y % 2 == 0) {
+                            // VU pairs keep their byte order.
+                            left = lumaSize + y / 2 * stride;
+                            right = left + width - 2;
+                            while (left < right) {
+                                byte v = buf[left];
+                                byte u = buf[left + 1];
+                                buf[left] = buf[right];
+                                buf[left + 1] = buf[right + 1];
+                                buf[right] = v;
+                                buf[right + 1] = u;
+                                left += 2;
+                                right -= 2;
+                            }
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private static void swapRows(byte[] buf, int a, int b, int length) {
+        for (int i = 0; i < length; i++) {
+            byte t = buf[a + i];
+            buf[a + i] = buf[b + i];
+            buf[b + i] = t;
+        }
+    }
+
+    /**
+     * Copies the even aligned rectangle (left, top, width, height) of a frame with the
+     * given stride and total height into dst with dstStride.
+     */
+    public static void crop(final byte[] src, final int stride, int srcHeight,
+                            final int left, final int top, final int width, final int height,
+                            final byte[] dst, final int dstStride) {
+        if ((left | top | width | height) % 2 != 0) {
+            throw new IllegalArgumentException("Crop must be even aligned");
+        }
+        final int lumaSize = stride * srcHeight;
+        final int dstLumaSize = dstStride * height;
+        forEachRow(height, width, 2, new RowKernel() {
+            @Override
+            public void run(int from, int to) {
+                for (int y = from; y < to; y++) {
+                    System.arraycopy(src, (top + y) * stride + left, dst, y * dstStride, width);
+                    if (y % 2 == 0) {
+                        System.arraycopy(src, lumaSize + (top + y) / 2 * stride + left,
+                                dst, dstLumaSize + y / 2 * dstStride, width);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Splits a frame into separate luma and chroma buffers, changing the stride from
+     * srcStride to dstStride.
+     */
+    public static void split(final byte[] src, final int width, final int height,
+                             final int srcStride, final byte[] dstY, final byte[] dstVU,
+                             final int dstStride) {
+        final int lumaSize = srcStride * height;
+        forEachRow(height, width, 2, new RowKernel() {
+            @Override
+            public void run(int from, int to) {
+                for (int y = from; y < to; y++) {
+                    System.arraycopy(src, y * srcStride, dstY, y * dstStride, width);
+                    if (y < height / 2) {
+                        System.arraycopy(src, lumaSize + y * srcStride, dstVU, y * dstStride,
+                                width);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Downscales a frame by the largest whole ratio that fits newWidth x newHeight,
+     * averaging ratio x ratio blocks and cropping the centre when the aspect ratios
+     * differ. The output is packed and newWidth x newHeight. Returns the ratio.
+     */
+    public static int resize(final byte[] src, int width, int height, final int stride,
+                             final byte[] dst, final int newWidth, final int newHeight) {
+        int adjustedWidth = width;
+        if ((float) width / height != (float) newWidth / newHeight) {
+            adjustedWidth = (int) (((float) newWidth / newHeight) * height);
+        }
+        int wR = adjustedWidth / newWidth;
+        int hR = height / newHeight;
+        if (wR < hR && adjustedWidth - newWidth * wR >= adjustedWidth / 4) {
+            wR++;
+        }
+        if (hR < wR && height - newHeight * hR >= height / 4) {
+            hR++;
+        }
+        final int ratio = Math.min(wR, hR);
+        if (ratio < 1) {
+            throw new IllegalArgumentException("Can not upscale " + width + "x" + height
+                    + " to " + newWidth + "x" + newHeight);
+        }
+        final int left = (width - newWidth * ratio) / 2;
+        final int top = (height - newHeight * ratio) / 2;
+        final int lumaSize = stride * height;
+        final int area = ratio * ratio;
+        forEachRow(newHeight, newWidth * area, 1, new RowKernel() {
+            @Override
+            public void run(int from, int to) {
+                for (int row = from; row < to; row++) {
+                    int j = top + row * ratio;
+                    int index = row * newWidth;
+                    for (int col = 0; col < newWidth; col++) {
+                        int i = left + col * ratio;
+                        int sum = 0;
+                        for (int y = 0; y < ratio; y++) {
+                            int s = (j + y) * stride + i;
+                            for (int x = 0; x < ratio; x++) {
+                                sum += src[s + x] & 0xFF;
+                            }
+                        }
+                        dst[index++] = (byte) (sum / area);
+                    }
+                }
+            }
+        });
+        final int chromaCols = (newWidth + 1) / 2;
+        final int chromaRows = (newHeight + 1) / 2;
+        final int dstLumaSize = newWidth * newHeight;
+        forEachRow(chromaRows, chromaCols * area, 1, new RowKernel() {
+            @Override
+            public void run(int from, int to) {
+                for (int row = from; row < to; row++) {
+                    int j = top + row * ratio * 2;
+                    int index = dstLumaSize + row * chromaCols * 2;
+                    for (int col = 0; col < chromaCols; col++) {
+                        int i = left + col * ratio * 2;
+                        int v = 0;
+                        int u = 0;
+                        for (int y = 0; y < ratio * 2; y += 2) {
+                            int s = lumaSize + (j + y) / 2 * stride;
+                            for (int x = 0; x < ratio * 2; x += 2) {
+                                int p = s + (i + x) / 2 * 2;
+                                v += src[p] & 0xFF;
+                                u += src[p + 1] & 0xFF;
+                            }
+                        }
+                        dst[index++] = (byte) (v / area);
+                        dst[index++] = (byte) (u / area);
+                    }
+                }
+            }
+        });
+        return ratio;
+    }
+
+    /**
+     * Downscales the even aligned rectangle (left, top, width, height) of a frame by a
+     * whole ratio, averaging ratio x ratio blocks. The output is packed and
+     * {@link #shrunkSize}(width, ratio) x {@link #shrunkSize}(height, ratio); edge pixels
+     * that do not fill a whole block are dropped.
+     */
+    public static void shrink(final byte[] src, final int stride, int srcHeight,
+                              final int left, final int top, int width, int height,
+                              final int ratio, final byte[] dst) {
+        if ((left | top) % 2 != 0 || ratio < 1) {
+            throw new IllegalArgumentException("Bad shrink " + left + "," + top + " / " + ratio);
+        }
+        final int newWidth = shrunkSize(width, ratio);
+        final int newHeight = shrunkSize(height, ratio);
+        final int lumaSize = stride * srcHeight;
+        final int area = ratio * ratio;
+        forEachRow(newHeight, newWidth * area, 2, new RowKernel() {
+            @Override
+            public void run(int from, int to) {
+                for (int row = from; row < to; row++) {
+                    int index = row * newWidth;
+                    int s = (top + row * ratio) * stride + left;
+                    for (int col = 0; col < newWidth; col++, s += ratio) {
+                        int sum = 0;
+                        for (int y = 0, p = s; y < ratio; y++, p += stride) {
+                            for (int x = 0; x < ratio; x++) {
+                                sum += src[p + x] & 0xFF;
+                            }
+                        }
+                        dst[index++] = (byte) (sum / area);
+                    }
+                    if (row % 2 != 0) {
+                        continue;
+                    }
+                    // Each VU pair covers a 2 x 2 block, so a chroma block is ratio x
+                    // ratio pairs starting at the same place.
+                    index = newWidth * newHeight + row / 2 * newWidth;
+                    s = lumaSize + (top / 2 + row / 2 * ratio) * stride + left;
+                    for (int col = 0; col < newWidth / 2; col++, s += ratio * 2) {
+                        int v = 0;
+                        int u = 0;
+                        for (int y = 0, p = s; y < ratio; y++, p += stride) {
+                            for (int x = 0; x < ratio * 2; x += 2) {
+                                v += src[p + x] & 0xFF;
+                                u += src[p + x + 1] & 0xFF;
+                            }
+                        }
+                        dst[index++] = (byte) (v / area);
+                        dst[index++] = (byte) (u / area);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the size {@link #shrink} gives a side of the given length, rounded down
+     * to even.
+     */
+    public static int shrunkSize(int length, int ratio) {
+        return length / ratio & ~1;
+    }
+
+    // BT.601 full range coefficients in 16.16 fixed point.
+    private static final int RV = 89831;  // 1.370705
+    private static final int GV = 45744;  // 0.698001
+    private static final int GU = 22127;  // 0.337633
+    private static final int BU = 113538; // 1.732446
+
+    /**
+     * Converts a frame to RGBA, 4 bytes per pixel, packed.
+     */
+    public static void toRgba(final byte[] src, final int width, int height, final int stride,
+                              final byte[] dst) {
+        final int lumaSize = stride * height;
+        forEachRow(height, width, 2, new RowKernel() {
+            @Override
+            public void run(int from, int to) {
+                for (int y = from; y < to; y++) {
+                    int s = y * stride;
+                    int vu = lumaSize + y / 2 * stride;
+                    int d = y * width * 4;
+                    for (int x = 0; x < width; x += 2) {
+                        int v = (src[vu + x] & 0xFF) - 128;
+                        int u = (src[vu + x + 1] & 0xFF) - 128;
+                        int dr = (RV * v) >> 16;
+                        int dg = (GV * v + GU * u) >> 16;
+                        int db = (BU * u) >> 16;
+                        for (int k = 0; k < 2 && x + k < width; k++) {
+                            int luma = src[s + x + k] & 0xFF;
+                            dst[d++] = clamp(luma + dr);
+                            dst[d++] = clamp(luma - dg);
+                            dst[d++] = clamp(luma + db);
+                            dst[d++] = (byte) 0xFF;
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    private static byte clamp(int value) {
+        return (byte) (value < 0 ? 0 : value > 255 ? 255 : value);
+    }
+}
@@ -34,7 +34,6 @@ import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.graphics.ImageFormat;
 import android.graphics.Rect;
-import android.graphics.YuvImage;
 import android.hardware.Camera;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
@@ -61,10 +60,11 @@ import com.android.camera.CaptureModule;
 import com.android.camera.Exif;
 import com.android.camera.MediaSaveService;
 import com.android.camera.PhotoModule;
+import com.android.camera.SaveScheduler;
 import com.android.camera.SettingsManager;
 import com.android.camera.deepportrait.DPImage;
 import com.android.camera.exif.ExifInterface;
-import com.android.camera.exif.Rational;
+import com.android.camera.exif.ExifTemplate;
 import com.android.camera.imageprocessor.filter.BestpictureFilter;
 import com.android.camera.imageprocessor.filter.BlurbusterFilter;
 import com.android.camera.imageprocessor.filter.ChromaflashFilter;
@@ -81,11 +81,12 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import android.util.Size;
-import java.util.TimeZone;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.android.camera.imageprocessor.filter.ImageFilter;
 import com.android.camera.util.CameraUtil;
@@ -110,6 +111,11 @@ public class PostProcessor{
 
     //BestPicture requires 10 which is the biggest among filters
     private static final int MAX_REQUIRED_IMAGE_NUM = 11;
+    private static final int META_DATA_TIMEOUT_MS = 100;
+    //Shots handed off for filtering/encoding while the next one is being captured.
+    private static final int MAX_PENDING_SHOTS = 2;
+    //Results waiting for or being encoded on the saving thread, each holds a frame buffer.
+    private static final int MAX_QUEUED_RESULTS = 2;
     private int mCurrentNumImage = 0;
     private ImageFilter mFilter;
     private int mFilterIndex;
@@ -121,6 +127,8 @@ public class PostProcessor{
     private int mStride;
     private Object lock = new Object();
     private ImageFilter.ResultImage mDefaultResultImage;  //This is used only no filter is chosen.
+    private FrameBufferPool mBufferPool = FrameBufferPool.getInstance();
+    private final JpegPackager mJpegPackager = new JpegPackager();
     private Image[] mImages;
     private PhotoModule.NamedImages mNamedImages;
     private WatchdogThread mWatchdog;
@@ -135,6 +143,7 @@ public class PostProcessor{
             (PersistUtil.getCamera2Debug() == PersistUtil.CAMERA2_DEBUG_DUMP_ALL);
 
     private ZSLQueue mZSLQueue;
+    private ZSLCapacityManager mZSLCapacityManager;
     private CameraDevice mCameraDevice;
     private CameraCaptureSession mCaptureSession;
     private ImageReader mImageReader;
@@ -145,8 +154,18 @@ public class PostProcessor{
     private HandlerThread mZSLHandlerThread;
     private Handler mSavingHander;
     private HandlerThread mSavingHandlerThread;
+    private final AtomicInteger mPendingShots = new AtomicInteger(0);
+    //Every result has its own buffer, so the next shot is filtered while the previous
+    //one is encoded. The processing thread waits here when the saving thread is behind.
+    private final Semaphore mSaveQueueSlots = new Semaphore(MAX_QUEUED_RESULTS);
     private ImageHandlerTask mImageHandlerTask;
-    private LinkedList<TotalCaptureResult> mTotalCaptureResultList = new LinkedList<TotalCaptureResult>();
+    //Preview results go through here too, so only about a second of them is kept. The
+    //frames of a shot are held until the shot is saved.
+    private CaptureResultRegistry mResultRegistry =
+            new CaptureResultRegistry(MAX_REQUIRED_IMAGE_NUM * 3);
+    private long[] mImageTimestamps = new long[MAX_REQUIRED_IMAGE_NUM];
+    //Whether processImage took over the frames held for mImageTimestamps.
+    private boolean mImageTimestampsClaimed = true;
     private TotalCaptureResult mZSLFallOffResult = null;
     private boolean mIsZSLFallOff = false;
     private TotalCaptureResult mLatestResultForLongShot = null;
@@ -164,7 +183,20 @@ public class PostProcessor{
     }
 
     public void onStartCapturing() {
-        mTotalCaptureResultList.clear();
+        if (!mImageTimestampsClaimed) {
+            //The last burst was never processed, nobody will release its frames.
+            releaseResults(mImageTimestamps);
+        }
+        Arrays.fill(mImageTimestamps, 0);
+        mImageTimestampsClaimed = false;
+    }
+
+    private void releaseResults(long[] timestamps) {
+        for (long timestamp : timestamps) {
+            if (timestamp != 0) {
+                mResultRegistry.release(timestamp);
+            }
+        }
     }
 
     public ImageReader getZSLReprocessImageReader() {
@@ -384,9 +416,14 @@ public class PostProcessor{
 
     public void setRawImageReader(ImageReader rawImageReader) {
         mImageHandlerTask.setRawImageReader(rawImageReader);
+        if (mZSLCapacityManager != null) {
+            mZSLCapacityManager.setRawFrameSize(rawImageReader.getWidth(),
+                    rawImageReader.getHeight(), rawImageReader.getImageFormat());
+        }
     }
 
     public void onMetaAvailable(TotalCaptureResult metadata) {
+        mResultRegistry.onResult(metadata);
         if(mUseZSL && mZSLQueue != null) {
             mZSLQueue.add(metadata);
         }
@@ -400,10 +437,8 @@ public class PostProcessor{
                                        CaptureRequest request,
                                        TotalCaptureResult result) {
             Log.d(TAG, "onCaptureCompleted");
-            if(mTotalCaptureResultList.size() <= PostProcessor.MAX_REQUIRED_IMAGE_NUM) {
-                mTotalCaptureResultList.add(result);
-            }
             if(mIsZSLFallOff) {
+                mResultRegistry.onResult(result);
                 mZSLFallOffResult = result;
             } else {
                 onMetaAvailable(result);
@@ -442,6 +477,10 @@ public class PostProcessor{
     public void onImageReaderReady(ImageReader imageReader, Size maxSize, Size pictureSize) {
         mImageReader = imageReader;
         if(mUseZSL) {
+            if (mZSLCapacityManager != null) {
+                mZSLCapacityManager.setFrameSize(imageReader.getWidth(), imageReader.getHeight(),
+                        imageReader.getImageFormat());
+            }
             mZSLReprocessImageReader = ImageReader.newInstance(pictureSize.getWidth(), pictureSize.getHeight(), ImageFormat.JPEG, mMaxRequiredImageNum);
             mZSLReprocessImageReader.setOnImageAvailableListener(processedImageAvailableListener, mHandler);
         }
@@ -639,7 +678,9 @@ public class PostProcessor{
         mNamedImages.nameNewImage(captureStartTime);
         PhotoModule.NamedImages.NamedEntity name = mNamedImages.getNextNameEntity();
         String title = (name == null) ? null : name.title;
-        mActivity.getMediaSaveService().addRawImage(data, title, "raw");
+        long date = (name == null) ? -1 : name.date;
+        mController.saveRawImage(image, data, title, date, mController.getMainCameraId(),
+                mResultRegistry.await(image.getTimestamp(), META_DATA_TIMEOUT_MS));
         image.close();
     }
 
@@ -659,9 +700,15 @@ public class PostProcessor{
     public boolean isItBusy() {
         if(mStatus == STATUS.BUSY)
             return true;
+        if(mPendingShots.get() >= MAX_PENDING_SHOTS)
+            return true;
         return false;
     }
 
+    public int getPendingShotCount() {
+        return mPendingShots.get();
+    }
+
     public List<CaptureRequest> setRequiredImages(CaptureRequest.Builder builder) {
         if(mFilter == null) {
             List<CaptureRequest> list = new ArrayList<CaptureRequest>();
@@ -732,7 +779,8 @@ public class PostProcessor{
         Log.d(TAG,"ZSL is "+mUseZSL);
         startBackgroundThread();
         if(mUseZSL) {
-            mZSLQueue = new ZSLQueue(mController);
+            mZSLCapacityManager = new ZSLCapacityManager(mActivity);
+            mZSLQueue = new ZSLQueue(mController, mZSLCapacityManager);
         }
         mMaxRequiredImageNum = MAX_REQUIRED_IMAGE_NUM;
         mPendingContinuousRequestCount = 0;
@@ -755,6 +803,10 @@ public class PostProcessor{
             mZSLQueue.onClose();
             mZSLQueue = null;
         }
+        if(mZSLCapacityManager != null) {
+            mZSLCapacityManager.release();
+            mZSLCapacityManager = null;
+        }
         if (mImageWriter != null) {
             mImageWriter.close();
             mImageWriter = null;
@@ -767,6 +819,13 @@ public class PostProcessor{
         mCaptureSession = null;
         mImageReader = null;
         mPendingContinuousRequestCount = 0;
+        synchronized (lock) {
+            setDefaultResultImage(null);
+        }
+        //Nothing is captured until the camera is opened again.
+        mBufferPool.clear();
+        mJpegPackager.clear();
+        if (DEBUG_ZSL) Log.d(TAG, "Frame buffers: " + mBufferPool);
     }
 
     private void startBackgroundThread() {
@@ -996,6 +1055,10 @@ public class PostProcessor{
         }
         final int numImage = mCurrentNumImage;
         mCurrentNumImage++;
+        if (numImage < mImageTimestamps.length) {
+            mImageTimestamps[numImage] = image.getTimestamp();
+            mResultRegistry.hold(image.getTimestamp());
+        }
         if(mHandler == null) {
             return;
         }
@@ -1017,9 +1080,8 @@ public class PostProcessor{
                                 long current = System.currentTimeMillis();
                                 deepPortraitFilter.addImage(null,null,0,dpImage);
                                 if (DEBUG_DUMP_FILTER_IMG) {
-                                    ImageFilter.ResultImage debugResultImage = new
-                                            ImageFilter.ResultImage(ByteBuffer.allocateDirect(
-                                            mStride * mHeight * 3 / 2), new Rect(0, 0, mWidth,
+                                    ImageFilter.ResultImage debugResultImage = new ImageFilter.ResultImage(
+                                            mBufferPool.acquire(mStride * mHeight * 3 / 2), new Rect(0, 0, mWidth,
                                             mHeight), mWidth, mHeight, mStride);
                                     yBuf.get(debugResultImage.outBuffer.array(), 0, yBuf.remaining());
                                     vuBuf.get(debugResultImage.outBuffer.array(), mStride * mHeight,
@@ -1028,12 +1090,14 @@ public class PostProcessor{
                                     vuBuf.rewind();
 
                                     byte[] bytes = nv21ToJpeg(debugResultImage, mOrientation, null);
+                                    debugResultImage.release();
                                     mActivity.getMediaSaveService().addImage(
                                             bytes, "Debug_beforeApplyingFilter" + numImage, 0L, null,
                                             debugResultImage.outRoi.width(),
                                             debugResultImage.outRoi.height(),
                                             mOrientation, null, mController.getMediaSavedListener(),
-                                            mActivity.getContentResolver(), "jpeg");
+                                            mActivity.getContentResolver(), "jpeg",
+                                            SaveScheduler.Priority.DEBUG);
 
                                     if (dpImage.mMask != null) {
                                         ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -1046,47 +1110,49 @@ public class PostProcessor{
                                                 dpImage.mMaskWidth,
                                                 dpImage.mMaskHeight,
                                                 mOrientation, null, mController.getMediaSavedListener(),
-                                                mActivity.getContentResolver(), "jpeg");
+                                                mActivity.getContentResolver(), "jpeg",
+                                                SaveScheduler.Priority.DEBUG);
                                     }
                                 }
                                 if (dpImage.mMask == null) {
                                     Log.d(TAG,"can't generate deepportrait mask");
-                                    mDefaultResultImage = new ImageFilter.ResultImage(
-                                            ByteBuffer.allocateDirect(mStride * mHeight*3/2),
-                                            new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStride);
+                                    setDefaultResultImage(new ImageFilter.ResultImage(
+                                            mBufferPool.acquire(mStride * mHeight*3/2),
+                                            new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStride));
                                     yBuf.get(mDefaultResultImage.outBuffer.array(), 0, yBuf.remaining());
                                     vuBuf.get(mDefaultResultImage.outBuffer.array(), mStride*mHeight, vuBuf.remaining());
                                 } else {
-                                    ByteBuffer dstY = ByteBuffer.allocateDirect(yBuf.capacity());
-                                    ByteBuffer dstVU = ByteBuffer.allocateDirect(vuBuf.capacity());
+                                    FrameBufferPool.Buffer dstY = mBufferPool.acquire(yBuf.capacity());
+                                    FrameBufferPool.Buffer dstVU = mBufferPool.acquire(vuBuf.capacity());
                                     final SharedPreferences prefs =
                                             PreferenceManager.getDefaultSharedPreferences(mActivity);
                                     int level = prefs.getInt(SettingsManager.KEY_DEEPPORTRAIT_VALUE
                                             ,50);
                                     deepPortraitFilter.renderDeepportraitImage(
-                                            dpImage,dstY,dstVU,0, level/100f);
+                                            dpImage,dstY.getBuffer(),dstVU.getBuffer(),0, level/100f);
                                     Log.d(TAG,"process Dp snapshot cost time "+ (System.currentTimeMillis() - current));
-                                    mDefaultResultImage = new ImageFilter.ResultImage(
-                                            ByteBuffer.allocateDirect(mStride * mHeight*3/2),
-                                            new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStride);
-                                    dstY.get(mDefaultResultImage.outBuffer.array(), 0,
-                                            dstY.remaining());
-                                    dstVU.get(mDefaultResultImage.outBuffer.array(), mStride*mHeight,
-                                            dstVU.remaining());
+                                    setDefaultResultImage(new ImageFilter.ResultImage(
+                                            mBufferPool.acquire(mStride * mHeight*3/2),
+                                            new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStride));
+                                    dstY.getBuffer().get(mDefaultResultImage.outBuffer.array(), 0,
+                                            dstY.getBuffer().remaining());
+                                    dstVU.getBuffer().get(mDefaultResultImage.outBuffer.array(), mStride*mHeight,
+                                            dstVU.getBuffer().remaining());
+                                    dstY.release();
+                                    dstVU.release();
                                 }
                             } else {
-                                mDefaultResultImage = new ImageFilter.ResultImage(
-                                        ByteBuffer.allocateDirect(mStride * mHeight*3/2),
-                                        new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStride);
+                                setDefaultResultImage(new ImageFilter.ResultImage(
+                                        mBufferPool.acquire(mStride * mHeight*3/2),
+                                        new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStride));
                                 yBuf.get(mDefaultResultImage.outBuffer.array(), 0, yBuf.remaining());
                                 vuBuf.get(mDefaultResultImage.outBuffer.array(), mStride*mHeight, vuBuf.remaining());
                             }
                             image.close();
                         } else {
                             if (DEBUG_DUMP_FILTER_IMG) {
-                                ImageFilter.ResultImage debugResultImage = new
-                                        ImageFilter.ResultImage(ByteBuffer.allocateDirect(
-                                        mStride * mHeight * 3 / 2), new Rect(0, 0, mWidth,
+                                ImageFilter.ResultImage debugResultImage = new ImageFilter.ResultImage(
+                                        mBufferPool.acquire(mStride * mHeight * 3 / 2), new Rect(0, 0, mWidth,
                                         mHeight), mWidth, mHeight, mStride);
                                 yBuf.get(debugResultImage.outBuffer.array(), 0, yBuf.remaining());
                                 vuBuf.get(debugResultImage.outBuffer.array(), mStride * mHeight,
@@ -1095,12 +1161,14 @@ public class PostProcessor{
                                 vuBuf.rewind();
 
                                 byte[] bytes = nv21ToJpeg(debugResultImage, mOrientation, null);
+                                debugResultImage.release();
                                 mActivity.getMediaSaveService().addImage(
                                         bytes, "Debug_beforeApplyingFilter" + numImage, 0L, null,
                                         debugResultImage.outRoi.width(),
                                         debugResultImage.outRoi.height(),
                                         mOrientation, null, mController.getMediaSavedListener(),
-                                        mActivity.getContentResolver(), "jpeg");
+                                        mActivity.getContentResolver(), "jpeg",
+                                        SaveScheduler.Priority.DEBUG);
                             }
                             if (mFilterIndex == FILTER_UBIFOCUS && numImage > 0) {
                                 mController.checkAndPlayShutterSound(mController.getMainCameraId());
@@ -1113,35 +1181,10 @@ public class PostProcessor{
             });
     }
 
-    public static byte[] addExifTags(byte[] jpeg, int orientationInDegree, TotalCaptureResult result) {
-        ExifInterface exif = new ExifInterface();
-        exif.addMakeAndModelTag();
-        exif.addOrientationTag(orientationInDegree);
-        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, System.currentTimeMillis(),
-                TimeZone.getDefault());
-        if(result != null) {
-            if(result.get(CaptureResult.FLASH_MODE) != null) {
-                exif.addFlashTag(result.get(CaptureResult.FLASH_MODE) != CaptureResult.FLASH_MODE_OFF);
-            }
-            if(result.get(CaptureResult.LENS_FOCAL_LENGTH) != null) {
-                exif.addFocalLength(new Rational((int)(result.get(CaptureResult.LENS_FOCAL_LENGTH)*100), 100));
-            }
-            if(result.get(CaptureResult.CONTROL_AWB_MODE) != null) {
-                exif.addWhiteBalanceMode(result.get(CaptureResult.CONTROL_AWB_MODE));
-            }
-            if(result.get(CaptureResult.LENS_APERTURE) != null) {
-                exif.addAperture(new Rational((int)(result.get(CaptureResult.LENS_APERTURE)*100), 100));
-            }
-            if(result.get(CaptureResult.SENSOR_EXPOSURE_TIME) != null) {
-                exif.addExposureTime(new Rational(result.get(CaptureResult.SENSOR_EXPOSURE_TIME)/1000000, 1000));
-            }
-            if(result.get(CaptureResult.SENSOR_SENSITIVITY) != null) {
-                exif.addISO(result.get(CaptureResult.SENSOR_SENSITIVITY));
-            }
-            if(result.get(CaptureResult.JPEG_GPS_LOCATION ) != null) {
-                exif.addGpsTags(result.get(CaptureResult.JPEG_GPS_LOCATION).getLatitude(),
-                        result.get(CaptureResult.JPEG_GPS_LOCATION).getLongitude());
-            }
+    public byte[] addExifTags(byte[] jpeg, int orientationInDegree, TotalCaptureResult result) {
+        ExifTemplate.Shot exif = mJpegPackager.buildExifShot(orientationInDegree, result);
+        if (exif == null) {
+            return jpeg;
         }
         ByteArrayOutputStream jpegOut = new ByteArrayOutputStream();
         try {
@@ -1156,6 +1199,13 @@ public class PostProcessor{
         mCurrentNumImage = 0;
     }
 
+    private void setDefaultResultImage(ImageFilter.ResultImage image) {
+        if (mDefaultResultImage != null) {
+            mDefaultResultImage.release();
+        }
+        mDefaultResultImage = image;
+    }
+
     private void processImage(final String title, final long date,
                              final MediaSaveService.OnMediaSavedListener mediaSavedListener,
                              final ContentResolver contentResolver) {
@@ -1163,16 +1213,24 @@ public class PostProcessor{
             return;
         }
         final ProcessorHandler handler = mHandler;
+        final long timestamp = mImageTimestamps[0];
+        //The frames stay held until the shot is saved.
+        final long[] timestamps = mImageTimestamps.clone();
+        mImageTimestampsClaimed = true;
+        final int orientation = mOrientation;
+        mPendingShots.incrementAndGet();
         mHandler.post(new Runnable() {
             public void run() {
-                byte[] bytes;
                 ImageFilter.ResultImage resultImage = null;
                 synchronized (lock) {
                     if (!handler.isRunning) {
+                        releaseResults(timestamps);
+                        mPendingShots.decrementAndGet();
                         return;
                     }
                     if (mFilter == null) { //In case no post filter is chosen
                         resultImage = mDefaultResultImage;
+                        mDefaultResultImage = null;
                     } else {
                         resultImage = mFilter.processImage();
                         for (int i = 0; i < mImages.length; i++) {
@@ -1194,14 +1252,13 @@ public class PostProcessor{
 
                         if(isSelfieMirrorOn() && !mController.isBackCamera()) {
                             boolean isVertical = true;
-                            if (mOrientation == 0 || mOrientation == 180) {
+                            if (orientation == 0 || orientation == 180) {
                                 isVertical = false;
                             } else {
                                 isVertical = true;
                             }
-                            nativeFlipNV21(resultImage.outBuffer.array(), resultImage.stride,
-                                    resultImage.height, resultImage.stride - resultImage.width,
-                                    isVertical);
+                            NV21Kernels.mirror(resultImage.outBuffer.array(), resultImage.width,
+                                    resultImage.height, resultImage.stride, isVertical);
                         }
                     }
                     //End processing FrameProessor filter
@@ -1210,59 +1267,94 @@ public class PostProcessor{
                     if(mWatchdog != null) {
                         mWatchdog.stopMonitor();
                     }
-                    if(resultImage == null ||
-                            (resultImage.outRoi.left + resultImage.outRoi.width() > resultImage.width) ||
-                            (resultImage.outRoi.top + resultImage.outRoi.height() > resultImage.height)
-                            ) {
-                        Log.d(TAG, "Result image is not valid.");
-                    } else {
-                        bytes = nv21ToJpeg(resultImage, mOrientation, waitForMetaData(0));
-                        if (mController.getCurrentIntentMode() ==
-                                CaptureModule.INTENT_MODE_CAPTURE) {
-                            mController.setJpegImageData(bytes);
-                            if (mController.isQuickCapture()) {
-                                mController.onCaptureDone();
-                            } else {
-                                mController.showCapturedReview(bytes, mOrientation);
+                }
+                //Encoding and saving run on the saving thread so the next shot can be
+                //filtered meanwhile.
+                mSaveQueueSlots.acquireUninterruptibly();
+                final ImageFilter.ResultImage result = resultImage;
+                Runnable saveTask = new Runnable() {
+                    public void run() {
+                        try {
+                            saveResultImage(result, orientation, timestamp, title, date,
+                                    mediaSavedListener, contentResolver);
+                        } finally {
+                            if (result != null) {
+                                result.release();
                             }
+                            releaseResults(timestamps);
+                            mSaveQueueSlots.release();
+                            mPendingShots.decrementAndGet();
                         }
-                        ExifInterface exif = Exif.getExif(bytes);
-                        mActivity.getMediaSaveService().addImage(
-                                    bytes, title, date, null, resultImage.outRoi.width(), resultImage.outRoi.height(),
-                                    mOrientation, exif, mediaSavedListener, contentResolver, "jpeg");
-                            mController.updateThumbnailJpegData(bytes);
                     }
+                };
+                Handler savingHandler = mSavingHander;
+                if (savingHandler == null || !savingHandler.post(saveTask)) {
+                    saveTask.run();
                 }
             }
         });
     }
 
-    public TotalCaptureResult waitForMetaData(int index) {
-        int timeout = 10; //100ms
-    	while(timeout > 0) {
-            if (mTotalCaptureResultList.size() > index) {
-                    return mTotalCaptureResultList.get(index);
-            }
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
+    private void saveResultImage(ImageFilter.ResultImage resultImage, int orientation,
+                                 long timestamp, String title, long date,
+                                 MediaSaveService.OnMediaSavedListener mediaSavedListener,
+                                 ContentResolver contentResolver) {
+        if(resultImage == null ||
+                (resultImage.outRoi.left + resultImage.outRoi.width() > resultImage.width) ||
+                (resultImage.outRoi.top + resultImage.outRoi.height() > resultImage.height)
+                ) {
+            Log.d(TAG, "Result image is not valid.");
+            return;
+        }
+        TotalCaptureResult captureResult = mResultRegistry.await(timestamp, META_DATA_TIMEOUT_MS);
+        JpegPackager.Result jpeg = encodeJpeg(resultImage, orientation, captureResult);
+        // The EXIF header is already in the jpeg, so it is written as it is; only the
+        // location is needed for the MediaStore.
+        Location location = captureResult == null ? null
+                : captureResult.get(CaptureResult.JPEG_GPS_LOCATION);
+        if (mController.getCurrentIntentMode() ==
+                CaptureModule.INTENT_MODE_CAPTURE) {
+            mController.setJpegImageData(jpeg.getJpeg());
+            if (mController.isQuickCapture()) {
+                mController.onCaptureDone();
+            } else {
+                mController.showCapturedReview(jpeg.getJpeg(), orientation);
             }
-            timeout--;
         }
-        if(mTotalCaptureResultList.size() == 0) {
+        //This runs on the saving thread, so wait for room in the queue instead of
+        //losing the shot.
+        mActivity.getMediaSaveService().waitForQueue(MediaSaveService.QUEUE_WAIT_TIMEOUT_MS);
+        mActivity.getMediaSaveService().addImage(
+                jpeg.buffer, jpeg.length, title, date, location, resultImage.outRoi.width(),
+                resultImage.outRoi.height(), orientation, jpeg.exif, mediaSavedListener,
+                contentResolver, "jpeg", SaveScheduler.Priority.USER);
+        // Decoders stop at the end of image marker, so the unused tail is harmless.
+        mController.updateThumbnailJpegData(jpeg.buffer);
+    }
+
+    /**
+     * Returns the capture result of the index-th image of the current burst, waiting
+     * for it if it has not arrived yet.
+     */
+    public TotalCaptureResult waitForMetaData(int index) {
+        if (index < 0 || index >= mImageTimestamps.length || mImageTimestamps[index] == 0) {
             return null;
         }
-        return mTotalCaptureResultList.get(0);
+        TotalCaptureResult result = mResultRegistry.await(mImageTimestamps[index],
+                META_DATA_TIMEOUT_MS);
+        if (DEBUG_ZSL) Log.d(TAG, "Capture results: " + mResultRegistry);
+        return result;
     }
 
     private ImageFilter.ResultImage resizeImage(ImageFilter.ResultImage oldImage, Size newSize) {
         ImageFilter.ResultImage newImage = new ImageFilter.ResultImage(
-                ByteBuffer.allocateDirect(newSize.getWidth() * newSize.getHeight() * 3/2),
+                mBufferPool.acquire(newSize.getWidth() * newSize.getHeight() * 3/2),
                 new Rect(0, 0,
                         newSize.getWidth(), newSize.getHeight()),
                 newSize.getWidth(), newSize.getHeight(), newSize.getWidth());
-        int ratio = nativeResizeImage(oldImage.outBuffer.array(), newImage.outBuffer.array(),
-                oldImage.width, oldImage.height, oldImage.stride, newSize.getWidth(), newSize.getHeight());
+        int ratio = NV21Kernels.resize(oldImage.outBuffer.array(), oldImage.width,
+                oldImage.height, oldImage.stride, newImage.outBuffer.array(),
+                newSize.getWidth(), newSize.getHeight());
         newImage.outRoi = new Rect(oldImage.outRoi.left/ratio, oldImage.outRoi.top/ratio,
                                        oldImage.outRoi.right/ratio, oldImage.outRoi.bottom/ratio);
         if(newImage.width < newImage.outRoi.width()) {
@@ -1313,17 +1405,22 @@ public class PostProcessor{
     };
 
     public byte[] nv21ToJpeg(ImageFilter.ResultImage resultImage, int orientation, TotalCaptureResult result) {
-        BitmapOutputStream bos = new BitmapOutputStream(1024);
-        YuvImage im = new YuvImage(resultImage.outBuffer.array(), ImageFormat.NV21,
-                                    resultImage.width, resultImage.height, new int[]{resultImage.stride, resultImage.stride});
+        return encodeJpeg(resultImage, orientation, result).getJpeg();
+    }
+
+    private JpegPackager.Result encodeJpeg(ImageFilter.ResultImage resultImage, int orientation,
+                                           TotalCaptureResult result) {
         if(isSelfieMirrorOn() && !mController.isBackCamera()) {
             int t = resultImage.height - (resultImage.outRoi.top + resultImage.outRoi.height());
             resultImage.outRoi = new Rect(resultImage.outRoi.left, t, resultImage.outRoi.right , resultImage.outRoi.height() + t);
         }
-        im.compressToJpeg(resultImage.outRoi, getJpegQualityValue(), bos);
-        byte[] bytes = bos.getArray();
-        bytes = addExifTags(bytes, orientation, result);
-        return bytes;
+        byte[] thumbnail = JpegPackager.encodeThumbnail(resultImage);
+        return JpegPackager.encode(resultImage, getJpegQualityValue(),
+                mJpegPackager.buildExifShot(orientation, result, thumbnail));
+    }
+
+    public JpegPackager getJpegPackager() {
+        return mJpegPackager;
     }
 
     public int getJpegQualityValue() {
@@ -1334,21 +1431,4 @@ public class PostProcessor{
         }
         return quality;
     }
-
-    private class BitmapOutputStream extends ByteArrayOutputStream {
-        public BitmapOutputStream(int size) {
-            super(size);
-        }
-
-        public byte[] getArray() {
-            return buf;
-        }
-    }
-
-    private native int nativeNV21Split(byte[] srcYVU, ByteBuffer yBuf, ByteBuffer vuBuf, int width, int height, int srcStride, int dstStride);
-    private native int nativeResizeImage(byte[] oldBuf, byte[] newBuf, int oldWidth, int oldHeight, int oldStride, int newWidth, int newHeight);
-    private native int nativeFlipNV21(byte[] buf, int stride, int height, int gap, boolean isVertical);
-    static {
-        System.loadLibrary("jni_imageutil");
-    }
 }
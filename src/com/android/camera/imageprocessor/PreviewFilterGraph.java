@@ -0,0 +1,332 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.imageprocessor;
+
+import android.os.SystemClock;
+
+import com.android.camera.imageprocessor.filter.BeautificationFilter;
+import com.android.camera.imageprocessor.filter.ImageFilter;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the preview filters on each frame. Filters that change the frame run in place,
+ * one after another in the order they were added. Frame listeners only read the frame,
+ * so once the changing filters are done they all get the frame at the same time and run
+ * in parallel on a small pool of worker threads. Every listener keeps only the newest
+ * frame it has not started on, so a slow listener skips frames without holding up the
+ * others. A listener can also be given a {@link FrameRateController} to see frames at a
+ * steady lower rate, and a downscale factor to get a smaller copy of the frame. The
+ * time spent in each filter is tracked in its {@link FilterStats}.
+ */
+public class PreviewFilterGraph {
+    public static class FilterStats {
+        private final String mName;
+        private long mFrames;
+        private long mSkipped;
+        private long mTotalNs;
+        private long mLastNs;
+        private long mMaxNs;
+        private volatile FrameRateController mRate;
+
+        FilterStats(String name) {
+            mName = name;
+        }
+
+        synchronized void onProcessed(long ns) {
+            mFrames++;
+            mTotalNs += ns;
+            mLastNs = ns;
+            mMaxNs = Math.max(mMaxNs, ns);
+        }
+
+        synchronized void onSkipped() {
+            mSkipped++;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public synchronized long getFrameCount() {
+            return mFrames;
+        }
+
+        public synchronized long getSkippedCount() {
+            return mSkipped;
+        }
+
+        public synchronized long getAverageTimeNs() {
+            return mFrames == 0 ? 0 : mTotalNs / mFrames;
+        }
+
+        public synchronized long getLastTimeNs() {
+            return mLastNs;
+        }
+
+        public synchronized long getMaxTimeNs() {
+            return mMaxNs;
+        }
+
+        /**
+         * Rate control of a frame listener, null if it gets every frame it can keep up with.
+         */
+        public FrameRateController getRateController() {
+            return mRate;
+        }
+
+        @Override
+        public synchronized String toString() {
+            FrameRateController rate = mRate;
+            return mName + "{frames=" + mFrames + ", skipped=" + mSkipped
+                    + ", avg=" + getAverageTimeNs() / 1000 + "us, max=" + mMaxNs / 1000 + "us"
+                    + (rate == null ? "" : ", " + rate) + "}";
+        }
+    }
+
+    private class ReaderNode implements Runnable {
+        final ImageFilter mFilter;
+        final FilterStats mStats;
+        //Newest frame the filter has not started on, older ones are skipped.
+        private final AtomicReference<SharedFrame> mPendingFrame =
+                new AtomicReference<SharedFrame>();
+        volatile FrameRateController mRate;
+        volatile int mDownscale = 1;
+        //Used on the worker thread only, to downscale frames.
+        private byte[] mFullBytes;
+        private byte[] mScaledBytes;
+
+        ReaderNode(ImageFilter filter) {
+            mFilter = filter;
+            mStats = new FilterStats(filter.getStringName());
+        }
+
+        void offer(SharedFrame frame) {
+            FrameRateController rate = mRate;
+            if (rate != null && !rate.accept(frame.getTimestamp())) {
+                return;
+            }
+            SharedFrame skipped = mPendingFrame.getAndSet(frame.retain());
+            if (skipped != null) {
+                skipped.release();
+                mStats.onSkipped();
+                if (mPipelineStats != null) {
+                    mPipelineStats.recordDrop(PreviewPipelineStats.Drop.LISTENER_BUSY);
+                }
+            } else {
+                mReaderPool.execute(this);
+            }
+        }
+
+        void release() {
+            SharedFrame frame = mPendingFrame.getAndSet(null);
+            if (frame != null) {
+                frame.release();
+            }
+        }
+
+        @Override
+        public void run() {
+            SharedFrame frame = mPendingFrame.getAndSet(null);
+            if (frame == null) {
+                return;
+            }
+            try {
+                if (!mActive) {
+                    return;
+                }
+                long start = SystemClock.elapsedRealtimeNanos();
+                int downscale = mDownscale;
+                if (downscale > 1) {
+                    runDownscaled(frame, downscale);
+                } else {
+                    mFilter.init(frame.getWidth(), frame.getHeight(), frame.getStride(),
+                            frame.getStride());
+                    mFilter.addImage(frame.getY(), frame.getVU(), 0, new Boolean(true));
+                }
+                long cost = SystemClock.elapsedRealtimeNanos() - start;
+                mStats.onProcessed(cost);
+                FrameRateController rate = mRate;
+                if (rate != null) {
+                    rate.onProcessed(cost);
+                }
+            } finally {
+                frame.release();
+            }
+        }
+
+        private void runDownscaled(SharedFrame frame, int downscale) {
+            int stride = frame.getStride();
+            int height = frame.getHeight();
+            int width = frame.getWidth() / downscale & ~1;
+            int scaledHeight = height / downscale & ~1;
+            int ySize = stride * height;
+            if (mFullBytes == null || mFullBytes.length != ySize * 3 / 2) {
+                mFullBytes = new byte[ySize * 3 / 2];
+            }
+            if (mScaledBytes == null || mScaledBytes.length != width * scaledHeight * 3 / 2) {
+                mScaledBytes = new byte[width * scaledHeight * 3 / 2];
+            }
+            ByteBuffer bY = frame.getY();
+            ByteBuffer bVU = frame.getVU();
+            bY.get(mFullBytes, 0, bY.remaining());
+            bVU.get(mFullBytes, ySize, bVU.remaining());
+            NV21Kernels.resize(mFullBytes, frame.getWidth(), height, stride, mScaledBytes,
+                    width, scaledHeight);
+            int scaledYSize = width * scaledHeight;
+            mFilter.init(width, scaledHeight, width, width);
+            mFilter.addImage(ByteBuffer.wrap(mScaledBytes, 0, scaledYSize).asReadOnlyBuffer(),
+                    ByteBuffer.wrap(mScaledBytes, scaledYSize, scaledYSize / 2).asReadOnlyBuffer(),
+                    0, new Boolean(true));
+        }
+    }
+
+    private final ArrayList<ImageFilter> mMutators = new ArrayList<ImageFilter>();
+    private final ArrayList<FilterStats> mMutatorStats = new ArrayList<FilterStats>();
+    private final ArrayList<ReaderNode> mReaders = new ArrayList<ReaderNode>();
+    private final ThreadPoolExecutor mReaderPool;
+    private final PreviewPipelineStats mPipelineStats;
+    private volatile boolean mActive = true;
+
+    /**
+     * @param maxReaderThreads upper bound of worker threads for the frame listeners.
+     * @param pipelineStats where frames skipped by listeners are counted, may be null.
+     */
+    public PreviewFilterGraph(List<ImageFilter> filters, int maxReaderThreads,
+                              PreviewPipelineStats pipelineStats) {
+        mPipelineStats = pipelineStats;
+        for (ImageFilter filter : filters) {
+            if (filter.isFrameListener()) {
+                mReaders.add(new ReaderNode(filter));
+            } else {
+                mMutators.add(filter);
+                mMutatorStats.add(new FilterStats(filter.getStringName()));
+            }
+        }
+        int threads = Math.max(1, Math.min(maxReaderThreads, mReaders.size()));
+        mReaderPool = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "FrameListener-" + mCount.incrementAndGet());
+                    }
+                });
+        mReaderPool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Limits every frame listener to targetFps, and to using at most maxLoad of a core.
+     * With downscale above 1 the listeners get frames shrunk by that factor instead of
+     * the full frame, so they must not depend on the preview size they were set up with.
+     */
+    public void setListenerRate(float targetFps, float maxLoad, int downscale) {
+        for (ReaderNode reader : mReaders) {
+            FrameRateController rate = new FrameRateController(targetFps, maxLoad);
+            reader.mRate = rate;
+            reader.mStats.mRate = rate;
+            reader.mDownscale = Math.max(1, downscale);
+        }
+    }
+
+    public boolean hasMutators() {
+        return !mMutators.isEmpty();
+    }
+
+    public boolean hasReaders() {
+        return !mReaders.isEmpty();
+    }
+
+    /**
+     * Runs the filters that change the frame, in order, on the calling thread. This has
+     * to be done before the frame is shared with anyone else.
+     */
+    public void runMutators(SharedFrame frame) {
+        for (int i = 0; i < mMutators.size(); i++) {
+            ImageFilter filter = mMutators.get(i);
+            long start = SystemClock.elapsedRealtimeNanos();
+            ByteBuffer bY = frame.getWritableY();
+            ByteBuffer bVU = frame.getWritableVU();
+            filter.init(frame.getWidth(), frame.getHeight(), frame.getStride(), frame.getStride());
+            if (filter instanceof BeautificationFilter) {
+                filter.addImage(bY, bVU, 0, new Boolean(false));
+            } else {
+                filter.addImage(bY, bVU, 0, new Boolean(true));
+            }
+            mMutatorStats.get(i).onProcessed(SystemClock.elapsedRealtimeNanos() - start);
+        }
+    }
+
+    /**
+     * Hands the frame to every frame listener. Each one that takes it holds its own
+     * reference, the caller keeps its reference.
+     */
+    public void dispatchReaders(SharedFrame frame) {
+        if (!mActive) {
+            return;
+        }
+        for (ReaderNode reader : mReaders) {
+            reader.offer(frame);
+        }
+    }
+
+    public List<FilterStats> getStats() {
+        List<FilterStats> stats = new ArrayList<FilterStats>(mMutatorStats);
+        for (ReaderNode reader : mReaders) {
+            stats.add(reader.mStats);
+        }
+        return stats;
+    }
+
+    /**
+     * Stops dispatching, waits for the listeners that are running and drops the frames
+     * that are still pending.
+     */
+    public void shutdown() {
+        mActive = false;
+        mReaderPool.shutdown();
+        try {
+            mReaderPool.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+        }
+        for (ReaderNode reader : mReaders) {
+            reader.release();
+        }
+    }
+}
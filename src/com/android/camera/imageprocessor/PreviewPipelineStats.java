@@ -0,0 +1,260 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.imageprocessor;
+
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency and frame drop bookkeeping for the preview pipeline. Each stage a frame
+ * goes through is timed into a lock free histogram, and the timings of the most
+ * recent frames are kept in a ring for dumping. Recording is a few array writes,
+ * so it is always on.
+ */
+public class PreviewPipelineStats {
+    public enum Stage {
+        ACQUIRE,        // acquireLatestImage()
+        FILTER,         // in-place preview filters
+        COPY,           // shared frame to the RenderScript input
+        ROTATE,         // rotate90andMerge
+        CONVERT,        // nv21ToRgb
+        SEND,           // ioSend to the preview and video surfaces. RenderScript kernels
+                        // are asynchronous, so most of their time is counted here.
+        END_TO_END      // image available to sent
+    }
+
+    public enum Drop {
+        READER_OVERRUN, // estimated from sensor timestamp gaps, see acquireLatestImage()
+        INACTIVE,       // arrived while the processor was closing
+        OUTPUT_BUSY,    // replaced by a newer frame before the output stage got to it
+        LISTENER_BUSY,  // replaced by a newer frame before a listener got to it
+        NOT_READY       // no output allocation yet
+    }
+
+    private static final int RING_FRAMES = 256;
+    private static final int RECORD_SIZE = 2 + Stage.values().length;
+    // 4 buckets per power of two of microseconds, up to about 35 minutes.
+    private static final int SUB_BUCKETS = 4;
+    private static final int BUCKETS = 32 * SUB_BUCKETS;
+
+    private final AtomicLongArray[] mHistograms = new AtomicLongArray[Stage.values().length];
+    private final AtomicLongArray mDrops = new AtomicLongArray(Drop.values().length);
+    private final AtomicLong mFrames = new AtomicLong();
+    // [sequence, sensor timestamp, stage durations...] per frame, written racily on
+    // purpose: a torn record only ever shows up in a dump.
+    private final long[] mRing = new long[RING_FRAMES * RECORD_SIZE];
+    private long mLastSensorTimestamp;
+    private long mFrameInterval;
+
+    public PreviewPipelineStats() {
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i] = new AtomicLongArray(BUCKETS);
+        }
+    }
+
+    public static long now() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Starts the record of a new frame and returns its sequence number. Only called
+     * from the thread that acquires the frames.
+     */
+    public long beginFrame(long sensorTimestamp) {
+        long sequence = mFrames.incrementAndGet();
+        int base = (int) (sequence % RING_FRAMES) * RECORD_SIZE;
+        mRing[base] = sequence;
+        mRing[base + 1] = sensorTimestamp;
+        for (int i = 2; i < RECORD_SIZE; i++) {
+            mRing[base + i] = 0;
+        }
+        if (mLastSensorTimestamp != 0 && sensorTimestamp > mLastSensorTimestamp) {
+            long interval = sensorTimestamp - mLastSensorTimestamp;
+            if (mFrameInterval != 0 && interval > mFrameInterval * 3 / 2) {
+                long missed = (interval + mFrameInterval / 2) / mFrameInterval - 1;
+                mDrops.addAndGet(Drop.READER_OVERRUN.ordinal(), missed);
+            } else {
+                // Only track the interval on regular frames so gaps don't inflate it.
+                mFrameInterval = mFrameInterval == 0 ? interval
+                        : mFrameInterval + (interval - mFrameInterval) / 8;
+            }
+        }
+        mLastSensorTimestamp = sensorTimestamp;
+        return sequence;
+    }
+
+    public void recordStage(long sequence, Stage stage, long durationNs) {
+        mHistograms[stage.ordinal()].incrementAndGet(bucketOf(durationNs));
+        int base = (int) (sequence % RING_FRAMES) * RECORD_SIZE;
+        if (mRing[base] == sequence) {
+            mRing[base + 2 + stage.ordinal()] = durationNs;
+        }
+    }
+
+    public void recordDrop(Drop reason) {
+        mDrops.incrementAndGet(reason.ordinal());
+    }
+
+    public long getFrameCount() {
+        return mFrames.get();
+    }
+
+    public long getDropCount(Drop reason) {
+        return mDrops.get(reason.ordinal());
+    }
+
+    public long getSampleCount(Stage stage) {
+        AtomicLongArray histogram = mHistograms[stage.ordinal()];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += histogram.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the given percentile (0-100) of a stage's latency in nanoseconds,
+     * accurate to the histogram's resolution of about 20%, or 0 without samples.
+     */
+    public long getPercentile(Stage stage, double percentile) {
+        AtomicLongArray histogram = mHistograms[stage.ordinal()];
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = histogram.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(rank, 1)) {
+                return bucketUpperBoundNs(i);
+            }
+        }
+        return bucketUpperBoundNs(BUCKETS - 1);
+    }
+
+    public void reset() {
+        for (AtomicLongArray histogram : mHistograms) {
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram.set(i, 0);
+            }
+        }
+        for (int i = 0; i < mDrops.length(); i++) {
+            mDrops.set(i, 0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("PreviewPipelineStats{frames=")
+                .append(mFrames.get());
+        for (Stage stage : Stage.values()) {
+            sb.append(", ").append(stage).append("=")
+                    .append(getPercentile(stage, 50) / 1000).append('/')
+                    .append(getPercentile(stage, 95) / 1000).append('/')
+                    .append(getPercentile(stage, 99) / 1000).append("us");
+        }
+        for (Drop reason : Drop.values()) {
+            sb.append(", ").append(reason).append("=").append(getDropCount(reason));
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * Writes the percentiles, drop counts and the most recent frame records.
+     */
+    public void dump(PrintWriter pw) {
+        pw.println("frames " + mFrames.get());
+        pw.println("stage p50_us p95_us p99_us samples");
+        for (Stage stage : Stage.values()) {
+            pw.println(stage + " " + getPercentile(stage, 50) / 1000 + " "
+                    + getPercentile(stage, 95) / 1000 + " "
+                    + getPercentile(stage, 99) / 1000 + " " + getSampleCount(stage));
+        }
+        for (Drop reason : Drop.values()) {
+            pw.println("drop " + reason + " " + getDropCount(reason));
+        }
+        StringBuilder header = new StringBuilder("sequence,sensor_timestamp");
+        for (Stage stage : Stage.values()) {
+            header.append(',').append(stage.name().toLowerCase()).append("_us");
+        }
+        pw.println(header);
+        long last = mFrames.get();
+        for (long sequence = Math.max(1, last - RING_FRAMES + 1); sequence <= last; sequence++) {
+            int base = (int) (sequence % RING_FRAMES) * RECORD_SIZE;
+            if (mRing[base] != sequence) {
+                continue;
+            }
+            StringBuilder line = new StringBuilder().append(sequence).append(',')
+                    .append(mRing[base + 1]);
+            for (int i = 2; i < RECORD_SIZE; i++) {
+                line.append(',').append(mRing[base + i] / 1000);
+            }
+            pw.println(line);
+        }
+        pw.flush();
+    }
+
+    public void dump(File file) throws IOException {
+        PrintWriter pw = new PrintWriter(new FileWriter(file));
+        try {
+            dump(pw);
+        } finally {
+            pw.close();
+        }
+    }
+
+    static int bucketOf(long durationNs) {
+        long us = Math.max(1, durationNs / 1000);
+        int octave = 63 - Long.numberOfLeadingZeros(us);
+        int sub = octave < 2 ? 0 : (int) (us >> (octave - 2)) & (SUB_BUCKETS - 1);
+        return Math.min(BUCKETS - 1, octave * SUB_BUCKETS + sub);
+    }
+
+    static long bucketUpperBoundNs(int bucket) {
+        int octave = bucket / SUB_BUCKETS;
+        int sub = bucket % SUB_BUCKETS;
+        if (octave < 2) {
+            return (1L << (octave + 1)) * 1000;
+        }
+        return ((1L << octave) + ((long) (sub + 1) << (octave - 2))) * 1000;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.imageprocessor;
+
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A preview frame shared by several consumers without copying it. The Y and VU planes
+ * of the image are wrapped once, every consumer gets its own read only view of them,
+ * and the image is closed when the last consumer releases the frame.
+ */
+public class SharedFrame {
+    private final Image mImage;
+    private final ByteBuffer mY;
+    private final ByteBuffer mVU;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mStride;
+    private final AtomicInteger mRefCount = new AtomicInteger(1);
+    //Bookkeeping for PreviewPipelineStats.
+    long mSequence;
+    long mArrivalNs;
+
+    /**
+     * Wraps image, taking over the caller's responsibility to close it. The caller
+     * holds the first reference.
+     */
+    public SharedFrame(Image image, int width, int height) {
+        mImage = image;
+        mY = image.getPlanes()[0].getBuffer();
+        mVU = image.getPlanes()[2].getBuffer();
+        mWidth = width;
+        mHeight = height;
+        mStride = image.getPlanes()[0].getRowStride();
+    }
+
+    /**
+     * Luma plane for in-place filters, only to be used before the frame is shared.
+     */
+    ByteBuffer getWritableY() {
+        mY.rewind();
+        return mY;
+    }
+
+    /**
+     * Chroma plane for in-place filters, only to be used before the frame is shared.
+     */
+    ByteBuffer getWritableVU() {
+        mVU.rewind();
+        return mVU;
+    }
+
+    public ByteBuffer getY() {
+        ByteBuffer y = mY.asReadOnlyBuffer();
+        y.rewind();
+        return y;
+    }
+
+    public ByteBuffer getVU() {
+        ByteBuffer vu = mVU.asReadOnlyBuffer();
+        vu.rewind();
+        return vu;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getStride() {
+        return mStride;
+    }
+
+    public long getTimestamp() {
+        return mImage.getTimestamp();
+    }
+
+    public SharedFrame retain() {
+        if (mRefCount.getAndIncrement() <= 0) {
+            throw new IllegalStateException("Frame has already been released");
+        }
+        return this;
+    }
+
+    public void release() {
+        int count = mRefCount.decrementAndGet();
+        if (count == 0) {
+            mImage.close();
+        } else if (count < 0) {
+            throw new IllegalStateException("Frame has already been released");
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.ImageFormat;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.camera.util.PersistUtil;
+
+/**
+ * Sizes the ZSL ring from a memory budget instead of a fixed property.
+ *
+ * The depth is the number of full ZSL frames (YUV plus the optional RAW frame) that
+ * fit in the budget, bounded by persist.sys.camera.zsl.buffer.max so it never exceeds
+ * what the ZSL image readers can hand out. Memory pressure reported through
+ * {@link ComponentCallbacks2} shrinks the budget until the pressure has been quiet
+ * for PRESSURE_HOLD_MS.
+ */
+public class ZSLCapacityManager implements ComponentCallbacks2 {
+    private static final String TAG = "ZSLCapacityManager";
+    private static final boolean DEBUG =
+            (PersistUtil.getCamera2Debug() == PersistUtil.CAMERA2_DEBUG_DUMP_LOG) ||
+            (PersistUtil.getCamera2Debug() == PersistUtil.CAMERA2_DEBUG_DUMP_ALL);
+
+    public static final int MIN_DEPTH = 2;
+    private static final long PRESSURE_HOLD_MS = 10000;
+    private static final long MB = 1024 * 1024;
+
+    public interface Listener {
+        void onDepthChanged(int depth, String reason);
+    }
+
+    private final Context mContext;
+    private final long mBudget;
+    private final int mMaxDepth;
+    private Listener mListener;
+    private long mFrameBytes;
+    private long mRawBytes;
+    // Budget is divided by this while memory pressure is reported.
+    private int mPressureDivisor = 1;
+    private volatile long mPressureUntil = 0;
+    private int mDepth;
+
+    public ZSLCapacityManager(Context context) {
+        mContext = context.getApplicationContext();
+        mMaxDepth = Math.max(MIN_DEPTH, PersistUtil.getCircularBufferMaxSize());
+        mBudget = computeBudget(mContext);
+        mDepth = clamp(PersistUtil.getCircularBufferSize(), MIN_DEPTH, mMaxDepth);
+        mContext.registerComponentCallbacks(this);
+        Log.d(TAG, "ZSL budget " + mBudget / MB + "MB, max depth " + mMaxDepth);
+    }
+
+    public int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    public synchronized int getDepth() {
+        return mDepth;
+    }
+
+    public long getBudget() {
+        return mBudget;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public void release() {
+        mContext.unregisterComponentCallbacks(this);
+        synchronized (this) {
+            mListener = null;
+        }
+    }
+
+    public void setFrameSize(int width, int height, int format) {
+        synchronized (this) {
+            mFrameBytes = frameBytes(width, height, format);
+        }
+        update("frame " + width + "x" + height);
+    }
+
+    public void setRawFrameSize(int width, int height, int format) {
+        synchronized (this) {
+            mRawBytes = (width > 0 && height > 0) ? frameBytes(width, height, format) : 0;
+        }
+        update(mRawBytes > 0 ? "raw " + width + "x" + height : "raw off");
+    }
+
+    /**
+     * Restores the full budget once memory pressure has been quiet for a while. This
+     * is cheap enough to be called for every ZSL frame.
+     */
+    public void checkPressure() {
+        long until = mPressureUntil;
+        if (until != 0 && SystemClock.uptimeMillis() > until) {
+            synchronized (this) {
+                mPressureUntil = 0;
+                mPressureDivisor = 1;
+            }
+            update("pressure relieved");
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        int divisor;
+        if (level >= TRIM_MEMORY_COMPLETE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            divisor = 4;
+        } else if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_LOW
+                || level == TRIM_MEMORY_RUNNING_MODERATE) {
+            divisor = 2;
+        } else {
+            return;
+        }
+        onPressure(divisor, "trim level " + level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        onPressure(Integer.MAX_VALUE, "low memory");
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    private void onPressure(int divisor, String reason) {
+        synchronized (this) {
+            mPressureDivisor = Math.max(mPressureDivisor, divisor);
+            mPressureUntil = SystemClock.uptimeMillis() + PRESSURE_HOLD_MS;
+        }
+        update(reason);
+    }
+
+    private void update(String reason) {
+        Listener listener;
+        int depth;
+        synchronized (this) {
+            long frameBytes = mFrameBytes + mRawBytes;
+            if (frameBytes <= 0) {
+                return;
+            }
+            depth = computeDepth(mBudget / mPressureDivisor, frameBytes, MIN_DEPTH, mMaxDepth);
+            if (depth == mDepth) {
+                if (DEBUG) Log.d(TAG, "ZSL depth stays " + depth + " (" + reason + ")");
+                return;
+            }
+            Log.d(TAG, "ZSL depth " + mDepth + " -> " + depth + " (" + reason + ", frame "
+                    + frameBytes / MB + "MB, budget " + mBudget / mPressureDivisor / MB + "MB)");
+            mDepth = depth;
+            listener = mListener;
+        }
+        if (listener != null) {
+            listener.onDepthChanged(depth, reason);
+        }
+    }
+
+    static int computeDepth(long budget, long frameBytes, int minDepth, int maxDepth) {
+        if (frameBytes <= 0) {
+            return maxDepth;
+        }
+        return clamp((int) Math.min(Integer.MAX_VALUE, budget / frameBytes), minDepth, maxDepth);
+    }
+
+    private static long frameBytes(int width, int height, int format) {
+        int bitsPerPixel = ImageFormat.getBitsPerPixel(format);
+        if (bitsPerPixel <= 0) {
+            //PRIVATE and other opaque formats, assume YUV 4:2:0.
+            bitsPerPixel = 12;
+        }
+        return (long) width * height * bitsPerPixel / 8;
+    }
+
+    private static long computeBudget(Context context) {
+        int budgetInMb = PersistUtil.getCircularBufferBudgetInMb();
+        if (budgetInMb > 0) {
+            return budgetInMb * MB;
+        }
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        ActivityManager.MemoryInfo info = new ActivityManager.MemoryInfo();
+        am.getMemoryInfo(info);
+        // 1/16 of RAM on regular devices, 1/32 on low RAM ones.
+        return info.totalMem / (am.isLowRamDevice() ? 32 : 16);
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -0,0 +1,171 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.media.Image;
+import android.util.Log;
+
+import com.android.camera.util.PersistUtil;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scores ZSL frames as they are published to the ring so the best one can be picked at
+ * shutter time without extra work. The score is the weighted sum of the registered
+ * {@link FrameScorer}s; a frame rejected by any scorer is never selected.
+ */
+public class ZSLFrameSelector implements ZSLRingBuffer.Scorer<Image, TotalCaptureResult> {
+    private static final String TAG = "ZSLFrameSelector";
+    private static final boolean DEBUG =
+            (PersistUtil.getCamera2Debug() == PersistUtil.CAMERA2_DEBUG_DUMP_LOG) ||
+            (PersistUtil.getCamera2Debug() == PersistUtil.CAMERA2_DEBUG_DUMP_ALL);
+
+    public static final float REJECT = -1f;
+
+    public interface FrameScorer {
+        /**
+         * Returns a score in [0, 1], or {@link ZSLFrameSelector#REJECT} if the frame must
+         * not be used.
+         */
+        float score(Image image, TotalCaptureResult result);
+    }
+
+    private final List<FrameScorer> mScorers = new ArrayList<FrameScorer>();
+    private final List<Float> mWeights = new ArrayList<Float>();
+
+    public synchronized void addScorer(FrameScorer scorer, float weight) {
+        mScorers.add(scorer);
+        mWeights.add(weight);
+    }
+
+    @Override
+    public float score(ZSLRingBuffer.Entry<Image, TotalCaptureResult> entry) {
+        Image image = entry.getImage();
+        TotalCaptureResult result = entry.getMetadata();
+        float total = 0f;
+        synchronized (this) {
+            for (int i = 0; i < mScorers.size(); i++) {
+                float score = mScorers.get(i).score(image, result);
+                if (score < 0) {
+                    if (DEBUG) Log.d(TAG, entry.getTimestamp() + " rejected by " + mScorers.get(i));
+                    return REJECT;
+                }
+                total += score * mWeights.get(i);
+            }
+        }
+        if (DEBUG) Log.d(TAG, entry.getTimestamp() + " score " + total);
+        return total;
+    }
+
+    /**
+     * Scores a frame from its capture result: short exposures, converged AE and a
+     * locked or passively focused AF score higher.
+     */
+    public static class MetadataScorer implements FrameScorer {
+        // Exposures at or above this are assumed to be blurred by hand shake.
+        private static final long BLUR_EXPOSURE_NS = 66000000L;
+
+        @Override
+        public float score(Image image, TotalCaptureResult result) {
+            float score = 0f;
+            Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
+            if (afState != null) {
+                if (afState == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED ||
+                        afState == CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED) {
+                    score += 0.4f;
+                } else if (afState == CaptureResult.CONTROL_AF_STATE_INACTIVE) {
+                    score += 0.2f;
+                }
+            }
+            Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+            if (aeState != null && (aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED ||
+                    aeState == CaptureResult.CONTROL_AE_STATE_LOCKED)) {
+                score += 0.3f;
+            }
+            Long exposure = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+            if (exposure != null) {
+                score += 0.3f * Math.max(0f, 1f - (float) exposure / BLUR_EXPOSURE_NS);
+            }
+            return score;
+        }
+
+        @Override
+        public String toString() {
+            return "MetadataScorer";
+        }
+    }
+
+    /**
+     * Estimates sharpness from the mean horizontal luma gradient, sampled on a sparse
+     * grid over the central part of the Y plane.
+     */
+    public static class SharpnessScorer implements FrameScorer {
+        private static final int GRID_STEP = 8;
+        // Mean gradient considered as fully sharp.
+        private static final float SHARP_GRADIENT = 24f;
+
+        @Override
+        public float score(Image image, TotalCaptureResult result) {
+            if (image == null || image.getFormat() != ImageFormat.YUV_420_888) {
+                return 0f;
+            }
+            Image.Plane plane = image.getPlanes()[0];
+            return sharpness(plane.getBuffer(), plane.getRowStride(), plane.getPixelStride(),
+                    image.getWidth(), image.getHeight());
+        }
+
+        static float sharpness(ByteBuffer y, int rowStride, int pixelStride,
+                               int width, int height) {
+            long sum = 0;
+            int samples = 0;
+            for (int row = height / 4; row < height * 3 / 4; row += GRID_STEP) {
+                int offset = row * rowStride;
+                for (int col = width / 4; col < width * 3 / 4 - 1; col += GRID_STEP) {
+                    int p = offset + col * pixelStride;
+                    sum += Math.abs((y.get(p) & 0xFF) - (y.get(p + pixelStride) & 0xFF));
+                    samples++;
+                }
+            }
+            if (samples == 0) {
+                return 0f;
+            }
+            return Math.min(1f, sum / (float) samples / SHARP_GRADIENT);
+        }
+
+        @Override
+        public String toString() {
+            return "SharpnessScorer";
+        }
+    }
+}
@@ -35,175 +35,117 @@ import android.util.Log;
 
 import com.android.camera.CaptureModule;
 import com.android.camera.util.PersistUtil;
-import android.os.SystemProperties;
-
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.NoSuchElementException;
 
 public class ZSLQueue {
-    private int mCircularBufferSize;
-    private ImageItem[] mBuffer;
-    private int mImageHead;
-    private int mMetaHead;
-    private Object mLock = new Object();
+    private volatile ZSLRingBuffer<Image, TotalCaptureResult> mBuffer;
     private CaptureModule mModule;
+    private ZSLCapacityManager mCapacityManager;
     private static final boolean DEBUG_QUEUE  =
             (PersistUtil.getCamera2Debug() == PersistUtil.CAMERA2_DEBUG_DUMP_LOG) ||
             (PersistUtil.getCamera2Debug() == PersistUtil.CAMERA2_DEBUG_DUMP_ALL);
     private static final String TAG = "ZSLQueue";
 
-    public ZSLQueue(CaptureModule module) {
-        mCircularBufferSize = PersistUtil.getCircularBufferSize();
-        synchronized (mLock) {
-            mBuffer = new ImageItem[mCircularBufferSize];
-            mImageHead = 0;
-            mMetaHead = 0;
-            mModule = module;
+    private final ZSLRingBuffer.Releaser<Image, TotalCaptureResult> mReleaser =
+            new ZSLRingBuffer.Releaser<Image, TotalCaptureResult>() {
+        @Override
+        public void release(ZSLRingBuffer.Entry<Image, TotalCaptureResult> entry) {
+            if (entry.getImage() != null) {
+                entry.getImage().close();
+            }
+            if (entry.getRawImage() != null) {
+                entry.getRawImage().close();
+            }
         }
-    }
+    };
 
-    private int findMeta(long timestamp, int index) {
-        int startIndex = index;
-        do {
-            if(mBuffer[index] != null && mBuffer[index].getMetadata() != null &&
-                    mBuffer[index].getMetadata().get(CaptureResult.SENSOR_TIMESTAMP).longValue() == timestamp) {
-                return index;
-            }
-            index = (index + 1) % mBuffer.length;
-        } while(index != startIndex);
-        return -1;
-    }
+    private final ZSLFrameSelector.FrameScorer mRequirementScorer =
+            new ZSLFrameSelector.FrameScorer() {
+        @Override
+        public float score(Image image, TotalCaptureResult result) {
+            return checkImageRequirement(result) ? 0f : ZSLFrameSelector.REJECT;
+        }
 
-    private int findImage(long timestamp, int index) {
-        int startIndex = index;
-        do {
-            if(mBuffer[index] != null && mBuffer[index].getImage() != null &&
-                    mBuffer[index].getImage().getTimestamp() == timestamp) {
-                return index;
+        @Override
+        public String toString() {
+            return "RequirementScorer";
+        }
+    };
+
+    public ZSLQueue(CaptureModule module, ZSLCapacityManager capacityManager) {
+        mBuffer = new ZSLRingBuffer<Image, TotalCaptureResult>(capacityManager.getDepth(),
+                capacityManager.getMaxDepth(), mReleaser);
+        ZSLFrameSelector selector = new ZSLFrameSelector();
+        selector.addScorer(mRequirementScorer, 0f);
+        selector.addScorer(new ZSLFrameSelector.MetadataScorer(), 1f);
+        selector.addScorer(new ZSLFrameSelector.SharpnessScorer(), 1f);
+        mBuffer.setScorer(selector);
+        mModule = module;
+        mCapacityManager = capacityManager;
+        mCapacityManager.setListener(new ZSLCapacityManager.Listener() {
+            @Override
+            public void onDepthChanged(int depth, String reason) {
+                ZSLRingBuffer<Image, TotalCaptureResult> buffer = mBuffer;
+                if (buffer != null) {
+                    buffer.setDepth(depth);
+                }
             }
-            index = (index + 1) % mBuffer.length;
-        } while(index != startIndex);
-        return -1;
+        });
     }
 
     public void add(Image image, Image rawImage) {
-        int lastIndex = -1;
-        synchronized (mLock) {
-            if(mBuffer == null)
-                return;
-            if(mBuffer[mImageHead] != null) {
-                mBuffer[mImageHead].closeImage();
-            } else {
-                mBuffer[mImageHead] = new ImageItem();
-            }
-            if(mBuffer[mImageHead].getMetadata() != null) {
-                if((mBuffer[mImageHead].getMetadata().get(CaptureResult.SENSOR_TIMESTAMP)).longValue() == image.getTimestamp()) {
-                    mBuffer[mImageHead].setImage(image,rawImage);
-                    lastIndex = mImageHead;
-                    mImageHead = (mImageHead + 1) % mBuffer.length;
-                } else if((mBuffer[mImageHead].getMetadata().get(CaptureResult.SENSOR_TIMESTAMP)).longValue() > image.getTimestamp()) {
-                    image.close();
-                } else {
-                    int i = findMeta(image.getTimestamp(), mImageHead);
-                    if(i == -1) {
-                        mBuffer[mImageHead].setImage(image, rawImage);
-                        mBuffer[mImageHead].setMetadata(null);
-                        mImageHead = (mImageHead + 1) % mBuffer.length;
-                    } else {
-                        lastIndex = mImageHead = i;
-                        mBuffer[mImageHead].setImage(image, rawImage);
-                        mImageHead = (mImageHead + 1) % mBuffer.length;
-                    }
-                }
-            } else {
-                mBuffer[mImageHead].setImage(image, rawImage);
-                lastIndex = mImageHead;
-                mImageHead = (mImageHead + 1) % mBuffer.length;
+        ZSLRingBuffer<Image, TotalCaptureResult> buffer = mBuffer;
+        if(buffer == null) {
+            image.close();
+            if(rawImage != null) {
+                rawImage.close();
             }
+            return;
         }
+        long timestamp = image.getTimestamp();
+        mCapacityManager.checkPressure();
+        buffer.addImage(timestamp, image, rawImage);
 
-        if(DEBUG_QUEUE) Log.d(TAG, "imageIndex: " + lastIndex + " " + image.getTimestamp());
+        if(DEBUG_QUEUE) Log.d(TAG, "Image: " + timestamp + " dropped: " + buffer.getDroppedCount());
     }
 
     public void add(TotalCaptureResult metadata) {
-        int lastIndex = -1;
-        synchronized (mLock) {
-            if(mBuffer == null)
-                return;
-            long timestamp = -1;
-            try {
-                timestamp = metadata.get(CaptureResult.SENSOR_TIMESTAMP).longValue();
-            } catch(IllegalStateException e) {
-                //This happens when corresponding image to this metadata is closed and discarded.
-                return;
-            }
-            if(timestamp == -1) {
-                return;
-            }
-            if(mBuffer[mMetaHead] == null) {
-                mBuffer[mMetaHead] = new ImageItem();
-            } else {
-                mBuffer[mMetaHead].closeMeta();
-            }
-            if(mBuffer[mMetaHead].getImage() != null) {
-                if(mBuffer[mMetaHead].getImage().getTimestamp() == timestamp) {
-                    mBuffer[mMetaHead].setMetadata(metadata);
-                    lastIndex = mMetaHead;
-                    mMetaHead = (mMetaHead + 1) % mBuffer.length;
-                } else if(mBuffer[mMetaHead].getImage().getTimestamp() > timestamp) {
-                    //Disard
-                } else {
-                    int i = findImage(timestamp, mMetaHead);
-                    if(i == -1) {
-                        mBuffer[mMetaHead].setImage(null, null);
-                        mBuffer[mMetaHead].setMetadata(metadata);
-                        mMetaHead = (mMetaHead + 1) % mBuffer.length;
-                    } else {
-                        lastIndex = mMetaHead = i;
-                        mBuffer[mMetaHead].setMetadata(metadata);
-                        mMetaHead = (mMetaHead + 1) % mBuffer.length;
-                    }
-                }
-            } else {
-                mBuffer[mMetaHead].setMetadata(metadata);
-                lastIndex = mImageHead;
-                mMetaHead = (mMetaHead + 1) % mBuffer.length;
-            }
+        ZSLRingBuffer<Image, TotalCaptureResult> buffer = mBuffer;
+        if(buffer == null)
+            return;
+        long timestamp = -1;
+        try {
+            timestamp = metadata.get(CaptureResult.SENSOR_TIMESTAMP).longValue();
+        } catch(IllegalStateException e) {
+            //This happens when corresponding image to this metadata is closed and discarded.
+            return;
         }
+        if(timestamp == -1) {
+            return;
+        }
+        buffer.addMetadata(timestamp, metadata);
 
-        if(DEBUG_QUEUE) Log.d(TAG, "Meta: " + lastIndex + " " + metadata.get(CaptureResult.SENSOR_TIMESTAMP));
+        if(DEBUG_QUEUE) Log.d(TAG, "Meta: " + timestamp);
     }
 
     public ImageItem tryToGetMatchingItem() {
-        synchronized (mLock) {
-            int index = mImageHead;
-            ImageItem item;
-            do {
-                item = mBuffer[index];
-                if (item != null && item.isValid() && checkImageRequirement(item.getMetadata())) {
-                    mBuffer[index] = null;
-                    return item;
-                }
-                index--;
-                if (index < 0) index = mBuffer.length - 1;
-            } while (index != mImageHead);
-        }
-        return null;
+        ZSLRingBuffer<Image, TotalCaptureResult> buffer = mBuffer;
+        if(buffer == null)
+            return null;
+        ZSLRingBuffer.Entry<Image, TotalCaptureResult> entry = buffer.takeBest();
+        if(entry == null)
+            return null;
+        ImageItem item = new ImageItem();
+        item.setImage(entry.getImage(), entry.getRawImage());
+        item.setMetadata(entry.getMetadata());
+        return item;
     }
 
     public void onClose() {
-        synchronized (mLock) {
-            for (int i = 0; i < mBuffer.length; i++) {
-                if (mBuffer[i] != null) {
-                    mBuffer[i].closeImage();
-                    mBuffer[i].closeMeta();
-                    mBuffer[i] = null;
-                }
-            }
-            mBuffer = null;
-            mImageHead = 0;
-            mMetaHead = 0;
+        mCapacityManager.setListener(null);
+        ZSLRingBuffer<Image, TotalCaptureResult> buffer = mBuffer;
+        mBuffer = null;
+        if(buffer != null) {
+            buffer.close();
         }
     }
 
@@ -0,0 +1,418 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Timestamp indexed ring used by {@link ZSLQueue} to pair ZSL images with their
+ * capture results.
+ *
+ * Halves of a frame are looked up by sensor timestamp, so pairing an image with its
+ * metadata is O(1) regardless of the ring size. The image and metadata producers
+ * only synchronize on the entry of the frame they are completing; there is no
+ * lock shared between them or with the consumer. Complete frames are published to a
+ * ring of the most recent frames, and the oldest one is released when the ring
+ * wraps. The ring is allocated at its maximum capacity, but only the newest
+ * {@link #getDepth()} frames are retained so the depth can follow the memory budget
+ * at runtime.
+ *
+ * When a {@link Scorer} is set, every frame is scored once as it is published and the
+ * best scored frame is tracked, so {@link #takeBest()} is O(1) at shutter time.
+ *
+ * This class has no framework dependencies so that it can be exercised off-device.
+ */
+public class ZSLRingBuffer<I, M> {
+
+    public interface Releaser<I, M> {
+        void release(Entry<I, M> entry);
+    }
+
+    public interface Filter<I, M> {
+        boolean accept(Entry<I, M> entry);
+    }
+
+    public interface Scorer<I, M> {
+        /**
+         * Returns the quality of a complete frame, higher is better. A negative score
+         * means the frame must never be selected.
+         */
+        float score(Entry<I, M> entry);
+    }
+
+    public static class Entry<I, M> {
+        private final long mTimestamp;
+        private I mImage;
+        private I mRawImage;
+        private M mMetadata;
+        private boolean mDone;
+        private long mSequence;
+        private float mScore;
+
+        Entry(long timestamp) {
+            mTimestamp = timestamp;
+        }
+
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        public I getImage() {
+            return mImage;
+        }
+
+        public I getRawImage() {
+            return mRawImage;
+        }
+
+        public M getMetadata() {
+            return mMetadata;
+        }
+
+        public float getScore() {
+            return mScore;
+        }
+    }
+
+    private final ConcurrentHashMap<Long, Entry<I, M>> mPending =
+            new ConcurrentHashMap<Long, Entry<I, M>>();
+    private final AtomicReferenceArray<Entry<I, M>> mReady;
+    private final AtomicLong mPublished = new AtomicLong(0);
+    private final AtomicLong mDropped = new AtomicLong(0);
+    private final AtomicReference<Entry<I, M>> mBest = new AtomicReference<Entry<I, M>>();
+    private volatile Scorer<I, M> mScorer;
+    private final Releaser<I, M> mReleaser;
+    private final int mMaxPending;
+    private volatile int mDepth;
+    private volatile long mTrimmedUpTo = Long.MIN_VALUE;
+    private volatile boolean mClosed = false;
+
+    public ZSLRingBuffer(int capacity, Releaser<I, M> releaser) {
+        this(capacity, capacity, releaser);
+    }
+
+    public ZSLRingBuffer(int depth, int capacity, Releaser<I, M> releaser) {
+        if (capacity <= 0 || depth <= 0 || depth > capacity) {
+            throw new IllegalArgumentException("Invalid ZSL ring depth " + depth +
+                    " for capacity " + capacity);
+        }
+        mReady = new AtomicReferenceArray<Entry<I, M>>(capacity);
+        mReleaser = releaser;
+        mDepth = depth;
+        //Unmatched halves hold images too, keep them within half of the ring.
+        mMaxPending = Math.max(2, capacity / 2);
+    }
+
+    public int getCapacity() {
+        return mReady.length();
+    }
+
+    public int getDepth() {
+        return mDepth;
+    }
+
+    /**
+     * Changes the number of complete frames retained. When shrinking, the oldest
+     * frames beyond the new depth are released immediately.
+     */
+    public void setDepth(int depth) {
+        if (depth <= 0 || depth > mReady.length()) {
+            throw new IllegalArgumentException("Invalid ZSL ring depth " + depth);
+        }
+        mDepth = depth;
+        long newest = mPublished.get() - 1;
+        for (long seq = newest - depth; seq >= 0 && seq > newest - mReady.length(); seq--) {
+            evict(seq);
+        }
+    }
+
+    /**
+     * Number of complete frames currently held.
+     */
+    public int size() {
+        int count = 0;
+        for (int i = 0; i < mReady.length(); i++) {
+            if (mReady.get(i) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public long getPublishedCount() {
+        return mPublished.get();
+    }
+
+    /**
+     * Number of images released without ever being paired with their metadata.
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    public void addImage(long timestamp, I image, I rawImage) {
+        if (mClosed || timestamp <= mTrimmedUpTo) {
+            Entry<I, M> stray = new Entry<I, M>(timestamp);
+            stray.mImage = image;
+            stray.mRawImage = rawImage;
+            drop(stray);
+            return;
+        }
+        Entry<I, M> entry = pendingEntry(timestamp);
+        boolean complete;
+        synchronized (entry) {
+            if (entry.mDone || entry.mImage != null) {
+                Entry<I, M> stray = new Entry<I, M>(timestamp);
+                stray.mImage = image;
+                stray.mRawImage = rawImage;
+                drop(stray);
+                return;
+            }
+            entry.mImage = image;
+            entry.mRawImage = rawImage;
+            complete = entry.mMetadata != null;
+            entry.mDone = complete;
+        }
+        if (complete) {
+            publish(entry);
+        }
+    }
+
+    public void addMetadata(long timestamp, M metadata) {
+        if (mClosed || timestamp <= mTrimmedUpTo) {
+            return;
+        }
+        Entry<I, M> entry = pendingEntry(timestamp);
+        boolean complete;
+        synchronized (entry) {
+            if (entry.mDone || entry.mMetadata != null) {
+                return;
+            }
+            entry.mMetadata = metadata;
+            complete = entry.mImage != null;
+            entry.mDone = complete;
+        }
+        if (complete) {
+            publish(entry);
+        }
+    }
+
+    /**
+     * Takes the newest complete frame accepted by the filter out of the ring. The
+     * caller owns the returned entry and is responsible for releasing it.
+     */
+    public Entry<I, M> takeNewest(Filter<I, M> filter) {
+        int capacity = mReady.length();
+        long newest = mPublished.get() - 1;
+        for (long seq = newest; seq >= 0 && seq > newest - capacity; seq--) {
+            int index = (int) (seq % capacity);
+            Entry<I, M> entry = mReady.get(index);
+            if (entry != null && (filter == null || filter.accept(entry)) &&
+                    mReady.compareAndSet(index, entry, null)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    public void setScorer(Scorer<I, M> scorer) {
+        mScorer = scorer;
+    }
+
+    /**
+     * Takes the best scored frame out of the ring, preferring the newer frame on equal
+     * scores. Without a scorer this is the newest frame. The caller owns the returned
+     * entry and is responsible for releasing it.
+     */
+    public Entry<I, M> takeBest() {
+        while (true) {
+            Entry<I, M> best = mBest.get();
+            if (best == null || !isHeld(best)) {
+                best = rescanBest();
+                if (best == null) {
+                    return null;
+                }
+            }
+            if (mReady.compareAndSet(indexOf(best), best, null)) {
+                mBest.compareAndSet(best, null);
+                rescanBest();
+                return best;
+            }
+        }
+    }
+
+    public void close() {
+        mClosed = true;
+        drain();
+    }
+
+    private Entry<I, M> pendingEntry(long timestamp) {
+        Long key = Long.valueOf(timestamp);
+        Entry<I, M> entry = mPending.get(key);
+        if (entry == null) {
+            Entry<I, M> created = new Entry<I, M>(timestamp);
+            entry = mPending.putIfAbsent(key, created);
+            if (entry == null) {
+                entry = created;
+                if (mPending.size() > mMaxPending) {
+                    trimPending();
+                }
+            }
+        }
+        return entry;
+    }
+
+    private void publish(Entry<I, M> entry) {
+        mPending.remove(Long.valueOf(entry.mTimestamp), entry);
+        Scorer<I, M> scorer = mScorer;
+        entry.mScore = scorer == null ? 0f : scorer.score(entry);
+        long seq = mPublished.getAndIncrement();
+        entry.mSequence = seq;
+        Entry<I, M> old = mReady.getAndSet((int) (seq % mReady.length()), entry);
+        if (old != null) {
+            mReleaser.release(old);
+        }
+        int depth = mDepth;
+        if (depth < mReady.length() && seq >= depth) {
+            evict(seq - depth);
+        }
+        offerBest(entry);
+        if (mClosed) {
+            drain();
+        }
+    }
+
+    private void offerBest(Entry<I, M> entry) {
+        while (true) {
+            Entry<I, M> best = mBest.get();
+            if (best != null && !isHeld(best)) {
+                //The best frame has been evicted, look for the next one.
+                rescanBest();
+                return;
+            }
+            if (entry.mScore < 0 || !isHeld(entry) ||
+                    (best != null && best.mScore > entry.mScore)) {
+                return;
+            }
+            if (mBest.compareAndSet(best, entry)) {
+                return;
+            }
+        }
+    }
+
+    private Entry<I, M> rescanBest() {
+        Entry<I, M> found = null;
+        for (int i = 0; i < mReady.length(); i++) {
+            Entry<I, M> entry = mReady.get(i);
+            if (entry != null && entry.mScore >= 0 && (found == null ||
+                    entry.mScore > found.mScore ||
+                    (entry.mScore == found.mScore && entry.mSequence > found.mSequence))) {
+                found = entry;
+            }
+        }
+        mBest.set(found);
+        return found;
+    }
+
+    private int indexOf(Entry<I, M> entry) {
+        return (int) (entry.mSequence % mReady.length());
+    }
+
+    private boolean isHeld(Entry<I, M> entry) {
+        return mReady.get(indexOf(entry)) == entry;
+    }
+
+    private void evict(long seq) {
+        int index = (int) (seq % mReady.length());
+        Entry<I, M> old = mReady.get(index);
+        //A concurrent publish may already have reused the slot for a newer frame.
+        if (old != null && old.mSequence <= seq && mReady.compareAndSet(index, old, null)) {
+            mReleaser.release(old);
+        }
+    }
+
+    private void trimPending() {
+        while (mPending.size() > mMaxPending) {
+            Entry<I, M> oldest = null;
+            for (Entry<I, M> entry : mPending.values()) {
+                if (oldest == null || entry.mTimestamp < oldest.mTimestamp) {
+                    oldest = entry;
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            if (mPending.remove(Long.valueOf(oldest.mTimestamp), oldest)) {
+                if (oldest.mTimestamp > mTrimmedUpTo) {
+                    //The partner of a dropped half can only arrive late, so reject it up front.
+                    mTrimmedUpTo = oldest.mTimestamp;
+                }
+                synchronized (oldest) {
+                    if (oldest.mDone) {
+                        continue;
+                    }
+                    oldest.mDone = true;
+                }
+                drop(oldest);
+            }
+        }
+    }
+
+    private void drop(Entry<I, M> entry) {
+        if (entry.mImage != null) {
+            mDropped.incrementAndGet();
+        }
+        mReleaser.release(entry);
+    }
+
+    private void drain() {
+        for (int i = 0; i < mReady.length(); i++) {
+            Entry<I, M> entry = mReady.getAndSet(i, null);
+            if (entry != null) {
+                mReleaser.release(entry);
+            }
+        }
+        Iterator<Entry<I, M>> it = mPending.values().iterator();
+        while (it.hasNext()) {
+            Entry<I, M> entry = it.next();
+            it.remove();
+            synchronized (entry) {
+                if (entry.mDone) {
+                    continue;
+                }
+                entry.mDone = true;
+            }
+            mReleaser.release(entry);
+        }
+    }
+}
@@ -30,9 +30,7 @@ package com.android.camera.imageprocessor.filter;
 
 import android.app.ProgressDialog;
 import android.content.Intent;
-import android.graphics.ImageFormat;
 import android.graphics.Rect;
-import android.graphics.YuvImage;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
@@ -49,10 +47,11 @@ import com.android.camera.CameraActivity;
 import com.android.camera.CaptureModule;
 import com.android.camera.MediaSaveService;
 import com.android.camera.PhotoModule;
+import com.android.camera.imageprocessor.FrameBufferPool;
+import com.android.camera.imageprocessor.JpegPackager;
 import com.android.camera.imageprocessor.PostProcessor;
 import com.android.camera.util.CameraUtil;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.nio.ByteBuffer;
@@ -84,7 +83,6 @@ public class BestpictureFilter implements ImageFilter {
     private boolean mIsOn = false;
     private PostProcessor mProcessor;
     private ProgressDialog mProgressDialog;
-    private ImageFilter.ResultImage mBestpictureResultImage;
 
     private static void Log(String msg) {
         if (DEBUG) {
@@ -207,17 +205,21 @@ public class BestpictureFilter implements ImageFilter {
             if (!mIsOn) {
                 return null;
             }
-            mBestpictureResultImage = new ImageFilter.ResultImage(ByteBuffer.allocateDirect(
-                    mStrideY * mHeight * 3 / 2),
+            ImageFilter.ResultImage image = new ImageFilter.ResultImage(
+                    FrameBufferPool.getInstance().acquire(mStrideY * mHeight * 3 / 2),
                     new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStrideY);
-            yBuf.get(mBestpictureResultImage.outBuffer.array(), 0, yBuf.remaining());
-            vuBuf.get(mBestpictureResultImage.outBuffer.array(), mStrideY * mHeight,
-                    vuBuf.remaining());
-            yBuf.rewind();
-            vuBuf.rewind();
+            try {
+                yBuf.get(image.outBuffer.array(), 0, yBuf.remaining());
+                vuBuf.get(image.outBuffer.array(), mStrideY * mHeight,
+                        vuBuf.remaining());
+                yBuf.rewind();
+                vuBuf.rewind();
 
-            return nv21ToJpeg(mBestpictureResultImage, mOrientation,
-                    mProcessor.waitForMetaData(imageNum));
+                return nv21ToJpeg(image, mOrientation,
+                        mProcessor.waitForMetaData(imageNum));
+            } finally {
+                image.release();
+            }
         }
     }
 
@@ -279,24 +281,8 @@ public class BestpictureFilter implements ImageFilter {
 
     private byte[] nv21ToJpeg(ImageFilter.ResultImage resultImage, int orientation,
                               TotalCaptureResult result) {
-        BitmapOutputStream bos = new BitmapOutputStream(1024);
-        YuvImage im = new YuvImage(resultImage.outBuffer.array(), ImageFormat.NV21,
-                resultImage.width, resultImage.height, new int[]{resultImage.stride,
-                resultImage.stride});
-        im.compressToJpeg(resultImage.outRoi, mProcessor.getJpegQualityValue(), bos);
-        byte[] bytes = bos.getArray();
-        bytes = PostProcessor.addExifTags(bytes, orientation, result);
-        return bytes;
-    }
-
-    private class BitmapOutputStream extends ByteArrayOutputStream {
-        public BitmapOutputStream(int size) {
-            super(size);
-        }
-
-        public byte[] getArray() {
-            return buf;
-        }
+        return JpegPackager.encode(resultImage, mProcessor.getJpegQualityValue(),
+                mProcessor.getJpegPackager().buildExifShot(orientation, result)).getJpeg();
     }
 
     private void saveBestPicture(byte[] bytes, int imageNum) {
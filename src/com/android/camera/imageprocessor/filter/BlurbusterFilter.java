@@ -35,6 +35,7 @@ import android.os.Handler;
 import android.util.Log;
 
 import com.android.camera.CaptureModule;
+import com.android.camera.imageprocessor.FrameBufferPool;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -48,7 +49,7 @@ public class BlurbusterFilter implements ImageFilter{
     private int mStrideVU;
     private static String TAG = "BlurbusterFilter";
     private static boolean mIsSupported = false;
-    private ByteBuffer mOutBuf;
+    private FrameBufferPool.Buffer mOutBuf;
     private CaptureModule mModule;
 
     private static void Log(String msg) {
@@ -87,7 +88,10 @@ public class BlurbusterFilter implements ImageFilter{
         mHeight = height/2*2;
         mStrideY = strideY/2*2;
         mStrideVU = strideVU/2*2;
-        mOutBuf = ByteBuffer.allocate(mStrideY*mHeight*3/2);
+        if (mOutBuf != null) {
+            mOutBuf.release();
+        }
+        mOutBuf = FrameBufferPool.getInstance().acquire(mStrideY*mHeight*3/2);
         Log("width: "+mWidth+" height: "+mHeight+" strideY: "+mStrideY+" strideVU: "+mStrideVU);
         nativeInit(mWidth, mHeight, mStrideY, mStrideVU, NUM_REQUIRED_IMAGE);
     }
@@ -95,6 +99,9 @@ public class BlurbusterFilter implements ImageFilter{
     @Override
     public void deinit() {
         Log("deinit");
+        if (mOutBuf != null) {
+            mOutBuf.release();
+        }
         mOutBuf = null;
         nativeDeinit();
     }
@@ -114,12 +121,21 @@ public class BlurbusterFilter implements ImageFilter{
     public ResultImage processImage() {
         Log("processImage ");
         int[] roi = new int[4];
+        if (mOutBuf == null) {
+            mOutBuf = FrameBufferPool.getInstance().acquire(mStrideY*mHeight*3/2);
+        }
         int status = nativeProcessImage(mOutBuf.array(),roi);
         Log("processImage done");
         if(status < 0) { //In failure case, library will return the first image as it is.
             Log.w(TAG, "Fail to process the image.");
         }
-        return new ResultImage(mOutBuf, new Rect(roi[0], roi[1], roi[0]+roi[2], roi[1] + roi[3]), mWidth, mHeight, mStrideY);
+        return new ResultImage(takeOutBuf(), new Rect(roi[0], roi[1], roi[0]+roi[2], roi[1] + roi[3]), mWidth, mHeight, mStrideY);
+    }
+
+    private FrameBufferPool.Buffer takeOutBuf() {
+        FrameBufferPool.Buffer outBuf = mOutBuf;
+        mOutBuf = null;
+        return outBuf;
     }
 
     @Override
@@ -40,6 +40,7 @@ import android.os.Handler;
 import android.util.Log;
 
 import com.android.camera.CaptureModule;
+import com.android.camera.imageprocessor.FrameBufferPool;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -54,7 +55,7 @@ public class DeepZoomFilter implements ImageFilter{
     private static String TAG = "DeepZoomFilter";
 
     private static boolean mIsSupported = false;
-    private ByteBuffer mOutBuf;
+    private FrameBufferPool.Buffer mOutBuf;
     private CaptureModule mModule;
     private int mImageNum = -1;
 
@@ -94,7 +95,10 @@ public class DeepZoomFilter implements ImageFilter{
         mHeight = height/2*2;
         mStrideY = strideY/2*2;
         mStrideVU = strideVU/2*2;
-        mOutBuf = ByteBuffer.allocate(mStrideY*mHeight*3/2);
+        if (mOutBuf != null) {
+            mOutBuf.release();
+        }
+        mOutBuf = FrameBufferPool.getInstance().acquire(mStrideY*mHeight*3/2);
         mImageNum = -1;
         Log("width: "+mWidth+" height: "+mHeight+" strideY: "+mStrideY+" strideVU: "+mStrideVU);
         nativeInit(mWidth, mHeight, mStrideY, mStrideVU,
@@ -104,6 +108,9 @@ public class DeepZoomFilter implements ImageFilter{
     @Override
     public void deinit() {
         Log("deinit");
+        if (mOutBuf != null) {
+            mOutBuf.release();
+        }
         mOutBuf = null;
         mImageNum = -1;
         nativeDeinit();
@@ -127,13 +134,22 @@ public class DeepZoomFilter implements ImageFilter{
         float zoomValue = mModule.getZoomValue();
         Log("processImage zoomValue :" + zoomValue);
         int[] roi = new int[4];
+        if (mOutBuf == null) {
+            mOutBuf = FrameBufferPool.getInstance().acquire(mStrideY*mHeight*3/2);
+        }
         int status = nativeProcessImage(mOutBuf.array(), zoomValue, roi);
         Log("processImage done status :" + status);
         mImageNum = -1;
         if(status < 0) { //In failure case, library will return the first image as it is.
             Log.w(TAG, "Fail to process the image.");
         }
-        return new ResultImage(mOutBuf, new Rect(roi[0], roi[1], roi[0]+roi[2], roi[1] + roi[3]), mWidth, mHeight, mStrideY);
+        return new ResultImage(takeOutBuf(), new Rect(roi[0], roi[1], roi[0]+roi[2], roi[1] + roi[3]), mWidth, mHeight, mStrideY);
+    }
+
+    private FrameBufferPool.Buffer takeOutBuf() {
+        FrameBufferPool.Buffer outBuf = mOutBuf;
+        mOutBuf = null;
+        return outBuf;
     }
 
     @Override
@@ -33,6 +33,7 @@ import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CaptureRequest;
 import android.os.Handler;
+import com.android.camera.imageprocessor.FrameBufferPool;
 import com.android.camera.util.PersistUtil;
 
 import java.nio.ByteBuffer;
@@ -60,7 +61,8 @@ public interface ImageFilter {
     /* Adding the image to process */
     void addImage(ByteBuffer bY, ByteBuffer bVU, int imageNum, Object param);
 
-    /* Processing all the added images and return roi*/
+    /* Processing all the added images and return roi. The result has a buffer of its
+     * own, the next shot may be processed before the result is released. */
     ResultImage processImage();
 
     boolean isSupported();
@@ -71,6 +73,7 @@ public interface ImageFilter {
         public int width;
         public int height;
         public int stride;
+        private FrameBufferPool.Buffer mPooledBuffer;
 
         public ResultImage(ByteBuffer buf, Rect roi, int width, int height, int stride) {
             outBuffer = buf;
@@ -79,9 +82,23 @@ public interface ImageFilter {
             this.height = height;
             this.stride = stride;
         }
+
+        /* Takes over one reference of buf, which is given back by release() */
+        public ResultImage(FrameBufferPool.Buffer buf, Rect roi, int width, int height, int stride) {
+            this(buf.getBuffer(), roi, width, height, stride);
+            mPooledBuffer = buf;
+        }
+
+        public void release() {
+            if (mPooledBuffer != null) {
+                mPooledBuffer.release();
+                mPooledBuffer = null;
+            }
+        }
     }
 
-    /* Whether it is post proc filter or frame proc filter */
+    /* Whether it is post proc filter or frame proc filter.
+     * Frame listeners only read the preview frames and may run concurrently. */
     boolean isFrameListener();
 
     /* Whether it will use burst capture or manual capture */
@@ -35,6 +35,7 @@ import android.os.Handler;
 import android.util.Log;
 
 import com.android.camera.CaptureModule;
+import com.android.camera.imageprocessor.FrameBufferPool;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -49,7 +50,7 @@ public class OptizoomFilter implements ImageFilter{
     private static String TAG = "OptizoomFilter";
     private int temp;
     private static boolean mIsSupported = true;
-    private ByteBuffer mOutBuf;
+    private FrameBufferPool.Buffer mOutBuf;
     private CaptureModule mModule;
 
     private static void Log(String msg) {
@@ -88,7 +89,10 @@ public class OptizoomFilter implements ImageFilter{
         mHeight = height/2*2;
         mStrideY = strideY/2*2;
         mStrideVU = strideVU/2*2;
-        mOutBuf = ByteBuffer.allocate(mStrideY*mHeight*6);  // YUV Buffer to hold (mWidth*2) X (mHeight*2)
+        if (mOutBuf != null) {
+            mOutBuf.release();
+        }
+        mOutBuf = FrameBufferPool.getInstance().acquire(mStrideY*mHeight*6);  // YUV Buffer to hold (mWidth*2) X (mHeight*2)
         Log("width: "+mWidth+" height: "+mHeight+" strideY: "+mStrideY+" strideVU: "+mStrideVU);
         nativeInit(mWidth, mHeight, mStrideY, mStrideVU,
                 0, 0, mWidth, mHeight, NUM_REQUIRED_IMAGE);
@@ -97,6 +101,9 @@ public class OptizoomFilter implements ImageFilter{
     @Override
     public void deinit() {
         Log("deinit");
+        if (mOutBuf != null) {
+            mOutBuf.release();
+        }
         mOutBuf = null;
         nativeDeinit();
     }
@@ -113,16 +120,25 @@ public class OptizoomFilter implements ImageFilter{
     public ResultImage processImage() {
         Log("processImage " + mModule.getZoomValue());
         int[] roi = new int[4];
+        if (mOutBuf == null) {
+            mOutBuf = FrameBufferPool.getInstance().acquire(mStrideY*mHeight*6);
+        }
         int status = nativeProcessImage(mOutBuf.array(), mModule.getZoomValue(), roi);
         Log("processImage done");
         if(status < 0) { //In failure case, library will return the first image as it is.
             Log.w(TAG, "Fail to process the optizoom. It only processes when zoomValue >= 1.5f");
-            return new ResultImage(mOutBuf, new Rect(roi[0], roi[1], roi[0]+roi[2], roi[1] + roi[3]), mWidth, mHeight, mStrideY);
+            return new ResultImage(takeOutBuf(), new Rect(roi[0], roi[1], roi[0]+roi[2], roi[1] + roi[3]), mWidth, mHeight, mStrideY);
         } else { //In success case, it will return twice bigger width and height.
-            return new ResultImage(mOutBuf, new Rect(roi[0], roi[1], roi[0]+roi[2], roi[1] + roi[3]), mWidth*2, mHeight*2, mStrideY*2);
+            return new ResultImage(takeOutBuf(), new Rect(roi[0], roi[1], roi[0]+roi[2], roi[1] + roi[3]), mWidth*2, mHeight*2, mStrideY*2);
         }
     }
 
+    private FrameBufferPool.Buffer takeOutBuf() {
+        FrameBufferPool.Buffer outBuf = mOutBuf;
+        mOutBuf = null;
+        return outBuf;
+    }
+
     @Override
     public boolean isSupported() {
         return mIsSupported;
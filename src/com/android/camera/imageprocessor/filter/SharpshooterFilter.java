@@ -39,6 +39,7 @@ import android.util.Range;
 import android.util.Rational;
 
 import com.android.camera.CaptureModule;
+import com.android.camera.imageprocessor.FrameBufferPool;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -53,7 +54,7 @@ public class SharpshooterFilter implements ImageFilter{
     private static String TAG = "SharpshooterFilter";
     private int temp;
     private static boolean mIsSupported = true;
-    private ByteBuffer mOutBuf;
+    private FrameBufferPool.Buffer mOutBuf;
     private CaptureModule mModule;
     private int mSenseValue = 0;
     private long mExpoTime;
@@ -110,7 +111,10 @@ public class SharpshooterFilter implements ImageFilter{
         mHeight = height/2*2;
         mStrideY = strideY/2*2;
         mStrideVU = strideVU/2*2;
-        mOutBuf = ByteBuffer.allocate(mStrideY*mHeight*3/2);
+        if (mOutBuf != null) {
+            mOutBuf.release();
+        }
+        mOutBuf = FrameBufferPool.getInstance().acquire(mStrideY*mHeight*3/2);
         Log("width: "+mWidth+" height: "+mHeight+" strideY: "+mStrideY+" strideVU: "+mStrideVU);
         nativeInit(mWidth, mHeight, mStrideY, mStrideVU,
                 0, 0, mWidth, mHeight, NUM_REQUIRED_IMAGE);
@@ -119,6 +123,9 @@ public class SharpshooterFilter implements ImageFilter{
     @Override
     public void deinit() {
         Log("deinit");
+        if (mOutBuf != null) {
+            mOutBuf.release();
+        }
         mOutBuf = null;
         nativeDeinit();
     }
@@ -138,12 +145,21 @@ public class SharpshooterFilter implements ImageFilter{
     public ResultImage processImage() {
         Log("processImage ");
         int[] roi = new int[4];
+        if (mOutBuf == null) {
+            mOutBuf = FrameBufferPool.getInstance().acquire(mStrideY*mHeight*3/2);
+        }
         int status = nativeProcessImage(mOutBuf.array(), (int) (mExpoTime / 1000000), mSenseValue, roi);
         Log("processImage done");
         if(status < 0) { //In failure case, library will return the first image as it is.
             Log.w(TAG, "Fail to process the image.");
         }
-        return new ResultImage(mOutBuf, new Rect(roi[0], roi[1], roi[0]+roi[2], roi[1] + roi[3]), mWidth, mHeight, mStrideY);
+        return new ResultImage(takeOutBuf(), new Rect(roi[0], roi[1], roi[0]+roi[2], roi[1] + roi[3]), mWidth, mHeight, mStrideY);
+    }
+
+    private FrameBufferPool.Buffer takeOutBuf() {
+        FrameBufferPool.Buffer outBuf = mOutBuf;
+        mOutBuf = null;
+        return outBuf;
     }
 
     @Override
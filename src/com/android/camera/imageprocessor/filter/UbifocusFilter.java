@@ -31,9 +31,7 @@ package com.android.camera.imageprocessor.filter;
 import android.app.ProgressDialog;
 import android.content.Context;
 import android.graphics.Camera;
-import android.graphics.ImageFormat;
 import android.graphics.Rect;
-import android.graphics.YuvImage;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
@@ -46,10 +44,11 @@ import android.util.Range;
 
 import com.android.camera.CameraActivity;
 import com.android.camera.CaptureModule;
+import com.android.camera.imageprocessor.FrameBufferPool;
+import com.android.camera.imageprocessor.JpegPackager;
 import com.android.camera.imageprocessor.PostProcessor;
 import com.android.camera.util.CameraUtil;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -68,14 +67,13 @@ public class UbifocusFilter implements ImageFilter {
     private static final int META_BYTES_SIZE = 25;
     private int temp;
     private static boolean mIsSupported = true;
-    private ByteBuffer mOutBuf;
+    private FrameBufferPool.Buffer mOutBuf;
     private CaptureModule mModule;
     private CameraActivity mActivity;
     private int mOrientation = 0;
     private float mMinFocusDistance = -1f;
     private Object mClosingLock = new Object();
     private PostProcessor mPostProcessor;
-    private ImageFilter.ResultImage mUbifocusResultImage;
     private ImageFilter.ResultImage mOriginImage;
     final String[] NAMES = {"00.jpg", "01.jpg", "02.jpg", "03.jpg",
             "04.jpg", "DepthMapImage.y", "AllFocusImage.jpg"};
@@ -117,7 +115,10 @@ public class UbifocusFilter implements ImageFilter {
         mHeight = height/2*2;
         mStrideY = strideY/2*2;
         mStrideVU = strideVU/2*2;
-        mOutBuf = ByteBuffer.allocate(mStrideY * mHeight * 3 / 2);
+        if (mOutBuf != null) {
+            mOutBuf.release();
+        }
+        mOutBuf = FrameBufferPool.getInstance().acquire(mStrideY * mHeight * 3 / 2);
         Log("width: "+mWidth+" height: "+mHeight+" strideY: "+mStrideY+" strideVU: "+mStrideVU);
         nativeInit(mWidth, mHeight, mStrideY, mStrideVU, NUM_REQUIRED_IMAGE);
     }
@@ -126,7 +127,14 @@ public class UbifocusFilter implements ImageFilter {
     public void deinit() {
         Log("deinit");
         synchronized (mClosingLock) {
+            if (mOutBuf != null) {
+                mOutBuf.release();
+            }
             mOutBuf = null;
+            if (mOriginImage != null) {
+                mOriginImage.release();
+                mOriginImage = null;
+            }
             nativeDeinit();
         }
     }
@@ -153,8 +161,6 @@ public class UbifocusFilter implements ImageFilter {
                         return;
                     }
                     byte[] bytes = getYUVBytes(bY, bVU, imageNum);
-                    if (imageNum == 0)
-                        mOriginImage = mUbifocusResultImage;
                     saveToPrivateFile(imageNum, bytes);
                     mSavedCount++;
                 }
@@ -167,6 +173,9 @@ public class UbifocusFilter implements ImageFilter {
         Log("processImage ");
         int[] roi = new int[4];
         int[] depthMapSize = new int[2];
+        if (mOutBuf == null) {
+            mOutBuf = FrameBufferPool.getInstance().acquire(mStrideY * mHeight * 3 / 2);
+        }
         int status = nativeProcessImage(mOutBuf.array(), roi, depthMapSize);
         if(status < 0 || !mRegistSuccess) { //In failure case, library will return the first image as it is.
             Log.w(TAG, "Fail to process the "+getStringName());
@@ -174,7 +183,7 @@ public class UbifocusFilter implements ImageFilter {
             byte[] depthMapBuf = new byte[depthMapSize[0] * depthMapSize[1] + META_BYTES_SIZE];
             nativeGetDepthMap(depthMapBuf, depthMapSize[0], depthMapSize[1]);
             saveToPrivateFile(NAMES.length - 2, depthMapBuf);
-            saveToPrivateFile(NAMES.length - 1, nv21ToJpeg(mOutBuf, null, new Rect(roi[0], roi[1], roi[0] + roi[2], roi[1] + roi[3]), mOrientation, 0));
+            saveToPrivateFile(NAMES.length - 1, nv21ToJpeg(mOutBuf.getBuffer(), null, new Rect(roi[0], roi[1], roi[0] + roi[2], roi[1] + roi[3]), mOrientation, 0));
             mModule.setRefocusLastTaken(true);
         }
         while(mSavedCount < NUM_REQUIRED_IMAGE) {
@@ -187,12 +196,22 @@ public class UbifocusFilter implements ImageFilter {
         if (!mRegistSuccess) {
             result = mOriginImage;
         } else {
-            result = new ResultImage(mOutBuf, new Rect(roi[0], roi[1], roi[0]+roi[2], roi[1] + roi[3]), mWidth, mHeight, mStrideY);
+            result = new ResultImage(takeOutBuf(), new Rect(roi[0], roi[1], roi[0]+roi[2], roi[1] + roi[3]), mWidth, mHeight, mStrideY);
+            if (mOriginImage != null) {
+                mOriginImage.release();
+            }
         }
+        mOriginImage = null;
         Log("processImage done");
         return result;
     }
 
+    private FrameBufferPool.Buffer takeOutBuf() {
+        FrameBufferPool.Buffer outBuf = mOutBuf;
+        mOutBuf = null;
+        return outBuf;
+    }
+
     @Override
     public boolean isSupported() {
         return mIsSupported;
@@ -246,29 +265,20 @@ public class UbifocusFilter implements ImageFilter {
     }
 
     private byte[] nv21ToJpeg(ByteBuffer bY, ByteBuffer bVU, Rect roi, int orientation, int imageIndex) {
-        ByteBuffer buf =  ByteBuffer.allocate(mStrideY*mHeight*3/2);
-        buf.put(bY);
-        bY.rewind();
-        if(bVU != null) {
-            buf.put(bVU);
-            bVU.rewind();
-        }
-        BitmapOutputStream bos = new BitmapOutputStream(1024);
-        YuvImage im = new YuvImage(buf.array(), ImageFormat.NV21,
-                mWidth, mHeight, new int[]{mStrideY, mStrideVU});
-        im.compressToJpeg(roi, mPostProcessor.getJpegQualityValue(), bos);
-        byte[] bytes = bos.getArray();
-        bytes = PostProcessor.addExifTags(bytes, orientation, mPostProcessor.waitForMetaData(imageIndex));
-        return bytes;
-    }
-
-    private class BitmapOutputStream extends ByteArrayOutputStream {
-        public BitmapOutputStream(int size) {
-            super(size);
-        }
-
-        public byte[] getArray() {
-            return buf;
+        FrameBufferPool.Buffer buf = FrameBufferPool.getInstance().acquire(mStrideY*mHeight*3/2);
+        try {
+            buf.getBuffer().put(bY);
+            bY.rewind();
+            if(bVU != null) {
+                buf.getBuffer().put(bVU);
+                bVU.rewind();
+            }
+            return JpegPackager.encode(buf.array(), mWidth, mHeight, mStrideY, mStrideVU, roi,
+                    mPostProcessor.getJpegQualityValue(),
+                    mPostProcessor.getJpegPackager().buildExifShot(orientation,
+                            mPostProcessor.waitForMetaData(imageIndex))).getJpeg();
+        } finally {
+            buf.release();
         }
     }
 
@@ -293,30 +303,34 @@ public class UbifocusFilter implements ImageFilter {
             if (mOutBuf == null) {
                 return null;
             }
-            mUbifocusResultImage = new ImageFilter.ResultImage(ByteBuffer.allocateDirect(
-                    mStrideY * mHeight * 3 / 2),
+            ImageFilter.ResultImage image = new ImageFilter.ResultImage(
+                    FrameBufferPool.getInstance().acquire(mStrideY * mHeight * 3 / 2),
                     new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStrideY);
-            yBuf.get(mUbifocusResultImage.outBuffer.array(), 0, yBuf.remaining());
-            vuBuf.get(mUbifocusResultImage.outBuffer.array(), mStrideY * mHeight,
+            yBuf.get(image.outBuffer.array(), 0, yBuf.remaining());
+            vuBuf.get(image.outBuffer.array(), mStrideY * mHeight,
                     vuBuf.remaining());
             yBuf.rewind();
             vuBuf.rewind();
 
-            return nv21ToJpeg(mUbifocusResultImage, mOrientation,
+            byte[] bytes = nv21ToJpeg(image, mOrientation,
                     mPostProcessor.waitForMetaData(imageNum));
+            //The first image is handed out as the result if processing fails.
+            if (imageNum == 0) {
+                if (mOriginImage != null) {
+                    mOriginImage.release();
+                }
+                mOriginImage = image;
+            } else {
+                image.release();
+            }
+            return bytes;
         }
     }
 
     private byte[] nv21ToJpeg(ImageFilter.ResultImage resultImage, int orientation,
                               TotalCaptureResult result) {
-        BitmapOutputStream bos = new BitmapOutputStream(1024);
-        YuvImage im = new YuvImage(resultImage.outBuffer.array(), ImageFormat.NV21,
-                resultImage.width, resultImage.height, new int[]{resultImage.stride,
-                resultImage.stride});
-        im.compressToJpeg(resultImage.outRoi, mPostProcessor.getJpegQualityValue(), bos);
-        byte[] bytes = bos.getArray();
-        bytes = PostProcessor.addExifTags(bytes, orientation, result);
-        return bytes;
+        return JpegPackager.encode(resultImage, mPostProcessor.getJpegQualityValue(),
+                mPostProcessor.getJpegPackager().buildExifShot(orientation, result)).getJpeg();
     }
 
     private native int nativeInit(int width, int height, int yStride, int vuStride, int numImages);
@@ -0,0 +1,158 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.mpo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.android.camera.exif.JpegHeader;
+
+/**
+ * Writes an MPO file to a FileChannel without going through a stream. The MP
+ * entries only depend on the sizes of the images and on where the APP2 segment
+ * goes in the primary image, so every offset is known before anything is
+ * written. Each image then goes to the channel as slices of its own buffer
+ * around its new APP2 segment, in one gathering write, and the file is never
+ * held in memory as a whole.
+ * <p>
+ * The output is the same as {@link MpoOutputStream}'s.
+ */
+class MpoComposer {
+    private final MpoData mMpoData;
+
+    MpoComposer(MpoData mpoData) {
+        mMpoData = mpoData;
+        mMpoData.updateAllTags();
+    }
+
+    /**
+     * Writes the file at the channel's position.
+     *
+     * @return the number of bytes written.
+     */
+    long writeTo(FileChannel channel) throws IOException {
+        MpoImageData primary = mMpoData.getPrimaryMpoImage();
+        List<MpoImageData> auxiliary = mMpoData.getAuxiliaryMpoImages();
+        ArrayList<ByteBuffer> parts = new ArrayList<ByteBuffer>((auxiliary.size() + 1) * 5);
+
+        // Entry offsets count from the MP header of the primary image.
+        int mpoOffsetStart = findMpoSegment(primary.getJpegData()) + 2
+                + MpoImageData.APP_HEADER_SIZE;
+        // Like MpoOutputStream, only clear the crop info if the primary is not bayer.
+        addImage(parts, primary, mpoOffsetStart, auxiliary.size() > 1);
+        for (MpoImageData image : auxiliary) {
+            addImage(parts, image, mpoOffsetStart, false);
+        }
+
+        ByteBuffer[] buffers = parts.toArray(new ByteBuffer[parts.size()]);
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        long written = 0;
+        while (written < remaining) {
+            written += channel.write(buffers);
+        }
+        return written;
+    }
+
+    private static void addImage(List<ByteBuffer> parts, MpoImageData image,
+            int mpoOffsetStart, boolean clearCropInfo) throws IOException {
+        ByteBuffer jpeg = image.getJpegData();
+        int end = jpeg.limit();
+        int insert = findMpoSegment(jpeg);
+        ByteArrayOutputStream segment = new ByteArrayOutputStream(
+                image.calculateAllIfdOffsets() + 2 + MpoImageData.APP_HEADER_SIZE);
+        MpoOutputStream.writeMpoSegment(image, mpoOffsetStart, segment);
+
+        parts.add(slice(jpeg, 0, insert));
+        parts.add(ByteBuffer.wrap(segment.toByteArray()));
+        int copied = insert;
+        if (clearCropInfo) {
+            // The first segment before the frame header that holds dual camera crop
+            // info keeps its marker and length, its contents are zeroed.
+            for (int pos = insert; pos + 4 <= end; ) {
+                short marker = jpeg.getShort(pos);
+                if (JpegHeader.isSofMarker(marker)) {
+                    break;
+                }
+                int length = jpeg.getShort(pos + 2) & 0xffff;
+                if (isDualCamCropInfo(jpeg, pos + 4, end)) {
+                    parts.add(slice(jpeg, copied, pos + 4));
+                    parts.add(ByteBuffer.allocate(length - 2));
+                    copied = Math.min(pos + 2 + length, end);
+                    break;
+                }
+                pos += 2 + length;
+            }
+        }
+        parts.add(slice(jpeg, copied, end));
+    }
+
+    // Finds where the APP2 segment goes, after SOI and any APP0 and APP1 segments.
+    private static int findMpoSegment(ByteBuffer jpeg) throws IOException {
+        int end = jpeg.limit();
+        if (end < 2 || jpeg.getShort(0) != JpegHeader.SOI) {
+            throw new IOException("Not a valid jpeg image, cannot write mpo");
+        }
+        int pos = 2;
+        while (pos + 4 <= end) {
+            short marker = jpeg.getShort(pos);
+            if (marker != JpegHeader.APP0 && marker != JpegHeader.APP1) {
+                return pos;
+            }
+            pos += 2 + (jpeg.getShort(pos + 2) & 0xffff);
+        }
+        throw new IOException("Truncated jpeg image, cannot write mpo");
+    }
+
+    private static boolean isDualCamCropInfo(ByteBuffer jpeg, int pos, int end) {
+        if (pos + MpoOutputStream.DC_CROP_INFO_BYTE_SIZE > end) {
+            return false;
+        }
+        for (int i = 0; i < MpoOutputStream.DC_CROP_INFO_BYTE_SIZE; i++) {
+            if (MpoOutputStream.DC_CROP_INFO.charAt(i) != (char) jpeg.get(pos + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ByteBuffer slice(ByteBuffer jpeg, int from, int to) {
+        ByteBuffer slice = jpeg.duplicate();
+        slice.limit(to);
+        slice.position(from);
+        return slice;
+    }
+}
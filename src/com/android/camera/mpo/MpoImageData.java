@@ -19,7 +19,12 @@
 
 package com.android.camera.mpo;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -36,19 +41,49 @@ public class MpoImageData {
 
     private final MpoIfdData mMpIndexIfdData = new MpoIfdData(MpoIfdData.TYPE_MP_INDEX_IFD);
     private final MpoIfdData mMpAttribIfdData = new MpoIfdData(MpoIfdData.TYPE_MP_ATTRIB_IFD);
-    private final byte[] mJpegData;
+    private final ByteBuffer mJpegData;
     private final ByteOrder mByteOrder;
 
     public MpoImageData(byte[] jpegData, ByteOrder byteOrder) {
-        mJpegData = jpegData;
+        this(ByteBuffer.wrap(jpegData), byteOrder);
+    }
+
+    /**
+     * Uses the jpeg from the position to the limit of the buffer, which is not
+     * copied. The buffer can be direct, e.g. a camera image plane or a mapped file.
+     */
+    public MpoImageData(ByteBuffer jpegData, ByteOrder byteOrder) {
+        mJpegData = jpegData.slice();
         mByteOrder = byteOrder;
     }
 
     /**
-     * Gets the jpeg data.
+     * Maps the jpeg in the file, so that it does not take any heap until it is
+     * written. The file has to stay as it is until then.
+     */
+    public static MpoImageData fromFile(File jpegFile, ByteOrder byteOrder) throws IOException {
+        FileInputStream in = new FileInputStream(jpegFile);
+        try {
+            FileChannel channel = in.getChannel();
+            return new MpoImageData(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size()), byteOrder);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Gets the jpeg data, in a buffer of its own that starts at the SOI marker.
+     */
+    protected ByteBuffer getJpegData() {
+        return mJpegData.duplicate();
+    }
+
+    /**
+     * Gets the size of the jpeg data.
      */
-    protected byte[] getJpegData() {
-        return mJpegData;
+    protected int getJpegLength() {
+        return mJpegData.capacity();
     }
 
     /**
@@ -243,6 +278,6 @@ public class MpoImageData {
     }
 
     public int calculateImageSize() {
-        return 2 + APP_HEADER_SIZE + calculateAllIfdOffsets() + mJpegData.length;
+        return 2 + APP_HEADER_SIZE + calculateAllIfdOffsets() + getJpegLength();
     }
 }
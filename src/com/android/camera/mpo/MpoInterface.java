@@ -19,10 +19,10 @@
 
 package com.android.camera.mpo;
 
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 
 import android.util.Log;
 
@@ -100,7 +100,30 @@ public class MpoInterface {
         if (mpo == null || outFilename == null)
             throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
 
-        return writeMpo(mpo, getFileWriterStream(outFilename));
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(outFilename);
+            return (int) writeMpo(mpo, out.getChannel());
+        } catch (IOException e) {
+            Log.w(TAG, "IO Exception when writing mpo image");
+            return -1;
+        } finally {
+            CameraUtil.closeSilently(out);
+        }
+    }
+
+    /**
+     * Writes the mpo file at the channel's position. The images go to the
+     * channel straight from their buffers, with the mpo metadata added, so the
+     * file is never held in memory.
+     *
+     * @return the number of bytes written.
+     */
+    public static long writeMpo(MpoData mpo, FileChannel channel) throws IOException {
+        if (mpo == null || channel == null)
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+
+        return new MpoComposer(mpo).writeTo(channel);
     }
 
     /**
@@ -118,26 +141,4 @@ public class MpoInterface {
         MpoOutputStream mos = new MpoOutputStream(outStream);
         return mos;
     }
-
-    /**
-     * Returns an FileOutputStream object that writes to a file.
-     *
-     * @param outFileName
-     *            an String containing a filepath for a file.
-     * @return an FileOutputStream that writes to the outFileName file.
-     * @throws FileNotFoundException
-     */
-    private static OutputStream getFileWriterStream(String outFileName) {
-        if (outFileName == null) {
-            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
-        }
-        OutputStream out = null;
-        try {
-            out = new FileOutputStream(outFileName);
-        } catch (FileNotFoundException e) {
-            CameraUtil.closeSilently(out);
-            Log.w(TAG, "File not found");
-        }
-        return out;
-    }
 }
@@ -51,8 +51,8 @@ class MpoOutputStream extends FilterOutputStream {
     private static final short TIFF_LITTLE_ENDIAN = 0x4949;
     private static final int MAX_EXIF_SIZE = 65535;
 
-    private static final String DC_CROP_INFO = "Qualcomm Dual Camera Attributes";
-    private static final int DC_CROP_INFO_BYTE_SIZE = DC_CROP_INFO.length();
+    static final String DC_CROP_INFO = "Qualcomm Dual Camera Attributes";
+    static final int DC_CROP_INFO_BYTE_SIZE = DC_CROP_INFO.length();
 
     private MpoData mMpoData;
     private MpoImageData mCurrentImageData;
@@ -117,7 +117,7 @@ class MpoOutputStream extends FilterOutputStream {
         if(mMpoData.getAuxiliaryImageCount() > 1) {
             mSkipCropData = true;
         }
-        write(mCurrentImageData.getJpegData());
+        writeJpegData();
         flush();
 
         mSkipCropData = false;
@@ -125,11 +125,25 @@ class MpoOutputStream extends FilterOutputStream {
         for (MpoImageData image : mMpoData.getAuxiliaryMpoImages()) {
             resetStates();
             mCurrentImageData = image;
-            write(mCurrentImageData.getJpegData());
+            writeJpegData();
             flush();
         }
     }
 
+    private void writeJpegData() throws IOException {
+        ByteBuffer jpeg = mCurrentImageData.getJpegData();
+        if (jpeg.hasArray()) {
+            write(jpeg.array(), jpeg.arrayOffset(), jpeg.remaining());
+            return;
+        }
+        byte[] chunk = new byte[Math.min(jpeg.remaining(), STREAMBUFFER_SIZE)];
+        while (jpeg.hasRemaining()) {
+            int length = Math.min(jpeg.remaining(), chunk.length);
+            jpeg.get(chunk, 0, length);
+            write(chunk, 0, length);
+        }
+    }
+
     /**
      * Writes the image out. The input data should be a valid JPEG format. After
      * writing, it's Exif header will be replaced by the given header.
@@ -286,10 +300,26 @@ class MpoOutputStream extends FilterOutputStream {
         if (mMpoData == null) {
             return;
         }
+        if (mMpoOffsetStart == -1) {
+            // Entry offsets count from the MP header of the first image written.
+            mMpoOffsetStart = mSize + 2 + MpoImageData.APP_HEADER_SIZE;
+        }
+        mSize += writeMpoSegment(mCurrentImageData, mMpoOffsetStart, out);
+    }
+
+    /**
+     * Writes the APP2 segment with the MP header and IFDs of one image.
+     *
+     * @param mpoOffsetStart where the MP header of the first image is in the file,
+     *            which the MP entry offsets of the index IFD are relative to.
+     * @return the size of the segment.
+     */
+    static int writeMpoSegment(MpoImageData image, int mpoOffsetStart, OutputStream out)
+            throws IOException {
         if (DEBUG) {
             Log.v(TAG, "Writing mpo data...");
         }
-        int exifSize = mCurrentImageData.calculateAllIfdOffsets() + MpoImageData.APP_HEADER_SIZE;
+        int exifSize = image.calculateAllIfdOffsets() + MpoImageData.APP_HEADER_SIZE;
         if (exifSize > MAX_EXIF_SIZE) {
             throw new IOException("Exif header is too large (>64Kb)");
         }
@@ -298,29 +328,25 @@ class MpoOutputStream extends FilterOutputStream {
         dataOutputStream.writeShort(JpegHeader.APP2);
         dataOutputStream.writeShort((short) (exifSize));
         dataOutputStream.writeInt(MpoImageData.MP_FORMAT_IDENTIFIER);
-        if (mMpoOffsetStart == -1) {
-            mMpoOffsetStart = mSize + dataOutputStream.size();
-        }
-        if (mCurrentImageData.getByteOrder() == ByteOrder.BIG_ENDIAN) {
+        if (image.getByteOrder() == ByteOrder.BIG_ENDIAN) {
             dataOutputStream.writeShort(TIFF_BIG_ENDIAN);
         } else {
             dataOutputStream.writeShort(TIFF_LITTLE_ENDIAN);
         }
-        dataOutputStream.setByteOrder(mCurrentImageData.getByteOrder());
+        dataOutputStream.setByteOrder(image.getByteOrder());
         dataOutputStream.writeShort(TIFF_HEADER);
         if (exifSize > MpoImageData.MP_HEADER_SIZE + MpoImageData.APP_HEADER_SIZE) {
             dataOutputStream.writeInt(MpoImageData.OFFSET_TO_FIRST_IFD);
-            writeAllTags(dataOutputStream);
+            writeAllTags(image, mpoOffsetStart, dataOutputStream);
         } else
             dataOutputStream.writeInt(0);
 
-        mSize += dataOutputStream.size();
+        return dataOutputStream.size();
     }
 
-    private void updateIndexIfdOffsets(MpoIfdData indexIfd, int mpoOffset) {
-        // update offsets
-        MpoTag mpEntryTag = mMpoData.getPrimaryMpoImage().getTag((short) MpoInterface.TAG_MP_ENTRY,
-                MpoIfdData.TYPE_MP_INDEX_IFD);
+    private static void updateIndexIfdOffsets(MpoIfdData indexIfd, int mpoOffset) {
+        // update offsets, only the primary image has an index IFD
+        MpoTag mpEntryTag = indexIfd.getTag((short) MpoInterface.TAG_MP_ENTRY);
         List<MpEntry> mpEntries = mpEntryTag.getMpEntryValue();
         for (int i = 1; i < mpEntries.size(); i++) { // primary offset is always
                                                      // 0
@@ -331,19 +357,20 @@ class MpoOutputStream extends FilterOutputStream {
         mpEntryTag.setValue(mpEntries);
     }
 
-    private void writeAllTags(OrderedDataOutputStream dataOutputStream) throws IOException {
-        MpoIfdData indexIfd = mCurrentImageData.getIndexIfdData();
+    private static void writeAllTags(MpoImageData image, int mpoOffsetStart,
+            OrderedDataOutputStream dataOutputStream) throws IOException {
+        MpoIfdData indexIfd = image.getIndexIfdData();
         if (indexIfd.getTagCount() > 0) {
-            updateIndexIfdOffsets(indexIfd, mMpoOffsetStart);
+            updateIndexIfdOffsets(indexIfd, mpoOffsetStart);
             writeIfd(indexIfd, dataOutputStream);
         }
 
-        MpoIfdData attribIfd = mCurrentImageData.getAttribIfdData();
+        MpoIfdData attribIfd = image.getAttribIfdData();
         if (attribIfd.getTagCount() > 0)
             writeIfd(attribIfd, dataOutputStream);
     }
 
-    private void writeIfd(MpoIfdData ifd, OrderedDataOutputStream dataOutputStream)
+    private static void writeIfd(MpoIfdData ifd, OrderedDataOutputStream dataOutputStream)
             throws IOException {
         MpoTag[] tags = ifd.getAllTags();
         dataOutputStream.writeShort((short) tags.length);
@@ -0,0 +1,182 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.util;
+
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.params.BlackLevelPattern;
+import android.hardware.camera2.params.ColorSpaceTransform;
+import android.os.Build;
+
+import com.android.camera.exif.DngWriter;
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifTag;
+import com.android.camera.exif.Rational;
+
+/**
+ * Fills the tags of a {@link DngWriter} from the camera2 metadata of a RAW capture.
+ */
+public class DngUtil {
+    private static final String APP_NAME = "SnapdragonCamera";
+
+    private DngUtil() {
+    }
+
+    /**
+     * Creates a writer for a RAW10 frame, tagged from the characteristics of the camera
+     * and, when it is available, the result of the capture.
+     *
+     * @param orientation the rotation of the picture in degrees.
+     */
+    public static DngWriter createWriter(int width, int height, CameraCharacteristics chars,
+            CaptureResult result, long date, int orientation) {
+        DngWriter writer = new DngWriter(width, height);
+        String maker = Build.MANUFACTURER;
+        if (maker.equals("unknown")) {
+            maker = "QCOM-AA";
+        }
+        writer.setString(DngWriter.TAG_MAKE, maker)
+                .setString(DngWriter.TAG_MODEL, Build.MODEL)
+                .setString(DngWriter.TAG_UNIQUE_CAMERA_MODEL, maker + " " + Build.MODEL)
+                .setString(DngWriter.TAG_SOFTWARE, APP_NAME)
+                .setDateTime(date)
+                .setOrientation(ExifInterface.getOrientationValueForRotation(orientation));
+
+        Integer arrangement = chars.get(CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT);
+        if (arrangement != null && getCfaPattern(arrangement) != null) {
+            writer.setCfaPattern(getCfaPattern(arrangement));
+        }
+        BlackLevelPattern black = chars.get(CameraCharacteristics.SENSOR_BLACK_LEVEL_PATTERN);
+        if (black != null) {
+            writer.setBlackLevel(new int[] {
+                    black.getOffsetForIndex(0, 0), black.getOffsetForIndex(1, 0),
+                    black.getOffsetForIndex(0, 1), black.getOffsetForIndex(1, 1)});
+        }
+        Integer white = chars.get(CameraCharacteristics.SENSOR_INFO_WHITE_LEVEL);
+        if (white != null) {
+            writer.setWhiteLevel(white);
+        }
+        Integer illuminant = chars.get(CameraCharacteristics.SENSOR_REFERENCE_ILLUMINANT1);
+        if (illuminant != null) {
+            writer.setTag(DngWriter.TAG_CALIBRATION_ILLUMINANT_1,
+                    ExifTag.TYPE_UNSIGNED_SHORT, illuminant);
+        }
+        writer.setRationals(DngWriter.TAG_COLOR_MATRIX_1, ExifTag.TYPE_RATIONAL,
+                toRationals(chars.get(CameraCharacteristics.SENSOR_COLOR_TRANSFORM1)));
+        writer.setRationals(DngWriter.TAG_CAMERA_CALIBRATION_1, ExifTag.TYPE_RATIONAL,
+                toRationals(chars.get(CameraCharacteristics.SENSOR_CALIBRATION_TRANSFORM1)));
+        writer.setRationals(DngWriter.TAG_FORWARD_MATRIX_1, ExifTag.TYPE_RATIONAL,
+                toRationals(chars.get(CameraCharacteristics.SENSOR_FORWARD_MATRIX1)));
+
+        if (result != null) {
+            setResultTags(writer, result);
+        }
+        return writer;
+    }
+
+    private static void setResultTags(DngWriter writer, CaptureResult result) {
+        android.util.Rational[] neutral = result.get(CaptureResult.SENSOR_NEUTRAL_COLOR_POINT);
+        if (neutral != null) {
+            Rational[] values = new Rational[neutral.length];
+            for (int i = 0; i < neutral.length; i++) {
+                values[i] = new Rational(neutral[i].getNumerator(), neutral[i].getDenominator());
+            }
+            writer.setRationals(DngWriter.TAG_AS_SHOT_NEUTRAL,
+                    ExifTag.TYPE_UNSIGNED_RATIONAL, values);
+        }
+        Long exposureNs = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+        if (exposureNs != null) {
+            // Microseconds keep both halves of the rational within 32 bits.
+            writer.setTag(DngWriter.TAG_EXPOSURE_TIME, ExifTag.TYPE_UNSIGNED_RATIONAL,
+                    new Rational(exposureNs / 1000, 1000000));
+        }
+        Integer iso = result.get(CaptureResult.SENSOR_SENSITIVITY);
+        if (iso != null) {
+            writer.setTag(DngWriter.TAG_ISO_SPEED_RATINGS, ExifTag.TYPE_UNSIGNED_SHORT,
+                    Math.min(iso, 0xffff));
+        }
+        Float aperture = result.get(CaptureResult.LENS_APERTURE);
+        if (aperture != null) {
+            writer.setTag(DngWriter.TAG_F_NUMBER, ExifTag.TYPE_UNSIGNED_RATIONAL,
+                    new Rational(Math.round(aperture * 100), 100));
+        }
+        Float focalLength = result.get(CaptureResult.LENS_FOCAL_LENGTH);
+        if (focalLength != null) {
+            writer.setTag(DngWriter.TAG_FOCAL_LENGTH, ExifTag.TYPE_UNSIGNED_RATIONAL,
+                    new Rational(Math.round(focalLength * 100), 100));
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            float[] black = result.get(CaptureResult.SENSOR_DYNAMIC_BLACK_LEVEL);
+            if (black != null && black.length == 4) {
+                writer.setBlackLevel(new int[] {
+                        Math.round(black[0]), Math.round(black[1]),
+                        Math.round(black[2]), Math.round(black[3])});
+            }
+            Integer white = result.get(CaptureResult.SENSOR_DYNAMIC_WHITE_LEVEL);
+            if (white != null) {
+                writer.setWhiteLevel(white);
+            }
+        }
+    }
+
+    private static byte[] getCfaPattern(int arrangement) {
+        final byte r = DngWriter.CFA_RED;
+        final byte g = DngWriter.CFA_GREEN;
+        final byte b = DngWriter.CFA_BLUE;
+        switch (arrangement) {
+            case CameraMetadata.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT_RGGB:
+                return new byte[] {r, g, g, b};
+            case CameraMetadata.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT_GRBG:
+                return new byte[] {g, r, b, g};
+            case CameraMetadata.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT_GBRG:
+                return new byte[] {g, b, r, g};
+            case CameraMetadata.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT_BGGR:
+                return new byte[] {b, g, g, r};
+            default:
+                return null;
+        }
+    }
+
+    private static Rational[] toRationals(ColorSpaceTransform transform) {
+        if (transform == null) {
+            return null;
+        }
+        Rational[] values = new Rational[9];
+        for (int row = 0; row < 3; row++) {
+            for (int column = 0; column < 3; column++) {
+                android.util.Rational value = transform.getElement(column, row);
+                values[row * 3 + column] = new Rational(value.getNumerator(),
+                        value.getDenominator());
+            }
+        }
+        return values;
+    }
+}
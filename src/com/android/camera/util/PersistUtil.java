@@ -39,6 +39,10 @@ public class PersistUtil {
     public static final int CAMERA2_DEBUG_DUMP_LOG = 2;
     public static final int CAMERA2_DEBUG_DUMP_ALL = 100;
 
+    public static final int RAW_FORMAT_DUMP = 0;
+    public static final int RAW_FORMAT_DNG = 1;
+    public static final int RAW_FORMAT_DNG_16BIT = 2;
+
     private static final int CAMERA_SENSOR_HORIZONTAL_ALIGNED = 0;
     private static final int CAMERA_SENSOR_VERTICAL_ALIGNED = 1;
 
@@ -79,8 +83,35 @@ public class PersistUtil {
                     CAMERA_SENSOR_HORIZONTAL_ALIGNED);
     private static final int CIRCULAR_BUFFER_SIZE_PERSIST =
             SystemProperties.getInt("persist.sys.camera.zsl.buffer.size", 5);
+    // Never below the configured size, so devices that set a deeper queue keep it.
+    private static final int CIRCULAR_BUFFER_MAX_SIZE_PERSIST =
+            SystemProperties.getInt("persist.sys.camera.zsl.buffer.max",
+                    Math.max(6, CIRCULAR_BUFFER_SIZE_PERSIST));
+    private static final int CIRCULAR_BUFFER_BUDGET_IN_MB =
+            SystemProperties.getInt("persist.sys.camera.zsl.buffer.budget", 0);
+    private static final int FRAME_BUFFER_POOL_IN_MB =
+            SystemProperties.getInt("persist.sys.camera.bufferpool.size", 96);
+    private static final boolean PERSIST_PREVIEW_JAVA_KERNELS =
+            SystemProperties.getBoolean("persist.sys.camera.preview.java_kernels", false);
+    private static final int PERSIST_PREVIEW_LISTENER_FPS =
+            SystemProperties.getInt("persist.sys.camera.preview.listener_fps", 15);
+    private static final int PERSIST_PREVIEW_LISTENER_LOAD =
+            SystemProperties.getInt("persist.sys.camera.preview.listener_load", 50);
+    private static final int PERSIST_PREVIEW_LISTENER_DOWNSCALE =
+            SystemProperties.getInt("persist.sys.camera.preview.listener_downscale", 1);
     private static final int SAVE_TASK_MEMORY_LIMIT_IN_MB =
             SystemProperties.getInt("persist.sys.camera.perf.memlimit", 120);
+    private static final int SAVE_THREAD_COUNT =
+            SystemProperties.getInt("persist.sys.camera.perf.savethreads", 2);
+    // Room for everything the save budget lets queue up, and a quarter more for the
+    // burst frames that are written but still wait for their batched MediaStore insert.
+    private static final int SAVE_SPOOL_SIZE_IN_MB =
+            SystemProperties.getInt("persist.sys.camera.perf.spoolsize",
+                    SAVE_TASK_MEMORY_LIMIT_IN_MB * 5 / 4);
+    private static final int SAVE_DURABILITY =
+            SystemProperties.getInt("persist.sys.camera.perf.fsync", 0);
+    private static final int PERSIST_RAW_FORMAT =
+            SystemProperties.getInt("persist.sys.camera.raw.format", 1);
     private static final boolean PERSIST_CAMERA_UI_AUTO_TEST_ENABLED =
             SystemProperties.getBoolean("persist.sys.camera.ui.auto_test", false);
     private static final boolean PERSIST_CAMERA_SAVE_IN_SD_ENABLED =
@@ -227,10 +258,55 @@ public class PersistUtil {
         return CIRCULAR_BUFFER_SIZE_PERSIST;
     }
 
+    public static int getCircularBufferMaxSize(){
+        return CIRCULAR_BUFFER_MAX_SIZE_PERSIST;
+    }
+
+    public static int getCircularBufferBudgetInMb(){
+        //value: 0(default) - derived from the device memory
+        return CIRCULAR_BUFFER_BUDGET_IN_MB;
+    }
+
+    public static int getFrameBufferPoolSizeInMb(){
+        return FRAME_BUFFER_POOL_IN_MB;
+    }
+
+    public static boolean isPreviewJavaKernelsEnabled(){
+        return PERSIST_PREVIEW_JAVA_KERNELS;
+    }
+
+    public static int getPreviewListenerFps(){
+        return PERSIST_PREVIEW_LISTENER_FPS;
+    }
+
+    public static int getPreviewListenerLoadPercent(){
+        return PERSIST_PREVIEW_LISTENER_LOAD;
+    }
+
+    public static int getPreviewListenerDownscale(){
+        return PERSIST_PREVIEW_LISTENER_DOWNSCALE;
+    }
+
     public static int getSaveTaskMemoryLimitInMb(){
         return SAVE_TASK_MEMORY_LIMIT_IN_MB;
     }
 
+    public static int getSaveThreadCount(){
+        return SAVE_THREAD_COUNT;
+    }
+
+    public static int getSaveSpoolSizeInMb(){
+        return SAVE_SPOOL_SIZE_IN_MB;
+    }
+
+    public static int getSaveDurability(){
+        return SAVE_DURABILITY;
+    }
+
+    public static int getRawFormat(){
+        return PERSIST_RAW_FORMAT;
+    }
+
     public static boolean isAutoTestEnabled(){
         return PERSIST_CAMERA_UI_AUTO_TEST_ENABLED;
     }
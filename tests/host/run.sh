@@ -0,0 +1,114 @@
+#!/bin/bash
+#
+# Copyright (c) 2018, The Linux Foundation. All rights reserved.
+#
+# Redistribution and use in source and binary forms, with or without
+# modification, are permitted provided that the following conditions are
+# met:
+#     * Redistributions of source code must retain the above copyright
+#       notice, this list of conditions and the following disclaimer.
+#     * Redistributions in binary form must reproduce the above
+#       copyright notice, this list of conditions and the following
+#       disclaimer in the documentation and/or other materials provided
+#       with the distribution.
+#     * Neither the name of The Linux Foundation nor the names of its
+#       contributors may be used to endorse or promote products derived
+#       from this software without specific prior written permission.
+#
+# THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+# WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+# ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+# BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+# CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+# SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+# BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+# WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+# OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+# IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+#
+# Builds the pure Java codecs (exif, mpo, util/XmpUtil) for the host JVM against
+# the stand-ins in stubs/, then runs their tests or benchmarks. Needs only a JDK.
+#
+#   tests/host/run.sh test
+#   tests/host/run.sh bench [--quick] [--filter REGEX] [--save FILE] [--check FILE]
+#   tests/host/run.sh check [--quick] [--time-tolerance F]
+#
+# check compares against baseline.tsv. Allocations per operation are checked
+# always; times only with --time-tolerance, and only mean something against a
+# baseline saved on the same machine (bench --save).
+#
+# XmpUtil needs the xmp toolkit. Point XMP_TOOLKIT_JAR at its classes, e.g.
+# out/target/common/obj/JAVA_LIBRARIES/xmp_toolkit_intermediates/classes.jar,
+# otherwise XmpUtil and its benchmarks are left out.
+
+set -e
+
+HOST_DIR=$(cd "$(dirname "$0")" && pwd)
+ROOT=$(cd "$HOST_DIR/../.." && pwd)
+OUT=${HOST_OUT_DIR:-${TMPDIR:-/tmp}/snapcam-host}
+JAVA_OPTS=${JAVA_OPTS:--Xmx1g}
+
+HOST_TESTS="
+    com.android.camera.unittest.DngWriterTest
+    com.android.camera.unittest.ExifBufferParserTest
+    com.android.camera.unittest.ExifRewriteTest
+    com.android.camera.unittest.ExifTagStoreTest
+    com.android.camera.unittest.ExifTemplateTest
+    com.android.camera.unittest.MpoComposerTest
+    com.android.camera.host.CorpusTest
+"
+
+build() {
+    local cp="$OUT/classes"
+    local sources="$OUT/sources.txt"
+    rm -rf "$OUT/classes"
+    mkdir -p "$OUT/classes"
+    {
+        find "$HOST_DIR/stubs" "$HOST_DIR/src" -name '*.java' ! -name 'XmpBenchmarks.java'
+        find "$ROOT/src/com/android/camera/exif" "$ROOT/src/com/android/camera/mpo" \
+                -name '*.java'
+        for t in $HOST_TESTS; do
+            case $t in com.android.camera.unittest.*)
+                echo "$ROOT/tests/src/${t//.//}.java"
+            esac
+        done
+        if [ -n "$XMP_TOOLKIT_JAR" ]; then
+            echo "$ROOT/src/com/android/camera/util/XmpUtil.java"
+            echo "$HOST_DIR/src/com/android/camera/host/XmpBenchmarks.java"
+        fi
+    } > "$sources"
+    if [ -n "$XMP_TOOLKIT_JAR" ]; then
+        cp="$cp:$XMP_TOOLKIT_JAR"
+    else
+        echo "XMP_TOOLKIT_JAR not set, leaving out XmpUtil" >&2
+    fi
+    javac -nowarn -encoding UTF-8 -source 8 -target 8 -d "$OUT/classes" -cp "$cp" \
+            @"$sources" 2>&1 | grep -v '^Note:\|^warning: \[options\]\|^1 warning' || true
+    [ -f "$OUT/classes/com/android/camera/host/CodecBenchmarks.class" ]
+    CLASSPATH="$cp"
+}
+
+cmd=${1:-test}
+[ $# -gt 0 ] && shift
+case $cmd in
+    test)
+        build
+        exec java $JAVA_OPTS -cp "$CLASSPATH" -Dcorpus.dir="$ROOT/tests/res/raw" \
+                com.android.camera.host.HostTestRunner $HOST_TESTS
+        ;;
+    bench)
+        build
+        exec java $JAVA_OPTS -cp "$CLASSPATH" com.android.camera.host.CodecBenchmarks \
+                --corpus "$ROOT/tests/res/raw" "$@"
+        ;;
+    check)
+        build
+        exec java $JAVA_OPTS -cp "$CLASSPATH" com.android.camera.host.CodecBenchmarks \
+                --corpus "$ROOT/tests/res/raw" --check "$HOST_DIR/baseline.tsv" "$@"
+        ;;
+    *)
+        echo "Usage: $0 test|bench|check [benchmark options]" >&2
+        exit 2
+        ;;
+esac
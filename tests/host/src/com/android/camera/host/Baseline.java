@@ -0,0 +1,118 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.host;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Benchmark results saved as tab separated lines of name, ns/op and allocated B/op.
+ * Times are only comparable on the machine the baseline was saved on, allocations
+ * are comparable anywhere with the same JVM.
+ */
+class Baseline {
+    // Allocation differences below this are noise from the measurement itself.
+    private static final double ALLOC_SLACK_BYTES = 64;
+
+    static void write(File file, List<BenchmarkRunner.Result> results) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            out.println("# benchmark\tns/op\tB/op\t(java " + System.getProperty("java.version")
+                    + ", " + System.getProperty("os.arch") + ")");
+            for (BenchmarkRunner.Result r : results) {
+                out.println(String.format(Locale.US, "%s\t%.1f\t%.1f", r.name, r.nsPerOp,
+                        r.bytesPerOp));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Prints every result that is slower or allocates more than its baseline beyond
+     * the tolerances, and returns how many there are. Times are not checked when
+     * timeTolerance is negative. Results missing from the baseline are reported but
+     * do not count.
+     */
+    static int check(File file, List<BenchmarkRunner.Result> results, double timeTolerance,
+            double allocTolerance, PrintStream report) throws IOException {
+        Map<String, double[]> baseline = read(file);
+        int regressions = 0;
+        for (BenchmarkRunner.Result r : results) {
+            double[] base = baseline.get(r.name);
+            if (base == null) {
+                report.println("NEW   " + r.name);
+                continue;
+            }
+            boolean slower = timeTolerance >= 0 && r.nsPerOp > base[0] * (1 + timeTolerance);
+            boolean fatter = base[1] >= 0 && r.bytesPerOp >= 0
+                    && r.bytesPerOp > base[1] * (1 + allocTolerance) + ALLOC_SLACK_BYTES;
+            if (slower || fatter) {
+                regressions++;
+                report.println(String.format(Locale.US,
+                        "WORSE %s: %.1f ns/op (baseline %.1f), %.1f B/op (baseline %.1f)",
+                        r.name, r.nsPerOp, base[0], r.bytesPerOp, base[1]));
+            }
+        }
+        return regressions;
+    }
+
+    private static Map<String, double[]> read(File file) throws IOException {
+        Map<String, double[]> baseline = new HashMap<String, double[]>();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("#") || line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                if (fields.length < 3) {
+                    throw new IOException("Bad baseline line: " + line);
+                }
+                baseline.put(fields[0], new double[] {
+                    Double.parseDouble(fields[1]), Double.parseDouble(fields[2])
+                });
+            }
+        } finally {
+            in.close();
+        }
+        return baseline;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.host;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+
+/**
+ * Times a benchmark the way JMH's average time mode does: warm up for a while, then
+ * run a number of fixed-length iterations and report the mean time per operation and
+ * its 99.9% confidence error. Bytes allocated per operation and collections during the
+ * measurement are reported next to it, from the thread allocation counter of the JVM.
+ */
+public class BenchmarkRunner {
+
+    public interface Benchmark {
+        /** Runs one operation. The result is kept so that the work cannot be dropped. */
+        Object run() throws Exception;
+    }
+
+    public static class Result {
+        public final String name;
+        public final int iterations;
+        public final double nsPerOp;
+        public final double nsError;
+        public final double bytesPerOp;
+        public final long gcCount;
+
+        Result(String name, int iterations, double nsPerOp, double nsError,
+                double bytesPerOp, long gcCount) {
+            this.name = name;
+            this.iterations = iterations;
+            this.nsPerOp = nsPerOp;
+            this.nsError = nsError;
+            this.bytesPerOp = bytesPerOp;
+            this.gcCount = gcCount;
+        }
+    }
+
+    // Student's t for a 99.9% two-sided interval, by degrees of freedom 1..10.
+    private static final double[] T_999 = {
+        636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587
+    };
+
+    private final long mWarmupNs;
+    private final long mIterationNs;
+    private final int mIterations;
+    private final ThreadMXBean mThreads = ManagementFactory.getThreadMXBean();
+    private volatile Object mSink;
+
+    public BenchmarkRunner(long warmupMs, long iterationMs, int iterations) {
+        mWarmupNs = warmupMs * 1000000L;
+        mIterationNs = iterationMs * 1000000L;
+        mIterations = Math.max(2, iterations);
+    }
+
+    public Result run(String name, Benchmark benchmark) throws Exception {
+        long end = System.nanoTime() + mWarmupNs;
+        do {
+            mSink = benchmark.run();
+        } while (System.nanoTime() < end);
+
+        double[] nsPerOp = new double[mIterations];
+        long ops = 0;
+        long gcBefore = gcCount();
+        long allocBefore = allocatedBytes();
+        for (int i = 0; i < mIterations; i++) {
+            long start = System.nanoTime();
+            long now;
+            long iterationOps = 0;
+            do {
+                mSink = benchmark.run();
+                iterationOps++;
+                now = System.nanoTime();
+            } while (now - start < mIterationNs);
+            nsPerOp[i] = (double) (now - start) / iterationOps;
+            ops += iterationOps;
+        }
+        long allocated = allocatedBytes() - allocBefore;
+        long gcs = gcCount() - gcBefore;
+        mSink = null;
+
+        double mean = 0;
+        for (double v : nsPerOp) {
+            mean += v;
+        }
+        mean /= nsPerOp.length;
+        double variance = 0;
+        for (double v : nsPerOp) {
+            variance += (v - mean) * (v - mean);
+        }
+        variance /= nsPerOp.length - 1;
+        double t = T_999[Math.min(nsPerOp.length - 1, T_999.length) - 1];
+        double error = t * Math.sqrt(variance / nsPerOp.length);
+        return new Result(name, mIterations, mean, error,
+                allocBefore < 0 ? -1 : (double) allocated / ops, gcs);
+    }
+
+    private long allocatedBytes() {
+        if (mThreads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) mThreads;
+            if (threads.isThreadAllocatedMemorySupported()) {
+                return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        List<GarbageCollectorMXBean> gcs = ManagementFactory.getGarbageCollectorMXBeans();
+        for (GarbageCollectorMXBean gc : gcs) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+}
@@ -0,0 +1,334 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.host;
+
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifTag;
+import com.android.camera.exif.ExifTemplate;
+import com.android.camera.mpo.MpoData;
+import com.android.camera.mpo.MpoImageData;
+import com.android.camera.mpo.MpoInterface;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmarks of the exif, mpo and XmpUtil codecs over the {@link Corpus}. Prints one
+ * line per benchmark with the average time per operation, bytes allocated per
+ * operation and collections during measurement, and can save the results as a
+ * baseline or check them against one. Run through tests/host/run.sh.
+ *
+ * <pre>
+ * --filter REGEX       only run benchmarks whose name matches.
+ * --quick              short warmup and iterations, no 48MP file.
+ * --save FILE          write the results to FILE.
+ * --check FILE         fail if a result regressed against FILE.
+ * --time-tolerance F   allowed relative slowdown for --check. Times are only checked
+ *                      when this is given, as they only compare on one machine.
+ * --alloc-tolerance F  allowed relative allocation growth for --check, 0.1 by default.
+ * </pre>
+ */
+public class CodecBenchmarks {
+    private static final String XMP_BENCHMARKS = "com.android.camera.host.XmpBenchmarks";
+
+    /** Sink for the written files, it only counts bytes. */
+    static class NullOutputStream extends OutputStream {
+        long mCount;
+
+        @Override
+        public void write(int b) {
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mCount += len;
+        }
+    }
+
+    private final Map<String, BenchmarkRunner.Benchmark> mBenchmarks =
+            new LinkedHashMap<String, BenchmarkRunner.Benchmark>();
+    private final File mTmpDir;
+
+    CodecBenchmarks(File tmpDir) {
+        mTmpDir = tmpDir;
+    }
+
+    void add(String name, BenchmarkRunner.Benchmark benchmark) {
+        mBenchmarks.put(name, benchmark);
+    }
+
+    void addAll(Corpus.Entry entry) throws IOException {
+        final byte[] jpeg = entry.jpeg;
+        final String suffix = "/" + entry.name;
+
+        add("exif.parse.stream" + suffix, new BenchmarkRunner.Benchmark() {
+            @Override
+            public Object run() throws IOException {
+                ExifInterface exif = new ExifInterface();
+                exif.readExif(new ByteArrayInputStream(jpeg));
+                return exif;
+            }
+        });
+        add("exif.parse.buffer" + suffix, new BenchmarkRunner.Benchmark() {
+            @Override
+            public Object run() throws IOException {
+                ExifInterface exif = new ExifInterface();
+                exif.readExif(ByteBuffer.wrap(jpeg));
+                return exif;
+            }
+        });
+        add("exif.rotation" + suffix, new BenchmarkRunner.Benchmark() {
+            @Override
+            public Object run() {
+                return ExifInterface.getRotation(ByteBuffer.wrap(jpeg));
+            }
+        });
+
+        final ExifInterface exif = new ExifInterface();
+        exif.readExif(jpeg);
+        if (exif.getAllTags() == null) {
+            exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.getOrientationValueForRotation(0)));
+        }
+        add("exif.write" + suffix, new BenchmarkRunner.Benchmark() {
+            @Override
+            public Object run() throws IOException {
+                NullOutputStream out = new NullOutputStream();
+                exif.writeExif(jpeg, out);
+                return out;
+            }
+        });
+
+        ExifInterface prototype = new ExifInterface();
+        prototype.addMakeAndModelTag();
+        prototype.setTag(prototype.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.getOrientationValueForRotation(0)));
+        prototype.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, 0, TimeZone.getDefault());
+        prototype.addGpsTags(0, 0);
+        final ExifTemplate template = ExifTemplate.compile(prototype);
+        add("exif.template.write" + suffix, new BenchmarkRunner.Benchmark() {
+            private int mShot;
+
+            @Override
+            public Object run() throws IOException {
+                ExifTemplate.Shot shot = template.newShot();
+                shot.setOrientation((mShot++ & 3) * 90);
+                shot.setDateTimeStamp(ExifInterface.TAG_DATE_TIME,
+                        1500000000000L + mShot * 1000L, TimeZone.getDefault());
+                shot.setGpsLocation(37.42, -122.08);
+                NullOutputStream out = new NullOutputStream();
+                shot.writeExif(jpeg, out);
+                return out;
+            }
+        });
+
+        addInPlaceRewrite(entry, "exif.rewrite.inplace" + suffix);
+
+        add("mpo.write" + suffix, new BenchmarkRunner.Benchmark() {
+            @Override
+            public Object run() {
+                MpoData mpo = new MpoData();
+                mpo.addAuxiliaryMpoImage(new MpoImageData(jpeg, ByteOrder.BIG_ENDIAN));
+                mpo.addAuxiliaryMpoImage(new MpoImageData(jpeg, ByteOrder.BIG_ENDIAN));
+                mpo.setPrimaryMpoImage(new MpoImageData(jpeg, ByteOrder.BIG_ENDIAN));
+                return MpoInterface.writeMpo(mpo, new NullOutputStream());
+            }
+        });
+
+        addMpoCompose(entry, "mpo.compose" + suffix);
+
+        try {
+            Class.forName(XMP_BENCHMARKS).getMethod("addAll", CodecBenchmarks.class,
+                    Corpus.Entry.class).invoke(null, this, entry);
+        } catch (ClassNotFoundException e) {
+            // Built without the xmp toolkit.
+        } catch (ReflectiveOperationException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Writes the same three image mpo as mpo.write, through a FileChannel over a file
+     * that is reused, so the time includes the page cache copy.
+     */
+    private void addMpoCompose(Corpus.Entry entry, String name) throws IOException {
+        File file = new File(mTmpDir, entry.name + ".mpo");
+        file.deleteOnExit();
+        final FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        final byte[] jpeg = entry.jpeg;
+        add(name, new BenchmarkRunner.Benchmark() {
+            @Override
+            public Object run() throws IOException {
+                MpoData mpo = new MpoData();
+                mpo.addAuxiliaryMpoImage(new MpoImageData(jpeg, ByteOrder.BIG_ENDIAN));
+                mpo.addAuxiliaryMpoImage(new MpoImageData(jpeg, ByteOrder.BIG_ENDIAN));
+                mpo.setPrimaryMpoImage(new MpoImageData(jpeg, ByteOrder.BIG_ENDIAN));
+                channel.position(0);
+                return MpoInterface.writeMpo(mpo, channel);
+            }
+        });
+    }
+
+    /**
+     * Flips the orientation of a copy of the file between two values, which always fits
+     * in place.
+     */
+    private void addInPlaceRewrite(Corpus.Entry entry, String name) throws IOException {
+        final File file = new File(mTmpDir, entry.name + ".jpg");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(entry.jpeg);
+        } finally {
+            out.close();
+        }
+        file.deleteOnExit();
+        final ExifInterface exif = new ExifInterface();
+        final List<ExifTag> rotations = new ArrayList<ExifTag>();
+        for (int degrees = 0; degrees < 360; degrees += 90) {
+            rotations.add(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.getOrientationValueForRotation(degrees)));
+        }
+        try {
+            if (!exif.rewriteExif(file.getPath(), Collections.singletonList(rotations.get(0)))) {
+                System.err.println("Skipping " + name + ", no orientation to rewrite");
+                return;
+            }
+        } catch (IOException e) {
+            System.err.println("Skipping " + name + ", no exif to rewrite");
+            return;
+        }
+        add(name, new BenchmarkRunner.Benchmark() {
+            private int mShot;
+
+            @Override
+            public Object run() throws IOException {
+                List<ExifTag> tags = Collections.singletonList(rotations.get(mShot++ & 3));
+                return exif.rewriteExifFile(file.getPath(), tags, null);
+            }
+        });
+    }
+
+    public static void main(String[] args) throws Exception {
+        File corpusDir = new File("tests/res/raw");
+        Pattern filter = null;
+        boolean quick = false;
+        String save = null;
+        String check = null;
+        double timeTolerance = -1;
+        double allocTolerance = 0.1;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--quick")) {
+                quick = true;
+            } else if (i + 1 >= args.length) {
+                usage(arg);
+            } else if (arg.equals("--corpus")) {
+                corpusDir = new File(args[++i]);
+            } else if (arg.equals("--filter")) {
+                filter = Pattern.compile(args[++i]);
+            } else if (arg.equals("--save")) {
+                save = args[++i];
+            } else if (arg.equals("--check")) {
+                check = args[++i];
+            } else if (arg.equals("--time-tolerance")) {
+                timeTolerance = Double.parseDouble(args[++i]);
+            } else if (arg.equals("--alloc-tolerance")) {
+                allocTolerance = Double.parseDouble(args[++i]);
+            } else {
+                usage(arg);
+            }
+        }
+
+        File tmpDir = File.createTempFile("codec-bench", "");
+        tmpDir.delete();
+        tmpDir.mkdirs();
+        tmpDir.deleteOnExit();
+        CodecBenchmarks benchmarks = new CodecBenchmarks(tmpDir);
+        for (Corpus.Entry entry : Corpus.load(corpusDir, !quick)) {
+            benchmarks.addAll(entry);
+        }
+
+        BenchmarkRunner runner = quick ? new BenchmarkRunner(200, 100, 3)
+                : new BenchmarkRunner(1000, 500, 5);
+        List<BenchmarkRunner.Result> results = new ArrayList<BenchmarkRunner.Result>();
+        System.out.println(String.format(Locale.US, "%-42s %4s %14s    %10s %6s %14s %5s",
+                "Benchmark", "Cnt", "Score", "Error", "Units", "B/op", "GCs"));
+        for (Map.Entry<String, BenchmarkRunner.Benchmark> b : benchmarks.mBenchmarks.entrySet()) {
+            if (filter != null && !filter.matcher(b.getKey()).find()) {
+                continue;
+            }
+            BenchmarkRunner.Result r = runner.run(b.getKey(), b.getValue());
+            results.add(r);
+            System.out.println(String.format(Locale.US,
+                    "%-42s %4d %14.3f +- %10.3f %6s %14.1f %5d",
+                    r.name, r.iterations, r.nsPerOp / 1000, r.nsError / 1000, "us/op",
+                    r.bytesPerOp, r.gcCount));
+        }
+
+        if (save != null) {
+            Baseline.write(new File(save), results);
+            System.out.println("Saved baseline to " + save);
+        }
+        if (check != null) {
+            PrintStream report = System.out;
+            int regressions = Baseline.check(new File(check), results, timeTolerance,
+                    allocTolerance, report);
+            if (regressions > 0) {
+                report.println(regressions + " regression(s) against " + check);
+                System.exit(1);
+            }
+            report.println("No regressions against " + check);
+        }
+    }
+
+    private static void usage(String arg) {
+        System.err.println("Bad argument: " + arg);
+        System.err.println("Usage: CodecBenchmarks [--corpus DIR] [--filter REGEX] [--quick]"
+                + " [--save FILE] [--check FILE] [--time-tolerance F] [--alloc-tolerance F]");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,181 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.host;
+
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.Rational;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * The JPEGs the codecs are tested and measured on: the ones in tests/res/raw, plus
+ * generated files the size of full resolution captures. Generated files are laid out
+ * like the camera's own output (APP1 with a thumbnail, quantization and Huffman
+ * tables, SOF0, SOS and entropy-coded data), with random bytes for the tables and
+ * data so that nothing compresses.
+ */
+public class Corpus {
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    public static class Entry {
+        public final String name;
+        public final byte[] jpeg;
+
+        Entry(String name, byte[] jpeg) {
+            this.name = name;
+            this.jpeg = jpeg;
+        }
+    }
+
+    /**
+     * @param rawDir directory with the sample JPEGs, tests/res/raw.
+     * @param large whether to add the 48MP sized file.
+     */
+    public static List<Entry> load(File rawDir, boolean large) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        File[] files = rawDir.listFiles();
+        if (files == null) {
+            throw new IOException("No corpus in " + rawDir);
+        }
+        Arrays.sort(files);
+        for (File f : files) {
+            String name = f.getName();
+            if (name.endsWith(".jpg")) {
+                entries.add(new Entry(name.substring(0, name.length() - 4), read(f)));
+            }
+        }
+        entries.add(new Entry("synthetic_12mp", generate(4000, 3000, 4 << 20, 12)));
+        if (large) {
+            entries.add(new Entry("synthetic_48mp", generate(8000, 6000, 16 << 20, 48)));
+        }
+        return entries;
+    }
+
+    /**
+     * Generates a JPEG with a full capture exif header and dataSize bytes of image data.
+     */
+    public static byte[] generate(int width, int height, int dataSize, long seed) {
+        Random random = new Random(seed);
+        ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MAKE, "Host"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MODEL, "Corpus " + seed));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.getOrientationValueForRotation(90)));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_PIXEL_X_DIMENSION, width));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_PIXEL_Y_DIMENSION, height));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_EXPOSURE_TIME, new Rational(1, 120)));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_F_NUMBER, new Rational(18, 10)));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ISO_SPEED_RATINGS, 200));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_FOCAL_LENGTH, new Rational(4730, 1000)));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_FLASH, (short) 0));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_WHITE_BALANCE, (short) 0));
+        long time = 1500000000000L + seed * 1000;
+        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, time, UTC);
+        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME_ORIGINAL, time, UTC);
+        exif.addGpsTags(37.42 + seed / 1000.0, -122.08);
+        exif.addGpsDateTimeStampTag(time);
+        exif.setCompressedThumbnail(plainJpeg(320, 240, 16 * 1024, random));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(dataSize + 64 * 1024);
+        try {
+            exif.writeExif(plainJpeg(width, height, dataSize, random), out);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] plainJpeg(int width, int height, int dataSize, Random random) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(dataSize + 1024);
+        out.write(0xff);
+        out.write(0xd8);
+        // Two 8 bit quantization tables.
+        byte[] dqt = new byte[2 * 65];
+        random.nextBytes(dqt);
+        dqt[0] = 0;
+        dqt[65] = 1;
+        writeSegment(out, 0xdb, dqt);
+        writeSegment(out, 0xc0, new byte[] {
+            8, (byte) (height >> 8), (byte) height, (byte) (width >> 8), (byte) width, 3,
+            1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1
+        });
+        // Four Huffman tables, sized like the standard ones.
+        for (int i = 0; i < 4; i++) {
+            int symbols = (i & 1) == 0 ? 12 : 162;
+            byte[] dht = new byte[1 + 16 + symbols];
+            dht[0] = (byte) ((i & 1) << 4 | i >> 1);
+            dht[16] = (byte) symbols;
+            for (int j = 17; j < dht.length; j++) {
+                dht[j] = (byte) random.nextInt(256);
+            }
+            writeSegment(out, 0xc4, dht);
+        }
+        writeSegment(out, 0xda, new byte[] {3, 1, 0x00, 2, 0x11, 3, 0x11, 0, 0x3f, 0});
+        byte[] data = new byte[dataSize];
+        random.nextBytes(data);
+        for (int i = 0; i < data.length; i++) {
+            // No markers inside the entropy-coded data.
+            if (data[i] == (byte) 0xff) {
+                data[i] = (byte) 0xfe;
+            }
+        }
+        out.write(data, 0, data.length);
+        out.write(0xff);
+        out.write(0xd9);
+        return out.toByteArray();
+    }
+
+    private static void writeSegment(ByteArrayOutputStream out, int marker, byte[] payload) {
+        out.write(0xff);
+        out.write(marker);
+        out.write((payload.length + 2) >> 8);
+        out.write((payload.length + 2) & 0xff);
+        out.write(payload, 0, payload.length);
+    }
+
+    static byte[] read(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.host;
+
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifTag;
+import com.android.camera.mpo.MpoData;
+import com.android.camera.mpo.MpoImageData;
+import com.android.camera.mpo.MpoInterface;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Round trips every file of the {@link Corpus} through the codecs. The corpus directory
+ * is taken from the corpus.dir system property.
+ */
+public class CorpusTest extends TestCase {
+    private List<Corpus.Entry> mCorpus;
+
+    @Override
+    protected void setUp() throws IOException {
+        mCorpus = Corpus.load(new File(System.getProperty("corpus.dir", "tests/res/raw")),
+                false);
+    }
+
+    public void testParsersAgree() throws IOException {
+        for (Corpus.Entry entry : mCorpus) {
+            ExifInterface stream = new ExifInterface();
+            stream.readExif((InputStream) new ByteArrayInputStream(entry.jpeg));
+            ExifInterface buffer = new ExifInterface();
+            buffer.readExif(ByteBuffer.wrap(entry.jpeg));
+            assertTagsEqual(entry.name, stream, buffer);
+            assertTrue(entry.name, Arrays.equals(stream.getThumbnailBytes(),
+                    buffer.getThumbnailBytes()));
+        }
+    }
+
+    public void testThumbnailViewMatchesFullRead() throws IOException {
+        for (Corpus.Entry entry : mCorpus) {
+            ExifInterface exif = new ExifInterface();
+            exif.readExif(entry.jpeg);
+            ByteBuffer view = ExifInterface.getThumbnail(ByteBuffer.wrap(entry.jpeg));
+            byte[] viewed = null;
+            if (view != null) {
+                viewed = new byte[view.remaining()];
+                view.get(viewed);
+            }
+            assertTrue(entry.name, Arrays.equals(exif.getThumbnailBytes(), viewed));
+        }
+    }
+
+    public void testWriteRoundTrip() throws IOException {
+        for (Corpus.Entry entry : mCorpus) {
+            ExifInterface exif = new ExifInterface();
+            exif.readExif(entry.jpeg);
+            if (exif.getAllTags() == null) {
+                continue;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            exif.writeExif(entry.jpeg, out);
+            byte[] written = out.toByteArray();
+
+            ExifInterface reread = new ExifInterface();
+            reread.readExif(written);
+            assertTagsEqual(entry.name, exif, reread);
+            assertEquals(entry.name, ExifInterface.getRotation(ByteBuffer.wrap(entry.jpeg)),
+                    ExifInterface.getRotation(ByteBuffer.wrap(written)));
+            // The image data follows the new header unchanged.
+            int tail = entry.jpeg.length - exifEnd(entry.jpeg);
+            assertTrue(entry.name, Arrays.equals(
+                    Arrays.copyOfRange(entry.jpeg, entry.jpeg.length - tail, entry.jpeg.length),
+                    Arrays.copyOfRange(written, written.length - tail, written.length)));
+        }
+    }
+
+    public void testRewriteFile() throws IOException {
+        File dir = File.createTempFile("corpus", "");
+        dir.delete();
+        dir.mkdir();
+        try {
+            for (Corpus.Entry entry : mCorpus) {
+                File file = new File(dir, entry.name + ".jpg");
+                FileOutputStream out = new FileOutputStream(file);
+                out.write(entry.jpeg);
+                out.close();
+
+                ExifInterface exif = new ExifInterface();
+                ExifTag tag = exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                        ExifInterface.getOrientationValueForRotation(180));
+                exif.rewriteExifFile(file.getPath(), Collections.singletonList(tag),
+                        new int[] {ExifInterface.TAG_GPS_LATITUDE});
+                byte[] rewritten = Corpus.read(file);
+                assertEquals(entry.name, 180,
+                        ExifInterface.getRotation(ByteBuffer.wrap(rewritten)));
+                ExifInterface reread = new ExifInterface();
+                reread.readExif(rewritten);
+                assertNull(entry.name, reread.getTag(ExifInterface.TAG_GPS_LATITUDE));
+                assertEquals(entry.name, 1, dir.list().length);
+                file.delete();
+            }
+        } finally {
+            dir.delete();
+        }
+    }
+
+    public void testMpoContainsAllImages() {
+        for (Corpus.Entry entry : mCorpus) {
+            MpoData mpo = new MpoData();
+            mpo.addAuxiliaryMpoImage(new MpoImageData(entry.jpeg, ByteOrder.BIG_ENDIAN));
+            mpo.setPrimaryMpoImage(new MpoImageData(entry.jpeg, ByteOrder.BIG_ENDIAN));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int size = MpoInterface.writeMpo(mpo, out);
+            assertEquals(entry.name, out.size(), size);
+            // Each image gets an APP2 MP segment on top of its own bytes.
+            assertTrue(entry.name, size > 2 * entry.jpeg.length);
+            assertEquals(entry.name, 2, countMpSegments(out.toByteArray()));
+        }
+    }
+
+    private static void assertTagsEqual(String name, ExifInterface expected,
+            ExifInterface actual) {
+        List<ExifTag> tags = expected.getAllTags();
+        if (tags == null) {
+            assertNull(name, actual.getAllTags());
+            return;
+        }
+        assertEquals(name, tags.size(), actual.getAllTags().size());
+        for (ExifTag tag : tags) {
+            assertEquals(name, tag, actual.getTag(tag.getTagId() & 0xffff, tag.getIfd()));
+        }
+    }
+
+    private static int exifEnd(byte[] jpeg) {
+        if ((jpeg[3] & 0xff) != 0xe1) {
+            return 2;
+        }
+        return 4 + ((jpeg[4] & 0xff) << 8 | (jpeg[5] & 0xff));
+    }
+
+    // Counts APP2 segments with the MPF identifier.
+    private static int countMpSegments(byte[] data) {
+        int count = 0;
+        for (int i = 0; i + 8 <= data.length; i++) {
+            if (data[i] == (byte) 0xff && data[i + 1] == (byte) 0xe2 && data[i + 4] == 'M'
+                    && data[i + 5] == 'P' && data[i + 6] == 'F' && data[i + 7] == 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.host;
+
+import junit.framework.TestCase;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Runs JUnit 3 test classes on the host JVM: every public void no-argument method
+ * whose name starts with "test", in a fresh instance. Exits with the number of
+ * failures.
+ */
+public class HostTestRunner {
+
+    public static void main(String[] args) throws Exception {
+        int run = 0;
+        int failed = 0;
+        for (String className : args) {
+            Class<?> c = Class.forName(className);
+            for (Method m : c.getMethods()) {
+                if (!m.getName().startsWith("test") || m.getParameterTypes().length != 0
+                        || m.getReturnType() != void.class
+                        || Modifier.isStatic(m.getModifiers())) {
+                    continue;
+                }
+                TestCase test = (TestCase) c.getDeclaredConstructor().newInstance();
+                test.setName(m.getName());
+                run++;
+                long start = System.nanoTime();
+                try {
+                    test.runBare();
+                    System.out.println(String.format("PASS %s.%s (%d ms)", c.getSimpleName(),
+                            m.getName(), (System.nanoTime() - start) / 1000000));
+                } catch (Throwable t) {
+                    failed++;
+                    System.out.println("FAIL " + c.getSimpleName() + "." + m.getName());
+                    t.printStackTrace(System.out);
+                }
+            }
+        }
+        System.out.println(run + " tests, " + failed + " failed");
+        System.exit(Math.min(failed, 125));
+    }
+}
@@ -0,0 +1,66 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.host;
+
+import com.adobe.xmp.XMPException;
+import com.adobe.xmp.XMPMeta;
+import com.android.camera.util.XmpUtil;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * XmpUtil benchmarks, only built when the xmp toolkit is on the class path.
+ */
+public class XmpBenchmarks {
+    private static final String GOOGLE_PANO_NAMESPACE =
+            "http://ns.google.com/photos/1.0/panorama/";
+
+    public static void addAll(CodecBenchmarks benchmarks, Corpus.Entry entry)
+            throws XMPException {
+        final byte[] jpeg = entry.jpeg;
+        final XMPMeta meta = XmpUtil.createXMPMeta();
+        meta.setProperty(GOOGLE_PANO_NAMESPACE, "CroppedAreaImageWidthPixels", 4000);
+        meta.setProperty(GOOGLE_PANO_NAMESPACE, "CroppedAreaImageHeightPixels", 3000);
+        benchmarks.add("xmp.insert/" + entry.name, new BenchmarkRunner.Benchmark() {
+            @Override
+            public Object run() {
+                CodecBenchmarks.NullOutputStream out = new CodecBenchmarks.NullOutputStream();
+                XmpUtil.writeXMPMeta(new ByteArrayInputStream(jpeg), out, meta);
+                return out;
+            }
+        });
+        benchmarks.add("xmp.extract/" + entry.name, new BenchmarkRunner.Benchmark() {
+            @Override
+            public Object run() {
+                return XmpUtil.extractXMPMeta(new ByteArrayInputStream(jpeg));
+            }
+        });
+    }
+}
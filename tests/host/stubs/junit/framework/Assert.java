@@ -0,0 +1,135 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package junit.framework;
+
+/**
+ * Host stand-in for the JUnit 3 assertions the codec tests use.
+ */
+public class Assert {
+    protected Assert() {
+    }
+
+    public static void fail(String message) {
+        throw new AssertionFailedError(message);
+    }
+
+    public static void fail() {
+        fail(null);
+    }
+
+    public static void assertTrue(String message, boolean condition) {
+        if (!condition) {
+            fail(message);
+        }
+    }
+
+    public static void assertTrue(boolean condition) {
+        assertTrue(null, condition);
+    }
+
+    public static void assertFalse(String message, boolean condition) {
+        assertTrue(message, !condition);
+    }
+
+    public static void assertFalse(boolean condition) {
+        assertFalse(null, condition);
+    }
+
+    public static void assertEquals(String message, Object expected, Object actual) {
+        if (expected == null ? actual != null : !expected.equals(actual)) {
+            failNotEquals(message, expected, actual);
+        }
+    }
+
+    public static void assertEquals(Object expected, Object actual) {
+        assertEquals(null, expected, actual);
+    }
+
+    public static void assertEquals(String message, long expected, long actual) {
+        if (expected != actual) {
+            failNotEquals(message, expected, actual);
+        }
+    }
+
+    public static void assertEquals(long expected, long actual) {
+        assertEquals(null, expected, actual);
+    }
+
+    public static void assertEquals(String message, double expected, double actual,
+            double delta) {
+        if (Double.compare(expected, actual) != 0 && !(Math.abs(expected - actual) <= delta)) {
+            failNotEquals(message, expected, actual);
+        }
+    }
+
+    public static void assertEquals(double expected, double actual, double delta) {
+        assertEquals(null, expected, actual, delta);
+    }
+
+    public static void assertEquals(String message, float expected, float actual,
+            float delta) {
+        assertEquals(message, (double) expected, (double) actual, (double) delta);
+    }
+
+    public static void assertEquals(float expected, float actual, float delta) {
+        assertEquals(null, expected, actual, delta);
+    }
+
+    public static void assertNull(String message, Object object) {
+        assertTrue(message != null ? message : "Expected null: " + object, object == null);
+    }
+
+    public static void assertNull(Object object) {
+        assertNull(null, object);
+    }
+
+    public static void assertNotNull(String message, Object object) {
+        assertTrue(message != null ? message : "Expected not null", object != null);
+    }
+
+    public static void assertNotNull(Object object) {
+        assertNotNull(null, object);
+    }
+
+    public static void assertSame(String message, Object expected, Object actual) {
+        if (expected != actual) {
+            failNotEquals(message, expected, actual);
+        }
+    }
+
+    public static void assertSame(Object expected, Object actual) {
+        assertSame(null, expected, actual);
+    }
+
+    private static void failNotEquals(String message, Object expected, Object actual) {
+        fail((message != null ? message + " " : "") + "expected:<" + expected
+                + "> but was:<" + actual + ">");
+    }
+}
@@ -0,0 +1,254 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.exif.DngWriter;
+import com.android.camera.exif.ExifTag;
+import com.android.camera.exif.Rational;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class DngWriterTest extends TestCase {
+    private static final int WIDTH = 16;
+    private static final int HEIGHT = 7;
+    private static final int ROW_STRIDE = WIDTH * 5 / 4 + 6;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("raw", ".dng");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testPackedRoundTrip() throws IOException {
+        int[] pixels = pixels();
+        DngWriter writer = newWriter().setRowsPerStrip(3);
+        long size = write(writer, pixels);
+        assertEquals(size, mFile.length());
+        assertEquals(size, writer.getFileSize());
+
+        ByteBuffer file = read();
+        Map<Integer, long[]> tags = parse(file);
+        assertEquals(WIDTH, tags.get(0x0100)[0]);
+        assertEquals(HEIGHT, tags.get(0x0101)[0]);
+        assertEquals(10, tags.get(0x0102)[0]);
+        assertEquals(32803, tags.get(0x0106)[0]);
+        assertEquals(1023, tags.get(0xC61D)[0]);
+        assertEquals(6, tags.get(0x0112)[0]);
+        long[] black = tags.get(0xC61A);
+        assertEquals(4, black.length);
+        assertEquals(66, black[3]);
+        long[] cfa = tags.get(0x828E);
+        assertEquals(DngWriter.CFA_GREEN, cfa[1]);
+        assertEquals(DngWriter.CFA_BLUE, cfa[3]);
+        long[] neutral = tags.get(0xC628);
+        assertEquals(6, neutral.length);
+        assertEquals(512, neutral[0]);
+        assertEquals(1024, neutral[1]);
+
+        long[] offsets = tags.get(0x0111);
+        long[] counts = tags.get(0x0117);
+        assertEquals(3, offsets.length);
+        assertEquals(3 * WIDTH * 10 / 8, counts[0]);
+        assertEquals(WIDTH * 10 / 8, counts[2]);
+        assertEquals(0, offsets[0] % 4);
+        assertEquals(size, offsets[2] + counts[2]);
+
+        // Read the 10-bit samples back, most significant bit first.
+        int rowBytes = WIDTH * 10 / 8;
+        for (int y = 0; y < HEIGHT; y++) {
+            int strip = y / 3;
+            int rowStart = (int) offsets[strip] + (y % 3) * rowBytes;
+            for (int x = 0; x < WIDTH; x++) {
+                int bit = x * 10;
+                int word = ((file.get(rowStart + bit / 8) & 0xff) << 8)
+                        | (file.get(rowStart + bit / 8 + 1) & 0xff);
+                int value = (word >> (6 - bit % 8)) & 0x3ff;
+                assertEquals("pixel " + x + "," + y, pixels[y * WIDTH + x], value);
+            }
+        }
+    }
+
+    public void testUnpackedRoundTrip() throws IOException {
+        int[] pixels = pixels();
+        DngWriter writer = newWriter().setUnpacked(true).setRowsPerStrip(HEIGHT);
+        long size = write(writer, pixels);
+
+        ByteBuffer file = read();
+        Map<Integer, long[]> tags = parse(file);
+        assertEquals(16, tags.get(0x0102)[0]);
+        long[] offsets = tags.get(0x0111);
+        assertEquals(1, offsets.length);
+        assertEquals(WIDTH * HEIGHT * 2, tags.get(0x0117)[0]);
+        assertEquals(size, offsets[0] + WIDTH * HEIGHT * 2);
+        for (int i = 0; i < pixels.length; i++) {
+            assertEquals(pixels[i], file.getShort((int) offsets[0] + i * 2) & 0xffff);
+        }
+    }
+
+    public void testTagsAreSorted() throws IOException {
+        write(newWriter(), pixels());
+        ByteBuffer file = read();
+        int ifd = file.getInt(4);
+        int count = file.getShort(ifd) & 0xffff;
+        int last = -1;
+        for (int i = 0; i < count; i++) {
+            int tag = file.getShort(ifd + 2 + i * 12) & 0xffff;
+            assertTrue(tag > last);
+            last = tag;
+        }
+    }
+
+    public void testRejectsShortBuffer() throws IOException {
+        DngWriter writer = new DngWriter(WIDTH, HEIGHT);
+        try {
+            writer.writeRaw10(null, ByteBuffer.allocate(ROW_STRIDE * HEIGHT - 7), ROW_STRIDE);
+            fail("Accepted a buffer shorter than the frame");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    private DngWriter newWriter() {
+        return new DngWriter(WIDTH, HEIGHT)
+                .setCfaPattern(new byte[] {
+                        DngWriter.CFA_RED, DngWriter.CFA_GREEN,
+                        DngWriter.CFA_GREEN, DngWriter.CFA_BLUE})
+                .setBlackLevel(new int[] {64, 64, 64, 66})
+                .setOrientation(6)
+                .setString(DngWriter.TAG_MAKE, "Maker")
+                .setString(DngWriter.TAG_UNIQUE_CAMERA_MODEL, "Maker Model")
+                .setRationals(DngWriter.TAG_AS_SHOT_NEUTRAL, ExifTag.TYPE_UNSIGNED_RATIONAL,
+                        new Rational[] {
+                                new Rational(512, 1024), new Rational(1, 1),
+                                new Rational(700, 1024)})
+                .setDateTime(0);
+    }
+
+    private static int[] pixels() {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (i * 37 + (i >> 3) * 101) & 0x3ff;
+        }
+        return pixels;
+    }
+
+    // Packs the pixels the way camera2 delivers RAW10, with padding after each row.
+    private long write(DngWriter writer, int[] pixels) throws IOException {
+        byte[] raw = new byte[ROW_STRIDE * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x += 4) {
+                int base = y * ROW_STRIDE + x * 5 / 4;
+                int low = 0;
+                for (int i = 0; i < 4; i++) {
+                    int p = pixels[y * WIDTH + x + i];
+                    raw[base + i] = (byte) (p >> 2);
+                    low |= (p & 3) << (2 * i);
+                }
+                raw[base + 4] = (byte) low;
+            }
+        }
+        RandomAccessFile out = new RandomAccessFile(mFile, "rw");
+        try {
+            FileChannel channel = out.getChannel();
+            ByteBuffer buffer = ByteBuffer.wrap(raw);
+            long written = writer.writeRaw10(channel, buffer, ROW_STRIDE);
+            assertEquals(0, buffer.position());
+            return written;
+        } finally {
+            out.close();
+        }
+    }
+
+    private ByteBuffer read() throws IOException {
+        RandomAccessFile in = new RandomAccessFile(mFile, "r");
+        try {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            assertEquals(0x4949, buffer.getShort(0));
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals(42, buffer.getShort(2));
+            return buffer;
+        } finally {
+            in.close();
+        }
+    }
+
+    // Reads the numeric values of every IFD0 tag; a rational takes two slots.
+    private static Map<Integer, long[]> parse(ByteBuffer file) {
+        Map<Integer, long[]> tags = new HashMap<Integer, long[]>();
+        int ifd = file.getInt(4);
+        int count = file.getShort(ifd) & 0xffff;
+        for (int i = 0; i < count; i++) {
+            int entry = ifd + 2 + i * 12;
+            int tag = file.getShort(entry) & 0xffff;
+            int type = file.getShort(entry + 2);
+            int n = file.getInt(entry + 4);
+            int size = type == ExifTag.TYPE_UNSIGNED_SHORT ? 2
+                    : type == ExifTag.TYPE_UNSIGNED_LONG ? 4
+                    : type == ExifTag.TYPE_UNSIGNED_RATIONAL || type == ExifTag.TYPE_RATIONAL ? 8
+                    : 1;
+            int pos = n * size > 4 ? file.getInt(entry + 8) : entry + 8;
+            assertEquals("tag " + Integer.toHexString(tag), 0, pos % 2);
+            long[] values = new long[size == 8 ? n * 2 : n];
+            for (int j = 0; j < values.length; j++) {
+                if (size == 2) {
+                    values[j] = file.getShort(pos + j * 2) & 0xffff;
+                } else if (size == 1) {
+                    values[j] = file.get(pos + j) & 0xff;
+                } else {
+                    values[j] = file.getInt(pos + j * 4) & 0xffffffffL;
+                }
+            }
+            tags.put(tag, values);
+        }
+        assertEquals(0, file.getInt(ifd + 2 + count * 12));
+        return tags;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifTag;
+import com.android.camera.exif.Rational;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class ExifBufferParserTest extends TestCase {
+
+    public void testMatchesStreamParser() throws IOException {
+        byte[] jpeg = jpegWithExif(90);
+        ExifInterface stream = new ExifInterface();
+        stream.readExif((InputStream) new ByteArrayInputStream(jpeg));
+        ExifInterface buffer = new ExifInterface();
+        buffer.readExif(ByteBuffer.wrap(jpeg));
+
+        List<ExifTag> expected = stream.getAllTags();
+        List<ExifTag> actual = buffer.getAllTags();
+        assertEquals(expected.size(), actual.size());
+        for (ExifTag tag : expected) {
+            assertEquals(tag, buffer.getTag(tag.getTagId() & 0xffff, tag.getIfd()));
+        }
+        assertTrue(Arrays.equals(stream.getThumbnailBytes(), buffer.getThumbnailBytes()));
+        assertEquals("Buffer test", buffer.getTagStringValue(ExifInterface.TAG_MODEL).trim());
+        assertEquals(new Rational(1, 50),
+                buffer.getTagRationalValue(ExifInterface.TAG_EXPOSURE_TIME));
+    }
+
+    public void testReadsFromBufferPosition() throws IOException {
+        byte[] jpeg = jpegWithExif(180);
+        ByteBuffer buffer = ByteBuffer.allocate(jpeg.length + 100);
+        buffer.position(100);
+        buffer.put(jpeg);
+        buffer.position(100);
+
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(buffer);
+        assertEquals(100, buffer.position());
+        assertEquals(180, ExifInterface.getRotationForOrientationValue(
+                exif.getTagIntValue(ExifInterface.TAG_ORIENTATION).shortValue()));
+        assertEquals(180, ExifInterface.getRotation(buffer));
+        assertEquals(100, buffer.position());
+    }
+
+    public void testRotationOnly() {
+        for (int degrees = 0; degrees < 360; degrees += 90) {
+            byte[] jpeg = jpegWithExif(degrees);
+            assertEquals(degrees, ExifInterface.getRotation(ByteBuffer.wrap(jpeg)));
+        }
+        assertEquals(0, ExifInterface.getRotation(ByteBuffer.wrap(plainJpeg())));
+        assertEquals(0, ExifInterface.getRotation(ByteBuffer.wrap(new byte[] {1, 2, 3})));
+    }
+
+    public void testReadsRequestedIfdsOnly() throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(ByteBuffer.wrap(jpegWithExif(270)), ExifInterface.READ_IFD_0);
+        assertNotNull(exif.getTag(ExifInterface.TAG_MODEL));
+        assertNull(exif.getTag(ExifInterface.TAG_EXPOSURE_TIME));
+        assertNull(exif.getThumbnailBytes());
+        for (ExifTag tag : exif.getAllTags()) {
+            assertEquals(0, tag.getIfd());
+        }
+    }
+
+    public void testNoExif() throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(plainJpeg());
+        assertNull(exif.getAllTags());
+        try {
+            exif.readExif(new byte[] {0, 0, 0, 0});
+            fail("Read a buffer that is not a JPEG");
+        } catch (IOException e) {
+        }
+    }
+
+    private static byte[] jpegWithExif(int degrees) {
+        ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MODEL, "Buffer test"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.getOrientationValueForRotation(degrees)));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_EXPOSURE_TIME, new Rational(1, 50)));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ISO_SPEED_RATINGS, 400));
+        exif.addGpsTags(37.4, -122.1);
+        exif.setCompressedThumbnail(new byte[] {(byte) 0xff, (byte) 0xd8, 1, 2, 3,
+                (byte) 0xff, (byte) 0xd9});
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            exif.writeExif(plainJpeg(), out);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return out.toByteArray();
+    }
+
+    // SOI, an APP0, SOF0, some "compressed" data and EOI.
+    private static byte[] plainJpeg() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xff);
+        out.write(0xd8);
+        writeSegment(out, 0xe0, new byte[] {'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0});
+        writeSegment(out, 0xc0, new byte[] {8, 0, 16, 0, 16, 1, 1, 0x11, 0});
+        for (int i = 0; i < 1000; i++) {
+            out.write(i * 7 & 0x7f);
+        }
+        out.write(0xff);
+        out.write(0xd9);
+        return out.toByteArray();
+    }
+
+    private static void writeSegment(ByteArrayOutputStream out, int marker, byte[] payload) {
+        out.write(0xff);
+        out.write(marker);
+        out.write((payload.length + 2) >> 8);
+        out.write((payload.length + 2) & 0xff);
+        out.write(payload, 0, payload.length);
+    }
+}
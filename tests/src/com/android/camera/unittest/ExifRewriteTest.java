@@ -0,0 +1,206 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifTag;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class ExifRewriteTest extends TestCase {
+    private File mDir;
+    private File mFile;
+
+    @Override
+    protected void setUp() throws IOException {
+        mDir = File.createTempFile("exifrewrite", "");
+        mDir.delete();
+        mDir.mkdir();
+        mFile = new File(mDir, "IMG.jpg");
+    }
+
+    @Override
+    protected void tearDown() {
+        for (File f : mDir.listFiles()) {
+            f.delete();
+        }
+        mDir.delete();
+    }
+
+    public void testRewritesInPlace() throws IOException {
+        byte[] jpeg = jpegWithExif();
+        write(mFile, jpeg);
+        ExifInterface exif = new ExifInterface();
+        ExifTag tag = exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.getOrientationValueForRotation(270));
+        assertTrue(exif.rewriteExifFile(mFile.getPath(), Collections.singletonList(tag), null));
+        assertEquals(jpeg.length, mFile.length());
+        assertEquals(270, ExifInterface.getRotation(ByteBuffer.wrap(read(mFile))));
+    }
+
+    public void testRemovesLocation() throws IOException {
+        byte[] jpeg = jpegWithExif();
+        write(mFile, jpeg);
+        int[] gpsTags = new int[ExifInterface.TAG_GPS_DIFFERENTIAL
+                - ExifInterface.TAG_GPS_VERSION_ID + 1];
+        for (int i = 0; i < gpsTags.length; i++) {
+            gpsTags[i] = ExifInterface.TAG_GPS_VERSION_ID + i;
+        }
+        ExifInterface exif = new ExifInterface();
+        assertFalse(exif.rewriteExifFile(mFile.getPath(),
+                Collections.<ExifTag>emptyList(), gpsTags));
+
+        byte[] rewritten = read(mFile);
+        ExifInterface result = new ExifInterface();
+        result.readExif(rewritten);
+        assertNull(result.getTag(ExifInterface.TAG_GPS_LATITUDE));
+        assertNull(result.getTag(ExifInterface.TAG_GPS_IFD));
+        assertEquals("Rewrite test", result.getTagStringValue(ExifInterface.TAG_MODEL).trim());
+        assertEquals(90, ExifInterface.getRotation(ByteBuffer.wrap(rewritten)));
+        assertTrue(rewritten.length < jpeg.length);
+        assertImageDataEquals(jpeg, rewritten);
+        assertEquals(1, mDir.list().length);
+    }
+
+    public void testCopiesWhenTagGrows() throws IOException {
+        byte[] jpeg = jpegWithExif();
+        write(mFile, jpeg);
+        ExifInterface exif = new ExifInterface();
+        ExifTag tag = exif.buildTag(ExifInterface.TAG_MODEL, "A much longer model name");
+        assertFalse(exif.rewriteExifFile(mFile.getPath(), Collections.singletonList(tag),
+                null));
+
+        byte[] rewritten = read(mFile);
+        ExifInterface result = new ExifInterface();
+        result.readExif(rewritten);
+        assertEquals("A much longer model name",
+                result.getTagStringValue(ExifInterface.TAG_MODEL).trim());
+        assertNotNull(result.getTag(ExifInterface.TAG_GPS_LATITUDE));
+        assertImageDataEquals(jpeg, rewritten);
+        assertEquals(1, mDir.list().length);
+    }
+
+    public void testLeavesInvalidFileAlone() throws IOException {
+        byte[] garbage = new byte[] {1, 2, 3, 4, 5, 6, 7, 8};
+        write(mFile, garbage);
+        try {
+            new ExifInterface().rewriteExifFile(mFile.getPath(),
+                    Collections.<ExifTag>emptyList(), new int[] {ExifInterface.TAG_MODEL});
+            fail("Rewrote a file that is not a JPEG");
+        } catch (IOException e) {
+        }
+        assertTrue(Arrays.equals(garbage, read(mFile)));
+        assertEquals(1, mDir.list().length);
+    }
+
+    // Everything after the APP1 segment is copied as it is.
+    private static void assertImageDataEquals(byte[] expected, byte[] actual) {
+        int tail = expected.length - exifEnd(expected);
+        assertEquals(tail, actual.length - exifEnd(actual));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(expected, exifEnd(expected), expected.length),
+                Arrays.copyOfRange(actual, exifEnd(actual), actual.length)));
+    }
+
+    private static int exifEnd(byte[] jpeg) {
+        // SOI, then APP1 first as written by ExifOutputStream.
+        assertEquals((byte) 0xe1, jpeg[3]);
+        return 4 + ((jpeg[4] & 0xff) << 8 | (jpeg[5] & 0xff));
+    }
+
+    private static byte[] jpegWithExif() {
+        ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MODEL, "Rewrite test"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.getOrientationValueForRotation(90)));
+        exif.addGpsTags(37.4, -122.1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            exif.writeExif(plainJpeg(), out);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return out.toByteArray();
+    }
+
+    // SOI, an APP0, SOF0, some "compressed" data and EOI.
+    private static byte[] plainJpeg() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xff);
+        out.write(0xd8);
+        writeSegment(out, 0xe0, new byte[] {'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0});
+        writeSegment(out, 0xc0, new byte[] {8, 0, 16, 0, 16, 1, 1, 0x11, 0});
+        for (int i = 0; i < 100000; i++) {
+            out.write(i * 7 & 0x7f);
+        }
+        out.write(0xff);
+        out.write(0xd9);
+        return out.toByteArray();
+    }
+
+    private static void writeSegment(ByteArrayOutputStream out, int marker, byte[] payload) {
+        out.write(0xff);
+        out.write(marker);
+        out.write((payload.length + 2) >> 8);
+        out.write((payload.length + 2) & 0xff);
+        out.write(payload, 0, payload.length);
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifTag;
+import com.android.camera.exif.Rational;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class ExifTagStoreTest extends TestCase {
+
+    public void testRationalValues() {
+        ExifInterface exif = new ExifInterface();
+        Rational[] latitude = {
+                new Rational(37, 1), new Rational(24, 1), new Rational(1234, 100)
+        };
+        ExifTag tag = exif.buildTag(ExifInterface.TAG_GPS_LATITUDE, latitude);
+        assertNotNull(tag);
+        assertTrue(Arrays.equals(latitude, tag.getValueAsRationals()));
+        assertTrue(Arrays.equals(latitude, (Rational[]) tag.getValue()));
+        assertEquals(new Rational(1234, 100), tag.getRational(2));
+        assertEquals(37, tag.forceGetValueAsLong(0));
+        assertNull(tag.getValueAsLongs());
+        assertNull(tag.getValueAsInts());
+        assertEquals(tag, exif.buildTag(ExifInterface.TAG_GPS_LATITUDE, latitude.clone()));
+
+        ExifTag exposure = exif.buildTag(ExifInterface.TAG_EXPOSURE_TIME, new Rational(1, 50));
+        assertEquals("1/50", exposure.forceGetValueAsString());
+        assertEquals(new Rational(1, 50), exposure.getValueAsRational(0));
+        try {
+            exposure.getValueAt(0);
+            fail("Read a rational as an integer");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    public void testTagsWrittenInAscendingOrder() throws IOException {
+        ExifInterface exif = new ExifInterface();
+        // Added in descending order on purpose.
+        exif.setTag(exif.buildTag(ExifInterface.TAG_SOFTWARE, "test"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION, (short) 6));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MODEL, "model"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MAKE, "make"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_IMAGE_WIDTH, 640));
+        exif.deleteTag(ExifInterface.TAG_MODEL);
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MODEL, "model 2"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exif.writeExif(new byte[] {(byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xd9}, out);
+        ByteBuffer buf = ByteBuffer.wrap(out.toByteArray());
+        // SOI, APP1 marker and length, "Exif\0\0", then the TIFF header.
+        int tiff = 2 + 4 + 6;
+        assertEquals(0x4d4d, buf.getShort(tiff));
+        int ifd0 = tiff + buf.getInt(tiff + 4);
+        int count = buf.getShort(ifd0);
+        assertTrue(count >= 6);
+        int previous = -1;
+        for (int i = 0; i < count; i++) {
+            int id = buf.getShort(ifd0 + 2 + i * 12) & 0xffff;
+            assertTrue("Tag " + id + " follows " + previous, id > previous);
+            previous = id;
+        }
+
+        ExifInterface back = new ExifInterface();
+        back.readExif(out.toByteArray());
+        assertEquals("model 2", back.getTagStringValue(ExifInterface.TAG_MODEL).trim());
+        assertEquals(Integer.valueOf(640), back.getTagIntValue(ExifInterface.TAG_IMAGE_WIDTH));
+    }
+}
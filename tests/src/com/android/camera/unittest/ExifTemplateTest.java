@@ -0,0 +1,171 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifTemplate;
+import com.android.camera.exif.Rational;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class ExifTemplateTest extends TestCase {
+    private static final byte[] JPEG = {
+            (byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xdb, 0, 4, 1, 2,
+            (byte) 0xff, (byte) 0xd9
+    };
+    private static final String[] ZONES = {
+            "UTC", "America/Los_Angeles", "Asia/Kolkata", "Pacific/Chatham"
+    };
+
+    public void testMatchesExifInterface() throws IOException {
+        ExifTemplate template = ExifTemplate.compile(build(0, 0L, "UTC", 1, 1, 0, 0.0, 0.0));
+        Random random = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            int orientation = random.nextInt(4) * 90;
+            // From 1901 to 2100, which covers the leap year rules that matter.
+            long time = (long) ((random.nextDouble() * 200 - 69) * 365.25 * 86400000L);
+            if (i == 0) {
+                // Midnight, which "kk" writes as 24.
+                time = 86400000L * 18000;
+            }
+            String zone = ZONES[random.nextInt(ZONES.length)];
+            int exposure = 1 + random.nextInt(1000);
+            int iso = random.nextInt(6400);
+            double latitude = random.nextDouble() * 180 - 90;
+            double longitude = random.nextDouble() * 360 - 180;
+
+            ExifTemplate.Shot shot = template.newShot();
+            assertTrue(shot.setOrientation(orientation));
+            assertTrue(shot.setDateTimeStamp(ExifInterface.TAG_DATE_TIME, time,
+                    TimeZone.getTimeZone(zone)));
+            assertTrue(shot.setRational(ExifInterface.TAG_EXPOSURE_TIME, exposure, 1000));
+            assertTrue(shot.setValue(ExifInterface.TAG_ISO_SPEED_RATINGS, iso));
+            assertTrue(shot.setGpsLocation(latitude, longitude));
+
+            byte[] expected = write(build(orientation, time, zone, exposure, 1000, iso,
+                    latitude, longitude));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            shot.writeExif(JPEG, out);
+            assertTrue("Shot " + i + " at " + time + " in " + zone,
+                    Arrays.equals(expected, out.toByteArray()));
+        }
+    }
+
+    public void testMissingTags() throws IOException {
+        ExifInterface prototype = new ExifInterface();
+        prototype.addOrientationTag(0);
+        ExifTemplate template = ExifTemplate.compile(prototype);
+        assertTrue(template.hasTag(ExifInterface.TAG_ORIENTATION));
+        assertFalse(template.hasTag(ExifInterface.TAG_ISO_SPEED_RATINGS));
+
+        ExifTemplate.Shot shot = template.newShot();
+        byte[] before = shot.getSegment().clone();
+        assertFalse(shot.setValue(ExifInterface.TAG_ISO_SPEED_RATINGS, 100));
+        assertFalse(shot.setDateTimeStamp(ExifInterface.TAG_DATE_TIME, 0,
+                TimeZone.getDefault()));
+        assertFalse(shot.setGpsLocation(1, 2));
+        // Wrong type, and out of range for a short.
+        assertFalse(shot.setRational(ExifInterface.TAG_ORIENTATION, 1, 2));
+        assertFalse(shot.setValue(ExifInterface.TAG_ORIENTATION, 0x10000));
+        assertTrue(Arrays.equals(before, shot.getSegment()));
+
+        // Shots do not share their values.
+        assertTrue(shot.setOrientation(180));
+        assertEquals(0, ExifInterface.getRotation(ByteBuffer.wrap(write(template.newShot()))));
+        assertEquals(180, ExifInterface.getRotation(ByteBuffer.wrap(write(shot))));
+    }
+
+    public void testThumbnail() throws IOException {
+        ExifInterface prototype = build(0, 0L, "UTC", 1, 1, 0, 0.0, 0.0);
+        assertFalse(ExifTemplate.compile(prototype).hasThumbnail());
+        prototype.setCompressedThumbnail(new byte[] {
+                (byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xd9
+        });
+        ExifTemplate template = ExifTemplate.compile(prototype);
+        assertTrue(template.hasTag(ExifInterface.TAG_ORIENTATION));
+        assertTrue(template.hasThumbnail());
+
+        byte[] thumbnail = new byte[5000];
+        new Random(7).nextBytes(thumbnail);
+        ExifInterface expected = build(90, 0L, "UTC", 1, 1, 0, 0.0, 0.0);
+        expected.setCompressedThumbnail(thumbnail);
+        ExifTemplate.Shot shot = template.newShot();
+        assertTrue(shot.setOrientation(90));
+        assertTrue(shot.setThumbnail(thumbnail));
+        assertTrue(Arrays.equals(write(expected), write(shot)));
+
+        // Dropping the thumbnail and putting it back.
+        assertTrue(shot.setThumbnail(null));
+        assertTrue(Arrays.equals(write(build(90, 0L, "UTC", 1, 1, 0, 0.0, 0.0)), write(shot)));
+        expected.setCompressedThumbnail(JPEG);
+        assertTrue(shot.setThumbnail(JPEG));
+        assertTrue(Arrays.equals(write(expected), write(shot)));
+
+        // Too large for the segment.
+        byte[] before = shot.getSegment().clone();
+        assertFalse(shot.setThumbnail(new byte[65536]));
+        assertTrue(Arrays.equals(before, shot.getSegment()));
+    }
+
+    private static ExifInterface build(int orientation, long time, String zone,
+            long exposureNumerator, long exposureDenominator, int iso,
+            double latitude, double longitude) {
+        ExifInterface exif = new ExifInterface();
+        exif.addMakeAndModelTag();
+        exif.addOrientationTag(orientation);
+        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, time, TimeZone.getTimeZone(zone));
+        exif.addExposureTime(new Rational(exposureNumerator, exposureDenominator));
+        exif.addISO(iso);
+        exif.addGpsTags(latitude, longitude);
+        return exif;
+    }
+
+    private static byte[] write(ExifInterface exif) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exif.writeExif(JPEG, out);
+        return out.toByteArray();
+    }
+
+    private static byte[] write(ExifTemplate.Shot shot) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        shot.writeExif(JPEG, out);
+        return out.toByteArray();
+    }
+}
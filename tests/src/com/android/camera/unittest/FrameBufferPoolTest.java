@@ -0,0 +1,111 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.imageprocessor.FrameBufferPool;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class FrameBufferPoolTest extends TestCase {
+    private static final int FRAME_SIZE = 4000 * 3000 * 3 / 2;
+
+    public void testReusesReleasedBuffer() {
+        FrameBufferPool pool = new FrameBufferPool(4L * FRAME_SIZE);
+        FrameBufferPool.Buffer first = pool.acquire(FRAME_SIZE);
+        Object memory = first.getBuffer();
+        assertEquals(FRAME_SIZE, first.getBuffer().limit());
+        first.release();
+
+        FrameBufferPool.Buffer second = pool.acquire(FRAME_SIZE);
+        assertSame(memory, second.getBuffer());
+        assertEquals(1, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+        assertEquals(0.5f, pool.getHitRate());
+        second.release();
+    }
+
+    public void testCloseSizesShareASizeClass() {
+        FrameBufferPool pool = new FrameBufferPool(4L * FRAME_SIZE);
+        FrameBufferPool.Buffer buffer = pool.acquire(FRAME_SIZE);
+        buffer.release();
+        // A slightly smaller stride still fits in the pooled buffer.
+        buffer = pool.acquire(FRAME_SIZE - 1024);
+        assertEquals(1, pool.getHitCount());
+        assertEquals(FRAME_SIZE - 1024, buffer.getBuffer().limit());
+        buffer.release();
+        // Half the size must not waste a full frame.
+        buffer = pool.acquire(FRAME_SIZE / 2);
+        assertEquals(1, pool.getHitCount());
+        assertTrue(buffer.getBuffer().capacity() < FRAME_SIZE / 2 * 9 / 8);
+        buffer.release();
+    }
+
+    public void testBufferReturnsOnLastRelease() {
+        FrameBufferPool pool = new FrameBufferPool(4L * FRAME_SIZE);
+        FrameBufferPool.Buffer buffer = pool.acquire(FRAME_SIZE);
+        long capacity = buffer.getBuffer().capacity();
+        buffer.retain();
+        buffer.release();
+        assertEquals(capacity, pool.getOutstandingBytes());
+        assertEquals(0, pool.getPooledBytes());
+        buffer.release();
+        assertEquals(0, pool.getOutstandingBytes());
+        assertEquals(capacity, pool.getPooledBytes());
+        try {
+            buffer.release();
+            fail("Released twice");
+        } catch (IllegalStateException e) {
+        }
+        try {
+            buffer.retain();
+            fail("Retained after release");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    public void testPoolStaysWithinBudget() {
+        FrameBufferPool pool = new FrameBufferPool(FRAME_SIZE * 3L / 2);
+        FrameBufferPool.Buffer a = pool.acquire(FRAME_SIZE);
+        FrameBufferPool.Buffer b = pool.acquire(FRAME_SIZE);
+        a.release();
+        b.release();
+        assertTrue(pool.getPooledBytes() <= FRAME_SIZE * 3L / 2);
+        assertTrue(pool.getPooledBytes() > 0);
+        assertTrue(pool.getPeakBytes() >= 2L * FRAME_SIZE);
+
+        pool.clear();
+        assertEquals(0, pool.getPooledBytes());
+        pool.acquire(FRAME_SIZE).release();
+        assertEquals(0, pool.getHitCount());
+    }
+}
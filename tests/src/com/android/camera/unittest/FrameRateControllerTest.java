@@ -0,0 +1,98 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.imageprocessor.FrameRateController;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class FrameRateControllerTest extends TestCase {
+    private static final long FRAME_30FPS_NS = 33333333L;
+
+    public void testDecimatesEveryOtherFrame() {
+        FrameRateController rate = new FrameRateController(15, 1f);
+        for (int i = 0; i < 60; i++) {
+            // A little timestamp jitter must not change which frames are picked.
+            long jitter = (i % 3 - 1) * 2000000L;
+            assertEquals("frame " + i, i % 2 == 0, rate.accept(i * FRAME_30FPS_NS + jitter));
+        }
+        assertEquals(30, rate.getAcceptedCount());
+        assertEquals(30, rate.getDecimatedCount());
+        assertEquals(15f, rate.getAchievedFps(), 0.5f);
+    }
+
+    public void testPassesEverythingBelowTarget() {
+        FrameRateController rate = new FrameRateController(60, 1f);
+        for (int i = 0; i < 30; i++) {
+            assertTrue(rate.accept(i * FRAME_30FPS_NS));
+        }
+        assertEquals(0, rate.getDecimatedCount());
+        assertEquals(30f, rate.getAchievedFps(), 0.5f);
+    }
+
+    public void testSlowsDownForExpensiveListener() {
+        FrameRateController rate = new FrameRateController(30, 0.5f);
+        long accepted = 0;
+        for (int i = 0; i < 300; i++) {
+            if (rate.accept(i * FRAME_30FPS_NS)) {
+                accepted++;
+                // 40ms per frame at half a core leaves room for one frame in 80ms.
+                rate.onProcessed(40000000L);
+            }
+        }
+        assertEquals(12.5f, rate.getAllowedFps(), 0.1f);
+        assertTrue("accepted " + accepted, accepted < 300 / 2);
+        assertEquals(12.5f, rate.getAchievedFps(), 1.5f);
+
+        for (int i = 300; i < 600; i++) {
+            if (rate.accept(i * FRAME_30FPS_NS)) {
+                rate.onProcessed(1000000L);
+            }
+        }
+        assertEquals(30f, rate.getAllowedFps(), 0.1f);
+        assertEquals(30f, rate.getAchievedFps(), 0.5f);
+    }
+
+    public void testRestartsAfterGapAndTimestampReset() {
+        FrameRateController rate = new FrameRateController(15, 1f);
+        assertTrue(rate.accept(0));
+        assertFalse(rate.accept(FRAME_30FPS_NS));
+        // The preview paused for a while.
+        assertTrue(rate.accept(100 * FRAME_30FPS_NS));
+        assertFalse(rate.accept(101 * FRAME_30FPS_NS));
+        assertTrue(rate.accept(102 * FRAME_30FPS_NS));
+        // The session was restarted and timestamps start over.
+        assertTrue(rate.accept(5 * FRAME_30FPS_NS));
+        assertFalse(rate.accept(6 * FRAME_30FPS_NS));
+    }
+}
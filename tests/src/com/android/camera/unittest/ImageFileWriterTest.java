@@ -0,0 +1,137 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.ImageFileWriter;
+import com.android.camera.exif.ExifInterface;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class ImageFileWriterTest extends TestCase {
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("image", ".jpg");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testGatherWrite() throws IOException {
+        byte[] data = new byte[300000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        ByteBuffer tail = ByteBuffer.wrap(data, 1000, data.length - 1000);
+        long size = ImageFileWriter.write(mFile.getPath(), ImageFileWriter.Durability.DATA,
+                ByteBuffer.wrap(data, 0, 10), ByteBuffer.wrap(new byte[0]),
+                ByteBuffer.wrap(data, 10, 990), tail);
+        assertEquals(data.length, size);
+        assertEquals(data.length, mFile.length());
+        assertTrue(Arrays.equals(data, readFile()));
+        assertFalse(tail.hasRemaining());
+    }
+
+    public void testExifBuffersMatchExifStream() throws IOException {
+        byte[] jpeg = fakeJpeg();
+        ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MODEL, "Writer test"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.getOrientationValueForRotation(90)));
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        exif.writeExif(jpeg, expected);
+
+        ByteBuffer[] buffers = exif.getExifWriteBuffers(jpeg);
+        // The compressed data is not copied.
+        assertSame(jpeg, buffers[1].array());
+        long size = ImageFileWriter.write(mFile.getPath(), ImageFileWriter.Durability.NONE,
+                buffers);
+        assertEquals(expected.size(), size);
+        assertTrue(Arrays.equals(expected.toByteArray(), readFile()));
+
+        ExifInterface written = new ExifInterface();
+        written.readExif(mFile.getPath());
+        assertEquals("Writer test", written.getTagStringValue(ExifInterface.TAG_MODEL).trim());
+    }
+
+    // SOI, an APP0 and an old APP1 segment, SOF0, some "compressed" data and EOI.
+    private static byte[] fakeJpeg() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xff);
+        out.write(0xd8);
+        writeSegment(out, 0xe0, new byte[] {'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0});
+        writeSegment(out, 0xe1, new byte[] {'E', 'x', 'i', 'f', 0, 0, 'M', 'M', 0, 42});
+        writeSegment(out, 0xc0, new byte[] {8, 0, 16, 0, 16, 1, 1, 0x11, 0});
+        for (int i = 0; i < 5000; i++) {
+            out.write(i * 7 & 0x7f);
+        }
+        out.write(0xff);
+        out.write(0xd9);
+        return out.toByteArray();
+    }
+
+    private static void writeSegment(ByteArrayOutputStream out, int marker, byte[] payload) {
+        out.write(0xff);
+        out.write(marker);
+        out.write((payload.length + 2) >> 8);
+        out.write((payload.length + 2) & 0xff);
+        out.write(payload, 0, payload.length);
+    }
+
+    private byte[] readFile() throws IOException {
+        byte[] bytes = new byte[(int) mFile.length()];
+        FileInputStream in = new FileInputStream(mFile);
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                read += in.read(bytes, read, bytes.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+}
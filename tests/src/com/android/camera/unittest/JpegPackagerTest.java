@@ -0,0 +1,141 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.os.Debug;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.Exif;
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.imageprocessor.JpegPackager;
+
+import java.io.ByteArrayOutputStream;
+
+import junit.framework.TestCase;
+
+@LargeTest
+public class JpegPackagerTest extends TestCase {
+    private static final String TAG = "JpegPackagerTest";
+    private static final int WIDTH = 4000;
+    private static final int HEIGHT = 3000;
+    private static final int QUALITY = 85;
+    private static final int ITERATIONS = 5;
+
+    private byte[] mNv21;
+    private Rect mRoi;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mNv21 = new byte[WIDTH * HEIGHT * 3 / 2];
+        for (int i = 0; i < mNv21.length; i++) {
+            mNv21[i] = (byte) ((i * 31) ^ (i >> 9));
+        }
+        mRoi = new Rect(0, 0, WIDTH, HEIGHT);
+    }
+
+    public void testExifIsWrittenInOnePass() {
+        JpegPackager.Result result = JpegPackager.encode(mNv21, WIDTH, HEIGHT, WIDTH, WIDTH,
+                mRoi, QUALITY, JpegPackager.buildExif(90, null));
+        assertEquals((byte) 0xFF, result.getJpeg()[0]);
+        assertEquals((byte) 0xD8, result.getJpeg()[1]);
+        // APP1 follows SOI directly.
+        assertEquals((byte) 0xFF, result.getJpeg()[2]);
+        assertEquals((byte) 0xE1, result.getJpeg()[3]);
+        assertEquals((byte) 0xD9, result.getJpeg()[result.getJpeg().length - 1]);
+        assertEquals(90, Exif.getOrientation(result.getJpeg()));
+        assertEquals(90, Exif.getOrientation(result.exif));
+    }
+
+    public void testTemplateResultCarriesHeaderOnly() {
+        JpegPackager packager = new JpegPackager();
+        JpegPackager.Result result = JpegPackager.encode(mNv21, WIDTH, HEIGHT, WIDTH, WIDTH,
+                mRoi, QUALITY, packager.buildExifShot(270, null));
+        assertNull(result.exif);
+        assertEquals((byte) 0xE1, result.buffer[3]);
+        assertEquals(270, Exif.getOrientation(result.getJpeg()));
+
+        packager.clear();
+        result = JpegPackager.encode(mNv21, WIDTH, HEIGHT, WIDTH, WIDTH, mRoi, QUALITY,
+                packager.buildExifShot(180, null));
+        assertEquals(180, Exif.getOrientation(result.getJpeg()));
+    }
+
+    /**
+     * Compares the previous compress, rewrite EXIF and reparse sequence with the
+     * single pass packager, in latency and bytes allocated per shot.
+     */
+    public void testBenchmarkAgainstThreePasses() throws Exception {
+        long[] legacy = new long[2];
+        long[] packaged = new long[2];
+        for (int i = 0; i < ITERATIONS; i++) {
+            measure(legacy, new Runnable() {
+                public void run() {
+                    ByteArrayOutputStream bos = new ByteArrayOutputStream(1024);
+                    new YuvImage(mNv21, ImageFormat.NV21, WIDTH, HEIGHT,
+                            new int[]{WIDTH, WIDTH}).compressToJpeg(mRoi, QUALITY, bos);
+                    ExifInterface exif = JpegPackager.buildExif(90, null);
+                    ByteArrayOutputStream jpegOut = new ByteArrayOutputStream();
+                    try {
+                        exif.writeExif(bos.toByteArray(), jpegOut);
+                    } catch (Exception e) {
+                        fail(e.toString());
+                    }
+                    Exif.getExif(jpegOut.toByteArray());
+                }
+            });
+            measure(packaged, new Runnable() {
+                public void run() {
+                    JpegPackager.encode(mNv21, WIDTH, HEIGHT, WIDTH, WIDTH, mRoi, QUALITY,
+                            JpegPackager.buildExif(90, null));
+                }
+            });
+        }
+        Log.d(TAG, WIDTH + "x" + HEIGHT + " three passes: " + legacy[0] / ITERATIONS / 1000
+                + " us, " + legacy[1] / ITERATIONS / 1024 + " KB allocated; single pass: "
+                + packaged[0] / ITERATIONS / 1000 + " us, " + packaged[1] / ITERATIONS / 1024
+                + " KB allocated");
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void measure(long[] totals, Runnable task) {
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        long start = System.nanoTime();
+        task.run();
+        totals[0] += System.nanoTime() - start;
+        Debug.stopAllocCounting();
+        totals[1] += Debug.getThreadAllocSize();
+    }
+}
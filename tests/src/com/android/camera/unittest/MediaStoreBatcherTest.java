@@ -0,0 +1,252 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Images.ImageColumns;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.camera.MediaStoreBatcher;
+import com.android.camera.Storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class MediaStoreBatcherTest extends TestCase {
+    private static final String TAG = "MediaStoreBatcherTest";
+
+    // Stands in for the MediaProvider, every call into it costs as much as a binder call.
+    private static class FakeMediaProvider extends MockContentProvider {
+        private final long mCallCostMs;
+        private long mNextId = 1;
+        int calls;
+        int batches;
+        final List<String> titles = Collections.synchronizedList(new ArrayList<String>());
+
+        FakeMediaProvider(long callCostMs) {
+            mCallCostMs = callCostMs;
+        }
+
+        private void onCall() {
+            calls++;
+            if (mCallCostMs > 0) {
+                try {
+                    Thread.sleep(mCallCostMs);
+                } catch (InterruptedException e) {
+                }
+            }
+        }
+
+        private synchronized Uri doInsert(Uri uri, ContentValues values) {
+            String title = values.getAsString(ImageColumns.TITLE);
+            if ("bad".equals(title)) {
+                throw new IllegalArgumentException("bad row");
+            }
+            titles.add(title);
+            return ContentUris.withAppendedId(uri, mNextId++);
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            onCall();
+            return doInsert(uri, values);
+        }
+
+        @Override
+        public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> ops) {
+            onCall();
+            batches++;
+            ContentProviderResult[] results = new ContentProviderResult[ops.size()];
+            for (int i = 0; i < ops.size(); i++) {
+                ContentProviderOperation op = ops.get(i);
+                results[i] = new ContentProviderResult(doInsert(op.getUri(),
+                        op.resolveValueBackReferences(results, i)));
+            }
+            return results;
+        }
+    }
+
+    private FakeMediaProvider mProvider;
+    private MockContentResolver mResolver;
+    private MediaStoreBatcher mBatcher;
+
+    private void setUpProvider(long callCostMs) {
+        mProvider = new FakeMediaProvider(callCostMs);
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(MediaStore.AUTHORITY, mProvider);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mBatcher != null) {
+            mBatcher.quit();
+        }
+        super.tearDown();
+    }
+
+    public void testFullBatchesGoOutInOrder() throws Exception {
+        setUpProvider(0);
+        mBatcher = new MediaStoreBatcher(mResolver, 4, 10000);
+        List<Uri> uris = Collections.synchronizedList(new ArrayList<Uri>());
+        CountDownLatch eight = new CountDownLatch(8);
+        for (int i = 0; i < 10; i++) {
+            mBatcher.add(values("IMG_" + i), record(uris, eight));
+        }
+        assertTrue(eight.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        // The last two wait for the delay.
+        assertEquals(8, uris.size());
+        assertEquals(2, mProvider.batches);
+
+        CountDownLatch rest = new CountDownLatch(1);
+        mBatcher.add(values("IMG_10"), record(uris, rest));
+        mBatcher.flush();
+        assertTrue(rest.await(5, TimeUnit.SECONDS));
+        assertEquals(3, mProvider.batches);
+        for (int i = 0; i < 11; i++) {
+            assertEquals("IMG_" + i, mProvider.titles.get(i));
+            assertEquals(i + 1, ContentUris.parseId(uris.get(i)));
+        }
+    }
+
+    public void testDelayFlushesPartialBatch() throws Exception {
+        setUpProvider(0);
+        mBatcher = new MediaStoreBatcher(mResolver, 100, 50);
+        CountDownLatch done = new CountDownLatch(3);
+        List<Uri> uris = Collections.synchronizedList(new ArrayList<Uri>());
+        for (int i = 0; i < 3; i++) {
+            mBatcher.add(values("IMG_" + i), record(uris, done));
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, mProvider.batches);
+        assertEquals(3, mBatcher.getInsertedCount());
+    }
+
+    public void testSlotsGoOutInReservedOrder() throws Exception {
+        setUpProvider(0);
+        mBatcher = new MediaStoreBatcher(mResolver, 100, 10000);
+        List<Uri> uris = Collections.synchronizedList(new ArrayList<Uri>());
+        CountDownLatch done = new CountDownLatch(4);
+        MediaStoreBatcher.Slot[] slots = new MediaStoreBatcher.Slot[4];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = mBatcher.reserve();
+        }
+        // A single shot written before the burst frames queued ahead of it.
+        slots[3].fill(values("IMG_3"), record(uris, done), true);
+        slots[1].fill(values("IMG_1"), record(uris, done), false);
+        Thread.sleep(50);
+        assertEquals(0, mProvider.batches);
+        assertEquals(4, mBatcher.getPendingCount());
+
+        // A failed write still lets the rows behind it go.
+        slots[2].fill(null, record(uris, done), false);
+        slots[0].fill(values("IMG_0"), record(uris, done), false);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, mProvider.batches);
+        assertEquals("[IMG_0, IMG_1, IMG_3]", mProvider.titles.toString());
+        assertEquals(1, ContentUris.parseId(uris.get(0)));
+        assertEquals(2, ContentUris.parseId(uris.get(1)));
+        assertNull(uris.get(2));
+        assertEquals(3, ContentUris.parseId(uris.get(3)));
+        assertEquals(0, mBatcher.getPendingCount());
+    }
+
+    public void testBadRowFallsBackToSingleInserts() {
+        setUpProvider(0);
+        List<ContentValues> rows = new ArrayList<ContentValues>();
+        rows.add(values("IMG_0"));
+        rows.add(values("bad"));
+        rows.add(values("IMG_2"));
+        Uri[] uris = Storage.insertImages(mResolver, rows);
+        assertNotNull(uris[0]);
+        assertNull(uris[1]);
+        assertNotNull(uris[2]);
+    }
+
+    @LargeTest
+    public void testBenchmarkLongshot() throws Exception {
+        int shots = 60;
+        setUpProvider(3);
+        long start = System.nanoTime();
+        for (int i = 0; i < shots; i++) {
+            List<ContentValues> row = new ArrayList<ContentValues>();
+            row.add(values("IMG_" + i));
+            Storage.insertImages(mResolver, row);
+        }
+        long single = System.nanoTime() - start;
+
+        setUpProvider(3);
+        mBatcher = new MediaStoreBatcher(mResolver, 10, 300);
+        CountDownLatch done = new CountDownLatch(shots);
+        List<Uri> uris = Collections.synchronizedList(new ArrayList<Uri>());
+        start = System.nanoTime();
+        for (int i = 0; i < shots; i++) {
+            mBatcher.add(values("IMG_" + i), record(uris, done));
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        long batched = System.nanoTime() - start;
+        Log.d(TAG, shots + " inserts one by one: " + single / 1000000 + "ms, "
+                + mProvider.calls + " batched calls: " + batched / 1000000 + "ms");
+        assertEquals(shots / 10, mProvider.calls);
+    }
+
+    private static ContentValues values(String title) {
+        ContentValues values = new ContentValues();
+        values.put(ImageColumns.TITLE, title);
+        values.put(ImageColumns.DATA, "/sdcard/DCIM/Camera/" + title + ".jpg");
+        return values;
+    }
+
+    private static MediaStoreBatcher.Callback record(final List<Uri> uris,
+                                                     final CountDownLatch latch) {
+        return new MediaStoreBatcher.Callback() {
+            @Override
+            public void onInserted(Uri uri) {
+                uris.add(uri);
+                latch.countDown();
+            }
+        };
+    }
+}
@@ -0,0 +1,176 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.mpo.MpoData;
+import com.android.camera.mpo.MpoImageData;
+import com.android.camera.mpo.MpoInterface;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class MpoComposerTest extends TestCase {
+    private static final byte[] CROP_INFO = "Qualcomm Dual Camera Attributes".getBytes();
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws IOException {
+        mFile = File.createTempFile("mpo", ".jpg");
+    }
+
+    @Override
+    protected void tearDown() {
+        mFile.delete();
+    }
+
+    public void testMatchesStream() throws IOException {
+        Random random = new Random(3);
+        // One or two auxiliary images, the crop info is only cleared with two.
+        for (int aux = 1; aux <= 2; aux++) {
+            MpoData mpo = new MpoData();
+            for (int i = 0; i < aux; i++) {
+                mpo.addAuxiliaryMpoImage(new MpoImageData(jpeg(random, 1000 + i),
+                        ByteOrder.BIG_ENDIAN));
+            }
+            mpo.setPrimaryMpoImage(new MpoImageData(jpeg(random, 5000), ByteOrder.BIG_ENDIAN));
+
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            int size = MpoInterface.writeMpo(mpo, expected);
+            assertEquals(size, MpoInterface.writeMpo(mpo, mFile.getPath()));
+            assertTrue(Arrays.equals(expected.toByteArray(), Files.readAllBytes(mFile.toPath())));
+        }
+    }
+
+    public void testBuffersAndFiles() throws IOException {
+        Random random = new Random(5);
+        byte[] primary = jpeg(random, 3000);
+        byte[] bayer = jpeg(random, 2000);
+        byte[] mono = jpeg(random, 1000);
+        File monoFile = File.createTempFile("mono", ".jpg");
+        try {
+            FileOutputStream out = new FileOutputStream(monoFile);
+            out.write(mono);
+            out.close();
+
+            MpoData mpo = new MpoData();
+            mpo.addAuxiliaryMpoImage(new MpoImageData(bayer, ByteOrder.BIG_ENDIAN));
+            mpo.addAuxiliaryMpoImage(new MpoImageData(mono, ByteOrder.BIG_ENDIAN));
+            mpo.setPrimaryMpoImage(new MpoImageData(primary, ByteOrder.BIG_ENDIAN));
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            MpoInterface.writeMpo(mpo, expected);
+
+            // A direct buffer with a position, a heap one and a mapped file.
+            ByteBuffer direct = ByteBuffer.allocateDirect(primary.length + 7);
+            direct.position(7);
+            direct.put(primary);
+            direct.position(7);
+            mpo = new MpoData();
+            mpo.addAuxiliaryMpoImage(new MpoImageData(ByteBuffer.wrap(bayer),
+                    ByteOrder.BIG_ENDIAN));
+            mpo.addAuxiliaryMpoImage(MpoImageData.fromFile(monoFile, ByteOrder.BIG_ENDIAN));
+            mpo.setPrimaryMpoImage(new MpoImageData(direct, ByteOrder.BIG_ENDIAN));
+            MpoInterface.writeMpo(mpo, mFile.getPath());
+            byte[] actual = Files.readAllBytes(mFile.toPath());
+            assertTrue(Arrays.equals(expected.toByteArray(), actual));
+
+            // The primary's crop info is cleared, the auxiliary images' is kept.
+            int cropInfo = indexOf(actual, CROP_INFO, 0);
+            assertTrue(cropInfo > primary.length);
+            assertTrue(indexOf(actual, CROP_INFO, cropInfo + 1) > 0);
+        } finally {
+            monoFile.delete();
+        }
+    }
+
+    // SOI, APP0, APP1, DQT, an APP7 with dual camera crop info, SOF0, scan data, EOI.
+    private static byte[] jpeg(Random random, int dataSize) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        marker(out, 0xd8);
+        segment(out, 0xe0, random, 14);
+        segment(out, 0xe1, random, 200);
+        segment(out, 0xdb, random, 65);
+        marker(out, 0xe7);
+        int length = 2 + CROP_INFO.length + 40;
+        out.write(length >> 8);
+        out.write(length);
+        out.write(CROP_INFO, 0, CROP_INFO.length);
+        for (int i = 0; i < 40; i++) {
+            out.write(1 + random.nextInt(255));
+        }
+        segment(out, 0xc0, random, 15);
+        for (int i = 0; i < dataSize; i++) {
+            // No markers in the scan data.
+            out.write(random.nextInt(0xff));
+        }
+        marker(out, 0xd9);
+        return out.toByteArray();
+    }
+
+    private static void marker(ByteArrayOutputStream out, int marker) {
+        out.write(0xff);
+        out.write(marker);
+    }
+
+    private static void segment(ByteArrayOutputStream out, int marker, Random random,
+            int size) {
+        marker(out, marker);
+        out.write((size + 2) >> 8);
+        out.write(size + 2);
+        for (int i = 0; i < size; i++) {
+            out.write(random.nextInt(256));
+        }
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from) {
+        for (int i = from; i <= data.length - pattern.length; i++) {
+            int j = 0;
+            while (j < pattern.length && data[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
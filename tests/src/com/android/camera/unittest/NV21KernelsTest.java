@@ -0,0 +1,359 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.camera.imageprocessor.NV21Kernels;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class NV21KernelsTest extends TestCase {
+    private static final String TAG = "NV21KernelsTest";
+    // Big enough to be split across threads.
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int STRIDE = 704;
+
+    public void testRotate90Golden() {
+        byte[] src = {
+                0, 1, 2, 3,
+                4, 5, 6, 7,
+                10, 11, 12, 13};
+        byte[] dst = new byte[src.length];
+        NV21Kernels.rotate(src, 4, 2, 4, 90, false, dst);
+        assertTrue(Arrays.equals(new byte[] {
+                4, 0,
+                5, 1,
+                6, 2,
+                7, 3,
+                10, 11,
+                12, 13}, dst));
+    }
+
+    public void testRotate180MirroredGolden() {
+        byte[] src = {
+                0, 1, 2, 3,
+                4, 5, 6, 7,
+                10, 11, 12, 13};
+        byte[] dst = new byte[src.length];
+        // Rotating by 180 and mirroring flips the frame upside down.
+        NV21Kernels.rotate(src, 4, 2, 4, 180, true, dst);
+        assertTrue(Arrays.equals(new byte[] {
+                4, 5, 6, 7,
+                0, 1, 2, 3,
+                10, 11, 12, 13}, dst));
+    }
+
+    public void testRotateMatchesReference() {
+        byte[] src = randomFrame(STRIDE, HEIGHT);
+        byte[] dst = new byte[WIDTH * HEIGHT * 3 / 2];
+        for (int degrees = 0; degrees < 360; degrees += 90) {
+            for (boolean mirror : new boolean[] {false, true}) {
+                NV21Kernels.rotate(src, WIDTH, HEIGHT, STRIDE, degrees, mirror, dst);
+                assertTrue("rotate " + degrees + " mirror " + mirror, Arrays.equals(
+                        referenceRotate(src, WIDTH, HEIGHT, STRIDE, degrees, mirror), dst));
+            }
+        }
+    }
+
+    public void testMirrorMatchesReference() {
+        byte[] src = randomFrame(STRIDE, HEIGHT);
+        for (boolean vertical : new boolean[] {false, true}) {
+            byte[] buf = src.clone();
+            NV21Kernels.mirror(buf, WIDTH, HEIGHT, STRIDE, vertical);
+            byte[] expected = src.clone();
+            referenceMirror(expected, WIDTH, HEIGHT, STRIDE, vertical);
+            assertTrue("vertical " + vertical, Arrays.equals(expected, buf));
+            NV21Kernels.mirror(buf, WIDTH, HEIGHT, STRIDE, vertical);
+            assertTrue("vertical " + vertical + " twice", Arrays.equals(src, buf));
+        }
+    }
+
+    public void testCropAndSplit() {
+        byte[] src = randomFrame(STRIDE, HEIGHT);
+        byte[] crop = new byte[200 * 100 * 3 / 2];
+        NV21Kernels.crop(src, STRIDE, HEIGHT, 20, 40, 200, 100, crop, 200);
+        assertEquals(src[40 * STRIDE + 20], crop[0]);
+        assertEquals(src[139 * STRIDE + 219], crop[200 * 100 - 1]);
+        assertEquals(src[STRIDE * HEIGHT + 20 * STRIDE + 20], crop[200 * 100]);
+        assertEquals(src[STRIDE * HEIGHT + 69 * STRIDE + 219], crop[crop.length - 1]);
+
+        byte[] y = new byte[WIDTH * HEIGHT];
+        byte[] vu = new byte[WIDTH * HEIGHT / 2];
+        NV21Kernels.split(src, WIDTH, HEIGHT, STRIDE, y, vu, WIDTH);
+        byte[] packed = new byte[WIDTH * HEIGHT * 3 / 2];
+        NV21Kernels.crop(src, STRIDE, HEIGHT, 0, 0, WIDTH, HEIGHT, packed, WIDTH);
+        assertTrue(Arrays.equals(Arrays.copyOf(packed, y.length), y));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(packed, y.length, packed.length), vu));
+    }
+
+    public void testResizeAveragesBlocks() {
+        // 8x4 luma with 2x2 blocks of one value each, chroma one pair per 4x4 block.
+        byte[] src = new byte[8 * 4 * 3 / 2];
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 8; x++) {
+                src[y * 8 + x] = (byte) ((y / 2) * 40 + (x / 2) * 10 + (x + y) % 2);
+            }
+        }
+        for (int i = 32; i < src.length; i += 2) {
+            src[i] = (byte) (100 + i);
+            src[i + 1] = (byte) (200 + i);
+        }
+        byte[] dst = new byte[4 * 2 * 3 / 2];
+        assertEquals(2, NV21Kernels.resize(src, 8, 4, 8, dst, 4, 2));
+        assertTrue(Arrays.equals(new byte[] {
+                0, 10, 20, 30,
+                40, 50, 60, 70,
+                (byte) 137, (byte) 237, (byte) 141, (byte) 241}, dst));
+    }
+
+    public void testResizeMatchesReference() {
+        byte[] src = randomFrame(STRIDE, HEIGHT);
+        byte[] dst = new byte[320 * 180 * 3 / 2];
+        int ratio = NV21Kernels.resize(src, WIDTH, HEIGHT, STRIDE, dst, 320, 180);
+        byte[] expected = new byte[dst.length];
+        assertEquals(referenceResize(src, WIDTH, HEIGHT, STRIDE, expected, 320, 180), ratio);
+        assertTrue(Arrays.equals(expected, dst));
+    }
+
+    public void testShrinkMatchesResize() {
+        byte[] src = randomFrame(STRIDE, HEIGHT);
+        byte[] expected = new byte[320 * 240 * 3 / 2];
+        assertEquals(2, NV21Kernels.resize(src, WIDTH, HEIGHT, STRIDE, expected, 320, 240));
+        byte[] dst = new byte[expected.length];
+        NV21Kernels.shrink(src, STRIDE, HEIGHT, 0, 0, WIDTH, HEIGHT, 2, dst);
+        assertTrue(Arrays.equals(expected, dst));
+    }
+
+    public void testShrinkCrop() {
+        byte[] src = randomFrame(STRIDE, HEIGHT);
+        int width = 400;
+        int height = 302;
+        byte[] cropped = new byte[width * height * 3 / 2];
+        NV21Kernels.crop(src, STRIDE, HEIGHT, 64, 32, width, height, cropped, width);
+        int newWidth = NV21Kernels.shrunkSize(width, 3);
+        int newHeight = NV21Kernels.shrunkSize(height, 3);
+        assertEquals(132, newWidth);
+        assertEquals(100, newHeight);
+        byte[] expected = new byte[newWidth * newHeight * 3 / 2];
+        NV21Kernels.shrink(cropped, width, height, 0, 0, width, height, 3, expected);
+        byte[] dst = new byte[expected.length];
+        NV21Kernels.shrink(src, STRIDE, HEIGHT, 64, 32, width, height, 3, dst);
+        assertTrue(Arrays.equals(expected, dst));
+    }
+
+    public void testToRgba() {
+        byte[] src = randomFrame(STRIDE, HEIGHT);
+        byte[] rgba = new byte[WIDTH * HEIGHT * 4];
+        NV21Kernels.toRgba(src, WIDTH, HEIGHT, STRIDE, rgba);
+        for (int y = 0; y < HEIGHT; y += 7) {
+            for (int x = 0; x < WIDTH; x += 5) {
+                int luma = src[y * STRIDE + x] & 0xFF;
+                int vu = STRIDE * HEIGHT + y / 2 * STRIDE + x / 2 * 2;
+                int v = (src[vu] & 0xFF) - 128;
+                int u = (src[vu + 1] & 0xFF) - 128;
+                int d = (y * WIDTH + x) * 4;
+                assertNear(luma + 1.370705f * v, rgba[d]);
+                assertNear(luma - 0.698001f * v - 0.337633f * u, rgba[d + 1]);
+                assertNear(luma + 1.732446f * u, rgba[d + 2]);
+                assertEquals((byte) 0xFF, rgba[d + 3]);
+            }
+        }
+        // Grey stays grey.
+        byte[] grey = new byte[4 * 2 * 3 / 2];
+        Arrays.fill(grey, (byte) 128);
+        grey[0] = 17;
+        byte[] out = new byte[4 * 2 * 4];
+        NV21Kernels.toRgba(grey, 4, 2, 4, out);
+        assertEquals(17, out[0]);
+        assertEquals(17, out[1]);
+        assertEquals(17, out[2]);
+    }
+
+    @LargeTest
+    public void testBenchmark() {
+        int width = 4000;
+        int height = 3000;
+        byte[] src = randomFrame(width, height);
+        byte[] dst = new byte[src.length];
+        byte[] rgba = new byte[1920 * 1080 * 4];
+        for (int i = 0; i < 3; i++) {
+            NV21Kernels.rotate(src, width, height, width, 90, false, dst);
+            NV21Kernels.toRgba(src, 1920, 1080, 1920, rgba);
+        }
+        int runs = 10;
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            NV21Kernels.rotate(src, width, height, width, 90, false, dst);
+        }
+        long rotate = (System.nanoTime() - start) / runs;
+        start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            referenceRotate(src, width, height, width, 90, false);
+        }
+        long reference = (System.nanoTime() - start) / runs;
+        start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            NV21Kernels.toRgba(src, 1920, 1080, 1920, rgba);
+        }
+        long convert = (System.nanoTime() - start) / runs;
+        Log.d(TAG, "12MP rotate90: " + rotate / 1000 + "us (per-pixel reference "
+                + reference / 1000 + "us), 1080p toRgba: " + convert / 1000 + "us");
+    }
+
+    private static byte[] randomFrame(int stride, int height) {
+        byte[] frame = new byte[stride * height * 3 / 2];
+        new Random(height).nextBytes(frame);
+        return frame;
+    }
+
+    private static void assertNear(float expected, byte actual) {
+        int clamped = Math.max(0, Math.min(255, (int) expected));
+        assertTrue("expected " + clamped + " but was " + (actual & 0xFF),
+                Math.abs(clamped - (actual & 0xFF)) <= 1);
+    }
+
+    // Straightforward per-pixel definitions the kernels are checked against.
+
+    private static byte[] referenceRotate(byte[] src, int width, int height, int stride,
+                                          int degrees, boolean mirror) {
+        boolean transposed = degrees == 90 || degrees == 270;
+        int dstWidth = transposed ? height : width;
+        int dstHeight = transposed ? width : height;
+        byte[] dst = new byte[dstWidth * dstHeight * 3 / 2];
+        for (int r = 0; r < dstHeight; r++) {
+            for (int c = 0; c < dstWidth; c++) {
+                int[] p = sourceOf(r, mirror ? dstWidth - 1 - c : c, width, height, degrees);
+                dst[r * dstWidth + c] = src[p[1] * stride + p[0]];
+            }
+        }
+        for (int r = 0; r < dstHeight / 2; r++) {
+            for (int c = 0; c < dstWidth / 2; c++) {
+                int[] p = sourceOf(r, mirror ? dstWidth / 2 - 1 - c : c, width / 2, height / 2,
+                        degrees);
+                int s = stride * height + p[1] * stride + p[0] * 2;
+                int d = dstWidth * dstHeight + r * dstWidth + c * 2;
+                dst[d] = src[s];
+                dst[d + 1] = src[s + 1];
+            }
+        }
+        return dst;
+    }
+
+    private static int[] sourceOf(int r, int c, int width, int height, int degrees) {
+        switch (degrees) {
+            case 90:
+                return new int[] {r, height - 1 - c};
+            case 180:
+                return new int[] {width - 1 - c, height - 1 - r};
+            case 270:
+                return new int[] {width - 1 - r, c};
+            default:
+                return new int[] {c, r};
+        }
+    }
+
+    private static void referenceMirror(byte[] buf, int width, int height, int stride,
+                                        boolean vertical) {
+        byte[] copy = buf.clone();
+        int lumaSize = stride * height;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < (vertical ? stride : width); x++) {
+                int sx = vertical ? x : width - 1 - x;
+                int sy = vertical ? height - 1 - y : y;
+                buf[y * stride + x] = copy[sy * stride + sx];
+            }
+        }
+        for (int y = 0; y < height / 2; y++) {
+            for (int x = 0; x < (vertical ? stride : width); x += 2) {
+                int sx = vertical ? x : width - 2 - x;
+                int sy = vertical ? height / 2 - 1 - y : y;
+                buf[lumaSize + y * stride + x] = copy[lumaSize + sy * stride + sx];
+                buf[lumaSize + y * stride + x + 1] = copy[lumaSize + sy * stride + sx + 1];
+            }
+        }
+    }
+
+    // The resize the JNI helper used to do, kept as is.
+    private static int referenceResize(byte[] old, int oldWidth, int oldHeight, int oldStride,
+                                       byte[] dst, int newWidth, int newHeight) {
+        int adjustedOldWidth = oldWidth;
+        if ((float) oldWidth / oldHeight != (float) newWidth / newHeight) {
+            adjustedOldWidth = (int) (((float) newWidth / newHeight) * oldHeight);
+        }
+        int wR = adjustedOldWidth / newWidth;
+        int hR = oldHeight / newHeight;
+        if (wR < hR && adjustedOldWidth - newWidth * wR >= adjustedOldWidth / 4) {
+            wR++;
+        }
+        if (hR < wR && oldHeight - newHeight * hR >= oldHeight / 4) {
+            hR++;
+        }
+        int R = wR < hR ? wR : hR;
+        int wC = oldWidth - (newWidth * R);
+        int hC = oldHeight - (newHeight * R);
+        int index = 0;
+        for (int j = hC / 2; j < newHeight * R + hC / 2; j += R) {
+            for (int i = wC / 2; i < newWidth * R + wC / 2; i += R) {
+                int cv1 = 0;
+                for (int y = 0; y < R; y++) {
+                    for (int x = 0; x < R; x++) {
+                        cv1 += old[(j + y) * oldStride + i + x] & 0xFF;
+                    }
+                }
+                dst[index++] = (byte) (cv1 / (R * R));
+            }
+        }
+        int ySize = oldStride * oldHeight;
+        index = newWidth * newHeight;
+        for (int j = hC / 2; j < newHeight * R + hC / 2; j += R * 2) {
+            for (int i = wC / 2; i < newWidth * R + wC / 2; i += R * 2) {
+                int cv1 = 0;
+                int cv2 = 0;
+                for (int y = 0; y < R * 2; y += 2) {
+                    for (int x = 0; x < R * 2; x += 2) {
+                        cv1 += old[ySize + (j + y) / 2 * oldStride + (i + x) / 2 * 2] & 0xFF;
+                        cv2 += old[ySize + (j + y) / 2 * oldStride + (i + x) / 2 * 2 + 1] & 0xFF;
+                    }
+                }
+                dst[index++] = (byte) (cv1 / (R * R));
+                dst[index++] = (byte) (cv2 / (R * R));
+            }
+        }
+        return R;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.imageprocessor.PreviewPipelineStats;
+import com.android.camera.imageprocessor.PreviewPipelineStats.Drop;
+import com.android.camera.imageprocessor.PreviewPipelineStats.Stage;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class PreviewPipelineStatsTest extends TestCase {
+    private static final long FRAME_INTERVAL_NS = 33333333L;
+
+    public void testPercentilesWithinHistogramResolution() {
+        PreviewPipelineStats stats = new PreviewPipelineStats();
+        long sequence = stats.beginFrame(0);
+        for (int i = 1; i <= 1000; i++) {
+            stats.recordStage(sequence, Stage.CONVERT, i * 10000L); // 10us .. 10ms
+        }
+        assertEquals(1000, stats.getSampleCount(Stage.CONVERT));
+        assertWithin(5000000L, stats.getPercentile(Stage.CONVERT, 50));
+        assertWithin(9500000L, stats.getPercentile(Stage.CONVERT, 95));
+        assertWithin(9900000L, stats.getPercentile(Stage.CONVERT, 99));
+        assertEquals(0, stats.getPercentile(Stage.SEND, 50));
+    }
+
+    public void testEstimatesFramesSkippedByReader() {
+        PreviewPipelineStats stats = new PreviewPipelineStats();
+        long timestamp = 0;
+        for (int i = 0; i < 10; i++) {
+            stats.beginFrame(timestamp += FRAME_INTERVAL_NS);
+        }
+        // Three frames never made it out of the ImageReader.
+        stats.beginFrame(timestamp += 4 * FRAME_INTERVAL_NS);
+        stats.beginFrame(timestamp += FRAME_INTERVAL_NS);
+        assertEquals(3, stats.getDropCount(Drop.READER_OVERRUN));
+        assertEquals(12, stats.getFrameCount());
+    }
+
+    public void testDumpListsRecentFrames() {
+        PreviewPipelineStats stats = new PreviewPipelineStats();
+        for (int i = 0; i < 300; i++) {
+            long sequence = stats.beginFrame((i + 1) * FRAME_INTERVAL_NS);
+            stats.recordStage(sequence, Stage.SEND, 2000000L);
+        }
+        stats.recordDrop(Drop.OUTPUT_BUSY);
+        StringWriter out = new StringWriter();
+        stats.dump(new PrintWriter(out));
+        String dump = out.toString();
+        assertTrue(dump.contains("drop OUTPUT_BUSY 1"));
+        assertTrue(dump.contains("\n300," + 300 * FRAME_INTERVAL_NS + ","));
+        assertFalse(dump.contains("\n1," + FRAME_INTERVAL_NS + ","));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual,
+                actual >= expected && actual <= expected * 5 / 4);
+    }
+}
@@ -0,0 +1,210 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.SaveScheduler;
+import com.android.camera.SaveScheduler.Priority;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class SaveSchedulerTest extends TestCase {
+    private SaveScheduler mScheduler;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mScheduler != null) {
+            mScheduler.shutdown();
+        }
+        super.tearDown();
+    }
+
+    public void testHigherPriorityRunsFirst() throws Exception {
+        mScheduler = new SaveScheduler(1, 1 << 20);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        mScheduler.submit(new Runnable() {
+            @Override
+            public void run() {
+                await(gate);
+            }
+        }, Priority.USER, null, 0);
+        mScheduler.submit(record(order, "debug"), Priority.DEBUG, null, 0);
+        mScheduler.submit(record(order, "burst1"), Priority.BURST, null, 0);
+        mScheduler.submit(record(order, "burst2"), Priority.BURST, null, 0);
+        mScheduler.submit(record(order, "user"), Priority.USER, null, 0);
+        assertEquals(2, mScheduler.getQueueDepth(Priority.BURST));
+        gate.countDown();
+        waitForCompleted(5);
+        assertEquals("[user, burst1, burst2, debug]", order.toString());
+        assertEquals(0, mScheduler.getQueueDepth());
+    }
+
+    public void testSameFileRunsInOrder() throws Exception {
+        mScheduler = new SaveScheduler(4, 1 << 20);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicBoolean overlapped = new AtomicBoolean();
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        for (int i = 0; i < 20; i++) {
+            final int index = i;
+            mScheduler.submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (running.incrementAndGet() > 1) {
+                        overlapped.set(true);
+                    }
+                    sleep(2);
+                    order.add(index);
+                    running.decrementAndGet();
+                }
+            }, i % 3 == 0 ? Priority.USER : Priority.DEBUG, "IMG_1.jpg", 0);
+        }
+        waitForCompleted(20);
+        assertFalse(overlapped.get());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(Integer.valueOf(i), order.get(i));
+        }
+    }
+
+    public void testShutdownRunsWaitingRequests() throws Exception {
+        mScheduler = new SaveScheduler(2, 1 << 20);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        mScheduler.submit(new Runnable() {
+            @Override
+            public void run() {
+                await(gate);
+                order.add(0);
+            }
+        }, Priority.USER, "IMG_1.jpg", 0);
+        for (int i = 1; i < 4; i++) {
+            final int index = i;
+            mScheduler.submit(new Runnable() {
+                @Override
+                public void run() {
+                    order.add(index);
+                }
+            }, Priority.BURST, "IMG_1.jpg", 0);
+        }
+        final CountDownLatch terminated = new CountDownLatch(1);
+        mScheduler.shutdown(new Runnable() {
+            @Override
+            public void run() {
+                order.add(-1);
+                terminated.countDown();
+            }
+        });
+        gate.countDown();
+        assertTrue(terminated.await(5, TimeUnit.SECONDS));
+        assertEquals(4, mScheduler.getCompletedCount());
+        assertEquals("[0, 1, 2, 3, -1]", order.toString());
+    }
+
+    public void testBudgetAndBackpressure() throws Exception {
+        mScheduler = new SaveScheduler(1, 1000);
+        final List<Boolean> states = Collections.synchronizedList(new ArrayList<Boolean>());
+        mScheduler.setListener(new SaveScheduler.Listener() {
+            @Override
+            public void onQueueStatus(boolean full) {
+                states.add(full);
+            }
+        });
+        final CountDownLatch gate = new CountDownLatch(1);
+        mScheduler.submit(new Runnable() {
+            @Override
+            public void run() {
+                await(gate);
+            }
+        }, Priority.USER, null, 600);
+        assertFalse(mScheduler.isFull());
+        mScheduler.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, Priority.USER, null, 600);
+        assertTrue(mScheduler.isFull());
+        assertEquals(1200, mScheduler.getQueuedBytes());
+        assertFalse(mScheduler.awaitCapacity(20));
+
+        new Thread() {
+            @Override
+            public void run() {
+                SaveSchedulerTest.sleep(20);
+                gate.countDown();
+            }
+        }.start();
+        assertTrue(mScheduler.awaitCapacity(5000));
+        waitForCompleted(2);
+        assertEquals(0, mScheduler.getQueuedBytes());
+        assertEquals("[true, false]", states.toString());
+        assertTrue(mScheduler.getThroughputBytesPerSecond() > 0);
+    }
+
+    private void waitForCompleted(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mScheduler.getCompletedCount() < count || mScheduler.getQueuedBytes() > 0) {
+            assertTrue(mScheduler.toString(), System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static Runnable record(final List<String> order, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                order.add(name);
+            }
+        };
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+        }
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.location.Location;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.SaveSpool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class SaveSpoolTest extends TestCase {
+    private static final int CAPACITY = 64 * 1024;
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("spool", null);
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testPendingEntriesSurviveReopen() {
+        SaveSpool spool = SaveSpool.open(mFile, CAPACITY);
+        assertEquals(0, spool.getPendingCount());
+        SaveSpool.Entry first = spool.append("IMG_1", "jpeg", 1000L, 90, 4000, 3000, null, null,
+                image(1, 5000));
+        Location location = new Location("gps");
+        location.setLatitude(37.42);
+        location.setLongitude(-122.08);
+        location.setTime(1500L);
+        spool.append("IMG_2", "jpeg", 2000L, 180, 4000, 3000, location, image(4, 120),
+                image(2, 7001));
+        spool.append("IMG_3", "jpeg", 3000L, 0, 640, 480, null, null, image(3, 3));
+        spool.complete(first);
+        assertEquals(2, spool.getPendingCount());
+
+        // As if the process had been killed here.
+        SaveSpool reopened = SaveSpool.open(mFile, CAPACITY);
+        List<SaveSpool.Entry> pending = reopened.getPendingEntries();
+        assertEquals(2, pending.size());
+        SaveSpool.Entry second = pending.get(0);
+        assertEquals("IMG_2", second.title);
+        assertEquals("jpeg", second.pictureFormat);
+        assertEquals(2000L, second.date);
+        assertEquals(180, second.orientation);
+        assertEquals(4000, second.width);
+        assertEquals(3000, second.height);
+        assertTrue(Arrays.equals(image(2, 7001), reopened.read(second)));
+        assertTrue(Arrays.equals(image(4, 120), reopened.readExif(second)));
+        assertEquals("gps", second.location.getProvider());
+        assertEquals(37.42, second.location.getLatitude());
+        assertEquals(-122.08, second.location.getLongitude());
+        assertFalse(second.location.hasAltitude());
+        assertEquals(1500L, second.location.getTime());
+        assertEquals("IMG_3", pending.get(1).title);
+        assertNull(pending.get(1).location);
+        assertNull(reopened.readExif(pending.get(1)));
+        assertTrue(Arrays.equals(image(3, 3), reopened.read(pending.get(1))));
+
+        reopened.complete(pending.get(0));
+        reopened.complete(pending.get(1));
+        assertEquals(0, reopened.getUsedBytes());
+        assertEquals(0, SaveSpool.open(mFile, CAPACITY).getPendingCount());
+    }
+
+    public void testRingReusesSpace() {
+        SaveSpool spool = SaveSpool.open(mFile, CAPACITY);
+        SaveSpool.Entry previous = null;
+        // Far more data than fits at once, with one entry always pending.
+        for (int i = 0; i < 100; i++) {
+            SaveSpool.Entry entry = spool.append("IMG_" + i, "jpeg", i, 0, 0, 0,
+                    null, null, image(i, 20000 + i));
+            assertNotNull("entry " + i, entry);
+            if (previous != null) {
+                spool.complete(previous);
+            }
+            previous = entry;
+        }
+        SaveSpool reopened = SaveSpool.open(mFile, CAPACITY);
+        List<SaveSpool.Entry> pending = reopened.getPendingEntries();
+        assertEquals(1, pending.size());
+        assertEquals("IMG_99", pending.get(0).title);
+        assertTrue(Arrays.equals(image(99, 20099), reopened.read(pending.get(0))));
+    }
+
+    public void testFullSpoolRefusesAndRecovers() {
+        SaveSpool spool = SaveSpool.open(mFile, CAPACITY);
+        SaveSpool.Entry a = spool.append("A", "jpeg", 0, 0, 0, 0, null, null, image(1, 30000));
+        SaveSpool.Entry b = spool.append("B", "jpeg", 0, 0, 0, 0, null, null, image(2, 30000));
+        assertNotNull(a);
+        assertNotNull(b);
+        assertNull(spool.append("C", "jpeg", 0, 0, 0, 0, null, null, image(3, 30000)));
+        // B being done does not free anything while A is still at the head.
+        spool.complete(b);
+        assertNull(spool.append("C", "jpeg", 0, 0, 0, 0, null, null, image(3, 30000)));
+        spool.complete(a);
+        assertNotNull(spool.append("C", "jpeg", 0, 0, 0, 0, null, null, image(3, 30000)));
+    }
+
+    public void testTornEntryIsSkipped() throws IOException {
+        SaveSpool spool = SaveSpool.open(mFile, CAPACITY);
+        spool.append("IMG_1", "jpeg", 0, 0, 0, 0, null, null, image(1, 100));
+        spool.append("IMG_2", "jpeg", 0, 0, 0, 0, null, null, image(2, 100));
+        // Turn the second entry back into one that was still being written.
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            long second = 16 + spool.getUsedBytes() / 2;
+            raf.seek(second + 4);
+            raf.writeInt(0);
+        } finally {
+            raf.close();
+        }
+        List<SaveSpool.Entry> pending = SaveSpool.open(mFile, CAPACITY).getPendingEntries();
+        assertEquals(1, pending.size());
+        assertEquals("IMG_1", pending.get(0).title);
+    }
+
+    public void testCorruptFileIsReset() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.setLength(CAPACITY);
+            raf.writeInt(0x12345678);
+        } finally {
+            raf.close();
+        }
+        SaveSpool spool = SaveSpool.open(mFile, CAPACITY);
+        assertEquals(0, spool.getPendingCount());
+        assertNotNull(spool.append("IMG_1", "jpeg", 0, 0, 0, 0, null, null, image(1, 100)));
+    }
+
+    private static byte[] image(int seed, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (seed * 31 + i);
+        }
+        return data;
+    }
+}
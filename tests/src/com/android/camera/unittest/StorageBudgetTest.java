@@ -0,0 +1,143 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.Storage;
+import com.android.camera.StorageBudget;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class StorageBudgetTest extends TestCase {
+    private static final long MB = 1024 * 1024;
+
+    private long mFreeBytes;
+    private int mMeasureCalls;
+    private final List<Integer> mLevels = new ArrayList<Integer>();
+
+    private final StorageBudget.Measurer mMeasurer = new StorageBudget.Measurer() {
+        @Override
+        public long measure() {
+            mMeasureCalls++;
+            return mFreeBytes;
+        }
+    };
+
+    private final StorageBudget.Listener mListener = new StorageBudget.Listener() {
+        @Override
+        public void onStorageLevelChanged(int level, long availableBytes) {
+            mLevels.add(level);
+        }
+    };
+
+    private StorageBudget newBudget(long refreshPeriodMs) {
+        StorageBudget budget = new StorageBudget(mMeasurer, refreshPeriodMs, 60 * MB, 20 * MB);
+        budget.addListener(mListener);
+        return budget;
+    }
+
+    public void testReservationsAreSubtractedWithoutMeasuring() {
+        mFreeBytes = 200 * MB;
+        StorageBudget budget = newBudget(Long.MAX_VALUE);
+        assertEquals(200 * MB, budget.getAvailableSpace());
+
+        budget.reserve(10 * MB);
+        budget.reserve(5 * MB);
+        assertEquals(185 * MB, budget.getAvailableSpace());
+
+        // The file came out smaller than reserved.
+        budget.release(10 * MB, 8 * MB);
+        assertEquals(187 * MB, budget.getAvailableSpace());
+        // A failed save gives everything back.
+        budget.release(5 * MB, 0);
+        assertEquals(192 * MB, budget.getAvailableSpace());
+        assertEquals(0, budget.getReservedBytes());
+        assertEquals(1, mMeasureCalls);
+    }
+
+    public void testInvalidateTakesNewBaseline() {
+        mFreeBytes = 200 * MB;
+        StorageBudget budget = newBudget(Long.MAX_VALUE);
+        budget.getAvailableSpace();
+        budget.reserve(30 * MB);
+        budget.release(30 * MB, 30 * MB);
+        budget.reserve(10 * MB);
+
+        // The measurement includes the written file, but not the pending reservation.
+        mFreeBytes = 170 * MB;
+        budget.invalidate();
+        assertEquals(160 * MB, budget.getAvailableSpace());
+        assertEquals(2, mMeasureCalls);
+    }
+
+    public void testRemeasuresAfterRefreshPeriod() {
+        mFreeBytes = 100 * MB;
+        StorageBudget budget = newBudget(0);
+        budget.getAvailableSpace();
+        budget.getAvailableSpace();
+        assertEquals(2, mMeasureCalls);
+        assertEquals(2, budget.getMeasureCount());
+    }
+
+    public void testListenersSeeThresholdCrossings() {
+        mFreeBytes = 100 * MB;
+        StorageBudget budget = newBudget(Long.MAX_VALUE);
+        budget.getAvailableSpace();
+        assertEquals(StorageBudget.LEVEL_OK, budget.getLevel());
+
+        budget.reserve(30 * MB);
+        budget.reserve(10 * MB);
+        budget.reserve(45 * MB);
+        budget.release(45 * MB, 0);
+        assertEquals(3, mLevels.size());
+        assertEquals(StorageBudget.LEVEL_LOW, (int) mLevels.get(0));
+        assertEquals(StorageBudget.LEVEL_CRITICAL, (int) mLevels.get(1));
+        assertEquals(StorageBudget.LEVEL_LOW, (int) mLevels.get(2));
+
+        budget.removeListener(mListener);
+        budget.release(10 * MB, 0);
+        assertEquals(StorageBudget.LEVEL_OK, budget.getLevel());
+        assertEquals(3, mLevels.size());
+    }
+
+    public void testFailedMeasurementIsReported() {
+        mFreeBytes = Storage.UNAVAILABLE;
+        StorageBudget budget = newBudget(Long.MAX_VALUE);
+        budget.reserve(MB);
+        assertEquals(Storage.UNAVAILABLE, budget.getAvailableSpace());
+        assertEquals(StorageBudget.LEVEL_OK, budget.getLevel());
+        assertTrue(mLevels.isEmpty());
+    }
+}
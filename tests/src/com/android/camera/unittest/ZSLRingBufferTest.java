@@ -0,0 +1,322 @@
+/*
+Copyright (c) 2018, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.camera.imageprocessor.ZSLRingBuffer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class ZSLRingBufferTest extends TestCase {
+    private static final String TAG = "ZSLRingBufferTest";
+    private static final int BENCHMARK_FRAMES = 200000;
+
+    private static class Frame {
+        final long timestamp;
+        boolean closed;
+
+        Frame(long timestamp) {
+            this.timestamp = timestamp;
+        }
+    }
+
+    private static final ZSLRingBuffer.Releaser<Frame, Long> RELEASER =
+            new ZSLRingBuffer.Releaser<Frame, Long>() {
+        @Override
+        public void release(ZSLRingBuffer.Entry<Frame, Long> entry) {
+            if (entry.getImage() != null) {
+                entry.getImage().closed = true;
+            }
+        }
+    };
+
+    public void testPairsOutOfOrderHalves() {
+        ZSLRingBuffer<Frame, Long> ring = new ZSLRingBuffer<Frame, Long>(5, RELEASER);
+        ring.addMetadata(100, 100L);
+        ring.addImage(200, new Frame(200), null);
+        ring.addImage(100, new Frame(100), null);
+        ring.addMetadata(200, 200L);
+
+        ZSLRingBuffer.Entry<Frame, Long> entry = ring.takeNewest(null);
+        assertNotNull(entry);
+        assertEquals(200, entry.getTimestamp());
+        assertEquals(200, entry.getImage().timestamp);
+        assertEquals(Long.valueOf(200), entry.getMetadata());
+        entry = ring.takeNewest(null);
+        assertEquals(100, entry.getTimestamp());
+        assertNull(ring.takeNewest(null));
+    }
+
+    public void testReleasesOldestWhenRingWraps() {
+        ZSLRingBuffer<Frame, Long> ring = new ZSLRingBuffer<Frame, Long>(3, RELEASER);
+        Frame[] frames = new Frame[5];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = new Frame(i);
+            ring.addImage(i, frames[i], null);
+            ring.addMetadata(i, Long.valueOf(i));
+        }
+        assertTrue(frames[0].closed);
+        assertTrue(frames[1].closed);
+        assertFalse(frames[2].closed);
+        assertEquals(4, ring.takeNewest(null).getTimestamp());
+    }
+
+    public void testShrinkingDepthReleasesOldestFirst() {
+        ZSLRingBuffer<Frame, Long> ring = new ZSLRingBuffer<Frame, Long>(4, 6, RELEASER);
+        Frame[] frames = new Frame[4];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = new Frame(i);
+            ring.addImage(i, frames[i], null);
+            ring.addMetadata(i, Long.valueOf(i));
+        }
+        ring.setDepth(2);
+        assertTrue(frames[0].closed);
+        assertTrue(frames[1].closed);
+        assertFalse(frames[2].closed);
+        assertEquals(2, ring.size());
+
+        ring.setDepth(3);
+        for (int i = 4; i < 7; i++) {
+            ring.addImage(i, new Frame(i), null);
+            ring.addMetadata(i, Long.valueOf(i));
+        }
+        assertTrue(frames[3].closed);
+        assertEquals(3, ring.size());
+        assertEquals(6, ring.takeNewest(null).getTimestamp());
+    }
+
+    public void testDropsUnmatchedImages() {
+        ZSLRingBuffer<Frame, Long> ring = new ZSLRingBuffer<Frame, Long>(2, RELEASER);
+        Frame lost = new Frame(1);
+        ring.addImage(1, lost, null);
+        ring.addImage(2, new Frame(2), null);
+        ring.addImage(3, new Frame(3), null);
+        ring.addMetadata(1, 1L);
+        assertTrue(lost.closed);
+        assertEquals(1, ring.getDroppedCount());
+    }
+
+    public void testFilterAndClose() {
+        ZSLRingBuffer<Frame, Long> ring = new ZSLRingBuffer<Frame, Long>(4, RELEASER);
+        Frame kept = new Frame(1);
+        ring.addImage(1, kept, null);
+        ring.addMetadata(1, 1L);
+        ring.addImage(2, new Frame(2), null);
+        ring.addMetadata(2, 2L);
+        ZSLRingBuffer.Entry<Frame, Long> entry = ring.takeNewest(
+                new ZSLRingBuffer.Filter<Frame, Long>() {
+            @Override
+            public boolean accept(ZSLRingBuffer.Entry<Frame, Long> e) {
+                return e.getMetadata() % 2 == 1;
+            }
+        });
+        assertEquals(1, entry.getTimestamp());
+        Frame late = new Frame(3);
+        ring.close();
+        ring.addImage(3, late, null);
+        assertTrue(late.closed);
+        assertFalse(kept.closed);
+    }
+
+    public void testTakeBestUsesScores() {
+        ZSLRingBuffer<Frame, Long> ring = new ZSLRingBuffer<Frame, Long>(5, RELEASER);
+        // Metadata carries the score, 0 is rejected.
+        ring.setScorer(new ZSLRingBuffer.Scorer<Frame, Long>() {
+            @Override
+            public float score(ZSLRingBuffer.Entry<Frame, Long> entry) {
+                return entry.getMetadata() == 0 ? -1f : entry.getMetadata();
+            }
+        });
+        long[] scores = {3, 7, 7, 0, 2};
+        for (int i = 0; i < scores.length; i++) {
+            ring.addImage(i, new Frame(i), null);
+            ring.addMetadata(i, scores[i]);
+        }
+        assertEquals(2, ring.takeBest().getTimestamp());
+        assertEquals(1, ring.takeBest().getTimestamp());
+        assertEquals(0, ring.takeBest().getTimestamp());
+        assertEquals(4, ring.takeBest().getTimestamp());
+        assertNull(ring.takeBest());
+    }
+
+    public void testTakeBestSkipsEvictedFrames() {
+        ZSLRingBuffer<Frame, Long> ring = new ZSLRingBuffer<Frame, Long>(2, RELEASER);
+        ring.setScorer(new ZSLRingBuffer.Scorer<Frame, Long>() {
+            @Override
+            public float score(ZSLRingBuffer.Entry<Frame, Long> entry) {
+                return entry.getMetadata();
+            }
+        });
+        long[] scores = {9, 1, 4};
+        for (int i = 0; i < scores.length; i++) {
+            ring.addImage(i, new Frame(i), null);
+            ring.addMetadata(i, scores[i]);
+        }
+        assertEquals(2, ring.takeBest().getTimestamp());
+        assertEquals(1, ring.takeBest().getTimestamp());
+    }
+
+    /**
+     * Compares the indexed ring against the linear scan matching used by the
+     * previous ZSLQueue implementation. Image and metadata producers run on separate
+     * threads and stay within MAX_SKEW frames of each other, as the camera callbacks
+     * do.
+     */
+    @LargeTest
+    public void testBenchmarkAgainstLinearScan() throws Exception {
+        for (int size : new int[] {5, 10, 20, 40}) {
+            final ZSLRingBuffer<Frame, Long> ring =
+                    new ZSLRingBuffer<Frame, Long>(size, RELEASER);
+            long indexed = runProducers(new Sink() {
+                public void image(long ts) { ring.addImage(ts, new Frame(ts), null); }
+                public void meta(long ts) { ring.addMetadata(ts, ts); }
+            });
+            final LinearQueue linear = new LinearQueue(size);
+            long scanned = runProducers(new Sink() {
+                public void image(long ts) { linear.addImage(new Frame(ts)); }
+                public void meta(long ts) { linear.addMetadata(ts); }
+            });
+            Log.d(TAG, "ring size " + size + ": indexed " + indexed / BENCHMARK_FRAMES
+                    + " ns/frame (" + ring.getPublishedCount() + " paired), linear "
+                    + scanned / BENCHMARK_FRAMES + " ns/frame (" + linear.paired + " paired)");
+            assertTrue(ring.getPublishedCount() > 0);
+        }
+    }
+
+    private interface Sink {
+        void image(long ts);
+        void meta(long ts);
+    }
+
+    private static final int MAX_SKEW = 3;
+
+    private long runProducers(final Sink sink) throws InterruptedException {
+        final AtomicLong imagesSent = new AtomicLong(0);
+        final AtomicLong metasSent = new AtomicLong(0);
+        Thread images = new Thread() {
+            public void run() {
+                for (long ts = 1; ts <= BENCHMARK_FRAMES; ts++) {
+                    while (metasSent.get() + MAX_SKEW < ts) {
+                        Thread.yield();
+                    }
+                    sink.image(ts);
+                    imagesSent.set(ts);
+                }
+            }
+        };
+        Thread metas = new Thread() {
+            public void run() {
+                for (long ts = 1; ts <= BENCHMARK_FRAMES; ts++) {
+                    while (imagesSent.get() + MAX_SKEW < ts) {
+                        Thread.yield();
+                    }
+                    sink.meta(ts);
+                    metasSent.set(ts);
+                }
+            }
+        };
+        long start = System.nanoTime();
+        images.start();
+        metas.start();
+        images.join();
+        metas.join();
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Reduced copy of the previous ZSLQueue pairing logic: one lock, and a scan of
+     * the whole ring for the partner of every arriving half.
+     */
+    private static class LinearQueue {
+        private final Frame[] mImages;
+        private final long[] mMetas;
+        private int mImageHead;
+        private int mMetaHead;
+        long paired;
+
+        LinearQueue(int size) {
+            mImages = new Frame[size];
+            mMetas = new long[size];
+        }
+
+        synchronized void addImage(Frame image) {
+            int i = findMeta(image.timestamp, mImageHead);
+            if (i == -1) {
+                i = mImageHead;
+            } else {
+                paired++;
+            }
+            if (mImages[i] != null) {
+                mImages[i].closed = true;
+            }
+            mImages[i] = image;
+            mImageHead = (i + 1) % mImages.length;
+        }
+
+        synchronized void addMetadata(long timestamp) {
+            int i = findImage(timestamp, mMetaHead);
+            if (i == -1) {
+                i = mMetaHead;
+            } else {
+                paired++;
+            }
+            mMetas[i] = timestamp;
+            mMetaHead = (i + 1) % mMetas.length;
+        }
+
+        private int findMeta(long timestamp, int index) {
+            int start = index;
+            do {
+                if (mMetas[index] == timestamp) {
+                    return index;
+                }
+                index = (index + 1) % mMetas.length;
+            } while (index != start);
+            return -1;
+        }
+
+        private int findImage(long timestamp, int index) {
+            int start = index;
+            do {
+                if (mImages[index] != null && mImages[index].timestamp == timestamp) {
+                    return index;
+                }
+                index = (index + 1) % mImages.length;
+            } while (index != start);
+            return -1;
+        }
+    }
+}